@@ -19,6 +19,8 @@ import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.Lists;
+
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
@@ -59,7 +61,7 @@ public class DemoApiDelegateImpl implements DemoApiDelegate {
         .map(result -> {
           SampleDto sample = new SampleDto();
           sample.setDate(result.getSample().getOffsetDateTime());
-          sample.setValue(Integer.parseInt(result.getSample().getValue()));
+          sample.setValue(toInteger(result.getSample().getDoubleValue()));
           return sample;
         })
         .collect(Collectors.toList());
@@ -82,7 +84,7 @@ public class DemoApiDelegateImpl implements DemoApiDelegate {
           TimeSeriesDto timeSeries = new TimeSeriesDto();
           result.getSamples().forEach(sample -> {
             SampleDto dto = new SampleDto();
-            dto.setValue(Integer.parseInt(sample.getValue()));
+            dto.setValue(toInteger(sample.getDoubleValue()));
             dto.setDate(sample.getOffsetDateTime());
 
             timeSeries.addSamplesItem(dto);
@@ -124,15 +126,11 @@ public class DemoApiDelegateImpl implements DemoApiDelegate {
 //    PromMetadata.Series series = promQueryService
 //        .<PromMetadata.Series>queryMetadata(promQuery)
 //        .getBody();
-    PromMetadata.Series series = promQueryService
-        .querySeriesMetadata(promQuery)
-        .getBody();
-
-    log.info("Got series of size {}.", series.getData().size());
+    // The label sets are handed over while the response is being parsed, only the names are kept.
+    List<String> seriesNames = Lists.newArrayList();
+    promQueryService.querySeries(promQuery, labels -> seriesNames.add(labels.getMetricName()));
 
-    List<String> seriesNames = series.getData().stream()
-        .map(m -> m.get("__name__"))
-        .collect(Collectors.toList());
+    log.info("Got series of size {}.", seriesNames.size());
 
     return ResponseEntity.ok(seriesNames);
   }
@@ -175,4 +173,11 @@ public class DemoApiDelegateImpl implements DemoApiDelegate {
 
     return ResponseEntity.ok(labelValues.getData());
   }
+
+  /**
+   * A NaN, e.g. a gap in the series, or an infinite sample value has no integer, it is null rather than made up.
+   */
+  private static Integer toInteger(double value) {
+    return Double.isFinite(value) ? (int) Math.round(value) : null;
+  }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses dashboard-like queries, from a plain selector to a nested aggregation with vector matching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromExprParserBenchmark {
+  @Param({
+      "go_threads{job=\"prometheus\",instance=\"localhost:9090\"}",
+      "sum by (instance) (rate(http_requests_total{job=\"api\",code=~\"5..\"}[5m]))",
+      "histogram_quantile(0.99, sum by (le, route) (rate(http_request_duration_seconds_bucket{job=\"api\"}[5m]))) " +
+          "/ on (route) group_left () max by (route) (slo_latency_seconds) > bool 1"
+  })
+  public String promql;
+
+  @Benchmark
+  public PromExpr parse() {
+    return PromExprParser.parse(promql);
+  }
+
+  @Benchmark
+  public String parseAndRender() {
+    return PromExprParser.parse(promql).render();
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable label set of a time-series, i.e. the "metric" of a result or a datum of a series metadata response.
+ *
+ * The label names are kept sorted in an array alongside their values, a lookup is a binary search over the names
+ * rather than hashing them, and the {@link #hashCode()} is computed once at construction. It is a {@link Map} so it can
+ * be used wherever a {@code Map<String, String>} of labels was.
+ *
+ * @author Li Wan
+ */
+@Beta
+public final class Labels extends AbstractMap<String, String> {
+  public static final String METRIC_NAME = "__name__";
+
+  private static final String[] NONE = new String[0];
+  private static final Labels EMPTY = new Labels(NONE, NONE);
+
+  public static Labels empty() {
+    return EMPTY;
+  }
+
+  public static Labels of(Map<String, String> labels) {
+    if (labels instanceof Labels) {
+      return (Labels) labels;
+    }
+    Builder builder = new Builder(labels.size(), null);
+    labels.forEach(builder::add);
+    return builder.build();
+  }
+
+  public static Builder builder() {
+    return new Builder(8, null);
+  }
+
+  /**
+   * Creates a builder whose label names and values are deduplicated by the given {@link Interner}.
+   */
+  public static Builder builder(Interner interner) {
+    return new Builder(8, interner);
+  }
+
+  /**
+   * Builds a {@link Labels}, the labels can be added in any order. Adding the same label name twice keeps the last
+   * value.
+   */
+  public static final class Builder {
+    private final Interner interner;
+    private String[] names;
+    private String[] values;
+    private int size;
+
+    private Builder(int capacity, Interner interner) {
+      this.interner = interner;
+      this.names = new String[Math.max(capacity, 1)];
+      this.values = new String[Math.max(capacity, 1)];
+    }
+
+    public Builder add(String name, String value) {
+      if (size == names.length) {
+        names = Arrays.copyOf(names, size << 1);
+        values = Arrays.copyOf(values, size << 1);
+      }
+      names[size] = interner == null ? name : interner.intern(name);
+      values[size] = interner == null ? value : interner.intern(value);
+      size++;
+      return this;
+    }
+
+    public Labels build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+      // Insertion sort, Prometheus already returns the labels sorted so this is usually a single pass.
+      for (int i = 1; i < size; i++) {
+        String name = names[i];
+        String value = values[i];
+        int j = i - 1;
+        while (j >= 0 && names[j].compareTo(name) > 0) {
+          names[j + 1] = names[j];
+          values[j + 1] = values[j];
+          j--;
+        }
+        names[j + 1] = name;
+        values[j + 1] = value;
+      }
+      int distinct = size;
+      for (int i = 1, k = 0; i < size; i++) {
+        if (names[i].equals(names[k])) {
+          values[k] = values[i];
+          distinct--;
+        } else {
+          k++;
+          names[k] = names[i];
+          values[k] = values[i];
+        }
+      }
+      return new Labels(Arrays.copyOf(names, distinct), Arrays.copyOf(values, distinct));
+    }
+  }
+
+  /**
+   * Deduplicates the label names and values within a response, high-cardinality responses repeat the same few names
+   * and values across many series. Not thread-safe, use one per response.
+   */
+  public static final class Interner {
+    private final Map<String, String> strings = Maps.newHashMap();
+
+    public String intern(String string) {
+      String interned = strings.putIfAbsent(string, string);
+      return interned == null ? string : interned;
+    }
+  }
+
+  // Labels
+
+  private final String[] names;
+  private final String[] values;
+  private final int hash;
+
+  private Labels(String[] names, String[] values) {
+    this.names = names;
+    this.values = values;
+    int hash = 0;
+    for (int i = 0; i < names.length; i++) {
+      // The same as the sum of Map.Entry.hashCode() required by Map.hashCode()
+      hash += names[i].hashCode() ^ values[i].hashCode();
+    }
+    this.hash = hash;
+  }
+
+  private int indexOf(Object name) {
+    if (!(name instanceof String)) {
+      return -1;
+    }
+    int low = 0;
+    int high = names.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      String middleName = names[middle];
+      if (middleName == name) {
+        return middle;
+      }
+      int comparison = middleName.compareTo((String) name);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the value of the "__name__" label.
+   */
+  public String getMetricName() {
+    return get(METRIC_NAME);
+  }
+
+  public String name(int index) {
+    return names[index];
+  }
+
+  public String value(int index) {
+    return values[index];
+  }
+
+  // Map
+
+  @Override
+  public String get(Object name) {
+    int index = indexOf(name);
+    return index < 0 ? null : values[index];
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    return indexOf(name) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return names.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return names.length == 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    return new AbstractSet<Map.Entry<String, String>>() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        return new Iterator<Map.Entry<String, String>>() {
+          private int index;
+
+          @Override
+          public boolean hasNext() {
+            return index < names.length;
+          }
+
+          @Override
+          public Map.Entry<String, String> next() {
+            if (index >= names.length) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(names[index], values[index]);
+            index++;
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return names.length;
+      }
+    };
+  }
+
+  // Object overrides
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (object instanceof Labels) {
+      Labels labels = (Labels) object;
+      return hash == labels.hash && Arrays.equals(names, labels.names) && Arrays.equals(values, labels.values);
+    }
+    return super.equals(object);
+  }
+}
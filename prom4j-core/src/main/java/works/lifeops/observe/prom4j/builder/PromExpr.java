@@ -0,0 +1,1407 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+
+/**
+ * A PromQL expression tree: selectors, range vectors, subqueries, functions, aggregations and binary operations, with
+ * the {@code offset} and {@code @} modifiers. An expression is immutable, the "with" style methods return a new one.
+ * <pre>{@code
+ * PromExpr expr = PromExpr.sum(PromExpr.rate(PromExpr.selector("http_requests_total").eq("job", "api").range("5m")))
+ *     .by("instance")
+ *     .div(PromExpr.sum(PromExpr.rate(PromExpr.selector("http_requests").range("5m"))).by("instance"));
+ * }</pre>
+ * {@link #render()} renders the expression in one pass into a buffer sized by {@link #estimateLength()}, adding the
+ * parentheses needed by the precedence of the binary operators. Use {@code PromQuery.builder().instant().expr(expr)}
+ * or {@code range().expr(expr)} to query it.
+ *
+ * {@link #canonical()} gives the canonical form of an expression: semantically identical expressions that only differ
+ * in the order of the label matchers, the order of the alternatives of a regex, the units of a duration or the
+ * parentheses render the same, which is what {@code PromQuery.getFingerprint()} is computed from.
+ *
+ * {@link #restrict(Matcher)} adds a label matcher to each selector of an expression, e.g. to partition a query that
+ * selects too many series by the values of a label when {@link #isPartitionableBy(String)}.
+ *
+ * See <a href="https://prometheus.io/docs/prometheus/latest/querying/basics/">Querying basics</a>.
+ *
+ * @author Li Wan
+ */
+@Beta
+public abstract class PromExpr {
+  // Precedence of the binary operators, the others are atoms
+
+  static final int OR = 1;
+  static final int AND = 2;
+  static final int COMPARISON = 3;
+  static final int ADDITIVE = 4;
+  static final int MULTIPLICATIVE = 5;
+  static final int UNARY = 6;
+  static final int POWER = 7;
+  static final int ATOM = 8;
+
+  // Factories
+
+  public static Selector selector(String metric) {
+    return new Selector(metric, ImmutableList.of(), null, null);
+  }
+
+  /**
+   * A selector without a metric name, at least one matcher must be added.
+   */
+  public static Selector selector() {
+    return new Selector(null, ImmutableList.of(), null, null);
+  }
+
+  public static NumberLiteral number(double value) {
+    return new NumberLiteral(value);
+  }
+
+  public static StringLiteral string(String value) {
+    return new StringLiteral(value);
+  }
+
+  public static Function function(String name, PromExpr... args) {
+    return new Function(name, ImmutableList.copyOf(args));
+  }
+
+  public static Function rate(PromExpr rangeVector) {
+    return function("rate", rangeVector);
+  }
+
+  public static Function irate(PromExpr rangeVector) {
+    return function("irate", rangeVector);
+  }
+
+  public static Function increase(PromExpr rangeVector) {
+    return function("increase", rangeVector);
+  }
+
+  public static Function histogramQuantile(double quantile, PromExpr buckets) {
+    return function("histogram_quantile", number(quantile), buckets);
+  }
+
+  public static Aggregation aggregate(String operator, PromExpr expr) {
+    return new Aggregation(operator, null, expr, null, ImmutableList.of());
+  }
+
+  /**
+   * An aggregation with a parameter, e.g. {@code topk(5, expr)}.
+   */
+  public static Aggregation aggregate(String operator, PromExpr parameter, PromExpr expr) {
+    return new Aggregation(operator, parameter, expr, null, ImmutableList.of());
+  }
+
+  public static Aggregation sum(PromExpr expr) {
+    return aggregate("sum", expr);
+  }
+
+  public static Aggregation avg(PromExpr expr) {
+    return aggregate("avg", expr);
+  }
+
+  public static Aggregation min(PromExpr expr) {
+    return aggregate("min", expr);
+  }
+
+  public static Aggregation max(PromExpr expr) {
+    return aggregate("max", expr);
+  }
+
+  public static Aggregation count(PromExpr expr) {
+    return aggregate("count", expr);
+  }
+
+  public static Aggregation topk(int k, PromExpr expr) {
+    return aggregate("topk", number(k), expr);
+  }
+
+  public static Aggregation bottomk(int k, PromExpr expr) {
+    return aggregate("bottomk", number(k), expr);
+  }
+
+  public static Aggregation quantile(double quantile, PromExpr expr) {
+    return aggregate("quantile", number(quantile), expr);
+  }
+
+  public static Binary binary(PromExpr lhs, Operator operator, PromExpr rhs) {
+    return new Binary(lhs, operator, rhs, false, null, ImmutableList.of(), null, ImmutableList.of());
+  }
+
+  public static Paren paren(PromExpr expr) {
+    return new Paren(expr);
+  }
+
+  /**
+   * Negates the expression, a number is negated in place.
+   */
+  public static PromExpr negate(PromExpr expr) {
+    if (expr instanceof NumberLiteral) {
+      return number(-((NumberLiteral) expr).getValue());
+    }
+    return new Unary(expr);
+  }
+
+  /**
+   * Parses a PromQL expression, see {@link PromExprParser}.
+   */
+  public static PromExpr parse(String promql) {
+    return PromExprParser.parse(promql);
+  }
+
+  // Binary operations
+
+  public Binary plus(PromExpr rhs) {
+    return binary(this, Operator.ADD, rhs);
+  }
+
+  public Binary minus(PromExpr rhs) {
+    return binary(this, Operator.SUB, rhs);
+  }
+
+  public Binary times(PromExpr rhs) {
+    return binary(this, Operator.MUL, rhs);
+  }
+
+  public Binary div(PromExpr rhs) {
+    return binary(this, Operator.DIV, rhs);
+  }
+
+  public Binary and(PromExpr rhs) {
+    return binary(this, Operator.AND, rhs);
+  }
+
+  public Binary or(PromExpr rhs) {
+    return binary(this, Operator.OR, rhs);
+  }
+
+  public Binary unless(PromExpr rhs) {
+    return binary(this, Operator.UNLESS, rhs);
+  }
+
+  /**
+   * Makes a subquery of this expression, e.g. {@code expr[30m:1m]}. The resolution may be {@code null} for the default
+   * evaluation interval.
+   */
+  public Subquery subquery(String range, String resolution) {
+    return new Subquery(this, range, resolution, null, null);
+  }
+
+  // Rendering
+
+  /**
+   * Estimates the length of the rendered expression, to size the buffer to render into.
+   */
+  public abstract int estimateLength();
+
+  /**
+   * Renders the expression into the buffer.
+   */
+  public abstract void render(StringBuilder sb);
+
+  /**
+   * The precedence of the expression as an operand of a binary operation.
+   */
+  int precedence() {
+    return ATOM;
+  }
+
+  public String render() {
+    StringBuilder sb = new StringBuilder(estimateLength());
+    render(sb);
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return render();
+  }
+
+  // Canonical form
+
+  /**
+   * Returns the canonical form of the expression:
+   * <ul>
+   *   <li>the label matchers are sorted and deduplicated, {@code {__name__="m"}} becomes {@code m};</li>
+   *   <li>the alternatives of a regex that is a plain alternation are sorted and deduplicated, e.g. {@code "b|a"}
+   *   becomes {@code "a|b"}, a regex that is a literal becomes an equality matcher;</li>
+   *   <li>the durations are in the largest units, e.g. {@code 90s} becomes {@code 1m30s};</li>
+   *   <li>the grouping and vector matching labels are sorted, the redundant parentheses are removed.</li>
+   * </ul>
+   * The canonical form only rewrites what does not change the result of the evaluation. Commutative operands are left
+   * in place since the result of e.g. {@code a + b} takes its labels from {@code a}.
+   */
+  public PromExpr canonical() {
+    return this;
+  }
+
+  /**
+   * Returns the expression with the matcher added to each of its selectors.
+   */
+  public PromExpr restrict(Matcher matcher) {
+    return this;
+  }
+
+  /**
+   * Whether the result of the expression can be partitioned by the label: the results of the expression
+   * {@link #restrict(Matcher) restricted} to disjoint sets of the values of the label are disjoint, and together they
+   * are the result of the expression. It is not for an aggregation across the label, a vector matching that ignores
+   * it and the functions that make up series or drop the label, e.g. {@code absent()}, {@code vector()} and
+   * {@code scalar()}.
+   */
+  public boolean isPartitionableBy(String label) {
+    return true;
+  }
+
+  /**
+   * Whether the result of the expression depends on the range of the query that evaluates it: a selector, a range
+   * selector or a subquery of it is at {@code start()} or {@code end()} of the range. The results of the parts of the
+   * range are then not the parts of the result of the range, so a range query of it can't be split into shorter ones.
+   */
+  public boolean isAnchoredToRange() {
+    return false;
+  }
+
+  /**
+   * Gets the selectors of the expression in the order they appear, including those of the range selectors.
+   */
+  public final List<Selector> selectors() {
+    List<Selector> selectors = Lists.newArrayList();
+    collectSelectors(selectors);
+    return selectors;
+  }
+
+  void collectSelectors(List<Selector> selectors) {}
+
+  // Expressions
+
+  public static enum MatchOperator {
+    EQ("="),
+    NE("!="),
+    RE("=~"),
+    NRE("!~");
+
+    private final String symbol;
+
+    private MatchOperator(String symbol) {
+      this.symbol = symbol;
+    }
+
+    public String symbol() {
+      return symbol;
+    }
+  }
+
+  /**
+   * A label matcher of a selector, e.g. {@code job="prometheus"}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode
+  public static final class Matcher {
+    /**
+     * The order of the matchers of a canonical selector.
+     */
+    static final Comparator<Matcher> ORDER = Comparator.comparing(Matcher::getLabel)
+        .thenComparing(Matcher::getOperator)
+        .thenComparing(Matcher::getValue);
+
+    private final String label;
+    private final MatchOperator operator;
+    private final String value;
+
+    public Matcher(String label, MatchOperator operator, String value) {
+      this.label = Preconditions.checkNotNull(label, "label");
+      this.operator = Preconditions.checkNotNull(operator, "operator");
+      this.value = Preconditions.checkNotNull(value, "value");
+    }
+
+    int estimateLength() {
+      return label.length() + operator.symbol.length() + value.length() + 2;
+    }
+
+    void render(StringBuilder sb) {
+      sb.append(label).append(operator.symbol);
+      appendQuoted(sb, value);
+    }
+
+    Matcher canonical() {
+      if (operator == MatchOperator.EQ || operator == MatchOperator.NE) {
+        return this;
+      }
+      // The alternatives deduplicated may leave a literal, e.g. "a|a"
+      String regex = canonicalAlternation(value);
+      if (isLiteral(regex)) {
+        return new Matcher(label, operator == MatchOperator.RE ? MatchOperator.EQ : MatchOperator.NE, regex);
+      }
+      return regex.equals(value) ? this : new Matcher(label, operator, regex);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(estimateLength());
+      render(sb);
+      return sb.toString();
+    }
+  }
+
+  /**
+   * An expression that takes the {@code offset} and {@code @} modifiers: a selector, a range vector or a subquery.
+   *
+   * @param <E> the type of the expression.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static abstract class Modifiable<E extends Modifiable<E>> extends PromExpr {
+    /**
+     * The duration of the {@code offset} modifier, e.g. "5m", or {@code null}.
+     */
+    private final String offset;
+    /**
+     * The time of the {@code @} modifier, e.g. "1609746000" or "end()", or {@code null}.
+     */
+    private final String at;
+
+    private Modifiable(String offset, String at) {
+      this.offset = offset;
+      this.at = at;
+    }
+
+    abstract E modify(String offset, String at);
+
+    public E offset(String offset) {
+      return modify(offset, at);
+    }
+
+    public E at(String at) {
+      return modify(offset, at);
+    }
+
+    public E at(long epochSecond) {
+      return at(Long.toString(epochSecond));
+    }
+
+    /**
+     * The {@code @} modifier is at a time, {@code start()} and {@code end()} are the only ones that aren't.
+     */
+    @Override
+    public boolean isAnchoredToRange() {
+      return at != null && at.endsWith(")");
+    }
+
+    int estimateModifiersLength() {
+      return (offset == null ? 0 : offset.length() + 8) + (at == null ? 0 : at.length() + 3);
+    }
+
+    void renderModifiers(StringBuilder sb) {
+      if (offset != null) {
+        sb.append(" offset ").append(offset);
+      }
+      if (at != null) {
+        sb.append(" @ ").append(at);
+      }
+    }
+  }
+
+  /**
+   * An instant vector selector, e.g. {@code go_threads{job="prometheus"}}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = true)
+  public static final class Selector extends Modifiable<Selector> {
+    /**
+     * The metric name, or {@code null}.
+     */
+    private final String metric;
+    private final List<Matcher> matchers;
+
+    Selector(String metric, List<Matcher> matchers, String offset, String at) {
+      super(offset, at);
+      this.metric = Strings.emptyToNull(metric);
+      this.matchers = ImmutableList.copyOf(matchers);
+    }
+
+    public Selector match(Matcher matcher) {
+      return new Selector(metric, ImmutableList.<Matcher>builder().addAll(matchers).add(matcher).build(),
+                          getOffset(), getAt());
+    }
+
+    public Selector eq(String label, String value) {
+      return match(new Matcher(label, MatchOperator.EQ, value));
+    }
+
+    public Selector ne(String label, String value) {
+      return match(new Matcher(label, MatchOperator.NE, value));
+    }
+
+    public Selector re(String label, String regex) {
+      return match(new Matcher(label, MatchOperator.RE, regex));
+    }
+
+    public Selector nre(String label, String regex) {
+      return match(new Matcher(label, MatchOperator.NRE, regex));
+    }
+
+    /**
+     * Makes a range vector of this selector, e.g. {@code go_threads[5m]}.
+     */
+    public RangeSelector range(String range) {
+      return new RangeSelector(new Selector(metric, matchers, null, null), range, getOffset(), getAt());
+    }
+
+    @Override
+    Selector modify(String offset, String at) {
+      return new Selector(metric, matchers, offset, at);
+    }
+
+    @Override
+    public Selector canonical() {
+      String metric = this.metric;
+      ImmutableSortedSet.Builder<Matcher> matchers = ImmutableSortedSet.orderedBy(Matcher.ORDER);
+      for (Matcher matcher : this.matchers) {
+        matcher = matcher.canonical();
+        if (metric == null && matcher.getLabel().equals("__name__") && matcher.getOperator() == MatchOperator.EQ) {
+          metric = matcher.getValue();
+        } else {
+          matchers.add(matcher);
+        }
+      }
+      return new Selector(metric, matchers.build().asList(), canonicalDuration(getOffset()), canonicalAt(getAt()));
+    }
+
+    @Override
+    public Selector restrict(Matcher matcher) {
+      return match(matcher);
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      selectors.add(this);
+    }
+
+    @Override
+    public int estimateLength() {
+      int length = Strings.nullToEmpty(metric).length() + estimateModifiersLength() + 2;
+      for (Matcher matcher : matchers) {
+        length += matcher.estimateLength() + 1;
+      }
+      return length;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      renderSelector(sb);
+      renderModifiers(sb);
+    }
+
+    void renderSelector(StringBuilder sb) {
+      if (metric != null) {
+        sb.append(metric);
+      }
+      if (!matchers.isEmpty() || metric == null) {
+        sb.append('{');
+        for (int i = 0; i < matchers.size(); i++) {
+          if (i > 0) {
+            sb.append(',');
+          }
+          matchers.get(i).render(sb);
+        }
+        sb.append('}');
+      }
+    }
+  }
+
+  /**
+   * A range vector selector, e.g. {@code go_threads[5m]}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = true)
+  public static final class RangeSelector extends Modifiable<RangeSelector> {
+    private final Selector selector;
+    private final String range;
+
+    RangeSelector(Selector selector, String range, String offset, String at) {
+      super(offset, at);
+      this.selector = Preconditions.checkNotNull(selector, "selector");
+      this.range = Preconditions.checkNotNull(range, "range");
+    }
+
+    @Override
+    RangeSelector modify(String offset, String at) {
+      return new RangeSelector(selector, range, offset, at);
+    }
+
+    @Override
+    public RangeSelector canonical() {
+      return new RangeSelector(selector.canonical(), canonicalDuration(range), canonicalDuration(getOffset()),
+                               canonicalAt(getAt()));
+    }
+
+    @Override
+    public RangeSelector restrict(Matcher matcher) {
+      return new RangeSelector(selector.restrict(matcher), range, getOffset(), getAt());
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      selectors.add(selector);
+    }
+
+    @Override
+    public int estimateLength() {
+      return selector.estimateLength() + range.length() + 2 + estimateModifiersLength();
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      selector.renderSelector(sb);
+      sb.append('[').append(range).append(']');
+      renderModifiers(sb);
+    }
+  }
+
+  /**
+   * A subquery, e.g. {@code rate(go_gc_duration_seconds_count[5m])[30m:1m]}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = true)
+  public static final class Subquery extends Modifiable<Subquery> {
+    private final PromExpr expr;
+    private final String range;
+    /**
+     * The resolution, or {@code null} for the default evaluation interval.
+     */
+    private final String resolution;
+
+    Subquery(PromExpr expr, String range, String resolution, String offset, String at) {
+      super(offset, at);
+      this.expr = Preconditions.checkNotNull(expr, "expr");
+      this.range = Preconditions.checkNotNull(range, "range");
+      this.resolution = resolution;
+    }
+
+    @Override
+    Subquery modify(String offset, String at) {
+      return new Subquery(expr, range, resolution, offset, at);
+    }
+
+    @Override
+    public Subquery canonical() {
+      return new Subquery(expr.canonical(), canonicalDuration(range), canonicalDuration(resolution),
+                          canonicalDuration(getOffset()), canonicalAt(getAt()));
+    }
+
+    @Override
+    public Subquery restrict(Matcher matcher) {
+      return new Subquery(expr.restrict(matcher), range, resolution, getOffset(), getAt());
+    }
+
+    @Override
+    public boolean isPartitionableBy(String label) {
+      return expr.isPartitionableBy(label);
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return super.isAnchoredToRange() || expr.isAnchoredToRange();
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      expr.collectSelectors(selectors);
+    }
+
+    @Override
+    public int estimateLength() {
+      return expr.estimateLength() + 2 + range.length() + 3 + Strings.nullToEmpty(resolution).length() +
+          estimateModifiersLength();
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      // A selector without modifiers is the only Modifiable that needs no parentheses
+      boolean bareSelector = expr instanceof Selector &&
+          ((Selector) expr).getOffset() == null && ((Selector) expr).getAt() == null;
+      renderOperand(sb, expr, expr.precedence() < ATOM || (expr instanceof Modifiable && !bareSelector));
+      sb.append('[').append(range).append(':');
+      if (resolution != null) {
+        sb.append(resolution);
+      }
+      sb.append(']');
+      renderModifiers(sb);
+    }
+  }
+
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class NumberLiteral extends PromExpr {
+    private final double value;
+
+    NumberLiteral(double value) {
+      this.value = value;
+    }
+
+    @Override
+    int precedence() {
+      // A negative number is rendered with a unary minus
+      return value < 0 ? UNARY : ATOM;
+    }
+
+    @Override
+    public int estimateLength() {
+      return 24;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      if (Double.isNaN(value)) {
+        sb.append("NaN");
+      } else if (Double.isInfinite(value)) {
+        sb.append(value > 0 ? "Inf" : "-Inf");
+      } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+        sb.append((long) value);
+      } else {
+        sb.append(value);
+      }
+    }
+  }
+
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class StringLiteral extends PromExpr {
+    private final String value;
+
+    StringLiteral(String value) {
+      this.value = Preconditions.checkNotNull(value, "value");
+    }
+
+    @Override
+    public int estimateLength() {
+      return value.length() + 2;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      appendQuoted(sb, value);
+    }
+  }
+
+  /**
+   * A function call, e.g. {@code rate(go_threads[5m])}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class Function extends PromExpr {
+    /**
+     * The functions whose result is not partitioned as their arguments are.
+     */
+    private static final Set<String> UNPARTITIONABLE = ImmutableSet.of("absent", "absent_over_time", "scalar",
+        "vector", "sort", "sort_desc", "sort_by_label", "sort_by_label_desc");
+    /**
+     * The functions whose second argument is the label they write.
+     */
+    private static final Set<String> LABEL_WRITING = ImmutableSet.of("label_replace", "label_join");
+
+    private final String name;
+    private final List<PromExpr> args;
+
+    Function(String name, List<PromExpr> args) {
+      this.name = Preconditions.checkNotNull(name, "name");
+      this.args = ImmutableList.copyOf(args);
+    }
+
+    @Override
+    public Function canonical() {
+      ImmutableList.Builder<PromExpr> args = ImmutableList.builderWithExpectedSize(this.args.size());
+      for (PromExpr arg : this.args) {
+        args.add(arg.canonical());
+      }
+      return new Function(name, args.build());
+    }
+
+    @Override
+    public Function restrict(Matcher matcher) {
+      ImmutableList.Builder<PromExpr> args = ImmutableList.builderWithExpectedSize(this.args.size());
+      for (PromExpr arg : this.args) {
+        args.add(arg.restrict(matcher));
+      }
+      return new Function(name, args.build());
+    }
+
+    @Override
+    public boolean isPartitionableBy(String label) {
+      if (UNPARTITIONABLE.contains(name)) {
+        return false;
+      }
+      if (LABEL_WRITING.contains(name) && args.size() > 1 && args.get(1) instanceof StringLiteral &&
+          ((StringLiteral) args.get(1)).getValue().equals(label)) {
+        return false;
+      }
+      return args.stream().allMatch(arg -> arg.isPartitionableBy(label));
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return args.stream().anyMatch(PromExpr::isAnchoredToRange);
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      args.forEach(arg -> arg.collectSelectors(selectors));
+    }
+
+    @Override
+    public int estimateLength() {
+      int length = name.length() + 2;
+      for (PromExpr arg : args) {
+        length += arg.estimateLength() + 2;
+      }
+      return length;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      sb.append(name).append('(');
+      for (int i = 0; i < args.size(); i++) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        args.get(i).render(sb);
+      }
+      sb.append(')');
+    }
+  }
+
+  public static enum Grouping {
+    BY("by"),
+    WITHOUT("without");
+
+    private final String keyword;
+
+    private Grouping(String keyword) {
+      this.keyword = keyword;
+    }
+
+    public String keyword() {
+      return keyword;
+    }
+  }
+
+  /**
+   * An aggregation, e.g. {@code sum by (job) (go_threads)} or {@code topk(5, go_threads)}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class Aggregation extends PromExpr {
+    private final String operator;
+    /**
+     * The parameter of e.g. {@code topk}, {@code quantile} and {@code count_values}, or {@code null}.
+     */
+    private final PromExpr parameter;
+    private final PromExpr expr;
+    /**
+     * The grouping, or {@code null} to aggregate over all dimensions.
+     */
+    private final Grouping grouping;
+    private final List<String> labels;
+
+    Aggregation(String operator, PromExpr parameter, PromExpr expr, Grouping grouping, List<String> labels) {
+      this.operator = Preconditions.checkNotNull(operator, "operator");
+      this.parameter = parameter;
+      this.expr = Preconditions.checkNotNull(expr, "expr");
+      this.grouping = grouping;
+      this.labels = ImmutableList.copyOf(labels);
+    }
+
+    public Aggregation by(String... labels) {
+      return new Aggregation(operator, parameter, expr, Grouping.BY, Arrays.asList(labels));
+    }
+
+    public Aggregation without(String... labels) {
+      return new Aggregation(operator, parameter, expr, Grouping.WITHOUT, Arrays.asList(labels));
+    }
+
+    @Override
+    public Aggregation canonical() {
+      // "without ()" aggregates over all dimensions, the same as no grouping
+      Grouping grouping = this.grouping == Grouping.WITHOUT && labels.isEmpty() ? null : this.grouping;
+      return new Aggregation(operator, parameter == null ? null : parameter.canonical(), expr.canonical(), grouping,
+                             grouping == null ? ImmutableList.of() : sortedLabels(labels));
+    }
+
+    @Override
+    public Aggregation restrict(Matcher matcher) {
+      return new Aggregation(operator, parameter, expr.restrict(matcher), grouping, labels);
+    }
+
+    /**
+     * Only an aggregation by the label, or without others, is partitionable.
+     */
+    @Override
+    public boolean isPartitionableBy(String label) {
+      boolean grouped = grouping == Grouping.BY ? labels.contains(label) :
+          grouping == Grouping.WITHOUT && !labels.contains(label);
+      // The label of count_values
+      boolean written = parameter instanceof StringLiteral && ((StringLiteral) parameter).getValue().equals(label);
+      return grouped && !written && expr.isPartitionableBy(label);
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return (parameter != null && parameter.isAnchoredToRange()) || expr.isAnchoredToRange();
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      expr.collectSelectors(selectors);
+    }
+
+    @Override
+    public int estimateLength() {
+      return operator.length() + (parameter == null ? 0 : parameter.estimateLength() + 2) + expr.estimateLength() + 2 +
+          (grouping == null ? 0 : grouping.keyword.length() + 5 + estimateLabelsLength(labels));
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      sb.append(operator);
+      if (grouping != null) {
+        sb.append(' ').append(grouping.keyword).append(' ');
+        renderLabels(sb, labels);
+        sb.append(' ');
+      }
+      sb.append('(');
+      if (parameter != null) {
+        parameter.render(sb);
+        sb.append(", ");
+      }
+      expr.render(sb);
+      sb.append(')');
+    }
+  }
+
+  public static enum Operator {
+    POW("^", POWER),
+    MUL("*", MULTIPLICATIVE),
+    DIV("/", MULTIPLICATIVE),
+    MOD("%", MULTIPLICATIVE),
+    ATAN2("atan2", MULTIPLICATIVE),
+    ADD("+", ADDITIVE),
+    SUB("-", ADDITIVE),
+    EQL("==", COMPARISON),
+    NEQ("!=", COMPARISON),
+    GTR(">", COMPARISON),
+    LSS("<", COMPARISON),
+    GTE(">=", COMPARISON),
+    LTE("<=", COMPARISON),
+    AND("and", PromExpr.AND),
+    UNLESS("unless", PromExpr.AND),
+    OR("or", PromExpr.OR);
+
+    private final String symbol;
+    private final int precedence;
+
+    private Operator(String symbol, int precedence) {
+      this.symbol = symbol;
+      this.precedence = precedence;
+    }
+
+    public String symbol() {
+      return symbol;
+    }
+
+    int precedence() {
+      return precedence;
+    }
+
+    public boolean isComparison() {
+      return precedence == COMPARISON;
+    }
+
+    public boolean isSetOperator() {
+      return precedence == PromExpr.AND || precedence == PromExpr.OR;
+    }
+
+    /**
+     * The power operator is the only right associative one.
+     */
+    boolean isRightAssociative() {
+      return this == POW;
+    }
+  }
+
+  public static enum Matching {
+    ON("on"),
+    IGNORING("ignoring");
+
+    private final String keyword;
+
+    private Matching(String keyword) {
+      this.keyword = keyword;
+    }
+
+    public String keyword() {
+      return keyword;
+    }
+  }
+
+  public static enum Group {
+    GROUP_LEFT("group_left"),
+    GROUP_RIGHT("group_right");
+
+    private final String keyword;
+
+    private Group(String keyword) {
+      this.keyword = keyword;
+    }
+
+    public String keyword() {
+      return keyword;
+    }
+  }
+
+  /**
+   * A binary operation, e.g. {@code a / on (job) group_left (instance) b}.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class Binary extends PromExpr {
+    private final PromExpr lhs;
+    private final Operator operator;
+    private final PromExpr rhs;
+    /**
+     * The {@code bool} modifier of a comparison.
+     */
+    private final boolean bool;
+    /**
+     * The vector matching, or {@code null} to match on all labels.
+     */
+    private final Matching matching;
+    private final List<String> matchingLabels;
+    /**
+     * The group modifier for many-to-one and one-to-many matching, or {@code null} for one-to-one.
+     */
+    private final Group group;
+    private final List<String> groupLabels;
+
+    Binary(PromExpr lhs, Operator operator, PromExpr rhs, boolean bool, Matching matching, List<String> matchingLabels,
+           Group group, List<String> groupLabels) {
+      this.lhs = Preconditions.checkNotNull(lhs, "lhs");
+      this.operator = Preconditions.checkNotNull(operator, "operator");
+      this.rhs = Preconditions.checkNotNull(rhs, "rhs");
+      Preconditions.checkArgument(!bool || operator.isComparison(),
+          "The bool modifier only applies to comparison operators.");
+      Preconditions.checkArgument(group == null || !operator.isSetOperator(),
+          "Set operators are many-to-many and can't be grouped.");
+      this.bool = bool;
+      this.matching = matching;
+      this.matchingLabels = ImmutableList.copyOf(matchingLabels);
+      this.group = group;
+      this.groupLabels = ImmutableList.copyOf(groupLabels);
+    }
+
+    public Binary bool() {
+      return new Binary(lhs, operator, rhs, true, matching, matchingLabels, group, groupLabels);
+    }
+
+    public Binary on(String... labels) {
+      return new Binary(lhs, operator, rhs, bool, Matching.ON, Arrays.asList(labels), group, groupLabels);
+    }
+
+    public Binary ignoring(String... labels) {
+      return new Binary(lhs, operator, rhs, bool, Matching.IGNORING, Arrays.asList(labels), group, groupLabels);
+    }
+
+    public Binary groupLeft(String... labels) {
+      return new Binary(lhs, operator, rhs, bool, matching, matchingLabels, Group.GROUP_LEFT, Arrays.asList(labels));
+    }
+
+    public Binary groupRight(String... labels) {
+      return new Binary(lhs, operator, rhs, bool, matching, matchingLabels, Group.GROUP_RIGHT, Arrays.asList(labels));
+    }
+
+    @Override
+    public Binary canonical() {
+      // "ignoring ()" matches on all labels, the same as no vector matching
+      Matching matching = this.matching == Matching.IGNORING && matchingLabels.isEmpty() ? null : this.matching;
+      return new Binary(lhs.canonical(), operator, rhs.canonical(), bool, matching,
+                        matching == null ? ImmutableList.of() : sortedLabels(matchingLabels), group,
+                        sortedLabels(groupLabels));
+    }
+
+    @Override
+    public Binary restrict(Matcher matcher) {
+      return new Binary(lhs.restrict(matcher), operator, rhs.restrict(matcher), bool, matching, matchingLabels, group,
+                        groupLabels);
+    }
+
+    /**
+     * The series of two vectors are only matched within a partition if they are matched on the label.
+     */
+    @Override
+    public boolean isPartitionableBy(String label) {
+      if (!lhs.isPartitionableBy(label) || !rhs.isPartitionableBy(label)) {
+        return false;
+      }
+      if (lhs.selectors().isEmpty() || rhs.selectors().isEmpty() || matching == null) {
+        return true;
+      }
+      return matching == Matching.ON ? matchingLabels.contains(label) : !matchingLabels.contains(label);
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return lhs.isAnchoredToRange() || rhs.isAnchoredToRange();
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      lhs.collectSelectors(selectors);
+      rhs.collectSelectors(selectors);
+    }
+
+    @Override
+    int precedence() {
+      return operator.precedence;
+    }
+
+    @Override
+    public int estimateLength() {
+      return lhs.estimateLength() + rhs.estimateLength() + operator.symbol.length() + 6 + (bool ? 5 : 0) +
+          (matching == null ? 0 : matching.keyword.length() + 4 + estimateLabelsLength(matchingLabels)) +
+          (group == null ? 0 : group.keyword.length() + 4 + estimateLabelsLength(groupLabels));
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      int precedence = operator.precedence;
+      boolean rightAssociative = operator.isRightAssociative();
+      renderOperand(sb, lhs, lhs.precedence() < precedence || (rightAssociative && lhs.precedence() == precedence));
+      sb.append(' ').append(operator.symbol);
+      if (bool) {
+        sb.append(" bool");
+      }
+      if (matching != null) {
+        sb.append(' ').append(matching.keyword).append(' ');
+        renderLabels(sb, matchingLabels);
+      }
+      if (group != null) {
+        sb.append(' ').append(group.keyword);
+        if (!groupLabels.isEmpty()) {
+          sb.append(' ');
+          renderLabels(sb, groupLabels);
+        }
+      }
+      sb.append(' ');
+      renderOperand(sb, rhs, rhs.precedence() < precedence || (!rightAssociative && rhs.precedence() == precedence));
+    }
+  }
+
+  /**
+   * A unary minus, e.g. {@code -go_threads}. It binds tighter than the binary operators but "^".
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class Unary extends PromExpr {
+    private final PromExpr expr;
+
+    Unary(PromExpr expr) {
+      this.expr = Preconditions.checkNotNull(expr, "expr");
+    }
+
+    @Override
+    public PromExpr canonical() {
+      return negate(expr.canonical());
+    }
+
+    @Override
+    public Unary restrict(Matcher matcher) {
+      return new Unary(expr.restrict(matcher));
+    }
+
+    @Override
+    public boolean isPartitionableBy(String label) {
+      return expr.isPartitionableBy(label);
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return expr.isAnchoredToRange();
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      expr.collectSelectors(selectors);
+    }
+
+    @Override
+    int precedence() {
+      return UNARY;
+    }
+
+    @Override
+    public int estimateLength() {
+      return expr.estimateLength() + 3;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      sb.append('-');
+      renderOperand(sb, expr, expr.precedence() < POWER);
+    }
+  }
+
+  /**
+   * An expression in parentheses.
+   */
+  @lombok.Getter
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static final class Paren extends PromExpr {
+    private final PromExpr expr;
+
+    Paren(PromExpr expr) {
+      this.expr = Preconditions.checkNotNull(expr, "expr");
+    }
+
+    /**
+     * The parentheses are dropped, rendering adds back the ones needed by the precedence.
+     */
+    @Override
+    public PromExpr canonical() {
+      return expr.canonical();
+    }
+
+    @Override
+    public Paren restrict(Matcher matcher) {
+      return new Paren(expr.restrict(matcher));
+    }
+
+    @Override
+    public boolean isPartitionableBy(String label) {
+      return expr.isPartitionableBy(label);
+    }
+
+    @Override
+    public boolean isAnchoredToRange() {
+      return expr.isAnchoredToRange();
+    }
+
+    @Override
+    void collectSelectors(List<Selector> selectors) {
+      expr.collectSelectors(selectors);
+    }
+
+    @Override
+    public int estimateLength() {
+      return expr.estimateLength() + 2;
+    }
+
+    @Override
+    public void render(StringBuilder sb) {
+      sb.append('(');
+      expr.render(sb);
+      sb.append(')');
+    }
+  }
+
+  // Rendering helpers
+
+  private static void renderOperand(StringBuilder sb, PromExpr operand, boolean parenthesize) {
+    if (parenthesize && !(operand instanceof Paren)) {
+      sb.append('(');
+      operand.render(sb);
+      sb.append(')');
+    } else {
+      operand.render(sb);
+    }
+  }
+
+  private static int estimateLabelsLength(List<String> labels) {
+    int length = 2;
+    for (String label : labels) {
+      length += label.length() + 2;
+    }
+    return length;
+  }
+
+  private static void renderLabels(StringBuilder sb, List<String> labels) {
+    sb.append('(');
+    for (int i = 0; i < labels.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(labels.get(i));
+    }
+    sb.append(')');
+  }
+
+  // Canonical form helpers
+
+  private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d|w|y)");
+  private static final String[] DURATION_UNITS = {"y", "w", "d", "h", "m", "s", "ms"};
+  private static final long[] DURATION_MILLIS = {
+      365L * 24 * 60 * 60 * 1000, 7L * 24 * 60 * 60 * 1000, 24L * 60 * 60 * 1000, 60L * 60 * 1000, 60L * 1000, 1000L, 1L
+  };
+
+  /**
+   * Renders a duration in the largest units, e.g. "90s" as "1m30s" and "1h0m" as "1h". A duration that is not made of
+   * integers and units, or {@code null}, is returned as is.
+   */
+  static String canonicalDuration(String duration) {
+    if (duration == null || duration.isEmpty()) {
+      return duration;
+    }
+    java.util.regex.Matcher matcher = DURATION.matcher(duration);
+    long millis = 0;
+    int end = 0;
+    while (matcher.find() && matcher.start() == end) {
+      long amount;
+      try {
+        amount = Long.parseLong(matcher.group(1));
+      } catch (NumberFormatException nfe) {
+        return duration;
+      }
+      millis += amount * DURATION_MILLIS[Arrays.asList(DURATION_UNITS).indexOf(matcher.group(2))];
+      end = matcher.end();
+    }
+    if (end != duration.length() || millis < 0) {
+      return duration;
+    }
+    if (millis == 0) {
+      return "0s";
+    }
+    StringBuilder sb = new StringBuilder(duration.length() + 4);
+    for (int i = 0; i < DURATION_UNITS.length; i++) {
+      if (millis >= DURATION_MILLIS[i]) {
+        sb.append(millis / DURATION_MILLIS[i]).append(DURATION_UNITS[i]);
+        millis %= DURATION_MILLIS[i];
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renders the time of an {@code @} modifier, a Unix timestamp without trailing zeros, e.g. "1609746000.000" as
+   * "1609746000". {@code start()} and {@code end()} are returned as is.
+   */
+  private static String canonicalAt(String at) {
+    if (at == null || at.endsWith(")")) {
+      return at;
+    }
+    try {
+      return new BigDecimal(at).stripTrailingZeros().toPlainString();
+    } catch (NumberFormatException nfe) {
+      return at;
+    }
+  }
+
+  /**
+   * Whether the regex only matches itself, i.e. it has no metacharacters.
+   */
+  private static boolean isLiteral(String regex) {
+    for (int i = 0; i < regex.length(); i++) {
+      if ("\\.+*?()|[]{}^$".indexOf(regex.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sorts and deduplicates the alternatives of a regex at the top level, e.g. "b|a|b" as "a|b". Since the regex of a
+   * matcher is anchored at both ends the order of the alternatives makes no difference to what is matched. The
+   * alternatives within a group or a character class are left as they are, and so is a regex with a construct whose
+   * meaning depends on its position, i.e. the flags of "(?i)" apply to the alternatives after it, and the "|" quoted by
+   * "\Q...\E" is no alternation.
+   */
+  static String canonicalAlternation(String regex) {
+    ImmutableSortedSet.Builder<String> alternatives = ImmutableSortedSet.naturalOrder();
+    int depth = 0;
+    boolean inClass = false;
+    int start = 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+      if ((c == '(' && next == '?' && !inClass) || (c == '\\' && next == 'Q')) {
+        return regex;
+      }
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+        // A ']' right after '[' or '[^' is a literal
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+          i++;
+        }
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+          i++;
+        }
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        alternatives.add(regex.substring(start, i));
+        start = i + 1;
+      }
+    }
+    if (start == 0) {
+      return regex;
+    }
+    alternatives.add(regex.substring(start));
+    return String.join("|", alternatives.build());
+  }
+
+  private static List<String> sortedLabels(List<String> labels) {
+    return ImmutableSortedSet.copyOf(labels).asList();
+  }
+
+  /**
+   * Appends the value as a double-quoted PromQL string.
+   */
+  static void appendQuoted(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
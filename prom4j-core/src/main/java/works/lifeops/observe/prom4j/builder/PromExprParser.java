@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Parses PromQL into a {@link PromExpr}, the same model as the expressions composed with the builder, so a query
+ * received as text can be inspected, rewritten and rendered back.
+ *
+ * A hand-written recursive descent parser that reads the characters in place, with precedence climbing for the binary
+ * operators. No tokens are allocated, only the names and values that end up in the expression. Parse errors are
+ * reported as {@link IllegalArgumentException} with the position in the input, as is an expression nested deeper than
+ * {@value #MAX_DEPTH} levels, which would overflow the stack of the parser or of the recursive methods of PromExpr.
+ *
+ * See <a href="https://prometheus.io/docs/prometheus/latest/querying/basics/">Querying basics</a>.
+ *
+ * @author Li Wan
+ */
+@Beta
+public final class PromExprParser {
+  private static final Set<String> AGGREGATIONS = ImmutableSet.of(
+      "sum", "avg", "count", "min", "max", "group", "stddev", "stdvar", "topk", "bottomk", "count_values", "quantile",
+      "limitk", "limit_ratio");
+  private static final int EOF = -1;
+  /**
+   * The maximum depth of the expression, counting the parentheses, the operands of the operators and the subqueries.
+   */
+  static final int MAX_DEPTH = 1_000;
+
+  public static PromExpr parse(String promql) {
+    PromExprParser parser = new PromExprParser(promql);
+    PromExpr expr = parser.parseExpr(PromExpr.OR);
+    if (parser.peek() != EOF) {
+      throw parser.error("Unexpected '" + (char) parser.peek() + "'");
+    }
+    return expr;
+  }
+
+  private final String input;
+  private final int length;
+  private int position;
+  private int depth;
+
+  private PromExprParser(String input) {
+    this.input = input;
+    this.length = input.length();
+  }
+
+  // Expressions
+
+  private PromExpr parseExpr(int minPrecedence) {
+    int depth = this.depth;
+    nest();
+    PromExpr lhs = parseUnary();
+    for (PromExpr.Operator operator = peekOperator(); operator != null && operator.precedence() >= minPrecedence;
+         operator = peekOperator()) {
+      position += operator.symbol().length();
+      boolean bool = acceptWord("bool");
+      PromExpr.Matching matching = null;
+      List<String> matchingLabels = ImmutableList.of();
+      if (acceptWord("on")) {
+        matching = PromExpr.Matching.ON;
+        matchingLabels = parseLabels();
+      } else if (acceptWord("ignoring")) {
+        matching = PromExpr.Matching.IGNORING;
+        matchingLabels = parseLabels();
+      }
+      PromExpr.Group group = null;
+      List<String> groupLabels = ImmutableList.of();
+      if (acceptWord("group_left")) {
+        group = PromExpr.Group.GROUP_LEFT;
+      } else if (acceptWord("group_right")) {
+        group = PromExpr.Group.GROUP_RIGHT;
+      }
+      if (group != null && peek() == '(') {
+        groupLabels = parseLabels();
+      }
+      // The binary expression nests the operands before it one level deeper
+      nest();
+      PromExpr rhs = parseExpr(operator.isRightAssociative() ? operator.precedence() : operator.precedence() + 1);
+      lhs = new PromExpr.Binary(lhs, operator, rhs, bool, matching, matchingLabels, group, groupLabels);
+    }
+    this.depth = depth;
+    return lhs;
+  }
+
+  private PromExpr parseUnary() {
+    int c = peek();
+    if (c == '-' || c == '+') {
+      position++;
+      // Binds tighter than the binary operators but "^"
+      PromExpr operand = parseExpr(PromExpr.POWER);
+      return c == '-' ? PromExpr.negate(operand) : operand;
+    }
+    return parsePostfix(parsePrimary());
+  }
+
+  private PromExpr parsePrimary() {
+    int c = peek();
+    if (c == '(') {
+      position++;
+      PromExpr expr = parseExpr(PromExpr.OR);
+      expect(')');
+      return PromExpr.paren(expr);
+    }
+    if (c == '"' || c == '\'' || c == '`') {
+      return PromExpr.string(readString());
+    }
+    if (c == '{') {
+      return parseSelector(null);
+    }
+    if (isDigit(c) || (c == '.' && position + 1 < length && isDigit(input.charAt(position + 1)))) {
+      return PromExpr.number(readNumber());
+    }
+    if (isIdentifierStart(c)) {
+      String identifier = readIdentifier();
+      if (identifier.equalsIgnoreCase("Inf")) {
+        return PromExpr.number(Double.POSITIVE_INFINITY);
+      }
+      if (identifier.equalsIgnoreCase("NaN")) {
+        return PromExpr.number(Double.NaN);
+      }
+      // Keywords are case-insensitive
+      String aggregation = identifier.toLowerCase(Locale.ROOT);
+      if (AGGREGATIONS.contains(aggregation) && (peek() == '(' || isWord("by") || isWord("without"))) {
+        return parseAggregation(aggregation);
+      }
+      if (peek() == '(') {
+        return parseFunction(identifier);
+      }
+      return parseSelector(identifier);
+    }
+    throw error(c == EOF ? "Unexpected end of input" : "Unexpected '" + (char) c + "'");
+  }
+
+  /**
+   * Parses the range, subquery and modifiers following an expression.
+   */
+  private PromExpr parsePostfix(PromExpr expr) {
+    for (;;) {
+      int c = peek();
+      if (c == '[') {
+        position++;
+        String range = readDuration();
+        if (accept(':')) {
+          String resolution = peek() == ']' ? null : readDuration();
+          expect(']');
+          nest();
+          expr = expr.subquery(range, resolution);
+        } else {
+          expect(']');
+          if (!(expr instanceof PromExpr.Selector) || ((PromExpr.Selector) expr).getOffset() != null ||
+              ((PromExpr.Selector) expr).getAt() != null) {
+            throw error("A range can only follow a selector");
+          }
+          expr = ((PromExpr.Selector) expr).range(range);
+        }
+      } else if (isWord("offset")) {
+        position += "offset".length();
+        String offset = accept('-') ? "-" + readDuration() : readDuration();
+        expr = modifiable(expr, "offset").offset(offset);
+      } else if (c == '@') {
+        position++;
+        String at;
+        if (acceptWord("start")) {
+          expect('(');
+          expect(')');
+          at = "start()";
+        } else if (acceptWord("end")) {
+          expect('(');
+          expect(')');
+          at = "end()";
+        } else {
+          int start = position;
+          readNumber();
+          at = input.substring(start, position);
+        }
+        expr = modifiable(expr, "@").at(at);
+      } else {
+        return expr;
+      }
+    }
+  }
+
+  private PromExpr.Selector parseSelector(String metric) {
+    if (!accept('{')) {
+      return new PromExpr.Selector(metric, ImmutableList.of(), null, null);
+    }
+    ImmutableList.Builder<PromExpr.Matcher> matchers = ImmutableList.builder();
+    while (peek() != '}') {
+      String label = readLabelName();
+      PromExpr.MatchOperator operator = readMatchOperator();
+      matchers.add(new PromExpr.Matcher(label, operator, readString()));
+      if (!accept(',')) {
+        break;
+      }
+    }
+    List<PromExpr.Matcher> built = matchers.build();
+    if (metric == null && built.isEmpty()) {
+      throw error("A selector needs a metric name or a label matcher");
+    }
+    expect('}');
+    return new PromExpr.Selector(metric, built, null, null);
+  }
+
+  private PromExpr.Function parseFunction(String name) {
+    expect('(');
+    ImmutableList.Builder<PromExpr> args = ImmutableList.builder();
+    while (peek() != ')') {
+      args.add(parseExpr(PromExpr.OR));
+      if (!accept(',')) {
+        break;
+      }
+    }
+    expect(')');
+    return new PromExpr.Function(name, args.build());
+  }
+
+  private PromExpr.Aggregation parseAggregation(String operator) {
+    // The grouping is either before or after the expression
+    PromExpr.Grouping grouping = parseGrouping();
+    List<String> labels = grouping == null ? ImmutableList.of() : parseLabels();
+    expect('(');
+    PromExpr expr = parseExpr(PromExpr.OR);
+    PromExpr parameter = null;
+    if (accept(',')) {
+      parameter = expr;
+      expr = parseExpr(PromExpr.OR);
+    }
+    expect(')');
+    if (grouping == null) {
+      grouping = parseGrouping();
+      labels = grouping == null ? ImmutableList.of() : parseLabels();
+    }
+    return new PromExpr.Aggregation(operator, parameter, expr, grouping, labels);
+  }
+
+  private PromExpr.Grouping parseGrouping() {
+    if (acceptWord("by")) {
+      return PromExpr.Grouping.BY;
+    }
+    if (acceptWord("without")) {
+      return PromExpr.Grouping.WITHOUT;
+    }
+    return null;
+  }
+
+  private List<String> parseLabels() {
+    expect('(');
+    ImmutableList.Builder<String> labels = ImmutableList.builder();
+    while (peek() != ')') {
+      labels.add(readLabelName());
+      if (!accept(',')) {
+        break;
+      }
+    }
+    expect(')');
+    return labels.build();
+  }
+
+  private PromExpr.Modifiable<?> modifiable(PromExpr expr, String modifier) {
+    if (!(expr instanceof PromExpr.Modifiable)) {
+      throw error("The " + modifier + " modifier can only follow a selector, a range or a subquery");
+    }
+    return (PromExpr.Modifiable<?>) expr;
+  }
+
+  // Lexing
+
+  private PromExpr.Operator peekOperator() {
+    int c = peek();
+    int next = position + 1 < length ? input.charAt(position + 1) : EOF;
+    switch (c) {
+      case '+':
+        return PromExpr.Operator.ADD;
+      case '-':
+        return PromExpr.Operator.SUB;
+      case '*':
+        return PromExpr.Operator.MUL;
+      case '/':
+        return PromExpr.Operator.DIV;
+      case '%':
+        return PromExpr.Operator.MOD;
+      case '^':
+        return PromExpr.Operator.POW;
+      case '=':
+        return next == '=' ? PromExpr.Operator.EQL : null;
+      case '!':
+        return next == '=' ? PromExpr.Operator.NEQ : null;
+      case '>':
+        return next == '=' ? PromExpr.Operator.GTE : PromExpr.Operator.GTR;
+      case '<':
+        return next == '=' ? PromExpr.Operator.LTE : PromExpr.Operator.LSS;
+      default:
+        if (isWord("and")) {
+          return PromExpr.Operator.AND;
+        }
+        if (isWord("or")) {
+          return PromExpr.Operator.OR;
+        }
+        if (isWord("unless")) {
+          return PromExpr.Operator.UNLESS;
+        }
+        if (isWord("atan2")) {
+          return PromExpr.Operator.ATAN2;
+        }
+        return null;
+    }
+  }
+
+  private PromExpr.MatchOperator readMatchOperator() {
+    int c = peek();
+    int next = position + 1 < length ? input.charAt(position + 1) : EOF;
+    if (c == '=') {
+      position += next == '~' ? 2 : 1;
+      return next == '~' ? PromExpr.MatchOperator.RE : PromExpr.MatchOperator.EQ;
+    }
+    if (c == '!' && (next == '=' || next == '~')) {
+      position += 2;
+      return next == '~' ? PromExpr.MatchOperator.NRE : PromExpr.MatchOperator.NE;
+    }
+    throw error("Expected a label matching operator");
+  }
+
+  private String readIdentifier() {
+    int start = position;
+    while (position < length && isIdentifierPart(input.charAt(position))) {
+      position++;
+    }
+    return input.substring(start, position);
+  }
+
+  private String readLabelName() {
+    int c = peek();
+    if (!isIdentifierStart(c) || c == ':') {
+      throw error("Expected a label name");
+    }
+    int start = position;
+    while (position < length && isIdentifierPart(input.charAt(position)) && input.charAt(position) != ':') {
+      position++;
+    }
+    return input.substring(start, position);
+  }
+
+  /**
+   * Reads a duration, e.g. "5m" or "1h30m", as it is.
+   */
+  private String readDuration() {
+    skipWhitespace();
+    int start = position;
+    while (position < length && Character.isLetterOrDigit(input.charAt(position))) {
+      position++;
+    }
+    if (start == position) {
+      throw error("Expected a duration");
+    }
+    return input.substring(start, position);
+  }
+
+  private double readNumber() {
+    skipWhitespace();
+    int start = position;
+    if (input.startsWith("0x", position) || input.startsWith("0X", position)) {
+      position += 2;
+      while (position < length && Character.digit(input.charAt(position), 16) >= 0) {
+        position++;
+      }
+      return Long.parseLong(input.substring(start + 2, position), 16);
+    }
+    while (position < length && (isDigit(input.charAt(position)) || input.charAt(position) == '.')) {
+      position++;
+    }
+    if (position < length && (input.charAt(position) == 'e' || input.charAt(position) == 'E')) {
+      position++;
+      if (position < length && (input.charAt(position) == '+' || input.charAt(position) == '-')) {
+        position++;
+      }
+      while (position < length && isDigit(input.charAt(position))) {
+        position++;
+      }
+    }
+    if (start == position) {
+      throw error("Expected a number");
+    }
+    try {
+      return PromValues.parseValue(input, start, position - start);
+    } catch (NumberFormatException nfe) {
+      position = start;
+      throw error("Invalid number");
+    }
+  }
+
+  /**
+   * Reads a double-quoted, single-quoted or back-quoted (raw) string and unescapes it.
+   */
+  private String readString() {
+    int quote = peek();
+    if (quote != '"' && quote != '\'' && quote != '`') {
+      throw error("Expected a string");
+    }
+    int start = ++position;
+    StringBuilder sb = null;
+    while (position < length) {
+      char c = input.charAt(position);
+      if (c == quote) {
+        String value = sb == null ? input.substring(start, position) : sb.append(input, start, position).toString();
+        position++;
+        return value;
+      }
+      if (c == '\\' && quote != '`') {
+        if (sb == null) {
+          sb = new StringBuilder(position - start + 16);
+        }
+        sb.append(input, start, position);
+        position++;
+        sb.append(readEscape());
+        start = position;
+        continue;
+      }
+      position++;
+    }
+    throw error("Unterminated string");
+  }
+
+  private String readEscape() {
+    if (position >= length) {
+      throw error("Unterminated string");
+    }
+    char c = input.charAt(position++);
+    switch (c) {
+      case 'a':
+        return "\u0007";
+      case 'b':
+        return "\b";
+      case 'f':
+        return "\f";
+      case 'n':
+        return "\n";
+      case 'r':
+        return "\r";
+      case 't':
+        return "\t";
+      case 'v':
+        return "\u000b";
+      case '\\':
+      case '"':
+      case '\'':
+        return String.valueOf(c);
+      case 'x':
+        return new String(Character.toChars(readHex(2)));
+      case 'u':
+        return new String(Character.toChars(readHex(4)));
+      case 'U':
+        return new String(Character.toChars(readHex(8)));
+      default:
+        if (c >= '0' && c <= '7' && position + 1 < length) {
+          position -= 1;
+          int value;
+          try {
+            value = Integer.parseInt(input.substring(position, position + 3), 8);
+          } catch (NumberFormatException nfe) {
+            throw error("Invalid escape");
+          }
+          if (value > 0xff) {
+            throw error("Invalid escape");
+          }
+          position += 3;
+          return String.valueOf((char) value);
+        }
+        position--;
+        throw error("Invalid escape '\\" + c + "'");
+    }
+  }
+
+  private int readHex(int digits) {
+    if (position + digits > length) {
+      throw error("Invalid escape");
+    }
+    try {
+      int value = Integer.parseUnsignedInt(input.substring(position, position + digits), 16);
+      position += digits;
+      return value;
+    } catch (NumberFormatException nfe) {
+      throw error("Invalid escape");
+    }
+  }
+
+  private void nest() {
+    if (++depth > MAX_DEPTH) {
+      throw error("The expression is nested deeper than " + MAX_DEPTH + " levels");
+    }
+  }
+
+  private int peek() {
+    skipWhitespace();
+    return position < length ? input.charAt(position) : EOF;
+  }
+
+  private boolean accept(char c) {
+    if (peek() == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) {
+    if (!accept(c)) {
+      throw error("Expected '" + c + "'");
+    }
+  }
+
+  /**
+   * Whether the next word is the given keyword, case-insensitively.
+   */
+  private boolean isWord(String word) {
+    skipWhitespace();
+    int end = position + word.length();
+    return input.regionMatches(true, position, word, 0, word.length()) &&
+        (end == length || !isIdentifierPart(input.charAt(end)));
+  }
+
+  private boolean acceptWord(String word) {
+    if (isWord(word)) {
+      position += word.length();
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    while (position < length) {
+      char c = input.charAt(position);
+      if (c == '#') {
+        // A comment to the end of the line
+        while (position < length && input.charAt(position) != '\n') {
+          position++;
+        }
+      } else if (Character.isWhitespace(c)) {
+        position++;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + position + " in PromQL: " + input);
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isIdentifierStart(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':';
+  }
+
+  private static boolean isIdentifierPart(int c) {
+    return isIdentifierStart(c) || isDigit(c);
+  }
+}
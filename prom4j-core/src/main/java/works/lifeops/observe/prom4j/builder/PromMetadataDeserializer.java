@@ -69,11 +69,11 @@ public class PromMetadataDeserializer<PM extends PromMetadata<?>> extends StdDes
       metadata.setStatus(status);
 
       // response.data
-      List<Map<String, String>> data = Lists.newArrayList();
+      List<Map<String, String>> data = Lists.newArrayListWithCapacity(dataNode.size());
+      Labels.Interner interner = new Labels.Interner();
       for (Iterator<JsonNode> datumNodeIterator = dataNode.iterator(); datumNodeIterator.hasNext(); ) {
         JsonNode datumNode = datumNodeIterator.next();
-        Map<String, String> datum = context.readTreeAsValue(datumNode, Map.class);
-        data.add(datum);
+        data.add(PromResponseDeserializer.getLabelsFromNode(datumNode, interner));
       }
       metadata.setData(data);
 
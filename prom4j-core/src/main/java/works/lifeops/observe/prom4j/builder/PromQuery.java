@@ -13,15 +13,35 @@
  */
 package works.lifeops.observe.prom4j.builder;
 
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
 import com.google.common.annotations.Beta;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * Holds a piece of simple PromQL.
  *
+ * A PromQuery is immutable once built and can be shared across threads. The query, the query parameters and the URI
+ * are rendered lazily on first use and memoized, so a query executed repeatedly is only rendered once.
+ *
+ * {@link #getFingerprint()} identifies what a query asks for rather than how it is written, it is the key to cache or
+ * coalesce the queries on.
+ *
  * @author Li Wan
  */
 @Beta
@@ -86,21 +106,33 @@ public abstract class PromQuery {
     return QUERY_BUILDERS.values(values);
   }
 
+  /**
+   * @deprecated Use {@link PromExpr} with {@code instant().expr(...)} or {@code range().expr(...)} instead.
+   */
   @Deprecated
   public static PromQueryBuilder.AggregatedQueryBuilder max(PromQueryBuilder.InstantQueryBuilder queryBuilder) {
     return new PromQueryBuilder.AggregatedQueryBuilder(queryBuilder, "max");
   }
 
+  /**
+   * @deprecated Use {@link PromExpr} with {@code instant().expr(...)} or {@code range().expr(...)} instead.
+   */
   @Deprecated
   public static PromQueryBuilder.AggregatedQueryBuilder irate(PromQueryBuilder.InstantQueryBuilder queryBuilder) {
     return new PromQueryBuilder.AggregatedQueryBuilder(queryBuilder, "irate");
   }
 
+  /**
+   * @deprecated Use {@link PromExpr} with {@code instant().expr(...)} or {@code range().expr(...)} instead.
+   */
   @Deprecated
   public static PromQueryBuilder.AggregatedQueryBuilder rate(PromQueryBuilder.InstantQueryBuilder queryBuilder) {
     return new PromQueryBuilder.AggregatedQueryBuilder(queryBuilder, "rate");
   }
 
+  /**
+   * @deprecated Use {@link PromExpr} with {@code instant().expr(...)} or {@code range().expr(...)} instead.
+   */
   @Deprecated
   public static PromQueryBuilder.AggregatedQueryBuilder avg_over_time(PromQueryBuilder.InstantQueryBuilder queryBuilder) {
     return new PromQueryBuilder.AggregatedQueryBuilder(queryBuilder, "avg_over_time");
@@ -140,77 +172,70 @@ public abstract class PromQuery {
 
   }
 
+  /**
+   * A query that can be bound to another rendered query: the instant, the range and the aggregated queries, not the
+   * metadata queries, whose query is in their matches.
+   *
+   * @param <PQ> the type of the query.
+   */
+  interface Bindable<PQ extends PromQuery> {
+    /**
+     * Creates a query of the same type with the given, already rendered, query and the given parameters, a parameter
+     * that is absent is kept from this query. The query has no metric, selector or expression of its own, those of
+     * this query do not match the rendered query. Used by {@link PromQueryTemplate} to bind its placeholders.
+     */
+    PQ bind(String query, Optional<String> time, Optional<String> start, Optional<String> end, Optional<Integer> step);
+  }
+
   /**
    * Ranged query allows to specify a "start" (optional) and an "end" (optional).
    */
   public static abstract class RangedQuery<RQ extends RangedQuery<?>> extends PromQuery {
-    private Optional<String> start;
-    private Optional<String> end;
-
-    private RangedQuery(QueryType type) {
-      super(type);
-    }
+    private final Optional<String> start;
+    private final Optional<String> end;
 
-    private RangedQuery(QueryType type, String metric) {
-      super(type, metric);
+    private RangedQuery(QueryType type, Optional<String> start, Optional<String> end) {
+      this(type, null, null, null, start, end);
     }
 
-    private RangedQuery(QueryType type, String metric, String selector) {
-      super(type, metric, selector);
-    }
-
-    RQ start(Optional<String> start) {
+    private RangedQuery(QueryType type, String metric, String selector, PromExpr expr, Optional<String> start,
+                        Optional<String> end) {
+      super(type, metric, selector, expr);
       this.start = start;
-      return (RQ) this;
+      this.end = end;
     }
 
     public Optional<String> start() {
       return start;
     }
 
-    RQ end(Optional<String> end) {
-      this.end = end;
-      return (RQ) this;
-    }
-
     public Optional<String> end() {
       return end;
     }
   }
 
-  public static final class InstantQuery extends PromQuery {
-    private Optional<String> time;
-    private Optional<String> duration;
-
-    InstantQuery(String metric) {
-      super(QueryType.INSTANT, metric);
-    }
+  public static final class InstantQuery extends PromQuery implements Bindable<InstantQuery> {
+    private final Optional<String> time;
+    private final Optional<String> duration;
 
-    InstantQuery(String metric, String selector) {
-      super(QueryType.INSTANT, metric, selector);
-    }
-
-    InstantQuery time(Optional<String> time) {
+    InstantQuery(String metric, String selector, PromExpr expr, Optional<String> time, Optional<String> duration) {
+      super(QueryType.INSTANT, metric, selector, expr);
       this.time = time;
-      return this;
+      this.duration = duration;
     }
 
     public Optional<String> time() {
       return time;
     }
 
-    InstantQuery duration(Optional<String> duration) {
-      this.duration = duration;
-      return this;
-    }
-
     public Optional<String> duration() {
       return duration;
     }
 
-    public String getQuery() {
+    @Override
+    String renderQuery() {
       StringBuilder sb = new StringBuilder();
-      sb.append(super.getQuery());
+      sb.append(super.renderQuery());
       duration.ifPresent(d -> {
         sb.append('[');
         sb.append(d);
@@ -218,51 +243,106 @@ public abstract class PromQuery {
       });
       return sb.toString();
     }
-  }
-
-  public static final class RangeQuery extends RangedQuery<RangeQuery> {
-    private Optional<Integer> step;
 
-    RangeQuery(String metric) {
-      super(QueryType.RANGE, metric);
+    @Override
+    void renderParameters(ImmutableListMultimap.Builder<String, String> parameters) {
+      super.renderParameters(parameters);
+      time.ifPresent(time -> parameters.put("time", time));
     }
 
-    RangeQuery(String metric, String selector) {
-      super(QueryType.RANGE, metric, selector);
+    @Override
+    public InstantQuery bind(String query, Optional<String> time, Optional<String> start, Optional<String> end,
+                             Optional<Integer> step) {
+      return rendered(new InstantQuery(null, null, null, time.or(() -> this.time), duration), query);
     }
+  }
 
-    RangeQuery step(Optional<Integer> step) {
+  public static final class RangeQuery extends RangedQuery<RangeQuery> implements Bindable<RangeQuery> {
+    private final Optional<Integer> step;
+
+    RangeQuery(String metric, String selector, PromExpr expr, Optional<String> start, Optional<String> end,
+               Optional<Integer> step) {
+      super(QueryType.RANGE, metric, selector, expr, start, end);
       this.step = step;
-      return this;
     }
 
     public Optional<Integer> step() {
       return step;
     }
+
+    /**
+     * Returns the same query over another range, e.g. to query only the part of a range that has not been fetched
+     * yet. The query is not rendered again.
+     */
+    public RangeQuery withRange(String start, String end) {
+      return rendered(new RangeQuery(metric, selector, expr, Optional.of(start), Optional.of(end), step), getQuery());
+    }
+
+    public RangeQuery withRange(long startEpochSecond, long endEpochSecond) {
+      return withRange(Long.toString(startEpochSecond), Long.toString(endEpochSecond));
+    }
+
+    /**
+     * Whether the result of the query depends on its range, see {@link PromExpr#isAnchoredToRange()}. A query that
+     * can't be parsed is taken to depend on it.
+     */
+    boolean isAnchoredToRange() {
+      try {
+        return (expr != null ? expr : PromExpr.parse(getQuery())).isAnchoredToRange();
+      } catch (IllegalArgumentException iae) {
+        return true;
+      }
+    }
+
+    @Override
+    void renderParameters(ImmutableListMultimap.Builder<String, String> parameters) {
+      super.renderParameters(parameters);
+      start().ifPresent(start -> parameters.put("start", start));
+      end().ifPresent(end -> parameters.put("end", end));
+      step.ifPresent(step -> parameters.put("step", step.toString()));
+    }
+
+    @Override
+    public RangeQuery bind(String query, Optional<String> time, Optional<String> start, Optional<String> end,
+                           Optional<Integer> step) {
+      return rendered(new RangeQuery(null, null, null, start.or(this::start), end.or(this::end),
+                                     step.or(() -> this.step)),
+                      query);
+    }
   }
 
   /**
    * https://prometheus.io/docs/prometheus/latest/querying/operators/#aggregation-operators
    *
    * TODO: A very simple implementation for the aggregation operators that does not support by, without, and parameters.
+   *
+   * @deprecated Use {@link PromExpr#aggregate(String, PromExpr)} or {@link PromExpr#function(String, PromExpr...)} with
+   *     {@code instant().expr(...)} or {@code range().expr(...)}, which are evaluated as the type of the query.
    */
   @Deprecated
-  public static class AggregatedQuery extends RangedQuery<AggregatedQuery> {
+  public static class AggregatedQuery extends RangedQuery<AggregatedQuery> implements Bindable<AggregatedQuery> {
 
     private final PromQuery internal;
     private final String operator;
-    private Optional<Integer> step;
+    private final Optional<Integer> step;
 
-    AggregatedQuery(PromQuery internal, String operator) {
+    AggregatedQuery(PromQuery internal, String operator, Optional<String> start, Optional<String> end,
+                    Optional<Integer> step) {
       // Hard-coded as range query for now. It is a valid vector, something that we need to support.
-      super(QueryType.RANGE, internal.metric, internal.selector);
+      super(QueryType.RANGE, internal.metric, internal.selector, null, start, end);
       this.internal = internal;
       this.operator = operator;
+      this.step = step;
     }
 
-    AggregatedQuery step(Optional<Integer> step) {
+    /**
+     * A bound query, whose query is rendered already.
+     */
+    private AggregatedQuery(String operator, Optional<String> start, Optional<String> end, Optional<Integer> step) {
+      super(QueryType.RANGE, null, null, null, start, end);
+      this.internal = null;
+      this.operator = operator;
       this.step = step;
-      return this;
     }
 
     public Optional<Integer> step() {
@@ -270,37 +350,60 @@ public abstract class PromQuery {
     }
 
     @Override
-    public String getQuery() {
-      return String.format("%s(%s)", operator, internal.getQuery());
+    String renderQuery() {
+      return operator + "(" + internal.getQuery() + ")";
+    }
+
+    @Override
+    void renderParameters(ImmutableListMultimap.Builder<String, String> parameters) {
+      super.renderParameters(parameters);
+      start().ifPresent(start -> parameters.put("start", start));
+      end().ifPresent(end -> parameters.put("end", end));
+      step.ifPresent(step -> parameters.put("step", step.toString()));
     }
 
+    @Override
+    public AggregatedQuery bind(String query, Optional<String> time, Optional<String> start, Optional<String> end,
+                                Optional<Integer> step) {
+      return rendered(new AggregatedQuery(operator, start.or(this::start), end.or(this::end), step.or(() -> this.step)),
+                      query);
+    }
   }
 
   public static class MetadataQuery extends RangedQuery<MetadataQuery> {
-    private List<String> matches;
-    private String labelName;
-
-    MetadataQuery(QueryType type) {
-      super(type);
-    }
+    private final List<String> matches;
+    private final String labelName;
 
-    MetadataQuery matches(List<String> matches) {
-      this.matches = matches;
-      return this;
+    MetadataQuery(QueryType type, List<String> matches, String labelName, Optional<String> start,
+                  Optional<String> end) {
+      super(type, start, end);
+      this.matches = ImmutableList.copyOf(matches);
+      this.labelName = labelName;
     }
 
     public List<String> matches() {
       return matches;
     }
 
-    MetadataQuery labelName(String labelName) {
-      this.labelName = labelName;
-      return this;
-    }
-
     public String labelName() {
       return labelName;
     }
+
+    @Override
+    void renderParameters(ImmutableListMultimap.Builder<String, String> parameters) {
+      parameters.putAll(type.parameter(), matches);
+    }
+
+    @Override
+    String renderCanonicalQuery() {
+      return "";
+    }
+
+    @Override
+    void putFingerprint(Hasher hasher) {
+      super.putFingerprint(hasher);
+      putString(hasher, Strings.nullToEmpty(labelName));
+    }
   }
 
   // PromQuery
@@ -310,29 +413,195 @@ public abstract class PromQuery {
    * parameters.
    */
   final QueryType type;
-  private String metric;
-  private String selector;
+  final String metric;
+  final String selector;
+  /**
+   * The expression of the query, it takes the place of the metric and selector when present.
+   */
+  final PromExpr expr;
 
-  private PromQuery(QueryType type) {
-    this.type = type;
-  }
+  // Memoized renderings, racy but idempotent: the rendering is a pure function of the immutable fields and the
+  // rendered values are immutable, so at worst a value is rendered more than once by racing threads.
+  private volatile String query;
+  private volatile ImmutableListMultimap<String, String> parameters;
+  private volatile MemoizedUri uri;
+  private volatile String canonicalQuery;
+  private volatile HashCode fingerprint;
 
-  private PromQuery(QueryType type, String metric) {
+  private PromQuery(QueryType type, String metric, String selector, PromExpr expr) {
     this.type = type;
     this.metric = metric;
+    this.selector = selector;
+    this.expr = expr;
   }
 
-  private PromQuery(QueryType type, String metric, String selector) {
-    this.type = type;
-    this.metric = metric;
-    this.selector = selector;
+  public Optional<PromExpr> expr() {
+    return Optional.ofNullable(expr);
   }
 
   /**
    * Gets the value of the "query" query parameter to send to the Prometheus' API.
    */
-  public String getQuery() {
-    return String.format("%s%s", Strings.nullToEmpty(metric), Strings.nullToEmpty(selector));
+  public final String getQuery() {
+    String query = this.query;
+    if (query == null) {
+      this.query = query = renderQuery();
+    }
+    return query;
+  }
+
+  String renderQuery() {
+    if (expr != null) {
+      return expr.render();
+    }
+    return Strings.nullToEmpty(metric) + Strings.nullToEmpty(selector);
+  }
+
+  /**
+   * Gets the query parameters to send to the Prometheus' API, in the order they are sent.
+   */
+  public final ImmutableListMultimap<String, String> getParameters() {
+    ImmutableListMultimap<String, String> parameters = this.parameters;
+    if (parameters == null) {
+      ImmutableListMultimap.Builder<String, String> builder = ImmutableListMultimap.builder();
+      renderParameters(builder);
+      this.parameters = parameters = builder.build();
+    }
+    return parameters;
+  }
+
+  void renderParameters(ImmutableListMultimap.Builder<String, String> parameters) {
+    parameters.put(type.parameter(), getQuery());
+  }
+
+  /**
+   * Gets the canonical form of the query, see {@link PromExpr#canonical()}: queries that only differ in the order of
+   * the label matchers or regex alternatives, the units of the durations or the whitespace have the same canonical
+   * form. A query that cannot be parsed is its own canonical form.
+   */
+  public final String getCanonicalQuery() {
+    String canonicalQuery = this.canonicalQuery;
+    if (canonicalQuery == null) {
+      this.canonicalQuery = canonicalQuery = renderCanonicalQuery();
+    }
+    return canonicalQuery;
+  }
+
+  String renderCanonicalQuery() {
+    // Parsed from the rendered query rather than taken from the expr, a bound template has no expr of its own
+    try {
+      return PromExpr.parse(getQuery()).canonical().render();
+    } catch (IllegalArgumentException iae) {
+      return getQuery();
+    }
+  }
+
+  /**
+   * Gets the 128-bit murmur3 fingerprint of the query type, the {@link #getCanonicalQuery() canonical query} and the
+   * canonical parameters, e.g. the times as Unix timestamps and the matches of a metadata query sorted. Queries with
+   * the same fingerprint get the same response, use {@link HashCode#asLong()} for a 64-bit fingerprint.
+   *
+   * The fingerprint is stable across JVMs and versions of the same canonical form, it may be persisted.
+   */
+  public final HashCode getFingerprint() {
+    HashCode fingerprint = this.fingerprint;
+    if (fingerprint == null) {
+      Hasher hasher = Hashing.murmur3_128().newHasher();
+      putFingerprint(hasher);
+      this.fingerprint = fingerprint = hasher.hash();
+    }
+    return fingerprint;
+  }
+
+  void putFingerprint(Hasher hasher) {
+    putString(hasher, type.name());
+    for (Map.Entry<String, Collection<String>> parameter : getParameters().asMap().entrySet()) {
+      String name = parameter.getKey();
+      putString(hasher, name);
+      if (name.equals("query")) {
+        putString(hasher, getCanonicalQuery());
+      } else if (name.equals("match[]")) {
+        // Series matching any of the selectors, in whichever order
+        ImmutableSortedSet.Builder<String> matches = ImmutableSortedSet.naturalOrder();
+        for (String match : parameter.getValue()) {
+          matches.add(canonicalSelector(match));
+        }
+        matches.build().forEach(match -> putString(hasher, match));
+      } else if (name.equals("time") || name.equals("start") || name.equals("end")) {
+        parameter.getValue().forEach(time -> putString(hasher, canonicalTime(time)));
+      } else {
+        parameter.getValue().forEach(value -> putString(hasher, value));
+      }
+    }
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    // Length-prefixed so that adjacent values can't run into each other
+    hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+  }
+
+  private static String canonicalSelector(String selector) {
+    try {
+      return PromExpr.parse(selector).canonical().render();
+    } catch (IllegalArgumentException iae) {
+      return selector;
+    }
+  }
+
+  /**
+   * Renders a time parameter, either RFC 3339 or a Unix timestamp, as a Unix timestamp without trailing zeros.
+   */
+  static String canonicalTime(String time) {
+    try {
+      return new BigDecimal(time).stripTrailingZeros().toPlainString();
+    } catch (NumberFormatException nfe) {
+      // Not a Unix timestamp
+    }
+    try {
+      OffsetDateTime dateTime = OffsetDateTime.parse(time);
+      return BigDecimal.valueOf(dateTime.toEpochSecond())
+          .add(BigDecimal.valueOf(dateTime.getNano(), 9))
+          .stripTrailingZeros()
+          .toPlainString();
+    } catch (DateTimeParseException dtpe) {
+      return time;
+    }
+  }
+
+  /**
+   * The URI of the query against a base (e.g. a {@code UriBuilderFactory}), only the last one is kept since a query
+   * is usually sent to the same server.
+   */
+  private static final class MemoizedUri {
+    private final Object base;
+    private final URI uri;
+
+    private MemoizedUri(Object base, URI uri) {
+      this.base = base;
+      this.uri = uri;
+    }
+  }
+
+  /**
+   * Gets the URI of the query against the given base, created by the {@code uriFactory} and memoized by the identity
+   * of the base. The base must be immutable as far as the created URI is concerned.
+   */
+  public final URI getUri(Object base, Function<? super PromQuery, URI> uriFactory) {
+    MemoizedUri uri = this.uri;
+    if (uri == null || uri.base != base) {
+      this.uri = uri = new MemoizedUri(base, uriFactory.apply(this));
+    }
+    return uri.uri;
+  }
+
+  private static <PQ extends PromQuery> PQ rendered(PQ promQuery, String query) {
+    ((PromQuery) promQuery).query = query;
+    return promQuery;
+  }
+
+  @Override
+  public String toString() {
+    return getQuery();
   }
 
   // Syntactic sugar
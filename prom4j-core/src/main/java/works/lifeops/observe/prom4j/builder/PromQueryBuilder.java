@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.Optional;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 
@@ -41,10 +42,12 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
   final PromQuery.QueryType queryType;
   String metric;
   List<String> criteria;
+  List<PromExpr.Matcher> matchers;
 
   private PromQueryBuilder(PromQuery.QueryType queryType) {
     this.queryType = queryType;
     this.criteria = Lists.newArrayList();
+    this.matchers = Lists.newArrayList();
   }
 
   /**
@@ -67,47 +70,27 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
   }
 
   public B label(LabelBuilder labelBuilder) {
-    String criterion = labelBuilder.build();
-    if (!Strings.isNullOrEmpty(criterion)) {
-      // After LabelBuilder.build() returns "", we need to exclude these.
-      // TODO: Avoid "patching" like this, think of way to avoid building label when empty was passed.
-      criteria.add(criterion);
-    }
+    addCriterion(labelBuilder);
     return (B) this;
   }
 
   public B labels(LabelBuilder... labelBuilders) {
     for (LabelBuilder labelBuilder : labelBuilders) {
-      String criterion = labelBuilder.build();
-      if (!Strings.isNullOrEmpty(criterion)) {
-        // After LabelBuilder.build() returns "", we need to exclude these.
-        // TODO: Avoid "patching" like this, think of way to avoid building label when empty was passed.
-        criteria.add(criterion);
-      }
+      addCriterion(labelBuilder);
     }
     return (B) this;
   }
 
   public B labels(Collection<? extends LabelBuilder> labelBuilders) {
     for (LabelBuilder labelBuilder : labelBuilders) {
-      String criterion = labelBuilder.build();
-      if (!Strings.isNullOrEmpty(criterion)) {
-        // After LabelBuilder.build() returns "", we need to exclude these.
-        // TODO: Avoid "patching" like this, think of way to avoid building label when empty was passed.
-        criteria.add(criterion);
-      }
+      addCriterion(labelBuilder);
     }
     return (B) this;
   }
 
   public B labels(Iterable<? extends LabelBuilder> labelBuilders) {
     for (LabelBuilder labelBuilder : labelBuilders) {
-      String criterion = labelBuilder.build();
-      if (!Strings.isNullOrEmpty(criterion)) {
-        // After LabelBuilder.build() returns "", we need to exclude these.
-        // TODO: Avoid "patching" like this, think of way to avoid building label when empty was passed.
-        criteria.add(criterion);
-      }
+      addCriterion(labelBuilder);
     }
     return (B) this;
   }
@@ -124,6 +107,23 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
    */
   public abstract PQ build();
 
+  /**
+   * Builds the metric and the labels as a {@link PromExpr.Selector}, to be composed into a larger expression.
+   */
+  public PromExpr.Selector toExpr() {
+    return new PromExpr.Selector(metric, matchers, null, null);
+  }
+
+  private void addCriterion(LabelBuilder labelBuilder) {
+    String criterion = labelBuilder.build();
+    if (!Strings.isNullOrEmpty(criterion)) {
+      // After LabelBuilder.build() returns "", we need to exclude these.
+      // TODO: Avoid "patching" like this, think of way to avoid building label when empty was passed.
+      criteria.add(criterion);
+      matchers.add(labelBuilder.toMatcher());
+    }
+  }
+
   // Internal types
 
   @Accessors(fluent = true)
@@ -217,6 +217,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
      * y - years - assuming a year has always 365d
      */
     Optional<String> duration = Optional.empty();
+    PromExpr expr;
 
     InstantQueryBuilder() {
       super(PromQuery.QueryType.INSTANT);
@@ -242,6 +243,14 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       return this;
     }
 
+    /**
+     * Queries the expression rather than the metric and labels, evaluated at a single point in time.
+     */
+    public InstantQueryBuilder expr(PromExpr expr) {
+      this.expr = expr;
+      return this;
+    }
+
     public DurationBuilder duration() {
         return new DurationBuilder(this);
     }
@@ -251,9 +260,11 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       String selector = super.criteria.isEmpty() ?
           "" :
           String.format("{%s}", String.join(",", super.criteria));
-      return new PromQuery.InstantQuery(super.metric, selector)
-          .time(time)
-          .duration(duration);
+      if (expr != null) {
+        Preconditions.checkState(super.metric == null && super.criteria.isEmpty() && duration.isEmpty(),
+            "The metric, labels and duration are part of the expression when the query is built from one.");
+      }
+      return new PromQuery.InstantQuery(super.metric, selector, expr, time, duration);
     }
   }
 
@@ -299,6 +310,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
 
   public static class RangeQueryBuilder extends RangedQueryBuilder<RangeQueryBuilder, PromQuery.RangeQuery> {
     Optional<Integer> step = Optional.empty();
+    PromExpr expr;
 
     RangeQueryBuilder() {
       super(PromQuery.QueryType.RANGE);
@@ -314,15 +326,24 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       return this;
     }
 
+    /**
+     * Queries the expression rather than the metric and labels, evaluated over the range.
+     */
+    public RangeQueryBuilder expr(PromExpr expr) {
+      this.expr = expr;
+      return this;
+    }
+
     @Override
     public PromQuery.RangeQuery build() {
       String selector = super.criteria.isEmpty() ?
           "" :
           String.format("{%s}", String.join(",", super.criteria));
-      return new PromQuery.RangeQuery(super.metric, selector)
-          .start(start)
-          .end(end)
-          .step(step);
+      if (expr != null) {
+        Preconditions.checkState(super.metric == null && super.criteria.isEmpty(),
+            "The metric and labels are part of the expression when the query is built from one.");
+      }
+      return new PromQuery.RangeQuery(super.metric, selector, expr, start, end, step);
     }
   }
 
@@ -353,10 +374,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
 
     @Override
     public PromQuery.AggregatedQuery build() {
-      return new PromQuery.AggregatedQuery(internal, operator)
-          .start(start)
-          .end(end)
-          .step(step);
+      return new PromQuery.AggregatedQuery(internal, operator, start, end, step);
     }
   }
 
@@ -390,11 +408,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
 
     @Override
     public PromQuery.MetadataQuery build() {
-      return new PromQuery.MetadataQuery(queryType)
-          .matches(matches)
-          .labelName(labelName)
-          .start(start)
-          .end(end);
+      return new PromQuery.MetadataQuery(queryType, matches, labelName, start, end);
     }
   }
 
@@ -402,6 +416,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
     private String label;
     private String operator;
     private String value;
+    private LabelValueBuilder labelValue;
 
     LabelBuilder(String label) {
       this.label = label;
@@ -421,6 +436,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
         this.operator = "=";
       }
       this.value = value.toString();
+      this.labelValue = value;
 
       return this;
     }
@@ -438,6 +454,8 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       } else {
         this.operator = "!=";
       }
+      this.value = value.toString();
+      this.labelValue = value;
 
       return this;
     }
@@ -471,6 +489,24 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       }
       return String.format("%s%s%s", label, operator, value);
     }
+
+    PromExpr.Matcher toMatcher() {
+      PromExpr.MatchOperator matchOperator;
+      switch (operator) {
+        case "=~":
+          matchOperator = PromExpr.MatchOperator.RE;
+          break;
+        case "!=":
+          matchOperator = PromExpr.MatchOperator.NE;
+          break;
+        case "!~":
+          matchOperator = PromExpr.MatchOperator.NRE;
+          break;
+        default:
+          matchOperator = PromExpr.MatchOperator.EQ;
+      }
+      return new PromExpr.Matcher(label, matchOperator, labelValue.expression());
+    }
   }
 
   /**
@@ -545,7 +581,7 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
     }
 
     B queryBuilder() {
-      PromQueryBuilder.this.criteria.add(this.labelBuilder.build());
+      PromQueryBuilder.this.addCriterion(this.labelBuilder);
       return (B) PromQueryBuilder.this;
     }
   }
@@ -579,12 +615,24 @@ public abstract class PromQueryBuilder<B extends PromQueryBuilder<B, PQ>, PQ ext
       return values.size() > 1;
     }
 
-    @Override
-    public String toString() {
-      String expression = values.size() == 1 ?
+    /**
+     * The value or the values joined by "|", unquoted.
+     */
+    String expression() {
+      return values.size() == 1 ?
           value != null ? value : values.get(0) :
           String.join("|", values);
-      return String.format("\"%s\"", expression);
+    }
+
+    /**
+     * The expression as a double-quoted PromQL string, escaped as {@link PromQueryTemplate} escapes a bound value and
+     * {@link PromQueryBuilder#toExpr()} renders a matcher.
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(expression().length() + 2);
+      PromExpr.appendQuoted(sb, expression());
+      return sb.toString();
     }
   }
 }
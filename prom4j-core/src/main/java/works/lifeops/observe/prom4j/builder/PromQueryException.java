@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Thrown when a response reads {@code "status":"error"}, with its {@code "errorType"} and {@code "error"}, e.g.
+ * {@code "bad_data"} and {@code "1:5: parse error: unexpected <by>"}.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromQueryException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  private final String errorType;
+  private final String error;
+
+  public PromQueryException(String errorType, String error) {
+    super("The query failed with " + errorType + ": " + error);
+    this.errorType = errorType;
+    this.error = error;
+  }
+
+  public String getErrorType() {
+    return errorType;
+  }
+
+  public String getError() {
+    return error;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A prepared {@link PromQuery}: a query builder compiled once into a fixed PromQL skeleton with placeholders for label
+ * values, and bound to the values of each execution. Binding only escapes the values into one pre-sized buffer, the
+ * builders and the formatting of the labels are not run again.
+ * <pre>{@code
+ * PromQueryTemplate<PromQuery.RangeQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+ *     .range()
+ *     .metric("go_threads")
+ *     .label("job").is(PromQueryTemplate.placeholder("job"))
+ *     .step(15));
+ *
+ * PromQuery.RangeQuery query = template.bind()
+ *     .set("job", "prometheus")
+ *     .start("2023-04-22T20:45:40+08:00")
+ *     .build();
+ * }</pre>
+ * The time parameters (time, start, end and step) compiled with the builder are the defaults of the bound queries.
+ * Only instant and range queries can be compiled. A template is immutable and can be shared across threads.
+ *
+ * @param <PQ> the type of the query built by the template.
+ * @author Li Wan
+ */
+@Beta
+public final class PromQueryTemplate<PQ extends PromQuery> {
+  /**
+   * Delimits a placeholder in the rendered query of the compiled builder, it can't be in a valid PromQL.
+   */
+  private static final char DELIMITER = '\0';
+
+  /**
+   * Creates a placeholder of a label value matched with "=" (or "!=").
+   */
+  public static PromQueryBuilder.LabelValueBuilder placeholder(String name) {
+    return new Placeholder(name, false);
+  }
+
+  /**
+   * Creates a placeholder of a label value matched with "=~" (or "!~"), the bound value is a regular expression.
+   */
+  public static PromQueryBuilder.LabelValueBuilder regexPlaceholder(String name) {
+    return new Placeholder(name, true);
+  }
+
+  /**
+   * Compiles the builder into a template, the builder may be reused or discarded afterwards.
+   */
+  public static <PQ extends PromQuery> PromQueryTemplate<PQ> compile(PromQueryBuilder<?, PQ> builder) {
+    PQ prototype = builder.build();
+    Preconditions.checkArgument(prototype instanceof PromQuery.Bindable,
+        "PromQuery of type: \"" + prototype.type + "\" cannot be compiled into a template.");
+    return new PromQueryTemplate<PQ>(prototype);
+  }
+
+  private static final class Placeholder extends PromQueryBuilder.LabelValueBuilder {
+    private final boolean regex;
+
+    private Placeholder(String name, boolean regex) {
+      super(DELIMITER + name + DELIMITER);
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(name) && name.indexOf(DELIMITER) < 0,
+          "Invalid placeholder name: \"%s\"", name);
+      this.regex = regex;
+    }
+
+    @Override
+    boolean regex() {
+      return regex;
+    }
+
+    /**
+     * The name is left unescaped to be found between the delimiters, the bound value is escaped instead.
+     */
+    @Override
+    public String toString() {
+      return "\"" + expression() + "\"";
+    }
+  }
+
+  private final PQ prototype;
+  /**
+   * The literal parts of the query, {@code segments[i]} is followed by the placeholder {@code i}, the last segment is
+   * followed by nothing.
+   */
+  private final String[] segments;
+  private final List<String> placeholders;
+  private final Map<String, Integer> placeholderIndexes;
+  private final int segmentsLength;
+
+  private PromQueryTemplate(PQ prototype) {
+    this.prototype = prototype;
+    List<String> segments = Lists.newArrayList();
+    List<String> placeholders = Lists.newArrayList();
+    String query = prototype.getQuery();
+    int segmentStart = 0;
+    for (int delimiter = query.indexOf(DELIMITER); delimiter >= 0; delimiter = query.indexOf(DELIMITER, segmentStart)) {
+      int placeholderEnd = query.indexOf(DELIMITER, delimiter + 1);
+      segments.add(query.substring(segmentStart, delimiter));
+      placeholders.add(query.substring(delimiter + 1, placeholderEnd));
+      segmentStart = placeholderEnd + 1;
+    }
+    segments.add(query.substring(segmentStart));
+
+    this.segments = segments.toArray(new String[0]);
+    this.placeholders = ImmutableList.copyOf(placeholders);
+    Map<String, Integer> placeholderIndexes = Maps.newHashMapWithExpectedSize(placeholders.size());
+    for (int i = 0; i < placeholders.size(); i++) {
+      Preconditions.checkArgument(placeholderIndexes.put(placeholders.get(i), i) == null,
+          "Duplicate placeholder: \"%s\"", placeholders.get(i));
+    }
+    this.placeholderIndexes = placeholderIndexes;
+    this.segmentsLength = segments.stream().mapToInt(String::length).sum();
+  }
+
+  /**
+   * Returns the names of the placeholders in the order they appear in the query.
+   */
+  public List<String> getPlaceholders() {
+    return placeholders;
+  }
+
+  /**
+   * Starts binding the placeholders by name.
+   */
+  public Binder bind() {
+    return new Binder();
+  }
+
+  /**
+   * Binds the placeholders in the order of {@link #getPlaceholders()} and builds the query.
+   */
+  public PQ bind(String... values) {
+    Preconditions.checkArgument(values.length == placeholders.size(),
+        "Expected %s values but got %s.", placeholders.size(), values.length);
+    return build(values, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+  }
+
+  public final class Binder {
+    private final String[] values = new String[placeholders.size()];
+    private Optional<String> time = Optional.empty();
+    private Optional<String> start = Optional.empty();
+    private Optional<String> end = Optional.empty();
+    private Optional<Integer> step = Optional.empty();
+
+    private Binder() {}
+
+    public Binder set(String placeholder, String value) {
+      Integer index = placeholderIndexes.get(placeholder);
+      Preconditions.checkArgument(index != null, "No such placeholder: \"%s\"", placeholder);
+      values[index] = Preconditions.checkNotNull(value, "value");
+      return this;
+    }
+
+    /**
+     * Instant query only.
+     */
+    public Binder time(String rfc3339) {
+      this.time = Optional.of(rfc3339);
+      return this;
+    }
+
+    /**
+     * Range query only.
+     */
+    public Binder start(String rfc3339) {
+      this.start = Optional.of(rfc3339);
+      return this;
+    }
+
+    /**
+     * Range query only.
+     */
+    public Binder end(String rfc3339) {
+      this.end = Optional.of(rfc3339);
+      return this;
+    }
+
+    /**
+     * Range query only.
+     */
+    public Binder step(int step) {
+      this.step = Optional.of(step);
+      return this;
+    }
+
+    public PQ build() {
+      return PromQueryTemplate.this.build(values, time, start, end, step);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private PQ build(String[] values, Optional<String> time, Optional<String> start, Optional<String> end,
+                   Optional<Integer> step) {
+    int length = segmentsLength;
+    for (int i = 0; i < values.length; i++) {
+      Preconditions.checkState(values[i] != null, "No value is bound to the placeholder: \"%s\"", placeholders.get(i));
+      length += values[i].length();
+    }
+    // A few escapes fit without growing the buffer
+    StringBuilder query = new StringBuilder(length + 16);
+    for (int i = 0; i < values.length; i++) {
+      query.append(segments[i]);
+      appendEscaped(query, values[i]);
+    }
+    query.append(segments[values.length]);
+    return ((PromQuery.Bindable<PQ>) prototype).bind(query.toString(), time, start, end, step);
+  }
+
+  /**
+   * Appends the value escaped as the content of a double-quoted PromQL string.
+   */
+  private static void appendEscaped(StringBuilder query, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          query.append("\\\\");
+          break;
+        case '"':
+          query.append("\\\"");
+          break;
+        case '\n':
+          query.append("\\n");
+          break;
+        default:
+          query.append(c);
+      }
+    }
+  }
+
+  /**
+   * Returns the query with the placeholders, e.g. {@code go_threads{job="${job}"}}.
+   */
+  @Override
+  public String toString() {
+    StringBuilder query = new StringBuilder();
+    for (int i = 0; i < placeholders.size(); i++) {
+      query.append(segments[i]).append("${").append(placeholders.get(i)).append('}');
+    }
+    return query.append(segments[placeholders.size()]).toString();
+  }
+}
@@ -16,11 +16,13 @@ package works.lifeops.observe.prom4j.builder;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 /**
@@ -141,26 +143,50 @@ public class PromResponse<R extends PromResponse.Result> {
 
   /**
    * Maps the "value" under the "result" node. This can be a single sample within a time-series.
+   *
+   * A value keeps both the "<sample_value>" as it is in the response and the double parsed from it once, which takes
+   * more memory than either. {@link ColumnarResult} keeps the doubles only, in one array per series.
    */
   @lombok.Data
   @lombok.ToString(exclude = "result") // When included, it will cause a circular invocation
   @lombok.EqualsAndHashCode
   public static class ResultValue<R extends Result> {
     public static <R extends Result> ResultValue<R> of(double epochDateTime, String value) {
-      return new ResultValue<R>(epochDateTime, value);
+      return new ResultValue<R>(epochDateTime, value, PromValues.parseValue(value));
+    }
+
+    /**
+     * Creates a value whose {@code doubleValue} has already been parsed from the {@code value}.
+     */
+    public static <R extends Result> ResultValue<R> of(double epochDateTime, String value, double doubleValue) {
+      return new ResultValue<R>(epochDateTime, value, doubleValue);
     }
 
     public static <R extends Result> ResultValue<R> copy(ResultValue<?> resultValue) {
-      return new ResultValue<R>(resultValue.epochDateTime, resultValue.value);
+      return new ResultValue<R>(resultValue.epochDateTime, resultValue.value, resultValue.doubleValue);
     }
 
     private R result;
     private double epochDateTime;
+    /**
+     * The "<sample_value>" as it is in the response.
+     */
     private String value;
+    /**
+     * The "<sample_value>" parsed once, {@code NaN}, {@code +Inf} and {@code -Inf} included.
+     */
+    @lombok.Setter(lombok.AccessLevel.NONE)
+    private double doubleValue;
 
-    protected ResultValue(double epochDateTime, String value) {
+    protected ResultValue(double epochDateTime, String value, double doubleValue) {
       this.epochDateTime = epochDateTime;
       this.value = value;
+      this.doubleValue = doubleValue;
+    }
+
+    public void setValue(String value) {
+      this.value = value;
+      this.doubleValue = PromValues.parseValue(value);
     }
 
     /**
@@ -184,9 +210,48 @@ public class PromResponse<R extends PromResponse.Result> {
     }
   }
 
-  // TODO: public static class ScalarResult {}
+  /**
+   * Maps the "result" node of a {@link ResultType#SCALAR} response, which is a single
+   * {@code [<unix_time>, "<scalar_value>"]} rather than a list of series, e.g. for {@code scalar(...)} and
+   * {@code time()}. The value is kept as a primitive {@code double}.
+   */
+  @lombok.Getter
+  @lombok.ToString
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static class ScalarResult extends Result {
+    private final double epochDateTime;
+    private final double value;
+
+    ScalarResult(double epochDateTime, double value) {
+      this.epochDateTime = epochDateTime;
+      this.value = value;
+    }
+
+    public OffsetDateTime getOffsetDateTime() {
+      return OffsetDateTime.ofInstant(Instant.ofEpochMilli(PromValues.toEpochMilli(epochDateTime)), ZoneOffset.UTC);
+    }
+  }
+
+  /**
+   * Maps the "result" node of a {@link ResultType#STRING} response, which is a single
+   * {@code [<unix_time>, "<string_value>"]}.
+   */
+  @lombok.Getter
+  @lombok.ToString
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static class StringResult extends Result {
+    private final double epochDateTime;
+    private final String value;
+
+    StringResult(double epochDateTime, String value) {
+      this.epochDateTime = epochDateTime;
+      this.value = value;
+    }
 
-  // TODO: public static class StringResult {}
+    public OffsetDateTime getOffsetDateTime() {
+      return OffsetDateTime.ofInstant(Instant.ofEpochMilli(PromValues.toEpochMilli(epochDateTime)), ZoneOffset.UTC);
+    }
+  }
 
   @lombok.Data
   @lombok.EqualsAndHashCode(callSuper = false)
@@ -263,6 +328,85 @@ public class PromResponse<R extends PromResponse.Result> {
     }
   }
 
+  /**
+   * A columnar type of {@link PromResponse.Result} for {@link ResultType#MATRIX} and {@link ResultType#VECTOR} that
+   * keeps the samples in primitive arrays instead of one {@link ResultValue} per sample: the timestamps in epoch
+   * milliseconds and the values as {@code double}s. The series of a step-aligned range query share one timestamps
+   * array.
+   *
+   * The "<sample_value>" text of the response is not kept. The {@link ResultValue#getValue() values} of the views are
+   * normalised: they are formatted from the doubles by {@link PromValues#formatValue(double)}, e.g. a {@code "1e+06"}
+   * in the response is {@code "1000000"}, their {@link ResultValue#getDoubleValue() doubles} are the same.
+   *
+   * The {@link PromResponseDeserializer} fills this type directly when the response is requested as
+   * {@code PromResponse<PromResponse.ColumnarResult>}.
+   */
+  @lombok.Getter
+  @lombok.ToString
+  @lombok.EqualsAndHashCode(callSuper = false)
+  public static class ColumnarResult extends Result {
+    private final Map<String, String> metric;
+    /**
+     * Epoch milliseconds, possibly shared with other results of the same response, must not be modified.
+     */
+    private final long[] timestamps;
+    private final double[] values;
+
+    ColumnarResult(Map<String, String> metric, long[] timestamps, double[] values) {
+      Preconditions.checkArgument(timestamps.length == values.length,
+          "Got " + timestamps.length + " timestamps for " + values.length + " values.");
+      this.metric = metric;
+      this.timestamps = timestamps;
+      this.values = values;
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public long getTimestamp(int index) {
+      return timestamps[index];
+    }
+
+    public double getValue(int index) {
+      return values[index];
+    }
+
+    /**
+     * Returns a read-only view of the samples with the {@link ResultValue} API. The {@link ResultValue}s are created
+     * on access and are not retained by this result, their values are normalised.
+     */
+    public List<ResultValue<ColumnarResult>> getResultValues() {
+      return new AbstractList<ResultValue<ColumnarResult>>() {
+        @Override
+        public ResultValue<ColumnarResult> get(int index) {
+          return ResultValue.<ColumnarResult>of(
+              PromValues.toEpochDateTime(timestamps[index]),
+              PromValues.formatValue(values[index]),
+              values[index])
+              .setResult(ColumnarResult.this);
+        }
+
+        @Override
+        public int size() {
+          return values.length;
+        }
+      };
+    }
+
+    /**
+     * Copies the samples into a {@link VectrixResult}, the values are normalised.
+     */
+    public VectrixResult toVectrixResult() {
+      List<ResultValue<VectrixResult>> vectrixValues = Lists.newArrayListWithCapacity(values.length);
+      for (int i = 0; i < values.length; i++) {
+        vectrixValues.add(
+            ResultValue.of(PromValues.toEpochDateTime(timestamps[i]), PromValues.formatValue(values[i]), values[i]));
+      }
+      return new VectrixResult(metric, vectrixValues);
+    }
+  }
+
   // public static class SeriesResult {} no need a
 
   // PromResponse
@@ -0,0 +1,659 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Decodes a query response ({@code GET /api/v1/query} and {@code GET /api/v1/query_range}) straight from its bytes.
+ *
+ * The grammar of the response is small and fixed, so instead of tokenizing it with a {@code JsonParser}, the decoder
+ * scans the bytes for exactly the structure it expects: the numbers are computed from the digits without creating a
+ * {@link String}, and the repeated label names and values are looked up by their bytes. Anything it does not expect,
+ * e.g. escaped strings, "result" before "resultType" or a malformed response, hands the whole response over to the
+ * {@link PromResponseDeserializer} of the given {@link ObjectMapper}, so the results are the same either way.
+ *
+ * A response of at least the parallel threshold is decoded in parallel: a structural scan finds the boundaries of the
+ * elements of "data.result" without decoding them, then the elements are decoded in chunks on a {@link ForkJoinPool}
+ * and reassembled in their original order.
+ *
+ * Thread-safe, the state of a decoding is local to it.
+ *
+ * @author Li Wan
+ */
+@Beta
+public final class PromResponseDecoder {
+  private static final byte[] STATUS = bytes("status");
+  private static final byte[] DATA = bytes("data");
+  private static final byte[] RESULT_TYPE = bytes("resultType");
+  private static final byte[] RESULT = bytes("result");
+  private static final byte[] METRIC = bytes("metric");
+  private static final byte[] VALUE = bytes("value");
+  private static final byte[] VALUES = bytes("values");
+
+  private final ObjectReader fallbackReader;
+  private final ObjectReader columnarFallbackReader;
+  private final int parallelThreshold;
+  private final ForkJoinPool pool;
+
+  /**
+   * @param objectMapper the {@link ObjectMapper} with the {@link PromResponseDeserializer} registered, to decode the
+   *                     responses this decoder does not expect.
+   */
+  public PromResponseDecoder(ObjectMapper objectMapper) {
+    this(objectMapper, Integer.MAX_VALUE, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param objectMapper      the {@link ObjectMapper} with the {@link PromResponseDeserializer} registered, to decode
+   *                          the responses this decoder does not expect.
+   * @param parallelThreshold the size in bytes from which a response is decoded in parallel.
+   * @param pool              the pool to decode in parallel on.
+   */
+  public PromResponseDecoder(ObjectMapper objectMapper, int parallelThreshold, ForkJoinPool pool) {
+    Preconditions.checkArgument(parallelThreshold > 0, "The parallel threshold must be positive.");
+    JavaType columnarType = objectMapper.getTypeFactory()
+        .constructParametricType(PromResponse.class, PromResponse.ColumnarResult.class);
+    this.fallbackReader = objectMapper.readerFor(PromResponse.class);
+    this.columnarFallbackReader = objectMapper.readerFor(columnarType);
+    this.parallelThreshold = parallelThreshold;
+    this.pool = Preconditions.checkNotNull(pool);
+  }
+
+  public <R extends PromResponse.Result> PromResponse<R> decode(byte[] bytes) throws IOException {
+    return decode(bytes, 0, bytes.length);
+  }
+
+  public <R extends PromResponse.Result> PromResponse<R> decode(byte[] bytes, int offset, int length) throws IOException {
+    return decode(bytes, offset, length, false);
+  }
+
+  /**
+   * Decodes the remaining bytes of the buffer without changing its position. A buffer without an accessible array,
+   * e.g. a direct buffer, is copied first.
+   */
+  public <R extends PromResponse.Result> PromResponse<R> decode(ByteBuffer buffer) throws IOException {
+    return decode(buffer, false);
+  }
+
+  public PromResponse<PromResponse.ColumnarResult> decodeColumnar(byte[] bytes) throws IOException {
+    return decodeColumnar(bytes, 0, bytes.length);
+  }
+
+  public PromResponse<PromResponse.ColumnarResult> decodeColumnar(byte[] bytes, int offset, int length) throws IOException {
+    return decode(bytes, offset, length, true);
+  }
+
+  public PromResponse<PromResponse.ColumnarResult> decodeColumnar(ByteBuffer buffer) throws IOException {
+    return decode(buffer, true);
+  }
+
+  private <R extends PromResponse.Result> PromResponse<R> decode(ByteBuffer buffer, boolean columnar) throws IOException {
+    if (buffer.hasArray()) {
+      return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), columnar);
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return decode(bytes, 0, bytes.length, columnar);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R extends PromResponse.Result> PromResponse<R> decode(byte[] bytes, int offset, int length, boolean columnar)
+      throws IOException {
+    try {
+      ForkJoinPool parallelPool = length >= parallelThreshold ? pool : null;
+      return (PromResponse<R>) new Decoding(bytes, offset, offset + length, columnar, parallelPool).response();
+    } catch (Unexpected | IndexOutOfBoundsException | IllegalArgumentException unexpected) {
+      ObjectReader reader = columnar ? columnarFallbackReader : fallbackReader;
+      return reader.readValue(bytes, offset, length);
+    }
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Signals the decoding to fall back to Jackson. A singleton without a stack trace since it is not an error.
+   */
+  private static final class Unexpected extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private static final Unexpected INSTANCE = new Unexpected();
+
+    private Unexpected() {
+      super(null, null, false, false);
+    }
+  }
+
+  // Decoding
+
+  /**
+   * The state of decoding one response.
+   */
+  private static final class Decoding {
+    private final byte[] bytes;
+    private final int end;
+    private final boolean columnar;
+    private final ForkJoinPool parallelPool;
+    private final StringCache strings = new StringCache();
+    private final AsciiSequence ascii = new AsciiSequence();
+    private int position;
+    private int keyStart;
+    private int keyEnd;
+    private PromResponseDeserializer.ColumnarBuffers buffers;
+
+    Decoding(byte[] bytes, int offset, int end, boolean columnar, ForkJoinPool parallelPool) {
+      this.bytes = bytes;
+      this.position = offset;
+      this.end = end;
+      this.columnar = columnar;
+      this.parallelPool = parallelPool;
+    }
+
+    PromResponse<PromResponse.Result> response() {
+      PromResponse<PromResponse.Result> response = new PromResponse<PromResponse.Result>();
+      expect('{');
+      if (!tryConsume('}')) {
+        do {
+          readKey();
+          if (keyEquals(STATUS)) {
+            response.setStatus(PromResponse.Status.fromString(readString()));
+          } else if (keyEquals(DATA)) {
+            readData(response);
+          } else {
+            // "warnings", "infos", "errorType", "error", etc.
+            skipValue();
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      while (position < end && isWhitespace(bytes[position])) {
+        position++;
+      }
+      if (position != end) {
+        throw Unexpected.INSTANCE;
+      }
+      return response;
+    }
+
+    private void readData(PromResponse<PromResponse.Result> response) {
+      expect('{');
+      if (tryConsume('}')) {
+        return;
+      }
+      PromResponse.ResultType resultType = null;
+      do {
+        readKey();
+        if (keyEquals(RESULT_TYPE)) {
+          resultType = PromResponse.ResultType.fromString(readString());
+          response.getData().setResultType(resultType);
+        } else if (keyEquals(RESULT)) {
+          if (resultType == null) {
+            // The result cannot be read without knowing its type
+            throw Unexpected.INSTANCE;
+          }
+          readResults(resultType, response);
+        } else {
+          skipValue();
+        }
+      } while (tryConsume(','));
+      expect('}');
+    }
+
+    private void readResults(PromResponse.ResultType resultType, PromResponse<PromResponse.Result> response) {
+      if (resultType.is(PromResponse.ResultType.SCALAR) || resultType.is(PromResponse.ResultType.STRING)) {
+        expect('[');
+        double epochDateTime = readNumber();
+        expect(',');
+        PromResponse.Result result = resultType.is(PromResponse.ResultType.SCALAR) ?
+            new PromResponse.ScalarResult(epochDateTime, readValue()) :
+            new PromResponse.StringResult(epochDateTime, readString());
+        expect(']');
+        response.getData().addResult(result);
+        return;
+      }
+      if (!resultType.is(PromResponse.ResultType.VECTOR) && !resultType.is(PromResponse.ResultType.MATRIX)) {
+        throw Unexpected.INSTANCE;
+      }
+      expect('[');
+      if (tryConsume(']')) {
+        return;
+      }
+      if (parallelPool != null) {
+        readResultsInParallel(response);
+        return;
+      }
+      if (columnar) {
+        buffers = new PromResponseDeserializer.ColumnarBuffers();
+      }
+      do {
+        response.getData().addResult(columnar ? readColumnarResult() : readResult());
+      } while (tryConsume(','));
+      expect(']');
+    }
+
+    /**
+     * Scans for the start of each element of the result array without decoding them, then decodes the elements in
+     * chunks in parallel. The position is right after the opening bracket of the array.
+     */
+    private void readResultsInParallel(PromResponse<PromResponse.Result> response) {
+      int[] starts = new int[64];
+      int size = 0;
+      do {
+        skipWhitespace();
+        if (size == starts.length) {
+          starts = Arrays.copyOf(starts, size << 1);
+        }
+        starts[size++] = position;
+        skipValue();
+      } while (tryConsume(','));
+      expect(']');
+
+      PromResponse.Result[] results = new PromResponse.Result[size];
+      // A few chunks per worker so that a slow chunk, e.g. of long series, does not hold up the others
+      int chunkSize = Math.max(1, -Math.floorDiv(-size, parallelPool.getParallelism() * 4));
+      List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+      for (int from = 0; from < size; from += chunkSize) {
+        int chunkFrom = from;
+        int chunkTo = Math.min(size, from + chunkSize);
+        int[] chunkStarts = starts;
+        tasks.add(ForkJoinTask.adapt(() -> {
+          Decoding chunk = new Decoding(bytes, chunkStarts[chunkFrom], end, columnar, null);
+          if (columnar) {
+            chunk.buffers = new PromResponseDeserializer.ColumnarBuffers();
+          }
+          for (int i = chunkFrom; i < chunkTo; i++) {
+            chunk.position = chunkStarts[i];
+            results[i] = columnar ? chunk.readColumnarResult() : chunk.readResult();
+          }
+        }));
+      }
+      parallelPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+      for (int i = 0; i < size; i++) {
+        PromResponse.Result result = results[i];
+        if (columnar && i > 0) {
+          // Share identical timestamps across the chunks too
+          PromResponse.ColumnarResult current = (PromResponse.ColumnarResult) result;
+          PromResponse.ColumnarResult previous = (PromResponse.ColumnarResult) results[i - 1];
+          if (current.getTimestamps() != previous.getTimestamps() &&
+              Arrays.equals(current.getTimestamps(), previous.getTimestamps())) {
+            result = new PromResponse.ColumnarResult(current.getMetric(), previous.getTimestamps(), current.getValues());
+            results[i] = result;
+          }
+        }
+        response.getData().addResult(result);
+      }
+    }
+
+    private PromResponse.VectrixResult readResult() {
+      Labels metric = Labels.empty();
+      PromResponse.ResultValue<PromResponse.VectrixResult> value = null;
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = null;
+      expect('{');
+      if (!tryConsume('}')) {
+        do {
+          readKey();
+          if (keyEquals(METRIC)) {
+            metric = readMetric();
+          } else if (keyEquals(VALUE)) {
+            value = readResultValue();
+          } else if (keyEquals(VALUES)) {
+            values = Lists.newArrayList();
+            expect('[');
+            if (!tryConsume(']')) {
+              do {
+                values.add(readResultValue());
+              } while (tryConsume(','));
+              expect(']');
+            }
+          } else {
+            // "histogram", "histograms", etc.
+            skipValue();
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      if (values != null) {
+        return new PromResponse.VectrixResult(metric, values);
+      }
+      if (value != null) {
+        return new PromResponse.VectrixResult(metric, value);
+      }
+      return new PromResponse.VectrixResult(metric, Lists.<PromResponse.ResultValue<PromResponse.VectrixResult>>newArrayList());
+    }
+
+    private PromResponse.ColumnarResult readColumnarResult() {
+      Labels metric = Labels.empty();
+      buffers.clear();
+      expect('{');
+      if (!tryConsume('}')) {
+        do {
+          readKey();
+          if (keyEquals(METRIC)) {
+            metric = readMetric();
+          } else if (keyEquals(VALUE)) {
+            readSample();
+          } else if (keyEquals(VALUES)) {
+            expect('[');
+            if (!tryConsume(']')) {
+              do {
+                readSample();
+              } while (tryConsume(','));
+              expect(']');
+            }
+          } else {
+            skipValue();
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      return new PromResponse.ColumnarResult(metric, buffers.timestamps(), buffers.values());
+    }
+
+    private Labels readMetric() {
+      expect('{');
+      if (tryConsume('}')) {
+        return Labels.empty();
+      }
+      Labels.Builder metric = Labels.builder();
+      do {
+        readKey();
+        String name = strings.get(bytes, keyStart, keyEnd);
+        skipWhitespace();
+        int valueStart = readStringBounds();
+        metric.add(name, strings.get(bytes, valueStart, position - 1));
+      } while (tryConsume(','));
+      expect('}');
+      return metric.build();
+    }
+
+    private PromResponse.ResultValue<PromResponse.VectrixResult> readResultValue() {
+      expect('[');
+      double epochDateTime = readNumber();
+      expect(',');
+      skipWhitespace();
+      int valueStart = readStringBounds();
+      int valueEnd = position - 1;
+      double doubleValue = PromValues.parseValue(ascii.wrap(bytes, valueStart, valueEnd), 0, valueEnd - valueStart);
+      expect(']');
+      // The value is kept as it is in the response, ASCII only so it is a plain copy of the bytes.
+      String value = new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+      return PromResponse.ResultValue.of(epochDateTime, value, doubleValue);
+    }
+
+    private void readSample() {
+      expect('[');
+      long timestamp = PromValues.toEpochMilli(readNumber());
+      expect(',');
+      double value = readValue();
+      expect(']');
+      buffers.add(timestamp, value);
+    }
+
+    /**
+     * Reads a {@code "<sample_value>"} without creating a {@link String}.
+     */
+    private double readValue() {
+      skipWhitespace();
+      int valueStart = readStringBounds();
+      int valueEnd = position - 1;
+      return PromValues.parseValue(ascii.wrap(bytes, valueStart, valueEnd), 0, valueEnd - valueStart);
+    }
+
+    /**
+     * Reads a {@code <unix_time>}, computing the common {@code 1681824540} and {@code 1681824540.123} from the digits
+     * exactly as {@link Double#parseDouble(String)} would.
+     */
+    private double readNumber() {
+      skipWhitespace();
+      int start = position;
+      long mantissa = 0;
+      int digits = 0;
+      int fractionDigits = 0;
+      byte b;
+      while (position < end && (b = bytes[position]) >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        digits++;
+        position++;
+      }
+      if (position < end && bytes[position] == '.') {
+        position++;
+        while (position < end && (b = bytes[position]) >= '0' && b <= '9') {
+          mantissa = mantissa * 10 + (b - '0');
+          digits++;
+          fractionDigits++;
+          position++;
+        }
+      }
+      if (digits == 0) {
+        throw Unexpected.INSTANCE;
+      }
+      if (position < end && ((b = bytes[position]) == 'e' || b == 'E' || b == '-' || b == '+') || digits > 15) {
+        // Rare, e.g. "1.681824540123e9", leave it to the JDK
+        while (position < end && ((b = bytes[position]) == 'e' || b == 'E' || b == '-' || b == '+' || b == '.' ||
+            (b >= '0' && b <= '9'))) {
+          position++;
+        }
+        return Double.parseDouble(new String(bytes, start, position - start, StandardCharsets.ISO_8859_1));
+      }
+      // Both are exactly representable, so the division is correctly rounded (Clinger's fast path)
+      return fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+    }
+
+    /**
+     * Reads an object key and the following colon, the key is between {@code keyStart} and {@code keyEnd}.
+     */
+    private void readKey() {
+      skipWhitespace();
+      keyStart = readStringBounds();
+      keyEnd = position - 1;
+      expect(':');
+    }
+
+    private String readString() {
+      skipWhitespace();
+      int start = readStringBounds();
+      return strings.get(bytes, start, position - 1);
+    }
+
+    /**
+     * Reads a string at the position, returns the start of its content, which ends 1 byte before the position.
+     * Escaped strings are not expected, nor is a string that is cut off by the end.
+     */
+    private int readStringBounds() {
+      if (position >= end || bytes[position] != '"') {
+        throw Unexpected.INSTANCE;
+      }
+      int start = ++position;
+      byte b;
+      while (position < end && (b = bytes[position]) != '"') {
+        if (b == '\\') {
+          throw Unexpected.INSTANCE;
+        }
+        position++;
+      }
+      if (position >= end) {
+        throw Unexpected.INSTANCE;
+      }
+      position++;
+      return start;
+    }
+
+    private boolean keyEquals(byte[] key) {
+      return Arrays.equals(bytes, keyStart, keyEnd, key, 0, key.length);
+    }
+
+    /**
+     * Skips a value, the bytes after the end are never read even if the value is cut off by it.
+     */
+    private void skipValue() {
+      skipWhitespace();
+      int depth = 0;
+      do {
+        if (position >= end) {
+          throw Unexpected.INSTANCE;
+        }
+        byte b = bytes[position];
+        if (b == '"') {
+          position++;
+          while (position < end && (b = bytes[position]) != '"') {
+            position += b == '\\' ? 2 : 1;
+          }
+          if (position >= end) {
+            throw Unexpected.INSTANCE;
+          }
+          position++;
+        } else if (b == '{' || b == '[') {
+          depth++;
+          position++;
+        } else if (b == '}' || b == ']') {
+          depth--;
+          position++;
+        } else if (depth == 0) {
+          // A number, true, false or null
+          while (position < end && (b = bytes[position]) != ',' && b != '}' && b != ']' && !isWhitespace(b)) {
+            position++;
+          }
+        } else {
+          position++;
+        }
+      } while (depth > 0);
+    }
+
+    private void expect(char c) {
+      skipWhitespace();
+      if (bytes[position] != c) {
+        throw Unexpected.INSTANCE;
+      }
+      position++;
+    }
+
+    private boolean tryConsume(char c) {
+      skipWhitespace();
+      if (position < end && bytes[position] == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void skipWhitespace() {
+      while (position < end && isWhitespace(bytes[position])) {
+        position++;
+      }
+      if (position >= end) {
+        throw Unexpected.INSTANCE;
+      }
+    }
+
+    private static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+  }
+
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+  /**
+   * Looks up the strings of a response by their bytes, so a label name or value repeated across the series is only
+   * created once. A fixed size table where a colliding string replaces the previous one, only ASCII strings are cached.
+   */
+  private static final class StringCache {
+    private static final int SIZE = 1 << 10;
+
+    private final String[] strings = new String[SIZE];
+
+    String get(byte[] bytes, int start, int end) {
+      int hash = 0;
+      boolean ascii = true;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + bytes[i];
+        ascii &= bytes[i] >= 0;
+      }
+      if (!ascii) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+      }
+      int index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+      String string = strings[index];
+      if (string != null && matches(string, bytes, start, end)) {
+        return string;
+      }
+      string = new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+      strings[index] = string;
+      return string;
+    }
+
+    private static boolean matches(String string, byte[] bytes, int start, int end) {
+      if (string.length() != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (string.charAt(i - start) != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A reusable {@link CharSequence} view of ASCII bytes, to parse numbers without creating a {@link String}.
+   */
+  private static final class AsciiSequence implements CharSequence {
+    private byte[] bytes;
+    private int start;
+    private int end;
+
+    AsciiSequence wrap(byte[] bytes, int start, int end) {
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+      return this;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (bytes[start + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int startIndex, int endIndex) {
+      return new String(bytes, start + startIndex, endIndex - startIndex, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+  }
+}
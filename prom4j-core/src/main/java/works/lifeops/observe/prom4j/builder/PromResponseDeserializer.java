@@ -14,33 +14,336 @@
 package works.lifeops.observe.prom4j.builder;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanProperty;
 import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
 import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
 
+/**
+ * Deserializes the response JSON of the Prometheus query API into a {@link PromResponse}.
+ *
+ * By default the response is deserialized in {@link Mode#STREAMING} mode, which consumes the {@link JsonParser} tokens
+ * directly and builds the results in a single pass. The {@link Mode#TREE} mode reads the whole response as a
+ * {@link JsonNode} first and is kept as a fallback.
+ *
+ * When the response is requested as {@code PromResponse<PromResponse.ColumnarResult>} the samples are parsed straight
+ * into the primitive arrays of {@link PromResponse.ColumnarResult}s, otherwise into {@link PromResponse.VectrixResult}s.
+ *
+ * @author Li Wan
+ */
 @Beta
 @SuppressWarnings({"serial", "unchecked"})
-public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromResponse.Result>> {
+public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromResponse.Result>>
+    implements ContextualDeserializer {
+  /**
+   * How the response JSON is consumed.
+   */
+  public static enum Mode {
+    /**
+     * Consumes the tokens from the {@link JsonParser} directly, the response is never materialized as a tree.
+     */
+    STREAMING,
+    /**
+     * Reads the response into a {@link JsonNode} tree with {@link JsonParser#readValueAsTree()} then walks the tree.
+     */
+    TREE;
+  }
+
+  private final Mode mode;
+  /**
+   * Whether the results are deserialized into {@link PromResponse.ColumnarResult}s.
+   */
+  private final boolean columnar;
+
   protected PromResponseDeserializer(Class<?> vc) {
+    this(vc, Mode.STREAMING);
+  }
+
+  protected PromResponseDeserializer(Class<?> vc, Mode mode) {
+    this(vc, mode, false);
+  }
+
+  private PromResponseDeserializer(Class<?> vc, Mode mode, boolean columnar) {
     super(vc);
+    this.mode = mode;
+    this.columnar = columnar;
   }
 
   public PromResponseDeserializer() {
-    this(null);
+    this(Mode.STREAMING);
+  }
+
+  public PromResponseDeserializer(Mode mode) {
+    this(null, mode);
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  @Override
+  public JsonDeserializer<?> createContextual(DeserializationContext context, BeanProperty property) {
+    JavaType type = context.getContextualType();
+    boolean columnar = type != null &&
+        type.containedTypeCount() == 1 &&
+        PromResponse.ColumnarResult.class.isAssignableFrom(type.containedType(0).getRawClass());
+    return columnar == this.columnar ? this : new PromResponseDeserializer(handledType(), mode, columnar);
   }
 
   @Override
   public PromResponse<PromResponse.Result> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
-    JsonNode responseNode = parser.readValueAsTree();
+    if (mode == Mode.TREE) {
+      return deserializeTree(parser.readValueAsTree(), context);
+    }
+    return deserializeStreaming(parser, context);
+  }
+
+  // Streaming
+
+  private PromResponse<PromResponse.Result> deserializeStreaming(JsonParser parser, DeserializationContext context) throws IOException {
+    // response (root)
+    PromResponse<PromResponse.Result> response = new PromResponse<PromResponse.Result>();
+
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.START_OBJECT) {
+      token = parser.nextToken();
+    }
+    for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "status":
+          // response.status
+          response.setStatus(PromResponse.Status.fromString(parser.getText()));
+          break;
+        case "data":
+          // response.data
+          readData(parser, context, response);
+          break;
+        default:
+          // "errorType", "error", "warnings", "infos", etc.
+          parser.skipChildren();
+      }
+    }
+
+    return response;
+  }
+
+  private void readData(JsonParser parser, DeserializationContext context, PromResponse<PromResponse.Result> response) throws IOException {
+    if (!parser.isExpectedStartObjectToken()) {
+      unexpectedToken(parser, context, PromResponse.Data.class);
+    }
+    PromResponse.ResultType resultType = null;
+    // Prometheus writes the "resultType" before the "result", when it does not the "result" is read as a tree and
+    // processed after the "resultType" is known.
+    JsonNode deferredResultsNode = null;
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "resultType":
+          // response.data.resultType
+          resultType = PromResponse.ResultType.fromString(parser.getText());
+          response.getData().setResultType(resultType);
+          break;
+        case "result":
+          // response.data.result (list)
+          if (resultType == null) {
+            deferredResultsNode = parser.readValueAsTree();
+          } else {
+            readResults(parser, context, resultType, response);
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (deferredResultsNode != null && resultType != null) {
+      readResultsFromNode(deferredResultsNode, context, resultType, response);
+    }
+  }
+
+  private void readResults(JsonParser parser, DeserializationContext context, PromResponse.ResultType resultType,
+                           PromResponse<PromResponse.Result> response) throws IOException {
+    if (!parser.isExpectedStartArrayToken()) {
+      unexpectedToken(parser, context, List.class);
+    }
+    if (resultType.is(PromResponse.ResultType.SCALAR) || resultType.is(PromResponse.ResultType.STRING)) {
+      // Fast path for the tiny [<unix_time>, "<value>"] responses
+      parser.nextToken();
+      double epochDateTime = parser.getValueAsDouble();
+      parser.nextToken();
+      PromResponse.Result result = resultType.is(PromResponse.ResultType.SCALAR) ?
+          new PromResponse.ScalarResult(epochDateTime, parseValue(parser)) :
+          new PromResponse.StringResult(epochDateTime, parser.getText());
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        parser.skipChildren();
+      }
+      response.getData().addResult(result);
+      return;
+    }
+    Labels.Interner interner = new Labels.Interner();
+    if (columnar) {
+      ColumnarBuffers buffers = new ColumnarBuffers();
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        response.getData().addResult(readColumnarResult(parser, context, interner, buffers));
+      }
+      return;
+    }
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      response.getData().addResult(readResult(parser, context, interner));
+    }
+  }
+
+  /**
+   * Reads one element of the "result" array into a {@link PromResponse.VectrixResult}, the parser must be at the
+   * element's {@link JsonToken#START_OBJECT}. The {@code context} and the {@code interner} are optional.
+   */
+  static PromResponse.VectrixResult readResult(JsonParser parser, DeserializationContext context,
+                                               Labels.Interner interner) throws IOException {
+    Labels metric = null;
+    PromResponse.ResultValue<PromResponse.VectrixResult> value = null;
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = null;
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "metric":
+          metric = readMetric(parser, context, interner);
+          break;
+        case "value":
+          value = readValue(parser, context);
+          break;
+        case "values":
+          if (!parser.isExpectedStartArrayToken()) {
+            unexpectedToken(parser, context, List.class);
+          }
+          values = Lists.newArrayList();
+          while (parser.nextToken() == JsonToken.START_ARRAY) {
+            values.add(readValue(parser, context));
+          }
+          break;
+        default:
+          // "histogram", "histograms", etc.
+          parser.skipChildren();
+      }
+    }
+    if (metric == null) {
+      metric = Labels.empty();
+    }
+    if (values != null) {
+      return new PromResponse.VectrixResult(metric, values);
+    }
+    if (value != null) {
+      return new PromResponse.VectrixResult(metric, value);
+    }
+    return new PromResponse.VectrixResult(metric, Lists.<PromResponse.ResultValue<PromResponse.VectrixResult>>newArrayList());
+  }
+
+  private PromResponse.ColumnarResult readColumnarResult(JsonParser parser, DeserializationContext context,
+                                                         Labels.Interner interner, ColumnarBuffers buffers) throws IOException {
+    Labels metric = null;
+    buffers.clear();
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "metric":
+          metric = readMetric(parser, context, interner);
+          break;
+        case "value":
+          readSample(parser, context, buffers);
+          break;
+        case "values":
+          if (!parser.isExpectedStartArrayToken()) {
+            unexpectedToken(parser, context, List.class);
+          }
+          while (parser.nextToken() == JsonToken.START_ARRAY) {
+            readSample(parser, context, buffers);
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (metric == null) {
+      metric = Labels.empty();
+    }
+    return new PromResponse.ColumnarResult(metric, buffers.timestamps(), buffers.values());
+  }
+
+  private void readSample(JsonParser parser, DeserializationContext context, ColumnarBuffers buffers) throws IOException {
+    if (!parser.isExpectedStartArrayToken()) {
+      unexpectedToken(parser, context, PromResponse.ResultValue.class);
+    }
+    parser.nextToken();
+    long timestamp = PromValues.toEpochMilli(parser.getValueAsDouble());
+    parser.nextToken();
+    double value = parseValue(parser);
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      parser.skipChildren();
+    }
+    buffers.add(timestamp, value);
+  }
+
+  static Labels readMetric(JsonParser parser, DeserializationContext context, Labels.Interner interner) throws IOException {
+    if (!parser.isExpectedStartObjectToken()) {
+      unexpectedToken(parser, context, Labels.class);
+    }
+    Labels.Builder metric = Labels.builder(interner);
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String labelName = parser.currentName();
+      parser.nextToken();
+      metric.add(labelName, parser.getText());
+    }
+    return metric.build();
+  }
+
+  /**
+   * Parses the current "<sample_value>" from the parser's text buffer rather than a {@link String} copied out of it,
+   * the buffer is wrapped in a {@link CharBuffer} of its own for each value.
+   */
+  private static double parseValue(JsonParser parser) throws IOException {
+    return PromValues.parseValue(
+        CharBuffer.wrap(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength()),
+        0, parser.getTextLength());
+  }
+
+  private static <R extends PromResponse.Result> PromResponse.ResultValue<R> readValue(JsonParser parser, DeserializationContext context) throws IOException {
+    if (!parser.isExpectedStartArrayToken()) {
+      unexpectedToken(parser, context, PromResponse.ResultValue.class);
+    }
+    parser.nextToken();
+    double epochDateTime = parser.getValueAsDouble();
+    parser.nextToken();
+    String value = parser.getText();
+    double doubleValue = PromValues.parseValue(value);
+    // Skips anything beyond the [<unix_time>, "<sample_value>"] pair
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      parser.skipChildren();
+    }
+    return PromResponse.ResultValue.of(epochDateTime, value, doubleValue);
+  }
+
+  // Tree
+
+  private PromResponse<PromResponse.Result> deserializeTree(JsonNode responseNode, DeserializationContext context) throws IOException {
     JsonNode statusNode = responseNode.get("status");
     JsonNode dataNode = responseNode.get("data");
     JsonNode resultTypeNode = dataNode.get("resultType");
@@ -58,10 +361,45 @@ public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromR
     response.getData().setResultType(resultType);
 
     // response.data.result (list)
+    readResultsFromNode(resultsNode, context, resultType, response);
+
+    return response;
+  }
+
+  private void readResultsFromNode(JsonNode resultsNode, DeserializationContext context, PromResponse.ResultType resultType,
+                                   PromResponse<PromResponse.Result> response) {
+    if (resultType.is(PromResponse.ResultType.SCALAR)) {
+      response.getData().addResult(new PromResponse.ScalarResult(
+          resultsNode.get(0).asDouble(), PromValues.parseValue(resultsNode.get(1).asText())));
+      return;
+    }
+    if (resultType.is(PromResponse.ResultType.STRING)) {
+      response.getData().addResult(new PromResponse.StringResult(resultsNode.get(0).asDouble(), resultsNode.get(1).asText()));
+      return;
+    }
+    Labels.Interner interner = new Labels.Interner();
+    if (columnar) {
+      ColumnarBuffers buffers = new ColumnarBuffers();
+      StreamSupport.stream(resultsNode.spliterator(), false)
+          .map(suppressIOException(resultNode -> {
+            Labels metric = getLabelsFromNode(resultNode.get("metric"), interner);
+            buffers.clear();
+            if (resultNode.has("values")) {
+              resultNode.get("values").forEach(valueNode -> buffers.add(
+                  PromValues.toEpochMilli(valueNode.get(0).asDouble()), PromValues.parseValue(valueNode.get(1).asText())));
+            } else {
+              JsonNode valueNode = resultNode.get("value");
+              buffers.add(PromValues.toEpochMilli(valueNode.get(0).asDouble()), PromValues.parseValue(valueNode.get(1).asText()));
+            }
+            return new PromResponse.ColumnarResult(metric, buffers.timestamps(), buffers.values());
+          }))
+          .forEach(result -> response.getData().addResult(result));
+      return;
+    }
     if (resultType.is(PromResponse.ResultType.VECTOR)) {
       StreamSupport.stream(resultsNode.spliterator(), false)
           .map(suppressIOException(resultNode -> {
-            Map<String, String> metric = context.readTreeAsValue(resultNode.get("metric"), Map.class);
+            Labels metric = getLabelsFromNode(resultNode.get("metric"), interner);
             PromResponse.ResultValue<PromResponse.VectrixResult> value = getValueFromNode(resultNode.get("value"));
             return new PromResponse.VectrixResult(metric, value);
           }))
@@ -70,7 +408,7 @@ public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromR
     if (resultType.is(PromResponse.ResultType.MATRIX)) {
       StreamSupport.stream(resultsNode.spliterator(), false)
           .map(suppressIOException(resultNode -> {
-            Map<String, String> metric = context.readTreeAsValue(resultNode.get("metric"), Map.class);
+            Labels metric = getLabelsFromNode(resultNode.get("metric"), interner);
             JsonNode valuesNode = resultNode.get("values");
             List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = StreamSupport.stream(valuesNode.spliterator(), false)
                 .map(this::<PromResponse.VectrixResult>getValueFromNode)
@@ -79,8 +417,6 @@ public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromR
           }))
           .forEach(result -> response.getData().addResult(result));
     }
-
-    return response;
   }
 
   /**
@@ -127,7 +463,63 @@ public class PromResponseDeserializer extends StdDeserializer<PromResponse<PromR
     };
   }
 
+  private static void unexpectedToken(JsonParser parser, DeserializationContext context, Class<?> type) throws IOException {
+    if (context != null) {
+      context.handleUnexpectedToken(type, parser);
+      return;
+    }
+    throw MismatchedInputException.from(parser, type,
+        "Unexpected token (" + parser.currentToken() + ") for " + type.getSimpleName());
+  }
+
+  static Labels getLabelsFromNode(JsonNode labelsNode, Labels.Interner interner) {
+    if (labelsNode == null) {
+      return Labels.empty();
+    }
+    Labels.Builder labels = Labels.builder(interner);
+    labelsNode.fields().forEachRemaining(field -> labels.add(field.getKey(), field.getValue().asText()));
+    return labels.build();
+  }
+
   private <R extends PromResponse.Result> PromResponse.ResultValue<R> getValueFromNode(JsonNode valueNode) {
     return PromResponse.ResultValue.of(valueNode.get(0).asDouble(), valueNode.get(1).asText());
   }
+
+  /**
+   * Growable scratch arrays reused across the results of one response. The timestamps of a result are shared with the
+   * previous result when they are identical, which is the case for the series of a step-aligned range query.
+   */
+  static final class ColumnarBuffers {
+    private long[] timestamps = new long[64];
+    private double[] values = new double[64];
+    private int size;
+    private long[] sharedTimestamps;
+
+    void clear() {
+      size = 0;
+    }
+
+    void add(long timestamp, double value) {
+      if (size == values.length) {
+        timestamps = Arrays.copyOf(timestamps, size << 1);
+        values = Arrays.copyOf(values, size << 1);
+      }
+      timestamps[size] = timestamp;
+      values[size] = value;
+      size++;
+    }
+
+    long[] timestamps() {
+      if (sharedTimestamps == null ||
+          sharedTimestamps.length != size ||
+          !Arrays.equals(sharedTimestamps, 0, size, timestamps, 0, size)) {
+        sharedTimestamps = Arrays.copyOf(timestamps, size);
+      }
+      return sharedTimestamps;
+    }
+
+    double[] values() {
+      return Arrays.copyOf(values, size);
+    }
+  }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.annotations.Beta;
+
+/**
+ * Iterates the label sets of a series metadata response ({@code GET /api/v1/series}) while they are being parsed,
+ * instead of collecting them into a {@link PromMetadata.Series} first. Only the label set at hand is held in memory, so
+ * stop iterating (and {@link #close()}) at any point to terminate early.
+ *
+ * @author Li Wan
+ */
+@Beta
+public final class PromSeriesIterator implements Iterator<Labels>, Closeable {
+  public static PromSeriesIterator of(JsonFactory jsonFactory, InputStream inputStream) throws IOException {
+    return new PromSeriesIterator(jsonFactory.createParser(inputStream));
+  }
+
+  private final JsonParser parser;
+  private PromResponse.Status status;
+  private String errorType;
+  private String error;
+  private boolean positioned;
+  private boolean exhausted;
+  private Labels next;
+
+  /**
+   * Creates an iterator over a parser that is positioned before or at the start of the response.
+   */
+  public PromSeriesIterator(JsonParser parser) {
+    this.parser = parser;
+  }
+
+  /**
+   * Returns the "status" of the response, {@code null} when it has not been read yet.
+   */
+  public PromResponse.Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Returns whether there is another label set, throwing a {@link PromQueryException} at the end of a response of
+   * {@code "status":"error"}.
+   */
+  @Override
+  public boolean hasNext() {
+    if (next != null) {
+      return true;
+    }
+    if (exhausted) {
+      return false;
+    }
+    try {
+      if (!positioned) {
+        positioned = true;
+        if (!toData()) {
+          return end();
+        }
+      }
+      if (parser.isClosed()) {
+        exhausted = true;
+        return false;
+      }
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        // The fields after the "data", if any
+        readFields();
+        return end();
+      }
+      next = PromResponseDeserializer.readMetric(parser, null, null);
+      return true;
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  @Override
+  public Labels next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Labels labels = next;
+    next = null;
+    return labels;
+  }
+
+  /**
+   * Returns a sequential {@link Stream} of the remaining label sets, closing the stream closes this iterator.
+   */
+  public Stream<Labels> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(() -> {
+          try {
+            close();
+          } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+          }
+        });
+  }
+
+  @Override
+  public void close() throws IOException {
+    parser.close();
+  }
+
+  private boolean end() {
+    exhausted = true;
+    if (status == PromResponse.Status.ERROR) {
+      throw new PromQueryException(errorType, error);
+    }
+    return false;
+  }
+
+  /**
+   * Moves the parser to the start of the "data" array, reading the "status" on the way.
+   */
+  private boolean toData() throws IOException {
+    JsonToken token = parser.currentToken() == null ? parser.nextToken() : parser.currentToken();
+    if (token != JsonToken.START_OBJECT) {
+      return false;
+    }
+    return readFields();
+  }
+
+  /**
+   * Reads the fields of the response up to the start of the "data" array, returning whether it is there, or to the
+   * end of the response.
+   */
+  private boolean readFields() throws IOException {
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      token = parser.nextToken();
+      if ("status".equals(fieldName)) {
+        status = PromResponse.Status.fromString(parser.getText());
+      } else if ("errorType".equals(fieldName)) {
+        errorType = parser.getText();
+      } else if ("error".equals(fieldName)) {
+        error = parser.getText();
+      } else if ("data".equals(fieldName) && token == JsonToken.START_ARRAY) {
+        return true;
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
+
+/**
+ * Parses a response of the Prometheus API that arrives in chunks with Jackson's non-blocking parser, and hands out the
+ * elements of its array (e.g. "data.result") as soon as each element is complete. Only the tokens of the element
+ * being received are buffered, so the memory is bounded by one element rather than the whole response.
+ *
+ * Feed the chunks in order with {@link #feed(byte[], int, int)} then call {@link #endOfInput()}. Not thread-safe.
+ *
+ * @param <T> the type of the array elements.
+ * @author Li Wan
+ */
+@Beta
+public abstract class PromStreamParser<T> implements Closeable {
+  /**
+   * Creates a parser handing out each element of the "data.result" of a Vector or Matrix response.
+   */
+  public static PromStreamParser<PromResponse.VectrixResult> results(ObjectCodec codec) throws IOException {
+    return new PromStreamParser<PromResponse.VectrixResult>(codec) {
+      @Override
+      protected boolean isElementArray(JsonStreamContext arrayContext) {
+        // root -> {"data": -> {"result": -> [
+        JsonStreamContext dataContext = arrayContext.getParent();
+        return dataContext.inObject() &&
+            "result".equals(dataContext.getCurrentName()) &&
+            dataContext.getParent().inObject() &&
+            "data".equals(dataContext.getParent().getCurrentName()) &&
+            dataContext.getParent().getParent().inRoot();
+      }
+
+      @Override
+      protected PromResponse.VectrixResult readElement(JsonParser parser) throws IOException {
+        // The "result" of a Scalar or String response is not a list of series
+        if (!parser.isExpectedStartObjectToken()) {
+          return null;
+        }
+        return PromResponseDeserializer.readResult(parser, null, null);
+      }
+    };
+  }
+
+  /**
+   * Creates a parser handing out each label set in the "data" of a series metadata response.
+   */
+  public static PromStreamParser<Labels> series(ObjectCodec codec) throws IOException {
+    return new PromStreamParser<Labels>(codec) {
+      @Override
+      protected boolean isElementArray(JsonStreamContext arrayContext) {
+        // root -> {"data": -> [
+        JsonStreamContext rootContext = arrayContext.getParent();
+        return rootContext.inObject() &&
+            "data".equals(rootContext.getCurrentName()) &&
+            rootContext.getParent().inRoot();
+      }
+
+      @Override
+      protected Labels readElement(JsonParser parser) throws IOException {
+        return PromResponseDeserializer.readMetric(parser, null, null);
+      }
+    };
+  }
+
+  private final ObjectCodec codec;
+  private final JsonParser parser;
+  private final ByteArrayFeeder feeder;
+  private TokenBuffer element;
+  private int elementDepth;
+  private PromResponse.Status status;
+  private String errorType;
+  private String error;
+
+  protected PromStreamParser(ObjectCodec codec) throws IOException {
+    this.codec = codec;
+    this.parser = codec.getFactory().createNonBlockingByteArrayParser();
+    this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+  }
+
+  /**
+   * Whether the given array context is the one whose elements are to be handed out.
+   */
+  protected abstract boolean isElementArray(JsonStreamContext arrayContext);
+
+  /**
+   * Reads a complete element, the parser is positioned at the first token of the element. Returns {@code null} to
+   * skip the element.
+   */
+  protected abstract T readElement(JsonParser parser) throws IOException;
+
+  /**
+   * Feeds the next chunk of the response and returns the elements completed by it, if any. The chunk is fully
+   * consumed when this method returns.
+   */
+  public List<T> feed(byte[] bytes, int offset, int length) throws IOException {
+    feeder.feedInput(bytes, offset, offset + length);
+    return parse();
+  }
+
+  public List<T> feed(byte[] bytes) throws IOException {
+    return feed(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Signals the end of the response and returns the remaining elements, if any. Fails if the response is incomplete,
+   * and throws a {@link PromQueryException} if it is of {@code "status":"error"}.
+   */
+  public List<T> endOfInput() throws IOException {
+    feeder.endOfInput();
+    List<T> elements = parse();
+    if (parser.getParsingContext() != null && !parser.getParsingContext().inRoot()) {
+      throw new IOException("The response ended unexpectedly.");
+    }
+    if (status == PromResponse.Status.ERROR) {
+      throw new PromQueryException(errorType, error);
+    }
+    return elements;
+  }
+
+  /**
+   * Returns the "status" of the response, {@code null} when it has not been received yet.
+   */
+  public PromResponse.Status getStatus() {
+    return status;
+  }
+
+  @Override
+  public void close() throws IOException {
+    parser.close();
+  }
+
+  private List<T> parse() throws IOException {
+    List<T> elements = null;
+    for (JsonToken token = parser.nextToken(); token != null && token != JsonToken.NOT_AVAILABLE;
+         token = parser.nextToken()) {
+      if (element != null) {
+        // Within an element
+        element.copyCurrentEvent(parser);
+        if (token.isStructStart()) {
+          elementDepth++;
+        } else if (token.isStructEnd() && --elementDepth == 0) {
+          elements = add(elements, readElement(element));
+          element = null;
+        }
+        continue;
+      }
+      JsonStreamContext context = parser.getParsingContext();
+      JsonStreamContext parentContext = token.isStructStart() ? context.getParent() : context;
+      if (token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT && parentContext.inArray() &&
+          isElementArray(parentContext)) {
+        // Start of an element
+        element = new TokenBuffer(parser);
+        element.copyCurrentEvent(parser);
+        if (token.isStructStart()) {
+          elementDepth = 1;
+        } else {
+          elements = add(elements, readElement(element));
+          element = null;
+        }
+        continue;
+      }
+      if (token == JsonToken.VALUE_STRING && context.inObject() && context.getParent().inRoot()) {
+        switch (context.getCurrentName()) {
+          case "status":
+            status = PromResponse.Status.fromString(parser.getText());
+            break;
+          case "errorType":
+            errorType = parser.getText();
+            break;
+          case "error":
+            error = parser.getText();
+            break;
+          default:
+            // "warnings", "infos", etc. are arrays
+        }
+      }
+    }
+    return elements == null ? Collections.emptyList() : elements;
+  }
+
+  private List<T> add(List<T> elements, T element) {
+    if (element == null) {
+      return elements;
+    }
+    List<T> result = elements == null ? Lists.newArrayList() : elements;
+    result.add(element);
+    return result;
+  }
+
+  private T readElement(TokenBuffer element) throws IOException {
+    try (JsonParser elementParser = element.asParser(codec)) {
+      elementParser.nextToken();
+      return readElement(elementParser);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.math.BigDecimal;
+
+/**
+ * Sample value and timestamp utilities. Prometheus encodes a sample as {@code [<unix_time>, "<sample_value>"]} where
+ * the value is a string so that {@code NaN}, {@code +Inf} and {@code -Inf} can be represented.
+ *
+ * @author Li Wan
+ */
+public final class PromValues {
+  private PromValues() {}
+
+  // Exactly representable powers of ten, see parseValue(CharSequence, int, int).
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+  // The largest integer below which every integer is exactly representable as a double, i.e. 2^53.
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  /**
+   * Parses a sample value as encoded by Prometheus, which includes {@code "NaN"}, {@code "+Inf"} and {@code "-Inf"}.
+   */
+  public static double parseValue(String value) {
+    return parseValue(value, 0, value.length());
+  }
+
+  /**
+   * Parses a sample value within the given range of characters, e.g. straight from a parser's text buffer.
+   *
+   * The special values are matched without exceptions, and the common short decimals (up to 15 significant digits,
+   * absolute exponent up to 22) are computed exactly with a single multiplication or division of two exactly representable
+   * doubles (Clinger's fast path). Anything else, e.g. {@code "1.7976931348623157e+308"}, falls back to
+   * {@link Double#parseDouble(String)}, which also throws {@link NumberFormatException} on a malformed value.
+   */
+  public static double parseValue(CharSequence value, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    if (length == 0) {
+      throw new NumberFormatException("Empty sample value.");
+    }
+    boolean negative = false;
+    char c = value.charAt(i);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      i++;
+    }
+    if (end - i == 3) {
+      if (regionMatches(value, i, "Inf")) {
+        return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+      }
+      if (i == offset && regionMatches(value, i, "NaN")) {
+        return Double.NaN;
+      }
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean anyDigit = false;
+    // Integral part
+    for (; i < end && (c = value.charAt(i)) >= '0' && c <= '9'; i++) {
+      anyDigit = true;
+      if (digits > 0 || c != '0') {
+        if (digits < 19) {
+          mantissa = mantissa * 10 + (c - '0');
+        } else {
+          exponent++;
+        }
+        digits++;
+      }
+    }
+    // Fraction part
+    if (i < end && value.charAt(i) == '.') {
+      for (i++; i < end && (c = value.charAt(i)) >= '0' && c <= '9'; i++) {
+        anyDigit = true;
+        if (digits > 0 || c != '0') {
+          if (digits < 19) {
+            mantissa = mantissa * 10 + (c - '0');
+            exponent--;
+          }
+          digits++;
+        } else {
+          exponent--;
+        }
+      }
+    }
+    // Exponent part
+    if (anyDigit && i < end && ((c = value.charAt(i)) == 'e' || c == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && ((c = value.charAt(i)) == '-' || c == '+')) {
+        negativeExponent = c == '-';
+        i++;
+      }
+      int explicitExponent = 0;
+      int exponentStart = i;
+      for (; i < end && (c = value.charAt(i)) >= '0' && c <= '9'; i++) {
+        if (explicitExponent < 10000) {
+          explicitExponent = explicitExponent * 10 + (c - '0');
+        }
+      }
+      if (i == exponentStart) {
+        anyDigit = false; // Malformed, let Double.parseDouble() report it
+      }
+      exponent += negativeExponent ? -explicitExponent : explicitExponent;
+    }
+
+    if (anyDigit && i == end && digits <= 15 && mantissa < MAX_EXACT_MANTISSA) {
+      double result;
+      if (mantissa == 0) {
+        result = 0d;
+      } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+        result = mantissa * POWERS_OF_TEN[exponent];
+      } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+        result = mantissa / POWERS_OF_TEN[-exponent];
+      } else {
+        return Double.parseDouble(value.subSequence(offset, end).toString());
+      }
+      return negative ? -result : result;
+    }
+    return Double.parseDouble(value.subSequence(offset, end).toString());
+  }
+
+  private static boolean regionMatches(CharSequence value, int offset, String expected) {
+    for (int i = 0; i < expected.length(); i++) {
+      if (value.charAt(offset + i) != expected.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Formats a sample value the way Prometheus does, e.g. {@code 10} as {@code "10"} rather than {@code "10.0"}.
+   */
+  public static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (value == Double.POSITIVE_INFINITY) {
+      return "+Inf";
+    }
+    if (value == Double.NEGATIVE_INFINITY) {
+      return "-Inf";
+    }
+    if (value == (long) value && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * Converts a Prometheus {@code <unix_time>}, seconds with a millisecond precision fraction, to epoch milliseconds.
+   */
+  public static long toEpochMilli(double epochDateTime) {
+    return Math.round(epochDateTime * 1000);
+  }
+
+  /**
+   * Converts epoch milliseconds back to a Prometheus {@code <unix_time>}.
+   */
+  public static double toEpochDateTime(long epochMilli) {
+    return epochMilli / 1000d;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Declares a typed result of a metric, from which the prom4j-processor generates a record and a
+ * {@link PromMetricDecoder}. The annotated type must be an interface of no-argument methods:
+ * <ul>
+ *     <li>{@code String <label>()} for each label to be kept, named after the label, e.g. {@code job()}.</li>
+ *     <li>{@code double value()} for the sample value.</li>
+ *     <li>{@code long timestamp()} for the sample timestamp in epoch milliseconds.</li>
+ * </ul>
+ * For an interface {@code GoThreads} the generated types are the {@code GoThreadsRecord} record and the
+ * {@code GoThreadsDecoder}, in the same package and prefixed with the enclosing types of a nested interface, e.g.
+ * {@code Metrics_GoThreadsDecoder}. The decoder only reads the declared labels, the others are skipped while parsing.
+ * <pre>{@code
+ * @PromMetric("go_threads")
+ * interface GoThreads {
+ *   String job();
+ *   String instance();
+ *   double value();
+ * }
+ * }</pre>
+ *
+ * @author Li Wan
+ */
+@Beta
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface PromMetric {
+  /**
+   * The name of the metric.
+   */
+  String value();
+}
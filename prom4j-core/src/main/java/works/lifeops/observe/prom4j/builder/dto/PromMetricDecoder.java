@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
+
+import works.lifeops.observe.prom4j.builder.Labels;
+import works.lifeops.observe.prom4j.builder.PromQueryException;
+import works.lifeops.observe.prom4j.builder.PromResponse;
+import works.lifeops.observe.prom4j.builder.PromValues;
+
+/**
+ * Decodes a query response straight into the typed results of a {@link PromMetric}, one per sample: a Vector
+ * response gives one per series, a Matrix response one per sample of each series. Subclasses are generated by the
+ * prom4j-processor, they tell the declared labels apart and create the results; the labels that are not declared are
+ * skipped without their values being read. The series of another metric than {@link PromMetric#value()} are skipped,
+ * those without a {@code __name__}, e.g. of {@code rate(...)}, are taken as the metric. A response of
+ * {@code "status":"error"} throws a {@link PromQueryException}, a scalar or a string, which has no series, a
+ * {@link JsonParseException}.
+ *
+ * Thread-safe, the state of a decoding is local to it.
+ *
+ * @param <T> the {@link PromMetric} annotated interface.
+ * @author Li Wan
+ */
+@Beta
+public abstract class PromMetricDecoder<T> {
+  /**
+   * Returns the generated decoder of a {@link PromMetric} annotated interface.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> PromMetricDecoder<T> of(Class<T> metricType) {
+    String packageName = metricType.getPackageName();
+    String simpleName = metricType.getName().substring(packageName.isEmpty() ? 0 : packageName.length() + 1);
+    String decoderName = (packageName.isEmpty() ? "" : packageName + ".") + simpleName.replace('$', '_') + "Decoder";
+    try {
+      return (PromMetricDecoder<T>) Class.forName(decoderName, true, metricType.getClassLoader())
+          .getField("INSTANCE")
+          .get(null);
+    } catch (ReflectiveOperationException roe) {
+      throw new IllegalArgumentException("No generated decoder for " + metricType.getName() + ", is it annotated "
+          + "with @PromMetric and the prom4j-processor on the annotation processor path?", roe);
+    }
+  }
+
+  private final String metricName;
+  private final int labelCount;
+
+  protected PromMetricDecoder(String metricName, int labelCount) {
+    this.metricName = metricName;
+    this.labelCount = labelCount;
+  }
+
+  /**
+   * Returns the name of the metric declared by {@link PromMetric#value()}.
+   */
+  public String getMetricName() {
+    return metricName;
+  }
+
+  /**
+   * Returns the index of a declared label, or -1 to skip the label.
+   */
+  protected abstract int labelIndex(String labelName);
+
+  /**
+   * Creates a result of a sample, {@code labels} are indexed by {@link #labelIndex(String)}, a label that the series
+   * does not have is {@code null}.
+   */
+  protected abstract T create(String[] labels, long timestamp, double value);
+
+  public List<T> decode(JsonFactory jsonFactory, InputStream inputStream) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+      return decode(parser);
+    }
+  }
+
+  /**
+   * Decodes the response, the parser must be before or at the start of it.
+   */
+  public List<T> decode(JsonParser parser) throws IOException {
+    List<T> results = Lists.newArrayList();
+    PromResponse.Status status = null;
+    String errorType = null;
+    String error = null;
+    JsonToken token = parser.currentToken() == null ? parser.nextToken() : parser.currentToken();
+    expect(parser, token, JsonToken.START_OBJECT);
+    for (token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      token = parser.nextToken();
+      switch (fieldName) {
+        case "status":
+          status = PromResponse.Status.fromString(parser.getText());
+          break;
+        case "errorType":
+          errorType = parser.getText();
+          break;
+        case "error":
+          error = parser.getText();
+          break;
+        case "data":
+          readData(parser, token, results);
+          break;
+        default:
+          // "warnings", "infos", etc.
+          parser.skipChildren();
+      }
+    }
+    if (status == PromResponse.Status.ERROR) {
+      throw new PromQueryException(errorType, error);
+    }
+    return results;
+  }
+
+  private void readData(JsonParser parser, JsonToken token, List<T> results) throws IOException {
+    expect(parser, token, JsonToken.START_OBJECT);
+    for (token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      token = parser.nextToken();
+      if (!"result".equals(fieldName)) {
+        parser.skipChildren();
+        continue;
+      }
+      expect(parser, token, JsonToken.START_ARRAY);
+      Series series = new Series(labelCount);
+      for (token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+        // A scalar or a string result is an array of a sample rather than of series
+        expect(parser, token, JsonToken.START_OBJECT);
+        readSeries(parser, series, results);
+      }
+    }
+  }
+
+  private void readSeries(JsonParser parser, Series series, List<T> results) throws IOException {
+    series.clear();
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      token = parser.nextToken();
+      switch (fieldName) {
+        case "metric":
+          expect(parser, token, JsonToken.START_OBJECT);
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String labelName = parser.currentName();
+            int index = labelIndex(labelName);
+            parser.nextToken();
+            if (index >= 0) {
+              series.labels[index] = series.interner.intern(parser.getText());
+            }
+            if (labelName.equals("__name__") && !metricName.isEmpty() && !metricName.equals(parser.getText())) {
+              series.otherMetric = true;
+            }
+          }
+          break;
+        case "value":
+          readSample(parser, token, series);
+          break;
+        case "values":
+          expect(parser, token, JsonToken.START_ARRAY);
+          for (token = parser.nextToken(); token == JsonToken.START_ARRAY; token = parser.nextToken()) {
+            readSample(parser, token, series);
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (series.otherMetric) {
+      return;
+    }
+    // The results are created once the labels are known regardless of the order of the fields
+    for (int i = 0; i < series.size; i++) {
+      results.add(create(series.labels, series.timestamps[i], series.values[i]));
+    }
+  }
+
+  private static void readSample(JsonParser parser, JsonToken token, Series series) throws IOException {
+    expect(parser, token, JsonToken.START_ARRAY);
+    parser.nextToken();
+    long timestamp = PromValues.toEpochMilli(parser.getValueAsDouble());
+    parser.nextToken();
+    double value = PromValues.parseValue(parser.getText());
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      parser.skipChildren();
+    }
+    series.add(timestamp, value);
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+    if (actual != expected) {
+      throw new JsonParseException(parser, "Expected " + expected + " in a Prometheus query response but got " + actual);
+    }
+  }
+
+  /**
+   * The labels and samples of the series at hand, reused across the series of a response.
+   */
+  private static final class Series {
+    private final Labels.Interner interner = new Labels.Interner();
+    private final String[] labels;
+    private long[] timestamps = new long[16];
+    private double[] values = new double[16];
+    private int size;
+    private boolean otherMetric;
+
+    Series(int labelCount) {
+      this.labels = new String[labelCount];
+    }
+
+    void clear() {
+      Arrays.fill(labels, null);
+      size = 0;
+      otherMetric = false;
+    }
+
+    void add(long timestamp, double value) {
+      if (size == values.length) {
+        timestamps = Arrays.copyOf(timestamps, size << 1);
+        values = Arrays.copyOf(values, size << 1);
+      }
+      timestamps[size] = timestamp;
+      values[size] = value;
+      size++;
+    }
+  }
+}
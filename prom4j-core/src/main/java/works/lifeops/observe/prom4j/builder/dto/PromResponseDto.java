@@ -13,10 +13,12 @@
  */
 package works.lifeops.observe.prom4j.builder.dto;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+import works.lifeops.observe.prom4j.builder.Labels;
 import works.lifeops.observe.prom4j.builder.PromResponse;
 
 /**
@@ -66,4 +68,118 @@ public abstract class PromResponseDto {
       return PromResponseMapper.INSTANCE.matrixResultToDto(values.get(0).getResult().toMatrixResult());
     }
   }
+
+  // Views
+
+  /**
+   * A read-only view of a {@link PromResponse.VectrixResult} with the properties of a {@link VectrixResultDto}. The
+   * label map and the samples are the result's own rather than copies, so creating a view does not depend on the
+   * number of samples. The setters throw {@link UnsupportedOperationException}.
+   */
+  public static final class VectrixResultView extends PromResponseDto {
+    private final PromResponse.VectrixResult result;
+
+    VectrixResultView(PromResponse.VectrixResult result) {
+      this.result = Objects.requireNonNull(result);
+    }
+
+    @Override
+    public String getName() {
+      return result.getMetric().get(Labels.METRIC_NAME);
+    }
+
+    @Override
+    public Map<String, String> getLabels() {
+      return unmodifiable(result.getMetric());
+    }
+
+    public PromResponse.ResultValue<PromResponse.VectrixResult> getValue() {
+      return result.getValue();
+    }
+
+    public List<PromResponse.ResultValue<PromResponse.VectrixResult>> getValues() {
+      return Collections.unmodifiableList(result.getValues());
+    }
+
+    @Override
+    public void setName(String name) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setLabels(Map<String, String> labels) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      return object instanceof VectrixResultView && result.equals(((VectrixResultView) object).result);
+    }
+
+    @Override
+    public int hashCode() {
+      return result.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "PromResponseDto.VectrixResultView(result=" + result + ")";
+    }
+  }
+
+  /**
+   * A read-only view of a {@link PromResponse.ColumnarResult} with the properties of a {@link MatrixResultDto}. The
+   * {@link PromResponse.ResultValue}s are created on access from the primitive samples.
+   */
+  public static final class ColumnarResultView extends PromResponseDto {
+    private final PromResponse.ColumnarResult result;
+
+    ColumnarResultView(PromResponse.ColumnarResult result) {
+      this.result = Objects.requireNonNull(result);
+    }
+
+    @Override
+    public String getName() {
+      return result.getMetric().get(Labels.METRIC_NAME);
+    }
+
+    @Override
+    public Map<String, String> getLabels() {
+      return unmodifiable(result.getMetric());
+    }
+
+    public List<PromResponse.ResultValue<PromResponse.ColumnarResult>> getValues() {
+      return result.getResultValues();
+    }
+
+    @Override
+    public void setName(String name) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setLabels(Map<String, String> labels) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      return object instanceof ColumnarResultView && result.equals(((ColumnarResultView) object).result);
+    }
+
+    @Override
+    public int hashCode() {
+      return result.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "PromResponseDto.ColumnarResultView(result=" + result + ")";
+    }
+  }
+
+  static Map<String, String> unmodifiable(Map<String, String> metric) {
+    // Labels is already immutable
+    return metric instanceof Labels ? metric : Collections.unmodifiableMap(metric);
+  }
 }
@@ -71,4 +71,26 @@ public interface PromResponseMapper {
         .map(this::vectrixResultToDto)
         .collect(Collectors.toList());
   }
+
+  // Views, sharing the samples and labels of the results instead of copying them
+
+  default PromResponseDto.VectrixResultView vectrixResultToView(PromResponse.VectrixResult result) {
+    return new PromResponseDto.VectrixResultView(result);
+  }
+
+  default List<PromResponseDto.VectrixResultView> vectrixResponseToView(PromResponse<PromResponse.VectrixResult> response) {
+    return response.getData().getResult().stream()
+        .map(this::vectrixResultToView)
+        .collect(Collectors.toList());
+  }
+
+  default PromResponseDto.ColumnarResultView columnarResultToView(PromResponse.ColumnarResult result) {
+    return new PromResponseDto.ColumnarResultView(result);
+  }
+
+  default List<PromResponseDto.ColumnarResultView> columnarResponseToView(PromResponse<PromResponse.ColumnarResult> response) {
+    return response.getData().getResult().stream()
+        .map(this::columnarResultToView)
+        .collect(Collectors.toList());
+  }
 }
@@ -13,9 +13,12 @@
  */
 package works.lifeops.observe.prom4j.builder.dto;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
+import works.lifeops.observe.prom4j.builder.Labels;
 import works.lifeops.observe.prom4j.builder.PromResponse;
 
 /**
@@ -37,8 +40,8 @@ public abstract class PromResult {
    */
   @SuppressWarnings("rawtypes")
   public static final class Sample extends PromResponse.ResultValue {
-    protected Sample(double epochDateTime, String value) {
-      super(epochDateTime, value);
+    protected Sample(double epochDateTime, String value, double doubleValue) {
+      super(epochDateTime, value, doubleValue);
     }
   }
 
@@ -61,4 +64,138 @@ public abstract class PromResult {
   public static final class TimeSeriesResult extends PromResult {
     private List<PromResult.Sample> samples;
   }
+
+  // Views
+
+  /**
+   * A read-only view of a {@link PromResponse.VectrixResult} of an instant query with the properties of a
+   * {@link SampleResult}, sharing the label map and the sample of the result. The setters throw
+   * {@link UnsupportedOperationException}.
+   */
+  public static final class SampleResultView extends PromResult {
+    private final PromResponse.VectrixResult result;
+
+    SampleResultView(PromResponse.VectrixResult result) {
+      this.result = Objects.requireNonNull(result);
+    }
+
+    @Override
+    public String getName() {
+      return result.getMetric().get(Labels.METRIC_NAME);
+    }
+
+    @Override
+    public String getJob() {
+      return result.getMetric().get("job");
+    }
+
+    @Override
+    public Map<String, String> getLabels() {
+      return PromResponseDto.unmodifiable(result.getMetric());
+    }
+
+    /**
+     * Returns the value, or the first of the values, of the result, {@code null} for a series without samples as the
+     * sample of a mapped {@link SampleResult} is.
+     */
+    public PromResponse.ResultValue<PromResponse.VectrixResult> getSample() {
+      if (result.getValue() != null) {
+        return result.getValue();
+      }
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = result.getValues();
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void setName(String name) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setJob(String job) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setLabels(Map<String, String> labels) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      return object instanceof SampleResultView && result.equals(((SampleResultView) object).result);
+    }
+
+    @Override
+    public int hashCode() {
+      return result.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "PromResult.SampleResultView(result=" + result + ")";
+    }
+  }
+
+  /**
+   * A read-only view of a {@link PromResponse.VectrixResult} of a range query with the properties of a
+   * {@link TimeSeriesResult}, sharing the label map and the samples of the result. The setters throw
+   * {@link UnsupportedOperationException}.
+   */
+  public static final class TimeSeriesResultView extends PromResult {
+    private final PromResponse.VectrixResult result;
+
+    TimeSeriesResultView(PromResponse.VectrixResult result) {
+      this.result = Objects.requireNonNull(result);
+    }
+
+    @Override
+    public String getName() {
+      return result.getMetric().get(Labels.METRIC_NAME);
+    }
+
+    @Override
+    public String getJob() {
+      return result.getMetric().get("job");
+    }
+
+    @Override
+    public Map<String, String> getLabels() {
+      return PromResponseDto.unmodifiable(result.getMetric());
+    }
+
+    public List<PromResponse.ResultValue<PromResponse.VectrixResult>> getSamples() {
+      return Collections.unmodifiableList(result.getValues());
+    }
+
+    @Override
+    public void setName(String name) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setJob(String job) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public void setLabels(Map<String, String> labels) {
+      throw new UnsupportedOperationException("A view is read-only.");
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      return object instanceof TimeSeriesResultView && result.equals(((TimeSeriesResultView) object).result);
+    }
+
+    @Override
+    public int hashCode() {
+      return result.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "PromResult.TimeSeriesResultView(result=" + result + ")";
+    }
+  }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.jsontype.TypeDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleDeserializers;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.type.CollectionType;
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
+
+import works.lifeops.observe.prom4j.builder.Labels;
+import works.lifeops.observe.prom4j.builder.PromQueryException;
+import works.lifeops.observe.prom4j.builder.PromResponse;
+import works.lifeops.observe.prom4j.builder.PromValues;
+
+/**
+ * Deserializes a query response straight into a {@code List<PromResult.SampleResult>} or a
+ * {@code List<PromResult.TimeSeriesResult>}, without a {@link PromResponse} in between to be mapped by the
+ * {@link PromResultMapper}. The "name", "job" and "labels" are filled as the "metric" is read. A scalar or a string
+ * is read as a single result without labels, the value of a string being {@link Double#NaN}. A response of
+ * {@code "status":"error"} throws a {@link PromQueryException}.
+ *
+ * A {@link PromResult.Sample} read this way has no {@link PromResult.Sample#getResult() result}. Read with a
+ * {@link #resultsMapper(ObjectMapper)}, since a deserializer of a {@link List} depends on its content type.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromResultDeserializer<PR extends PromResult> extends StdDeserializer<List<PR>> {
+  private static final long serialVersionUID = 1L;
+  private final Class<PR> resultClass;
+
+  public PromResultDeserializer(Class<PR> resultClass) {
+    super(List.class);
+    this.resultClass = resultClass;
+  }
+
+  /**
+   * Copies the {@code objectMapper} into one that also reads the {@code List<PromResult.SampleResult>} and the
+   * {@code List<PromResult.TimeSeriesResult>} with {@link PromResultDeserializer}. Keep it to reading the results
+   * rather than registering the {@link Deserializers} with a mapper of the application, e.g. of its message
+   * converters, where they would take over every request body of such a list.
+   */
+  public static ObjectMapper resultsMapper(ObjectMapper objectMapper) {
+    SimpleModule module = new SimpleModule(PromResultDeserializer.class.getSimpleName());
+    module.setDeserializers(new Deserializers());
+    return objectMapper.copy().registerModule(module);
+  }
+
+  /**
+   * Finds the {@link PromResultDeserializer} for a {@link List} (or {@link java.util.Collection}) of
+   * {@link PromResult.SampleResult} or {@link PromResult.TimeSeriesResult}, and otherwise works like
+   * {@link SimpleDeserializers}. Set it as the deserializers of a {@link SimpleModule} before adding the other
+   * deserializers.
+   */
+  public static class Deserializers extends SimpleDeserializers {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public JsonDeserializer<?> findCollectionDeserializer(CollectionType type, DeserializationConfig config,
+                                                          BeanDescription beanDesc, TypeDeserializer elementTypeDeserializer,
+                                                          JsonDeserializer<?> elementDeserializer) throws JsonMappingException {
+      if (type.getRawClass().isAssignableFrom(List.class)) {
+        Class<?> contentClass = type.getContentType().getRawClass();
+        if (contentClass == PromResult.SampleResult.class) {
+          return new PromResultDeserializer<PromResult.SampleResult>(PromResult.SampleResult.class);
+        }
+        if (contentClass == PromResult.TimeSeriesResult.class) {
+          return new PromResultDeserializer<PromResult.TimeSeriesResult>(PromResult.TimeSeriesResult.class);
+        }
+      }
+      return super.findCollectionDeserializer(type, config, beanDesc, elementTypeDeserializer, elementDeserializer);
+    }
+  }
+
+  @Override
+  public List<PR> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+    List<PR> results = Lists.newArrayList();
+    PromResponse.Status status = null;
+    String errorType = null;
+    String error = null;
+    expect(parser, context, JsonToken.START_OBJECT);
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "status":
+          status = PromResponse.Status.fromString(parser.getText());
+          break;
+        case "errorType":
+          errorType = parser.getText();
+          break;
+        case "error":
+          error = parser.getText();
+          break;
+        case "data":
+          readData(parser, context, results);
+          break;
+        default:
+          // "warnings", "infos", etc.
+          parser.skipChildren();
+      }
+    }
+    if (status == PromResponse.Status.ERROR) {
+      throw new PromQueryException(errorType, error);
+    }
+    return results;
+  }
+
+  private void readData(JsonParser parser, DeserializationContext context, List<PR> results) throws IOException {
+    expect(parser, context, JsonToken.START_OBJECT);
+    PromResponse.ResultType resultType = null;
+    boolean seriesRead = false;
+    // The [<unix_time>, "<value>"] of a scalar or a string, whose value is parsed once the "resultType" is known
+    double epochDateTime = 0;
+    String value = null;
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "resultType":
+          resultType = PromResponse.ResultType.fromString(parser.getText());
+          break;
+        case "result":
+          expect(parser, context, JsonToken.START_ARRAY);
+          JsonToken element = parser.nextToken();
+          if (element == JsonToken.START_OBJECT || element == JsonToken.END_ARRAY) {
+            // A vector or a matrix, read alike but for the "value" or the "values" of each series
+            seriesRead = true;
+            Labels.Interner interner = new Labels.Interner();
+            for (; element == JsonToken.START_OBJECT; element = parser.nextToken()) {
+              results.add(readResult(parser, context, interner));
+            }
+          } else {
+            epochDateTime = parser.getValueAsDouble();
+            parser.nextToken();
+            value = parser.getText();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              parser.skipChildren();
+            }
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    boolean scalarOrString = resultType == PromResponse.ResultType.SCALAR ||
+        resultType == PromResponse.ResultType.STRING;
+    if ((seriesRead && scalarOrString) || (value != null && !scalarOrString)) {
+      context.reportInputMismatch(List.class, "The \"result\" does not match the \"resultType\" %s.", resultType);
+    }
+    if (value != null) {
+      double doubleValue = resultType == PromResponse.ResultType.STRING ? Double.NaN : PromValues.parseValue(value);
+      PromResult.Sample sample = new PromResult.Sample(epochDateTime, value, doubleValue);
+      results.add(newResult(Labels.empty(), Lists.newArrayList(sample)));
+    }
+  }
+
+  private PR readResult(JsonParser parser, DeserializationContext context, Labels.Interner interner) throws IOException {
+    List<PromResult.Sample> samples = Lists.newArrayList();
+    Labels metric = Labels.empty();
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String fieldName = parser.currentName();
+      parser.nextToken();
+      switch (fieldName) {
+        case "metric":
+          metric = readMetric(parser, context, interner);
+          break;
+        case "value":
+          samples.add(readSample(parser, context));
+          break;
+        case "values":
+          expect(parser, context, JsonToken.START_ARRAY);
+          while (parser.nextToken() == JsonToken.START_ARRAY) {
+            samples.add(readSample(parser, context));
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return newResult(metric, samples);
+  }
+
+  @SuppressWarnings("unchecked")
+  private PR newResult(Labels metric, List<PromResult.Sample> samples) {
+    PromResult result;
+    if (resultClass == PromResult.SampleResult.class) {
+      // The latest sample if a range query is read as samples
+      PromResult.SampleResult sampleResult = new PromResult.SampleResult();
+      sampleResult.setSample(samples.isEmpty() ? null : samples.get(samples.size() - 1));
+      result = sampleResult;
+    } else {
+      PromResult.TimeSeriesResult timeSeriesResult = new PromResult.TimeSeriesResult();
+      timeSeriesResult.setSamples(samples);
+      result = timeSeriesResult;
+    }
+    result.setName(metric.getMetricName());
+    result.setJob(metric.get("job"));
+    result.setLabels(metric);
+    return (PR) result;
+  }
+
+  private static Labels readMetric(JsonParser parser, DeserializationContext context, Labels.Interner interner)
+      throws IOException {
+    expect(parser, context, JsonToken.START_OBJECT);
+    Labels.Builder metric = Labels.builder(interner);
+    for (JsonToken token = parser.nextToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+      String labelName = parser.currentName();
+      parser.nextToken();
+      metric.add(labelName, parser.getText());
+    }
+    return metric.build();
+  }
+
+  private static PromResult.Sample readSample(JsonParser parser, DeserializationContext context) throws IOException {
+    expect(parser, context, JsonToken.START_ARRAY);
+    parser.nextToken();
+    double epochDateTime = parser.getValueAsDouble();
+    parser.nextToken();
+    String value = parser.getText();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      parser.skipChildren();
+    }
+    return new PromResult.Sample(epochDateTime, value, PromValues.parseValue(value));
+  }
+
+  private static void expect(JsonParser parser, DeserializationContext context, JsonToken token) throws IOException {
+    if (parser.currentToken() != token) {
+      context.reportWrongTokenException(List.class, token, "Unexpected token in a Prometheus query response.");
+    }
+  }
+}
@@ -30,7 +30,7 @@ public interface PromResultMapper {
   @SuppressWarnings("rawtypes")
   PromResult.Sample resultValueToSample(PromResponse.ResultValue resultValue);
 
-  @Mapping(expression = "java(arg0.getMetric().get(\"name\"))", target = "name")
+  @Mapping(expression = "java(arg0.getMetric().get(\"__name__\"))", target = "name")
   @Mapping(expression = "java(arg0.getMetric().get(\"job\"))", target = "job")
   @Mapping(source = "metric", target = "labels")
   @Mapping(source = "value", target = "sample")
@@ -43,7 +43,7 @@ public interface PromResultMapper {
         .collect(Collectors.toList());
   }
 
-  @Mapping(expression = "java(arg0.getMetric().get(\"name\"))", target="name")
+  @Mapping(expression = "java(arg0.getMetric().get(\"__name__\"))", target="name")
   @Mapping(expression = "java(arg0.getMetric().get(\"job\"))", target = "job")
   @Mapping(source = "metric", target = "labels")
   @Mapping(source = "values", target = "samples")
@@ -54,4 +54,26 @@ public interface PromResultMapper {
         .map(this::matrixResultToTimeSeriesResult)
         .collect(Collectors.toList());
   }
+
+  // Views, sharing the samples and labels of the results instead of copying them
+
+  default PromResult.SampleResultView vectrixResultToSampleView(PromResponse.VectrixResult result) {
+    return new PromResult.SampleResultView(result);
+  }
+
+  default List<PromResult.SampleResultView> vectrixResponseToSampleView(PromResponse<PromResponse.VectrixResult> response) {
+    return response.getData().getResult().stream()
+        .map(this::vectrixResultToSampleView)
+        .collect(Collectors.toList());
+  }
+
+  default PromResult.TimeSeriesResultView vectrixResultToTimeSeriesView(PromResponse.VectrixResult result) {
+    return new PromResult.TimeSeriesResultView(result);
+  }
+
+  default List<PromResult.TimeSeriesResultView> vectrixResponseToTimeSeriesView(PromResponse<PromResponse.VectrixResult> response) {
+    return response.getData().getResult().stream()
+        .map(this::vectrixResultToTimeSeriesView)
+        .collect(Collectors.toList());
+  }
 }
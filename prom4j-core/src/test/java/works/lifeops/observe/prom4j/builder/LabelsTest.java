@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Maps;
+
+public class LabelsTest {
+  @Test
+  @DisplayName("Labels are sorted and looked up by name")
+  public void sortedLookup() {
+    Labels labels = Labels.builder()
+        .add("job", "prometheus")
+        .add("instance", "localhost:9090")
+        .add("__name__", "go_threads")
+        .build();
+
+    Assertions.assertEquals(List.of("__name__", "instance", "job"), List.copyOf(labels.keySet()));
+    Assertions.assertEquals("go_threads", labels.getMetricName());
+    Assertions.assertEquals("prometheus", labels.get("job"));
+    Assertions.assertNull(labels.get("group"));
+    Assertions.assertNull(labels.get(1));
+    Assertions.assertTrue(labels.containsKey("instance"));
+  }
+
+  @Test
+  @DisplayName("Labels are equal to and hash as any other Map")
+  public void mapContract() {
+    Map<String, String> map = Maps.newHashMap();
+    map.put("__name__", "go_threads");
+    map.put("job", "prometheus");
+    Labels labels = Labels.of(map);
+
+    Assertions.assertEquals(map, labels);
+    Assertions.assertEquals(labels, map);
+    Assertions.assertEquals(map.hashCode(), labels.hashCode());
+    Assertions.assertEquals(labels, Labels.builder().add("job", "prometheus").add("__name__", "go_threads").build());
+    Assertions.assertNotEquals(labels, Labels.builder().add("job", "node").add("__name__", "go_threads").build());
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> labels.put("job", "node"));
+  }
+
+  @Test
+  @DisplayName("Duplicated label names keep the last value")
+  public void duplicates() {
+    Labels labels = Labels.builder()
+        .add("job", "node")
+        .add("instance", "localhost:9090")
+        .add("job", "prometheus")
+        .build();
+
+    Assertions.assertEquals(Map.of("instance", "localhost:9090", "job", "prometheus"), labels);
+  }
+
+  @Test
+  @DisplayName("Interner deduplicates label values across label sets")
+  public void interning() {
+    Labels.Interner interner = new Labels.Interner();
+    Labels first = Labels.builder(interner).add("job", new String("prometheus")).build();
+    Labels second = Labels.builder(interner).add("job", new String("prometheus")).build();
+
+    Assertions.assertSame(first.value(0), second.value(0));
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import static works.lifeops.observe.prom4j.builder.PromExpr.number;
+import static works.lifeops.observe.prom4j.builder.PromExpr.rate;
+import static works.lifeops.observe.prom4j.builder.PromExpr.selector;
+import static works.lifeops.observe.prom4j.builder.PromExpr.sum;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class PromExprParserTest {
+  @Test
+  @DisplayName("Parsing a rendered expression gives the same expression")
+  public void roundTrip() {
+    List<String> queries = List.of(
+        "go_threads",
+        "go_threads{job=\"prometheus\",instance=~\"localhost:.*\"}",
+        "{__name__!~\"go_.*\",job!=\"node\"}",
+        "go_threads[5m] offset 1h @ 1609746000",
+        "go_threads offset -5m @ end()",
+        "sum by (job) (rate(http_requests_total[5m]))",
+        "sum without () (go_threads)",
+        "topk(5, go_threads)",
+        "count_values(\"version\", build_info)",
+        "histogram_quantile(0.9, sum by (le) (rate(http_duration_bucket[5m])))",
+        "max_over_time(rate(go_gc_duration_seconds_count[5m])[30m:1m])",
+        "(a + b)[10m:]",
+        "(a + b) * c",
+        "a + b * c",
+        "a - (b - c)",
+        "a ^ b ^ c",
+        "(a ^ b) ^ c",
+        "-a * b",
+        "-(a + b)",
+        "-a ^ 2",
+        "a - -1",
+        "(a or b) and c",
+        "a / on (job) group_left (instance) b",
+        "a * ignoring (code) group_right b",
+        "a > bool 1",
+        "a and on () b unless c",
+        "vector(NaN) + Inf",
+        "label_replace(up, \"host\", \"$1\", \"instance\", \"(.*):.*\")",
+        "time() - process_start_time_seconds",
+        "(go_threads)");
+
+    for (String query : queries) {
+      PromExpr expr = PromExprParser.parse(query);
+      Assertions.assertEquals(query, expr.render(), "Rendered as parsed");
+      Assertions.assertEquals(expr, PromExprParser.parse(expr.render()), "Parsed as rendered: " + query);
+    }
+  }
+
+  @Test
+  @DisplayName("Parsing gives the expression composed with the builder")
+  public void model() {
+    PromExpr.Selector selector = PromQuery.builder()
+        .instant()
+        .metric("http_requests_total")
+        .label("job").is("api")
+        .toExpr();
+
+    Assertions.assertEquals(
+        sum(rate(selector.range("5m"))).by("instance").div(number(60)),
+        PromExprParser.parse("SUM(rate(http_requests_total{job='api'}[5m])) BY (instance) / 60"));
+    Assertions.assertEquals(
+        PromExpr.negate(number(1)),
+        PromExprParser.parse("-1"));
+    Assertions.assertEquals(
+        selector("go_threads").eq("path", "C:\\dir\n"),
+        PromExprParser.parse("go_threads{path=\"C:\\\\dir\\n\"}"));
+    Assertions.assertEquals(
+        selector("go_threads").eq("path", "C:\\dir"),
+        PromExprParser.parse("go_threads{path=`C:\\dir`}"));
+    Assertions.assertEquals(
+        PromExprParser.parse("a+b*c"),
+        PromExprParser.parse(" a  +  b * c # comment"));
+    Assertions.assertEquals(
+        number(255),
+        PromExprParser.parse("0xff"));
+  }
+
+  @Test
+  @DisplayName("Invalid PromQL is rejected with the position")
+  public void invalid() {
+    for (String query : List.of("", "go_threads{", "go_threads{job=prometheus}", "sum(go_threads", "go_threads[5m",
+                                "rate(x[5m])[5m]", "1 offset 5m", "a +", "a b", "go_threads{job=\"x}", "{}",
+                                "go_threads{job=\"\\08\"}", "go_threads{job=\"\\777\"}")) {
+      IllegalArgumentException iae = Assertions.assertThrows(IllegalArgumentException.class,
+          () -> PromExprParser.parse(query), query);
+      Assertions.assertTrue(iae.getMessage().contains("at position"), iae.getMessage());
+    }
+  }
+
+  @Test
+  @DisplayName("An expression nested too deep is rejected rather than overflowing the stack")
+  public void depth() {
+    int depth = PromExprParser.MAX_DEPTH;
+    String nested = "(".repeat(depth - 1) + "go_threads" + ")".repeat(depth - 1);
+    Assertions.assertEquals("go_threads", PromExprParser.parse(nested).canonical().render());
+    String chained = "go_threads" + " + go_threads".repeat(depth - 2);
+    Assertions.assertEquals(chained, PromExprParser.parse(chained).canonical().render());
+
+    for (String query : List.of("(" + nested + ")", chained + " + go_threads", "-".repeat(depth) + "1",
+                                "go_threads" + "[5m:]".repeat(depth))) {
+      IllegalArgumentException iae = Assertions.assertThrows(IllegalArgumentException.class,
+          () -> PromExprParser.parse(query));
+      Assertions.assertTrue(iae.getMessage().contains("nested deeper"), iae.getMessage());
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import static works.lifeops.observe.prom4j.builder.PromExpr.histogramQuantile;
+import static works.lifeops.observe.prom4j.builder.PromExpr.number;
+import static works.lifeops.observe.prom4j.builder.PromExpr.paren;
+import static works.lifeops.observe.prom4j.builder.PromExpr.rate;
+import static works.lifeops.observe.prom4j.builder.PromExpr.selector;
+import static works.lifeops.observe.prom4j.builder.PromExpr.sum;
+import static works.lifeops.observe.prom4j.builder.PromExpr.topk;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class PromExprTest {
+  @Test
+  @DisplayName("Selectors, range vectors and modifiers")
+  public void selectors() {
+    Assertions.assertEquals("go_threads", selector("go_threads").render());
+    Assertions.assertEquals("go_threads{job=\"prometheus\",instance=~\"localhost:.*\"}",
+        selector("go_threads").eq("job", "prometheus").re("instance", "localhost:.*").render());
+    Assertions.assertEquals("{__name__!~\"go_.*\"}", selector().nre("__name__", "go_.*").render());
+    Assertions.assertEquals("go_threads[5m] offset 1h @ 1609746000",
+        selector("go_threads").range("5m").offset("1h").at(1609746000L).render());
+    Assertions.assertEquals("go_threads{path=\"C:\\\\\\\"x\\\"\"}", selector("go_threads").eq("path", "C:\\\"x\"").render(),
+        "Label values are escaped");
+  }
+
+  @Test
+  @DisplayName("Functions, aggregations and subqueries")
+  public void functions() {
+    Assertions.assertEquals("sum by (job) (rate(http_requests_total[5m]))",
+        sum(rate(selector("http_requests_total").range("5m"))).by("job").render());
+    Assertions.assertEquals("topk(5, go_threads)", topk(5, selector("go_threads")).render());
+    Assertions.assertEquals("histogram_quantile(0.9, sum without (instance) (rate(http_duration_bucket[5m])))",
+        histogramQuantile(0.9, sum(rate(selector("http_duration_bucket").range("5m"))).without("instance")).render());
+    Assertions.assertEquals("max_over_time(rate(go_gc_duration_seconds_count[5m])[30m:1m])",
+        PromExpr.function("max_over_time", rate(selector("go_gc_duration_seconds_count").range("5m")).subquery("30m", "1m"))
+            .render());
+    Assertions.assertEquals("(a + b)[10m:]", selector("a").plus(selector("b")).subquery("10m", null).render());
+  }
+
+  @Test
+  @DisplayName("Binary operations are parenthesized by precedence")
+  public void binary() {
+    PromExpr a = selector("a");
+    PromExpr b = selector("b");
+    PromExpr c = selector("c");
+
+    Assertions.assertEquals("(a + b) * c", a.plus(b).times(c).render());
+    Assertions.assertEquals("a + b * c", a.plus(b.times(c)).render());
+    Assertions.assertEquals("a - b - c", a.minus(b).minus(c).render());
+    Assertions.assertEquals("a - (b - c)", a.minus(b.minus(c)).render());
+    Assertions.assertEquals("a ^ b ^ c", PromExpr.binary(a, PromExpr.Operator.POW, PromExpr.binary(b, PromExpr.Operator.POW, c)).render());
+    Assertions.assertEquals("(a ^ b) ^ c", PromExpr.binary(PromExpr.binary(a, PromExpr.Operator.POW, b), PromExpr.Operator.POW, c).render());
+    Assertions.assertEquals("(a or b) and c", a.or(b).and(c).render());
+    Assertions.assertEquals("(a + b)", paren(a.plus(b)).render());
+    Assertions.assertEquals("a / on (job) group_left (instance) b", a.div(b).on("job").groupLeft("instance").render());
+    Assertions.assertEquals("a > bool 1", PromExpr.binary(a, PromExpr.Operator.GTR, number(1)).bool().render());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> a.plus(b).bool());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> a.and(b).groupLeft());
+  }
+
+  @Test
+  @DisplayName("The estimated length fits the rendered expression")
+  public void estimateLength() {
+    PromExpr expr = sum(rate(selector("http_requests_total").eq("job", "api").range("5m").offset("1h"))).by("instance")
+        .div(sum(rate(selector("http_requests").range("5m"))).by("instance"))
+        .on("instance");
+
+    Assertions.assertTrue(expr.estimateLength() >= expr.render().length());
+  }
+
+  @Test
+  @DisplayName("Queries are built from expressions and the builder makes selectors")
+  public void queries() {
+    PromExpr.Selector selector = PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .label("job").is("prometheus")
+        .toExpr();
+    PromQuery.InstantQuery instantQuery = PromQuery.builder()
+        .instant()
+        .expr(sum(selector).by("instance"))
+        .time("2023-04-22T20:45:40+08:00")
+        .build();
+    PromQuery.RangeQuery rangeQuery = PromQuery.builder()
+        .range()
+        .expr(sum(rate(selector.range("5m"))))
+        .step(15)
+        .build();
+
+    Assertions.assertEquals("go_threads{job=\"prometheus\"}", selector.render());
+    Assertions.assertTrue(instantQuery.is(PromQuery.QueryType.INSTANT));
+    Assertions.assertEquals("sum by (instance) (go_threads{job=\"prometheus\"})", instantQuery.getQuery());
+    Assertions.assertEquals("sum(rate(go_threads{job=\"prometheus\"}[5m]))", rangeQuery.getQuery());
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> PromQuery.builder().instant().metric("go_threads").expr(selector).build());
+  }
+
+  @Test
+  @DisplayName("Canonical form of matchers, alternations, durations and parentheses")
+  public void canonical() {
+    Assertions.assertEquals("go_threads{instance=\"localhost:9090\",job=~\"eureka|prometheus\"}",
+        PromExpr.parse("{job=~\"prometheus|eureka\", __name__=\"go_threads\", instance=~\"localhost:9090\"}")
+            .canonical().render(), "Matchers are sorted, alternatives are sorted, literal regex is an equality");
+    Assertions.assertEquals("go_threads{job=~\"(b|a)|c\"}",
+        selector("go_threads").re("job", "c|(b|a)").canonical().render(), "Groups are left as they are");
+    Assertions.assertEquals("go_threads{job=~\"[|]x|a\"}",
+        selector("go_threads").re("job", "a|[|]x").canonical().render(), "Character classes are left as they are");
+    Assertions.assertEquals("go_threads{job=~\"b|(?i)a\"}",
+        selector("go_threads").re("job", "b|(?i)a").canonical().render(), "Flags apply to the alternatives after them");
+    Assertions.assertEquals("go_threads{job=~\"\\\\Qb|a\\\\E\"}",
+        selector("go_threads").re("job", "\\Qb|a\\E").canonical().render(), "Quoted alternations are left as they are");
+    Assertions.assertNotEquals(selector("go_threads").re("job", "b|(?i)a").canonical().render(),
+        selector("go_threads").re("job", "(?i)a|b").canonical().render(), "Different matches, different forms");
+    Assertions.assertEquals("go_threads{job=\"a\"}",
+        selector("go_threads").re("job", "a|a").canonical().render(), "Deduplicated into a literal, an equality");
+    Assertions.assertEquals("rate(go_threads[1m30s] offset 1h)[1d:1m]",
+        PromExpr.parse("rate(go_threads[90s] offset 60m)[24h:60s]").canonical().render(), "Durations are normalized");
+    Assertions.assertEquals("sum by (instance, job) (go_threads) / on (job) go_info",
+        PromExpr.parse("(sum by (job, instance) (go_threads)) / on (job) (go_info)").canonical().render(),
+        "Labels are sorted, redundant parentheses are removed");
+    Assertions.assertEquals("(a + b) * c", PromExpr.parse("((a + b)) * c").canonical().render(),
+        "Parentheses needed by the precedence are kept");
+    Assertions.assertEquals("a - b", PromExpr.parse("a - b").canonical().render(), "Operands are left in place");
+  }
+
+  @Test
+  public void canonicalDuration() {
+    Assertions.assertEquals("1m", PromExpr.canonicalDuration("60s"));
+    Assertions.assertEquals("1h", PromExpr.canonicalDuration("1h0m"));
+    Assertions.assertEquals("1w1d", PromExpr.canonicalDuration("8d"));
+    Assertions.assertEquals("1s500ms", PromExpr.canonicalDuration("1500ms"));
+    Assertions.assertEquals("0s", PromExpr.canonicalDuration("0m"));
+    Assertions.assertEquals("1.5m", PromExpr.canonicalDuration("1.5m"), "Not a duration, left as is");
+  }
+
+  @Test
+  @DisplayName("Restricting adds the matcher to each selector")
+  public void restrict() {
+    PromExpr.Matcher matcher = new PromExpr.Matcher("instance", PromExpr.MatchOperator.RE, "a|b");
+    PromExpr expr = PromExpr.parse("sum by (instance) (rate(go_gc_duration_seconds_count[5m])) / on (instance) "
+        + "max by (instance) (go_threads{job=\"api\"}) > 2");
+
+    Assertions.assertEquals("sum by (instance) (rate(go_gc_duration_seconds_count{instance=~\"a|b\"}[5m])) / on "
+        + "(instance) max by (instance) (go_threads{job=\"api\",instance=~\"a|b\"}) > 2",
+        expr.restrict(matcher).render());
+    Assertions.assertEquals(List.of("go_gc_duration_seconds_count", "go_threads"),
+        expr.selectors().stream().map(PromExpr.Selector::getMetric).collect(Collectors.toList()));
+    Assertions.assertEquals("2", PromExpr.number(2).restrict(matcher).render(), "Nothing to restrict");
+  }
+
+  @Test
+  @DisplayName("Partitionable expressions keep the series of each value of the label apart")
+  public void isPartitionableBy() {
+    Assertions.assertTrue(PromExpr.parse("rate(go_threads[5m]) * 2").isPartitionableBy("instance"));
+    Assertions.assertTrue(PromExpr.parse("sum by (job, instance) (go_threads)").isPartitionableBy("instance"));
+    Assertions.assertTrue(PromExpr.parse("sum without (pod) (go_threads)").isPartitionableBy("instance"));
+    Assertions.assertTrue(PromExpr.parse("go_threads / go_info").isPartitionableBy("instance"));
+    Assertions.assertTrue(PromExpr.parse("go_threads / on (instance) go_info").isPartitionableBy("instance"));
+
+    Assertions.assertFalse(PromExpr.parse("sum(go_threads)").isPartitionableBy("instance"), "Across all");
+    Assertions.assertFalse(PromExpr.parse("sum by (job) (go_threads)").isPartitionableBy("instance"), "Across");
+    Assertions.assertFalse(PromExpr.parse("sum without (instance) (go_threads)").isPartitionableBy("instance"));
+    Assertions.assertFalse(PromExpr.parse("go_threads / on (job) go_info").isPartitionableBy("instance"));
+    Assertions.assertFalse(PromExpr.parse("go_threads / ignoring (instance) go_info").isPartitionableBy("instance"));
+    Assertions.assertFalse(PromExpr.parse("absent(go_threads)").isPartitionableBy("instance"));
+    Assertions.assertFalse(PromExpr.parse("go_threads or vector(1)").isPartitionableBy("instance"));
+    Assertions.assertFalse(PromExpr.parse("label_replace(go_threads, \"instance\", \"$1\", \"pod\", \"(.*)\")")
+        .isPartitionableBy("instance"));
+  }
+  @Test
+  @DisplayName("Expressions at the start or the end of the range depend on the range")
+  public void isAnchoredToRange() {
+    Assertions.assertFalse(PromExpr.parse("rate(go_threads[5m] @ 1609746000)").isAnchoredToRange());
+    Assertions.assertFalse(PromExpr.parse("max_over_time(go_threads[30m:1m])").isAnchoredToRange());
+    Assertions.assertTrue(PromExpr.parse("go_threads - go_threads @ start()").isAnchoredToRange());
+    Assertions.assertTrue(PromExpr.parse("sum(rate(go_threads[5m] @ end()))").isAnchoredToRange());
+    Assertions.assertTrue(PromExpr.parse("max_over_time(rate(go_threads[5m])[30m:1m] @ end())").isAnchoredToRange());
+    Assertions.assertTrue(PromExpr.parse("topk(scalar(go_threads @ end()), go_threads)").isAnchoredToRange());
+  }
+
+}
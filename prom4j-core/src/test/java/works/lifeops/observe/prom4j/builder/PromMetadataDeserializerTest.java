@@ -17,6 +17,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -71,4 +73,36 @@ public class PromMetadataDeserializerTest {
     );
     Assertions.assertEquals(data, seriesMetadata.getData());
   }
+
+  @Test
+  public void testSeriesIterator() throws IOException {
+    try (PromSeriesIterator iterator = PromSeriesIterator.of(objectMapper.getFactory(), metadataSeries)) {
+      Assertions.assertTrue(iterator.hasNext());
+      Assertions.assertEquals(PromResponse.Status.SUCCESS, iterator.getStatus());
+      Assertions.assertEquals(
+          Map.of("__name__", "go_threads", "group", "production", "instance", "localhost:8080", "job", "node"),
+          iterator.next());
+      Assertions.assertEquals("prometheus", iterator.next().get("job"));
+      Assertions.assertFalse(iterator.hasNext());
+    }
+  }
+
+  @Test
+  public void testSeriesIteratorError() throws IOException {
+    InputStream error = Thread.currentThread().getContextClassLoader().getResourceAsStream("query_error.json");
+    try (PromSeriesIterator iterator = PromSeriesIterator.of(objectMapper.getFactory(), error)) {
+      PromQueryException exception = Assertions.assertThrows(PromQueryException.class, iterator::hasNext);
+      Assertions.assertEquals("bad_data", exception.getErrorType());
+      Assertions.assertEquals(PromResponse.Status.ERROR, iterator.getStatus());
+    }
+  }
+
+  @Test
+  public void testSeriesStreamEarlyTermination() throws IOException {
+    PromSeriesIterator iterator = PromSeriesIterator.of(objectMapper.getFactory(), metadataSeries);
+    try (Stream<Labels> series = iterator.stream()) {
+      Assertions.assertEquals(List.of("node"), series.map(labels -> labels.get("job")).limit(1).collect(Collectors.toList()));
+    }
+    Assertions.assertFalse(iterator.hasNext(), "Closing the stream closes the iterator");
+  }
 }
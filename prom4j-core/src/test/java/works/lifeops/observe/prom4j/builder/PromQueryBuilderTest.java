@@ -284,4 +284,103 @@ public class PromQueryBuilderTest {
 
     Assertions.assertEquals("irate(go_threads[15m])", aggregatedQuery.getQuery(), "Aggregation operator is properly applied.");
   }
+
+  @Test
+  @DisplayName("The query and parameters are rendered once")
+  public void memoized() {
+    PromQuery query = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label(label("job").is("prometheus"))
+        .start("2023-04-22T20:45:40+08:00")
+        .step(15)
+        .build();
+
+    Assertions.assertEquals("go_threads{job=\"prometheus\"}", query.getQuery(), "Query is properly rendered");
+    Assertions.assertSame(query.getQuery(), query.getQuery(), "Query is memoized");
+    Assertions.assertEquals(List.of("query", "start", "step"), List.copyOf(query.getParameters().keySet()), "Parameters are in order");
+    Assertions.assertEquals(List.of("15"), query.getParameters().get("step"), "Step is properly rendered");
+    Assertions.assertSame(query.getParameters(), query.getParameters(), "Parameters are memoized");
+  }
+
+  @Test
+  @DisplayName("Semantically identical queries have the same fingerprint")
+  public void fingerprint() {
+    PromQuery query = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label("job").is(value("prometheus").or("eureka"))
+        .label("instance").is("localhost:9090")
+        .start("2023-04-22T20:45:40+08:00")
+        .step(15)
+        .build();
+    PromQuery reordered = PromQuery.builder()
+        .range()
+        .expr(PromExpr.parse("go_threads{ instance = \"localhost:9090\", job =~ \"eureka|prometheus\" }"))
+        .start("1682167540")
+        .step(15)
+        .build();
+    PromQuery otherStep = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label("instance").is("localhost:9090")
+        .label("job").is(value("eureka").or("prometheus"))
+        .start("1682167540")
+        .step(30)
+        .build();
+
+    Assertions.assertEquals("go_threads{instance=\"localhost:9090\",job=~\"eureka|prometheus\"}", query.getCanonicalQuery());
+    Assertions.assertEquals(query.getFingerprint(), reordered.getFingerprint(), "Fingerprints are equal");
+    Assertions.assertEquals(128, query.getFingerprint().bits(), "Fingerprint is 128-bit");
+    Assertions.assertNotEquals(query.getFingerprint(), otherStep.getFingerprint(), "Parameters are fingerprinted");
+    Assertions.assertSame(query.getFingerprint(), query.getFingerprint(), "Fingerprint is memoized");
+  }
+
+  @Test
+  public void fingerprintDuration() {
+    PromQuery query = PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .duration().s(90)
+        .build();
+    PromQuery instant = PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .duration("1m30s")
+        .build();
+    PromQuery range = PromQuery.builder()
+        .range()
+        .expr(PromExpr.selector("go_threads").range("90s"))
+        .build();
+
+    Assertions.assertEquals("go_threads[1m30s]", query.getCanonicalQuery(), "Duration is normalized");
+    Assertions.assertEquals(query.getFingerprint(), instant.getFingerprint(), "Fingerprints are equal");
+    Assertions.assertNotEquals(query.getFingerprint(), range.getFingerprint(), "Query type is fingerprinted");
+  }
+
+  @Test
+  public void fingerprintMetadata() {
+    PromQuery query = PromQuery.builder().series().matches("go_threads", "{job=~\"b|a\"}").build();
+    PromQuery reordered = PromQuery.builder().series().matches("{job=~\"a|b\"}", "go_threads").build();
+
+    Assertions.assertEquals(query.getFingerprint(), reordered.getFingerprint(), "Matches are fingerprinted in any order");
+  }
+
+  @Test
+  public void withRange() {
+    PromQuery.RangeQuery query = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .start("2023-04-22T20:45:40+08:00")
+        .end("2023-04-22T21:45:40+08:00")
+        .step(15)
+        .build();
+    PromQuery.RangeQuery tail = query.withRange(1682170000L, 1682171140L);
+
+    Assertions.assertSame(query.getQuery(), tail.getQuery(), "Query is not rendered again");
+    Assertions.assertEquals(Optional.of("1682170000"), tail.start(), "Start is replaced");
+    Assertions.assertEquals(Optional.of("1682171140"), tail.end(), "End is replaced");
+    Assertions.assertEquals(Optional.of(15), tail.step(), "Step is kept");
+    Assertions.assertEquals(query.getCanonicalQuery(), tail.getCanonicalQuery());
+  }
 }
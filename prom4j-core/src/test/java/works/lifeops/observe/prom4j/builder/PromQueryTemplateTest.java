@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class PromQueryTemplateTest {
+  @Test
+  @DisplayName("A bound template renders the same query as the builder")
+  public void instant() {
+    PromQueryTemplate<PromQuery.InstantQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .label("job").is(PromQueryTemplate.placeholder("job"))
+        .label("instance").is(PromQueryTemplate.regexPlaceholder("instances")));
+    PromQuery.InstantQuery expected = PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .label("job").is("prometheus")
+        .label("instance").is(PromQuery.value("localhost:9090").or("localhost:9091"))
+        .time("2023-04-22T20:45:40+08:00")
+        .build();
+
+    PromQuery.InstantQuery query = template.bind()
+        .set("job", "prometheus")
+        .set("instances", "localhost:9090|localhost:9091")
+        .time("2023-04-22T20:45:40+08:00")
+        .build();
+
+    Assertions.assertEquals(List.of("job", "instances"), template.getPlaceholders());
+    Assertions.assertEquals("go_threads{job=\"${job}\",instance=~\"${instances}\"}", template.toString());
+    Assertions.assertEquals(expected.getQuery(), query.getQuery());
+    Assertions.assertEquals(expected.getParameters(), query.getParameters());
+  }
+
+  @Test
+  @DisplayName("The time parameters of the builder are the defaults")
+  public void range() {
+    PromQueryTemplate<PromQuery.RangeQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label("job").is(PromQueryTemplate.placeholder("job"))
+        .start("2023-04-22T20:45:40+08:00")
+        .step(15));
+
+    PromQuery.RangeQuery query = template.bind("prometheus");
+    Assertions.assertEquals("go_threads{job=\"prometheus\"}", query.getQuery());
+    Assertions.assertEquals(Optional.of("2023-04-22T20:45:40+08:00"), query.start());
+    Assertions.assertEquals(Optional.of(15), query.step());
+
+    query = template.bind()
+        .set("job", "node")
+        .end("2023-04-22T21:45:40+08:00")
+        .step(60)
+        .build();
+    Assertions.assertEquals("go_threads{job=\"node\"}", query.getQuery());
+    Assertions.assertEquals(Optional.of("2023-04-22T20:45:40+08:00"), query.start());
+    Assertions.assertEquals(Optional.of("2023-04-22T21:45:40+08:00"), query.end());
+    Assertions.assertEquals(Optional.of(60), query.step());
+  }
+
+  @Test
+  @DisplayName("Bound values are escaped")
+  public void escaping() {
+    PromQueryTemplate<PromQuery.InstantQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .label("job").is(PromQueryTemplate.placeholder("job")));
+
+    Assertions.assertEquals("go_threads{job=\"a\\\"b\\\\c\"}", template.bind("a\"b\\c").getQuery());
+  }
+
+  @Test
+  @DisplayName("The builder, the template and the expression escape a value alike")
+  public void escapingAgrees() {
+    String path = "C:\\dir\\\"x\"";
+    PromQuery.InstantQuery built = PromQuery.builder().instant().metric("m").label("path").is(path).build();
+    PromQuery.InstantQuery bound = PromQueryTemplate.compile(PromQuery.builder()
+        .instant()
+        .metric("m")
+        .label("path").is(PromQueryTemplate.placeholder("path"))).bind(path);
+
+    Assertions.assertEquals("m{path=\"C:\\\\dir\\\\\\\"x\\\"\"}", built.getQuery());
+    Assertions.assertEquals(built.getQuery(), bound.getQuery());
+    Assertions.assertEquals(built.getQuery(),
+        PromQuery.builder().instant().metric("m").label("path").is(path).toExpr().toString());
+    Assertions.assertEquals(built.getFingerprint(), bound.getFingerprint());
+  }
+
+  @Test
+  @DisplayName("A bound query has none of the placeholders of the template")
+  public void boundFields() {
+    PromQueryTemplate<PromQuery.RangeQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label("job").is(PromQueryTemplate.placeholder("job")));
+
+    PromQuery.RangeQuery query = template.bind("prometheus");
+    Assertions.assertNull(query.metric);
+    Assertions.assertNull(query.selector);
+    Assertions.assertEquals(Optional.empty(), query.expr());
+    Assertions.assertEquals("go_threads{job=\"prometheus\"}", query.withRange("0", "60").getQuery());
+  }
+
+  @Test
+  @DisplayName("Unbound and unknown placeholders are rejected")
+  public void invalidBindings() {
+    PromQueryTemplate<PromQuery.InstantQuery> template = PromQueryTemplate.compile(PromQuery.builder()
+        .instant()
+        .metric("go_threads")
+        .label("job").is(PromQueryTemplate.placeholder("job")));
+
+    Assertions.assertThrows(IllegalStateException.class, () -> template.bind().build());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> template.bind().set("instance", "localhost:9090"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> template.bind("prometheus", "node"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> PromQueryTemplate.compile(PromQuery.builder().series().match("go_threads")));
+  }
+}
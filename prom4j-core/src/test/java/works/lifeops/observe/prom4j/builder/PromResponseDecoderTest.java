@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+public class PromResponseDecoderTest {
+  private static final TypeReference<PromResponse<PromResponse.Result>> RESULT_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.Result>>() {};
+  private static final TypeReference<PromResponse<PromResponse.ColumnarResult>> COLUMNAR_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.ColumnarResult>>() {};
+
+  private static ObjectMapper objectMapper;
+  private static PromResponseDecoder decoder;
+
+  static {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer());
+
+    objectMapper = JsonMapper.builder()
+        .addModule(module)
+        .build();
+    decoder = new PromResponseDecoder(objectMapper);
+  }
+
+  private static byte[] resource(String name) throws IOException {
+    try (InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(name)) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  private static void assertSameAsJackson(byte[] bytes) throws IOException {
+    PromResponse<PromResponse.Result> expected = objectMapper.readValue(bytes, RESULT_TYPE_REF);
+    PromResponse<PromResponse.Result> actual = decoder.decode(bytes);
+
+    Assertions.assertEquals(expected.getStatus(), actual.getStatus());
+    Assertions.assertEquals(expected.getData().getResultType(), actual.getData().getResultType());
+    Assertions.assertEquals(expected.getData().getResult().toString(), actual.getData().getResult().toString());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "query_vector.json",
+      "query_vector_multiple.json",
+      "query_vector_heterogeneous.json",
+      "query_matrix.json",
+      "query_matrix_heterogeneous.json",
+      "query_scalar.json",
+      "query_string.json"})
+  @DisplayName("Decodes the same as the Jackson deserializer")
+  public void sameAsJackson(String resourceName) throws IOException {
+    assertSameAsJackson(resource(resourceName));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "query_vector.json",
+      "query_matrix.json",
+      "query_matrix_heterogeneous.json"})
+  @DisplayName("Decodes columnar results the same as the Jackson deserializer")
+  public void columnarSameAsJackson(String resourceName) throws IOException {
+    byte[] bytes = resource(resourceName);
+    PromResponse<PromResponse.ColumnarResult> expected = objectMapper.readValue(bytes, COLUMNAR_TYPE_REF);
+    PromResponse<PromResponse.ColumnarResult> actual = decoder.decodeColumnar(bytes);
+
+    Assertions.assertEquals(expected.getData().getResult(), actual.getData().getResult());
+  }
+
+  @Test
+  @DisplayName("Decodes compact responses with extra fields, special values and fractional timestamps")
+  public void compact() throws IOException {
+    String json = "{\"status\":\"success\",\"data\":{\"resultType\":\"matrix\",\"result\":[{\"metric\":{\"job\":\"a\","
+        + "\"__name__\":\"up\"},\"values\":[[1681824540.123,\"NaN\"],[1681824550.5,\"+Inf\"],[1681824560,\"1e+06\"]]},"
+        + "{\"metric\":{},\"values\":[]}],\"analysis\":{}},\"warnings\":[\"a \\\"quoted\\\" warning\"],\"infos\":[]}";
+
+    assertSameAsJackson(json.getBytes(StandardCharsets.UTF_8));
+    PromResponse<PromResponse.VectrixResult> response = decoder.decode(json.getBytes(StandardCharsets.UTF_8));
+    Assertions.assertEquals("up", ((Labels) response.getData().getResult().get(0).getMetric()).getMetricName());
+    Assertions.assertEquals(1681824540.123, response.getData().getResult().get(0).getValues().get(0).getEpochDateTime());
+    Assertions.assertEquals(1e6, response.getData().getResult().get(0).getValues().get(2).getDoubleValue());
+  }
+
+  @Test
+  @DisplayName("Falls back to Jackson on what it does not expect")
+  public void fallback() throws IOException {
+    // Escaped label value
+    assertSameAsJackson(("{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":[{\"metric\":"
+        + "{\"path\":\"C:\\\\tmp\"},\"value\":[1681824540,\"1\"]}]}}").getBytes(StandardCharsets.UTF_8));
+    // "result" before "resultType"
+    assertSameAsJackson(("{\"data\":{\"result\":[{\"metric\":{},\"value\":[1681824540,\"1\"]}],"
+        + "\"resultType\":\"vector\"},\"status\":\"success\"}").getBytes(StandardCharsets.UTF_8));
+    // Malformed responses fail the same way
+    byte[] truncated = "{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":[".getBytes(StandardCharsets.UTF_8);
+    Assertions.assertThrows(IOException.class, () -> decoder.decode(truncated));
+    // Cut off by the end in a string and in a skipped value, the bytes after the end are not read
+    byte[] bytes = ("{\"status\":\"success\",\"warnings\":[\"a\"],\"data\":{\"resultType\":\"vector\","
+        + "\"result\":[]}}").getBytes(StandardCharsets.UTF_8);
+    Assertions.assertThrows(IOException.class, () -> decoder.decode(bytes, 0, 14));
+    Assertions.assertThrows(IOException.class, () -> decoder.decode(bytes, 0, 34));
+  }
+
+  @Test
+  @DisplayName("Decodes heap and direct buffers")
+  public void byteBuffer() throws IOException {
+    byte[] bytes = resource("query_matrix.json");
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    ByteBuffer sliced = ByteBuffer.wrap(new byte[bytes.length + 10], 5, bytes.length).slice();
+    sliced.put(bytes).flip();
+
+    String expected = decoder.decode(bytes).getData().getResult().toString();
+    Assertions.assertEquals(expected, decoder.decode(direct).getData().getResult().toString());
+    Assertions.assertEquals(expected, decoder.decode(sliced).getData().getResult().toString());
+    Assertions.assertEquals(0, direct.position());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "query_vector.json",
+      "query_vector_multiple.json",
+      "query_matrix_heterogeneous.json",
+      "query_scalar.json"})
+  @DisplayName("Decodes in parallel the same as sequentially")
+  public void parallelSameAsSequential(String resourceName) throws IOException {
+    byte[] bytes = resource(resourceName);
+    PromResponseDecoder parallelDecoder = new PromResponseDecoder(objectMapper, 1, ForkJoinPool.commonPool());
+
+    PromResponse<PromResponse.Result> expected = decoder.decode(bytes);
+    PromResponse<PromResponse.Result> actual = parallelDecoder.decode(bytes);
+    Assertions.assertEquals(expected.getStatus(), actual.getStatus());
+    Assertions.assertEquals(expected.getData().getResult().toString(), actual.getData().getResult().toString());
+  }
+
+  @Test
+  @DisplayName("Decodes many series in parallel in their original order")
+  public void parallelOrder() throws IOException {
+    StringBuilder json = new StringBuilder("{\"status\":\"success\",\"data\":{\"resultType\":\"matrix\",\"result\":[");
+    for (int i = 0; i < 1000; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"metric\":{\"__name__\":\"up\",\"instance\":\"host-").append(i)
+          .append("\"},\"values\":[[1681824540,\"").append(i).append("\"],[1681824550,\"").append(i + 1).append("\"]]}");
+    }
+    byte[] bytes = json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      PromResponseDecoder parallelDecoder = new PromResponseDecoder(objectMapper, 1024, pool);
+
+      PromResponse<PromResponse.ColumnarResult> columnar = parallelDecoder.decodeColumnar(bytes);
+      Assertions.assertEquals(decoder.decodeColumnar(bytes).getData().getResult(), columnar.getData().getResult());
+      for (int i = 0; i < 1000; i++) {
+        PromResponse.ColumnarResult result = columnar.getData().getResult().get(i);
+        Assertions.assertEquals("host-" + i, result.getMetric().get("instance"));
+        Assertions.assertEquals(i + 1d, result.getValue(1));
+        Assertions.assertSame(columnar.getData().getResult().get(0).getTimestamps(), result.getTimestamps());
+      }
+      Assertions.assertEquals(decoder.decode(bytes).getData().getResult().toString(),
+          parallelDecoder.decode(bytes).getData().getResult().toString());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  @DisplayName("Falls back to Jackson on what it does not expect in parallel too")
+  public void parallelFallback() throws IOException {
+    PromResponseDecoder parallelDecoder = new PromResponseDecoder(objectMapper, 1, ForkJoinPool.commonPool());
+    byte[] bytes = ("{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":[{\"metric\":{},"
+        + "\"value\":[1681824540,\"1\"]},{\"metric\":{\"path\":\"C:\\\\tmp\"},\"value\":[1681824540,\"1\"]}]}}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    PromResponse<PromResponse.VectrixResult> response = parallelDecoder.decode(bytes);
+    Assertions.assertEquals("C:\\tmp", response.getData().getResult().get(1).getMetric().get("path"));
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+public class PromResponseDeserializerTest {
+  private static final TypeReference<PromResponse<PromResponse.VectrixResult>> VECTRIX_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.VectrixResult>>() {};
+  private static final TypeReference<PromResponse<PromResponse.ColumnarResult>> COLUMNAR_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.ColumnarResult>>() {};
+
+  private static ObjectMapper objectMapper(PromResponseDeserializer.Mode mode) {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer(mode));
+
+    return JsonMapper.builder()
+        .addModule(module)
+        .build();
+  }
+
+  private static InputStream resource(String name) {
+    return Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "query_vector.json",
+      "query_vector_multiple.json",
+      "query_vector_heterogeneous.json",
+      "query_matrix.json",
+      "query_matrix_heterogeneous.json"})
+  @DisplayName("Streaming and tree modes deserialize identically")
+  public void streamingEqualsTree(String resourceName) throws IOException {
+    PromResponse<PromResponse.VectrixResult> streamed = objectMapper(PromResponseDeserializer.Mode.STREAMING)
+        .readValue(resource(resourceName), VECTRIX_TYPE_REF);
+    PromResponse<PromResponse.VectrixResult> tree = objectMapper(PromResponseDeserializer.Mode.TREE)
+        .readValue(resource(resourceName), VECTRIX_TYPE_REF);
+
+    Assertions.assertEquals(tree.getStatus(), streamed.getStatus());
+    Assertions.assertEquals(tree.getData().getResultType(), streamed.getData().getResultType());
+    Assertions.assertEquals(tree.getData().getResult().size(), streamed.getData().getResult().size());
+    for (int i = 0; i < tree.getData().getResult().size(); i++) {
+      PromResponse.VectrixResult expected = tree.getData().getResult().get(i);
+      PromResponse.VectrixResult actual = streamed.getData().getResult().get(i);
+      Assertions.assertEquals(expected.getMetric(), actual.getMetric());
+      Assertions.assertEquals(expected.getValues().toString(), actual.getValues().toString());
+    }
+  }
+
+  @Test
+  @DisplayName("Streaming mode copes with \"result\" before \"resultType\" and unknown fields")
+  public void streamingOutOfOrder() throws IOException {
+    String json = "{\"data\":{\"result\":[{\"values\":[[1681824540,\"10\"],[1681824550,\"11\"]],"
+        + "\"metric\":{\"__name__\":\"go_threads\"}}],\"resultType\":\"matrix\"},"
+        + "\"warnings\":[\"w\"],\"status\":\"success\"}";
+
+    PromResponse<PromResponse.VectrixResult> response = objectMapper(PromResponseDeserializer.Mode.STREAMING)
+        .readValue(json, VECTRIX_TYPE_REF);
+
+    Assertions.assertEquals(PromResponse.Status.SUCCESS, response.getStatus());
+    Assertions.assertEquals(PromResponse.ResultType.MATRIX, response.getData().getResultType());
+    Assertions.assertEquals(Map.of("__name__", "go_threads"), response.getData().getResult().get(0).getMetric());
+    Assertions.assertEquals(2, response.getData().getResult().get(0).getValues().size());
+    Assertions.assertEquals("11", response.getData().getResult().get(0).getValues().get(1).getValue());
+    Assertions.assertEquals(11d, response.getData().getResult().get(0).getValues().get(1).getDoubleValue());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"STREAMING", "TREE"})
+  @DisplayName("Columnar results share step-aligned timestamps and expose ResultValue views")
+  public void columnar(PromResponseDeserializer.Mode mode) throws IOException {
+    PromResponse<PromResponse.ColumnarResult> columnar = objectMapper(mode)
+        .readValue(resource("query_matrix_heterogeneous.json"), COLUMNAR_TYPE_REF);
+    PromResponse<PromResponse.VectrixResult> vectrix = objectMapper(mode)
+        .readValue(resource("query_matrix_heterogeneous.json"), VECTRIX_TYPE_REF);
+
+    PromResponse.ColumnarResult first = columnar.getData().getResult().get(0);
+    PromResponse.ColumnarResult second = columnar.getData().getResult().get(1);
+    Assertions.assertEquals(3, first.size());
+    Assertions.assertEquals(1687863315000L, first.getTimestamp(1));
+    Assertions.assertEquals(22988944d, first.getValue(1));
+    Assertions.assertSame(first.getTimestamps(), second.getTimestamps(), "Step-aligned timestamps are shared");
+    Assertions.assertSame(first, first.getResultValues().get(0).getResult());
+    for (int i = 0; i < 2; i++) {
+      Assertions.assertEquals(
+          vectrix.getData().getResult().get(i).getValues().toString(),
+          columnar.getData().getResult().get(i).getResultValues().toString());
+    }
+  }
+
+  @Test
+  @DisplayName("The values of the columnar views are formatted from the doubles")
+  public void columnarNormalised() {
+    PromResponse.ColumnarResult result =
+        new PromResponse.ColumnarResult(Map.of(), new long[] {1000L, 2000L}, new double[] {1e6, Double.NaN});
+
+    Assertions.assertEquals("1000000", result.getResultValues().get(0).getValue());
+    Assertions.assertEquals("NaN", result.toVectrixResult().getValues().get(1).getValue());
+    Assertions.assertEquals(1e6, result.toVectrixResult().getValues().get(0).getDoubleValue());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"STREAMING", "TREE"})
+  @DisplayName("Scalar results are a primitive value and timestamp")
+  public void scalar(PromResponseDeserializer.Mode mode) throws IOException {
+    PromResponse<PromResponse.ScalarResult> response = objectMapper(mode)
+        .readValue(resource("query_scalar.json"), new TypeReference<PromResponse<PromResponse.ScalarResult>>() {});
+
+    Assertions.assertEquals(PromResponse.ResultType.SCALAR, response.getData().getResultType());
+    Assertions.assertEquals(1, response.getData().getResult().size());
+    PromResponse.ScalarResult scalar = response.getData().getResult().get(0);
+    Assertions.assertEquals(1687863310.123, scalar.getEpochDateTime());
+    Assertions.assertEquals(42.5, scalar.getValue());
+    Assertions.assertEquals(1687863310123L, scalar.getOffsetDateTime().toInstant().toEpochMilli());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"STREAMING", "TREE"})
+  @DisplayName("String results keep the value as is")
+  public void string(PromResponseDeserializer.Mode mode) throws IOException {
+    PromResponse<PromResponse.StringResult> response = objectMapper(mode)
+        .readValue(resource("query_string.json"), new TypeReference<PromResponse<PromResponse.StringResult>>() {});
+
+    Assertions.assertEquals(PromResponse.ResultType.STRING, response.getData().getResultType());
+    Assertions.assertEquals(1, response.getData().getResult().size());
+    Assertions.assertEquals("foo", response.getData().getResult().get(0).getValue());
+    Assertions.assertEquals(1687863310d, response.getData().getResult().get(0).getEpochDateTime());
+  }
+
+  @Test
+  @DisplayName("Special scalar values")
+  public void scalarSpecialValues() throws IOException {
+    String json = "{\"status\":\"success\",\"data\":{\"resultType\":\"scalar\",\"result\":[1681824540,\"+Inf\"]}}";
+
+    PromResponse<PromResponse.ScalarResult> response = objectMapper(PromResponseDeserializer.Mode.STREAMING)
+        .readValue(json, new TypeReference<PromResponse<PromResponse.ScalarResult>>() {});
+
+    Assertions.assertEquals(Double.POSITIVE_INFINITY, response.getData().getResult().get(0).getValue());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"STREAMING", "TREE"})
+  @DisplayName("Sample values are parsed once, special values included")
+  public void doubleValues(PromResponseDeserializer.Mode mode) throws IOException {
+    String json = "{\"status\":\"success\",\"data\":{\"resultType\":\"matrix\",\"result\":[{\"metric\":{},"
+        + "\"values\":[[1681824540,\"NaN\"],[1681824550,\"+Inf\"],[1681824560,\"1e+06\"],[1681824570,\"0.25\"]]}]}}";
+
+    PromResponse<PromResponse.VectrixResult> response = objectMapper(mode).readValue(json, VECTRIX_TYPE_REF);
+
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = response.getData().getResult().get(0).getValues();
+    Assertions.assertTrue(Double.isNaN(values.get(0).getDoubleValue()));
+    Assertions.assertEquals(Double.POSITIVE_INFINITY, values.get(1).getDoubleValue());
+    Assertions.assertEquals(1e6, values.get(2).getDoubleValue());
+    Assertions.assertEquals("1e+06", values.get(2).getValue());
+    Assertions.assertEquals(0.25, values.get(3).getDoubleValue());
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.google.common.collect.Lists;
+
+public class PromStreamParserTest {
+  private final ObjectMapper objectMapper = JsonMapper.builder().build();
+
+  private static byte[] resource(String name) throws IOException {
+    try (InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(name)) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  @Test
+  @DisplayName("Results are handed out as soon as each of them is complete")
+  public void resultsChunked() throws IOException {
+    byte[] bytes = resource("query_matrix_heterogeneous.json");
+    List<PromResponse.VectrixResult> results = Lists.newArrayList();
+    int receivedAtFirstResult = -1;
+
+    try (PromStreamParser<PromResponse.VectrixResult> parser = PromStreamParser.results(objectMapper)) {
+      for (int offset = 0; offset < bytes.length; offset += 7) {
+        results.addAll(parser.feed(bytes, offset, Math.min(7, bytes.length - offset)));
+        if (receivedAtFirstResult < 0 && !results.isEmpty()) {
+          receivedAtFirstResult = offset;
+        }
+      }
+      results.addAll(parser.endOfInput());
+
+      Assertions.assertEquals(PromResponse.Status.SUCCESS, parser.getStatus());
+    }
+
+    Assertions.assertEquals(2, results.size());
+    Assertions.assertTrue(receivedAtFirstResult < bytes.length * 3 / 4, "The first result is handed out early");
+    Assertions.assertEquals("go_memstats_heap_alloc_bytes", results.get(0).getMetric().get("__name__"));
+    Assertions.assertEquals(3, results.get(1).getValues().size());
+    Assertions.assertEquals("55205888", results.get(1).getValues().get(2).getValue());
+  }
+
+  @Test
+  @DisplayName("Incomplete responses fail at the end of input")
+  public void incomplete() throws IOException {
+    byte[] bytes = resource("query_vector.json");
+
+    try (PromStreamParser<PromResponse.VectrixResult> parser = PromStreamParser.results(objectMapper)) {
+      parser.feed(bytes, 0, bytes.length / 2);
+      Assertions.assertThrows(IOException.class, parser::endOfInput);
+    }
+  }
+
+  @Test
+  @DisplayName("Scalar responses have no series to hand out")
+  public void scalar() throws IOException {
+    byte[] bytes = resource("query_scalar.json");
+
+    try (PromStreamParser<PromResponse.VectrixResult> parser = PromStreamParser.results(objectMapper)) {
+      Assertions.assertTrue(parser.feed(bytes).isEmpty());
+      Assertions.assertTrue(parser.endOfInput().isEmpty());
+      Assertions.assertEquals(PromResponse.Status.SUCCESS, parser.getStatus());
+    }
+  }
+
+  @Test
+  @DisplayName("Error responses fail at the end of input")
+  public void error() throws IOException {
+    byte[] bytes = resource("query_error.json");
+
+    try (PromStreamParser<PromResponse.VectrixResult> parser = PromStreamParser.results(objectMapper)) {
+      Assertions.assertTrue(parser.feed(bytes).isEmpty());
+      PromQueryException exception = Assertions.assertThrows(PromQueryException.class, parser::endOfInput);
+      Assertions.assertEquals("bad_data", exception.getErrorType());
+      Assertions.assertEquals(PromResponse.Status.ERROR, parser.getStatus());
+    }
+  }
+
+  @Test
+  @DisplayName("Series label sets are handed out one by one")
+  public void series() throws IOException {
+    byte[] bytes = resource("metadata_series.json");
+    List<Labels> series = Lists.newArrayList();
+
+    try (PromStreamParser<Labels> parser = PromStreamParser.series(objectMapper)) {
+      for (int offset = 0; offset < bytes.length; offset += 16) {
+        series.addAll(parser.feed(bytes, offset, Math.min(16, bytes.length - offset)));
+      }
+      series.addAll(parser.endOfInput());
+    }
+
+    Assertions.assertEquals(2, series.size());
+    Assertions.assertEquals("node", series.get(0).get("job"));
+    Assertions.assertEquals("prometheus", series.get(1).get("job"));
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class PromValuesTest {
+  @Test
+  @DisplayName("Special values are parsed without exceptions")
+  public void specialValues() {
+    Assertions.assertTrue(Double.isNaN(PromValues.parseValue("NaN")));
+    Assertions.assertEquals(Double.POSITIVE_INFINITY, PromValues.parseValue("+Inf"));
+    Assertions.assertEquals(Double.POSITIVE_INFINITY, PromValues.parseValue("Inf"));
+    Assertions.assertEquals(Double.NEGATIVE_INFINITY, PromValues.parseValue("-Inf"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "0", "-0", "10", "1.5", "0.05", "-3.25", "1e+06", "1E-7", "2.5e3", "123456789012345", "1234567890123456789",
+      "12345678901234567890123", "0.1", "0.30000000000000004", "1.7976931348623157e+308", "4.9e-324", "1e-400",
+      "1e400", ".5", "5.", "000123.4500", "22988944", "0.0000000000000000000000123"})
+  @DisplayName("Decimal values are parsed exactly as Double.parseDouble() does")
+  public void decimalValues(String value) {
+    Assertions.assertEquals(Double.parseDouble(value), PromValues.parseValue(value));
+  }
+
+  @Test
+  @DisplayName("Random values round-trip exactly")
+  public void randomValues() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      double value = random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+      String formatted = PromValues.formatValue(value);
+      Assertions.assertEquals(Double.parseDouble(formatted), PromValues.parseValue(formatted), formatted);
+      String shortened = String.format("%.3f", value);
+      Assertions.assertEquals(Double.parseDouble(shortened), PromValues.parseValue(shortened), shortened);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"", "-", "abc", "1e", "1.2.3", "--1", "Infinite"})
+  @DisplayName("Malformed values fail")
+  public void malformedValues(String value) {
+    Assertions.assertThrows(NumberFormatException.class, () -> PromValues.parseValue(value));
+  }
+
+  @Test
+  @DisplayName("Values are parsed within a range of characters")
+  public void range() {
+    Assertions.assertEquals(42.5, PromValues.parseValue("[42.5]", 1, 4));
+    Assertions.assertEquals(Double.NEGATIVE_INFINITY, PromValues.parseValue("x-Inf", 1, 4));
+  }
+}
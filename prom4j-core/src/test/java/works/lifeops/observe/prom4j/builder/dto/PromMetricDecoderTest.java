@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+
+import works.lifeops.observe.prom4j.builder.PromQueryException;
+
+public class PromMetricDecoderTest {
+  @PromMetric("go_threads")
+  public interface GoThreads {
+    String job();
+    String instance();
+    double value();
+    long timestamp();
+  }
+
+  @PromMetric("go_threads")
+  public interface GoThreadsOfJob {
+    String job();
+    double value();
+  }
+
+  private static InputStream resource(String name) {
+    return Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+  }
+
+  @Test
+  @DisplayName("The generated decoder reads a vector into records")
+  public void vector() throws IOException {
+    PromMetricDecoder<GoThreads> decoder = PromMetricDecoder.of(GoThreads.class);
+    List<GoThreads> goThreads = decoder.decode(new JsonFactory(), resource("query_vector.json"));
+
+    Assertions.assertEquals("go_threads", decoder.getMetricName());
+    Assertions.assertEquals(
+        List.of(new PromMetricDecoderTest_GoThreadsRecord("prometheus", "localhost:9090", 10, 1681824600000L)),
+        goThreads);
+  }
+
+  @Test
+  @DisplayName("The generated decoder reads a matrix into a record per sample")
+  public void matrix() throws IOException {
+    List<GoThreads> goThreads = PromMetricDecoder.of(GoThreads.class)
+        .decode(new JsonFactory(), resource("query_matrix.json"));
+
+    Assertions.assertFalse(goThreads.size() < 2);
+    Assertions.assertEquals(1681824540000L, goThreads.get(0).timestamp());
+    Assertions.assertEquals(1681824550000L, goThreads.get(1).timestamp());
+    for (GoThreads goThread : goThreads) {
+      Assertions.assertEquals("prometheus", goThread.job());
+      Assertions.assertEquals("localhost:9090", goThread.instance());
+    }
+  }
+
+  @Test
+  @DisplayName("Labels that are not declared are skipped")
+  public void undeclaredLabels() throws IOException {
+    List<GoThreadsOfJob> goThreads = PromMetricDecoderTest_GoThreadsOfJobDecoder.INSTANCE
+        .decode(new JsonFactory(), resource("query_vector.json"));
+
+    Assertions.assertEquals(List.of(new PromMetricDecoderTest_GoThreadsOfJobRecord("prometheus", 10)), goThreads);
+  }
+
+  @Test
+  @DisplayName("Series of other metrics are skipped, series without a name are kept")
+  public void metricName() throws IOException {
+    String response = "{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":["
+        + "{\"metric\":{\"__name__\":\"go_goroutines\",\"job\":\"a\"},\"value\":[1681824600,\"1\"]},"
+        + "{\"metric\":{\"job\":\"b\"},\"value\":[1681824600,\"2\"]},"
+        + "{\"metric\":{\"job\":\"c\",\"__name__\":\"go_threads\"},\"value\":[1681824600,\"3\"]}]}}";
+    List<GoThreadsOfJob> goThreads = PromMetricDecoderTest_GoThreadsOfJobDecoder.INSTANCE
+        .decode(new JsonFactory().createParser(response));
+
+    Assertions.assertEquals(List.of(new PromMetricDecoderTest_GoThreadsOfJobRecord("b", 2),
+                                    new PromMetricDecoderTest_GoThreadsOfJobRecord("c", 3)), goThreads);
+  }
+
+  @Test
+  @DisplayName("An error response throws, a scalar response is rejected rather than read as no results")
+  public void error() {
+    PromQueryException pqe = Assertions.assertThrows(PromQueryException.class,
+        () -> PromMetricDecoder.of(GoThreads.class).decode(new JsonFactory(), resource("query_error.json")));
+    Assertions.assertEquals("bad_data", pqe.getErrorType());
+
+    String scalar = "{\"status\":\"success\",\"data\":{\"resultType\":\"scalar\",\"result\":[1681824600,\"1\"]}}";
+    Assertions.assertThrows(JsonParseException.class,
+        () -> PromMetricDecoder.of(GoThreads.class).decode(new JsonFactory().createParser(scalar)));
+  }
+
+  @Test
+  @DisplayName("An interface without a generated decoder is rejected")
+  public void noDecoder() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> PromMetricDecoder.of(Runnable.class));
+  }
+}
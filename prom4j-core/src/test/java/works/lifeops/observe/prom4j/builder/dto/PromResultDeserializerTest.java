@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import works.lifeops.observe.prom4j.builder.PromQueryException;
+import works.lifeops.observe.prom4j.builder.PromResponse;
+import works.lifeops.observe.prom4j.builder.PromResponseDeserializer;
+
+public class PromResultDeserializerTest {
+  private static ObjectMapper objectMapper() {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer());
+
+    return PromResultDeserializer.resultsMapper(JsonMapper.builder()
+        .addModule(module)
+        .build());
+  }
+
+  private static InputStream resource(String name) {
+    return Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+  }
+
+  @Test
+  @DisplayName("Sample results are decoded straight from a vector response")
+  public void sampleResults() throws IOException {
+    List<PromResult.SampleResult> samples = objectMapper()
+        .readValue(resource("query_vector_heterogeneous.json"), new TypeReference<List<PromResult.SampleResult>>() {});
+    PromResponse<PromResponse.VectrixResult> response = objectMapper()
+        .readValue(resource("query_vector_heterogeneous.json"), new TypeReference<PromResponse<PromResponse.VectrixResult>>() {});
+    List<PromResult.SampleResultView> views = PromResultMapper.INSTANCE.vectrixResponseToSampleView(response);
+
+    Assertions.assertEquals(views.size(), samples.size());
+    for (int i = 0; i < views.size(); i++) {
+      Assertions.assertEquals(views.get(i).getName(), samples.get(i).getName());
+      Assertions.assertEquals(views.get(i).getJob(), samples.get(i).getJob());
+      Assertions.assertEquals(views.get(i).getLabels(), samples.get(i).getLabels());
+      Assertions.assertEquals(views.get(i).getSample().getValue(), samples.get(i).getSample().getValue());
+      Assertions.assertEquals(views.get(i).getSample().getEpochDateTime(), samples.get(i).getSample().getEpochDateTime());
+    }
+  }
+
+  @Test
+  @DisplayName("Time-series results are decoded straight from a matrix response")
+  public void timeSeriesResults() throws IOException {
+    List<PromResult.TimeSeriesResult> timeSerieses = objectMapper()
+        .readValue(resource("query_matrix.json"), new TypeReference<List<PromResult.TimeSeriesResult>>() {});
+
+    Assertions.assertEquals(1, timeSerieses.size());
+    PromResult.TimeSeriesResult timeSeries = timeSerieses.get(0);
+    Assertions.assertEquals("go_threads", timeSeries.getName());
+    Assertions.assertEquals("prometheus", timeSeries.getJob());
+    Assertions.assertEquals("localhost:9090", timeSeries.getLabels().get("instance"));
+    Assertions.assertEquals(7, timeSeries.getSamples().size());
+    Assertions.assertEquals(10d, timeSeries.getSamples().get(0).getDoubleValue());
+  }
+
+  @Test
+  @DisplayName("Other lists are deserialized as usual")
+  public void otherLists() throws IOException {
+    Assertions.assertEquals(List.of("a", "b"), objectMapper().readValue("[\"a\",\"b\"]", new TypeReference<List<String>>() {}));
+  }
+
+  @Test
+  @DisplayName("A scalar and a string are read as a single result without labels")
+  public void scalarAndString() throws IOException {
+    List<PromResult.SampleResult> scalar = objectMapper().readValue(
+        "{\"status\":\"success\",\"data\":{\"resultType\":\"scalar\",\"result\":[1700000000,\"1e+06\"]}}",
+        new TypeReference<List<PromResult.SampleResult>>() {});
+    Assertions.assertEquals(1, scalar.size());
+    Assertions.assertTrue(scalar.get(0).getLabels().isEmpty());
+    Assertions.assertEquals(1e6, scalar.get(0).getSample().getDoubleValue());
+
+    // The "result" before the "resultType"
+    List<PromResult.TimeSeriesResult> string = objectMapper().readValue(
+        "{\"status\":\"success\",\"data\":{\"result\":[1700000000,\"foo\"],\"resultType\":\"string\"}}",
+        new TypeReference<List<PromResult.TimeSeriesResult>>() {});
+    Assertions.assertEquals(1, string.size());
+    Assertions.assertEquals("foo", string.get(0).getSamples().get(0).getValue());
+    Assertions.assertTrue(Double.isNaN(string.get(0).getSamples().get(0).getDoubleValue()));
+  }
+
+  @Test
+  @DisplayName("An error response throws rather than reading as no results")
+  public void error() {
+    PromQueryException exception = Assertions.assertThrows(PromQueryException.class, () -> objectMapper().readValue(
+        "{\"status\":\"error\",\"errorType\":\"bad_data\",\"error\":\"parse error\"}",
+        new TypeReference<List<PromResult.SampleResult>>() {}));
+    Assertions.assertEquals("bad_data", exception.getErrorType());
+    Assertions.assertEquals("parse error", exception.getError());
+  }
+
+  @Test
+  @DisplayName("A result that does not match its resultType is rejected")
+  public void mismatch() {
+    Assertions.assertThrows(IOException.class, () -> objectMapper().readValue(
+        "{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":[1700000000,\"1\"]}}",
+        new TypeReference<List<PromResult.SampleResult>>() {}));
+  }
+}
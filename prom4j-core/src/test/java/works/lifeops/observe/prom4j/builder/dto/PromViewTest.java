@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder.dto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import works.lifeops.observe.prom4j.builder.PromResponse;
+import works.lifeops.observe.prom4j.builder.PromResponseDeserializer;
+
+/**
+ * Tests the read-only views of {@link PromResponseDto} and {@link PromResult}, which share the samples and labels of
+ * the results they wrap.
+ */
+public class PromViewTest {
+  private static final TypeReference<PromResponse<PromResponse.VectrixResult>> VECTRIX_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.VectrixResult>>() {};
+  private static final TypeReference<PromResponse<PromResponse.ColumnarResult>> COLUMNAR_TYPE_REF =
+      new TypeReference<PromResponse<PromResponse.ColumnarResult>>() {};
+
+  private static ObjectMapper objectMapper() {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer());
+
+    return JsonMapper.builder()
+        .addModule(module)
+        .build();
+  }
+
+  private static InputStream resource(String name) {
+    return Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+  }
+
+  @Test
+  @DisplayName("PromResponseDto views share the samples and labels")
+  public void responseDtoViews() throws IOException {
+    PromResponse<PromResponse.VectrixResult> response = objectMapper()
+        .readValue(resource("query_matrix_heterogeneous.json"), VECTRIX_TYPE_REF);
+
+    List<PromResponseDto.VectrixResultView> views = PromResponseMapper.INSTANCE.vectrixResponseToView(response);
+    List<PromResponseDto.MatrixResultDto> copies = PromResponseMapper.INSTANCE.vectrixResponseToMatrixDto(response);
+
+    Assertions.assertEquals(copies.size(), views.size());
+    for (int i = 0; i < views.size(); i++) {
+      PromResponse.VectrixResult result = response.getData().getResult().get(i);
+      PromResponseDto.VectrixResultView view = views.get(i);
+      Assertions.assertEquals(copies.get(i).getName(), view.getName());
+      Assertions.assertEquals(copies.get(i).getLabels(), view.getLabels());
+      Assertions.assertSame(result.getValues().get(0), view.getValues().get(0), "The samples are not copied");
+      Assertions.assertEquals(copies.get(i).getValues().size(), view.getValues().size());
+    }
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> views.get(0).setName("x"));
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> views.get(0).getValues().clear());
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> views.get(0).getLabels().clear());
+  }
+
+  @Test
+  @DisplayName("Columnar views create the samples on access")
+  public void columnarViews() throws IOException {
+    PromResponse<PromResponse.ColumnarResult> response = objectMapper()
+        .readValue(resource("query_matrix.json"), COLUMNAR_TYPE_REF);
+
+    PromResponseDto.ColumnarResultView view = PromResponseMapper.INSTANCE.columnarResponseToView(response).get(0);
+    Assertions.assertEquals("go_threads", view.getName());
+    Assertions.assertEquals(response.getData().getResult().get(0).size(), view.getValues().size());
+    Assertions.assertEquals("10", view.getValues().get(0).getValue());
+  }
+
+  @Test
+  @DisplayName("PromResult views share the samples and labels")
+  public void resultViews() throws IOException {
+    PromResponse<PromResponse.VectrixResult> vector = objectMapper()
+        .readValue(resource("query_vector.json"), VECTRIX_TYPE_REF);
+    PromResponse<PromResponse.VectrixResult> matrix = objectMapper()
+        .readValue(resource("query_matrix.json"), VECTRIX_TYPE_REF);
+
+    PromResult.SampleResultView sample = PromResultMapper.INSTANCE.vectrixResponseToSampleView(vector).get(0);
+    Assertions.assertEquals("go_threads", sample.getName());
+    Assertions.assertEquals("prometheus", sample.getJob());
+    Assertions.assertSame(vector.getData().getResult().get(0).getValue(), sample.getSample());
+
+    PromResult.TimeSeriesResultView timeSeries = PromResultMapper.INSTANCE.vectrixResponseToTimeSeriesView(matrix).get(0);
+    Assertions.assertEquals("go_threads", timeSeries.getName());
+    Assertions.assertSame(matrix.getData().getResult().get(0).getValues().get(1), timeSeries.getSamples().get(1));
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> timeSeries.setJob("x"));
+  }
+
+  @Test
+  @DisplayName("The sample of a series without samples is null")
+  public void emptySampleView() throws IOException {
+    PromResponse<PromResponse.VectrixResult> matrix = objectMapper().readValue("{\"status\":\"success\",\"data\":"
+        + "{\"resultType\":\"matrix\",\"result\":[{\"metric\":{\"job\":\"a\"},\"values\":[]}]}}",
+        VECTRIX_TYPE_REF);
+
+    Assertions.assertNull(PromResultMapper.INSTANCE.vectrixResponseToSampleView(matrix).get(0).getSample());
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a record and a {@code PromMetricDecoder} for each {@code @PromMetric} annotated interface. See
+ * {@code works.lifeops.observe.prom4j.builder.dto.PromMetric} for what the interface may declare.
+ *
+ * The processor only refers to the prom4j-core types by name, so it has no dependencies of its own.
+ *
+ * @author Li Wan
+ */
+@SupportedAnnotationTypes(PromMetricProcessor.PROM_METRIC)
+public class PromMetricProcessor extends AbstractProcessor {
+  static final String PROM_METRIC = "works.lifeops.observe.prom4j.builder.dto.PromMetric";
+  private static final String PROM_METRIC_DECODER = "works.lifeops.observe.prom4j.builder.dto.PromMetricDecoder";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() != ElementKind.INTERFACE) {
+          error(element, "@PromMetric can only annotate an interface.");
+          continue;
+        }
+        try {
+          generate((TypeElement) element);
+        } catch (IOException ioe) {
+          error(element, "Could not generate the @PromMetric types: " + ioe.getMessage());
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A method of the interface: a label, the sample value or the sample timestamp.
+   */
+  private static final class Component {
+    private enum Kind { LABEL, VALUE, TIMESTAMP }
+
+    private final Kind kind;
+    private final String name;
+    private final String type;
+    private final int labelIndex;
+
+    private Component(Kind kind, String name, String type, int labelIndex) {
+      this.kind = kind;
+      this.name = name;
+      this.type = type;
+      this.labelIndex = labelIndex;
+    }
+  }
+
+  private void generate(TypeElement metricType) throws IOException {
+    List<Component> components = new ArrayList<>();
+    int labelCount = 0;
+    for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(metricType))) {
+      if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+        continue;
+      }
+      String name = method.getSimpleName().toString();
+      TypeMirror returnType = method.getReturnType();
+      if (!method.getParameters().isEmpty()) {
+        error(method, "A @PromMetric method cannot have parameters.");
+      } else if (isString(returnType)) {
+        components.add(new Component(Component.Kind.LABEL, name, "String", labelCount++));
+      } else if (name.equals("value") && returnType.getKind() == TypeKind.DOUBLE) {
+        components.add(new Component(Component.Kind.VALUE, name, "double", -1));
+      } else if (name.equals("timestamp") && returnType.getKind() == TypeKind.LONG) {
+        components.add(new Component(Component.Kind.TIMESTAMP, name, "long", -1));
+      } else {
+        error(method, "A @PromMetric method must be \"String <label>()\", \"double value()\" or \"long timestamp()\".");
+      }
+    }
+
+    String packageName = processingEnv.getElementUtils().getPackageOf(metricType).getQualifiedName().toString();
+    String flatName = flatName(metricType);
+    String recordName = flatName + "Record";
+    String decoderName = flatName + "Decoder";
+    String metricTypeName = metricType.getQualifiedName().toString();
+
+    writeSource(metricType, packageName, recordName, record(packageName, recordName, metricTypeName, components));
+    writeSource(metricType, packageName, decoderName,
+        decoder(packageName, decoderName, recordName, metricTypeName, metricName(metricType), labelCount, components));
+  }
+
+  private String record(String packageName, String recordName, String metricTypeName, List<Component> components) {
+    StringBuilder source = header(packageName);
+    source.append("public record ").append(recordName).append("(");
+    for (int i = 0; i < components.size(); i++) {
+      source.append(i == 0 ? "" : ", ").append(components.get(i).type).append(' ').append(components.get(i).name);
+    }
+    source.append(") implements ").append(metricTypeName).append(" {\n}\n");
+    return source.toString();
+  }
+
+  private String decoder(String packageName, String decoderName, String recordName, String metricTypeName,
+                         String metricName, int labelCount, List<Component> components) {
+    StringBuilder source = header(packageName);
+    source.append("public final class ").append(decoderName)
+        .append(" extends ").append(PROM_METRIC_DECODER).append('<').append(metricTypeName).append("> {\n")
+        .append("  public static final ").append(decoderName).append(" INSTANCE = new ").append(decoderName).append("();\n\n")
+        .append("  private ").append(decoderName).append("() {\n")
+        .append("    super(").append(processingEnv.getElementUtils().getConstantExpression(metricName)).append(", ")
+        .append(labelCount).append(");\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  protected int labelIndex(String labelName) {\n")
+        .append("    switch (labelName) {\n");
+    for (Component component : components) {
+      if (component.kind == Component.Kind.LABEL) {
+        source.append("      case \"").append(component.name).append("\":\n")
+            .append("        return ").append(component.labelIndex).append(";\n");
+      }
+    }
+    source.append("      default:\n")
+        .append("        return -1;\n")
+        .append("    }\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  protected ").append(metricTypeName).append(" create(String[] labels, long timestamp, double value) {\n")
+        .append("    return new ").append(recordName).append("(");
+    for (int i = 0; i < components.size(); i++) {
+      Component component = components.get(i);
+      source.append(i == 0 ? "" : ", ");
+      switch (component.kind) {
+        case LABEL:
+          source.append("labels[").append(component.labelIndex).append(']');
+          break;
+        case VALUE:
+          source.append("value");
+          break;
+        case TIMESTAMP:
+          source.append("timestamp");
+          break;
+      }
+    }
+    source.append(");\n")
+        .append("  }\n")
+        .append("}\n");
+    return source.toString();
+  }
+
+  private StringBuilder header(String packageName) {
+    StringBuilder source = new StringBuilder();
+    if (!packageName.isEmpty()) {
+      source.append("package ").append(packageName).append(";\n\n");
+    }
+    source.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+    return source;
+  }
+
+  private void writeSource(TypeElement metricType, String packageName, String simpleName, String source) throws IOException {
+    String name = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    try (Writer writer = processingEnv.getFiler().createSourceFile(name, metricType).openWriter()) {
+      writer.write(source);
+    }
+  }
+
+  /**
+   * The simple name prefixed with the enclosing types, e.g. "Metrics_GoThreads", the same as PromMetricDecoder.of().
+   */
+  private static String flatName(TypeElement type) {
+    StringBuilder name = new StringBuilder(type.getSimpleName());
+    for (Element enclosing = type.getEnclosingElement(); !(enclosing instanceof PackageElement);
+         enclosing = enclosing.getEnclosingElement()) {
+      name.insert(0, enclosing.getSimpleName() + "_");
+    }
+    return name.toString();
+  }
+
+  private static String metricName(TypeElement metricType) {
+    for (AnnotationMirror annotationMirror : metricType.getAnnotationMirrors()) {
+      if (((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(PROM_METRIC)) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+            annotationMirror.getElementValues().entrySet()) {
+          if (entry.getKey().getSimpleName().contentEquals("value")) {
+            return (String) entry.getValue().getValue();
+          }
+        }
+      }
+    }
+    return "";
+  }
+
+  private static boolean isString(TypeMirror type) {
+    return type.getKind() == TypeKind.DECLARED && type.toString().equals("java.lang.String");
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
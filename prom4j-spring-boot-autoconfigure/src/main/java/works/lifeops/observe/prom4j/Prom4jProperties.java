@@ -13,18 +13,56 @@
  */
 package works.lifeops.observe.prom4j;
 
+import java.time.Duration;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 
 @ConfigurationProperties(prefix = "prom4j", ignoreUnknownFields = true)
 public class Prom4jProperties {
   public static final String PROM4J_PROMETHEUS_SERVER_BASE_URI = "http://prometheus:9090";
 
   private final Prometheus prometheus = new Prometheus();
+  private final Response response = new Response();
+  private final Cache cache = new Cache();
+  private final Coalescing coalescing = new Coalescing();
+  private final Http http = new Http();
+  private final Blocking blocking = new Blocking();
+  private final Batch batch = new Batch();
+  private final Sharding sharding = new Sharding();
 
   public Prometheus getPrometheus() {
     return prometheus;
   }
 
+  public Response getResponse() {
+    return response;
+  }
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public Coalescing getCoalescing() {
+    return coalescing;
+  }
+
+  public Http getHttp() {
+    return http;
+  }
+
+  public Blocking getBlocking() {
+    return blocking;
+  }
+
+  public Batch getBatch() {
+    return batch;
+  }
+
+  public Sharding getSharding() {
+    return sharding;
+  }
+
   public static class Prometheus {
     private final Server server = new Server();
 
@@ -44,4 +82,417 @@ public class Prom4jProperties {
       }
     }
   }
+
+  public static class Response {
+    /**
+     * How query responses are decoded, "jackson" or "native" to decode straight from the bytes and fall back to
+     * Jackson on anything unexpected.
+     */
+    private Decoder decoder = Decoder.JACKSON;
+    /**
+     * The size of a query response from which the native decoder decodes its series in parallel.
+     */
+    private DataSize parallelThreshold = DataSize.ofMegabytes(16);
+
+    public Decoder getDecoder() {
+      return decoder;
+    }
+
+    public void setDecoder(Decoder decoder) {
+      this.decoder = decoder;
+    }
+
+    public DataSize getParallelThreshold() {
+      return parallelThreshold;
+    }
+
+    public void setParallelThreshold(DataSize parallelThreshold) {
+      this.parallelThreshold = parallelThreshold;
+    }
+
+    public static enum Decoder {
+      /**
+       * Deserializes query responses with Jackson and the PromResponseDeserializer.
+       */
+      JACKSON,
+      /**
+       * Decodes query responses straight from their bytes with the PromResponseDecoder, falling back to Jackson on
+       * anything unexpected.
+       */
+      NATIVE
+    }
+  }
+
+  /**
+   * The results cache of the PromQueryService, see PromQueryCache.
+   */
+  public static class Cache {
+    private boolean enabled = false;
+    /**
+     * The maximum number of cached results.
+     */
+    private long maxEntries = 10_000;
+    /**
+     * The maximum estimated size of the cached results, takes the place of the max-entries when set.
+     */
+    private DataSize maxSize;
+    /**
+     * Aligns the start and the end of the range queries to their step so that the ones issued within the same step
+     * share a cached result.
+     */
+    private boolean alignToStep = true;
+    private final Ttl ttl = new Ttl();
+    private final Extent extent = new Extent();
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(long maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    public DataSize getMaxSize() {
+      return maxSize;
+    }
+
+    public void setMaxSize(DataSize maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public boolean isAlignToStep() {
+      return alignToStep;
+    }
+
+    public void setAlignToStep(boolean alignToStep) {
+      this.alignToStep = alignToStep;
+    }
+
+    public Ttl getTtl() {
+      return ttl;
+    }
+
+    public Extent getExtent() {
+      return extent;
+    }
+
+    /**
+     * The time-to-live of the results per query type, zero not to cache the type.
+     */
+    public static class Ttl {
+      private Duration instant = Duration.ofSeconds(15);
+      private Duration range = Duration.ofMinutes(1);
+
+      public Duration getInstant() {
+        return instant;
+      }
+
+      public void setInstant(Duration instant) {
+        this.instant = instant;
+      }
+
+      public Duration getRange() {
+        return range;
+      }
+
+      public void setRange(Duration range) {
+        this.range = range;
+      }
+    }
+
+    /**
+     * The range query extent cache, see PromRangeExtentCache. It is enabled apart from the results cache.
+     */
+    public static class Extent {
+      private boolean enabled = false;
+      /**
+       * The maximum number of cached extents, one per query and step.
+       */
+      private long maxEntries = 1_000;
+      /**
+       * Discards the extents that have not been queried for the duration.
+       */
+      private Duration expireAfterAccess = Duration.ofMinutes(10);
+      /**
+       * The samples within the duration before now are queried again rather than cached, to pick up late scrapes.
+       */
+      private Duration staleness = Duration.ofMinutes(1);
+
+      public boolean isEnabled() {
+        return enabled;
+      }
+
+      public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+      }
+
+      public long getMaxEntries() {
+        return maxEntries;
+      }
+
+      public void setMaxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+      }
+
+      public Duration getExpireAfterAccess() {
+        return expireAfterAccess;
+      }
+
+      public void setExpireAfterAccess(Duration expireAfterAccess) {
+        this.expireAfterAccess = expireAfterAccess;
+      }
+
+      public Duration getStaleness() {
+        return staleness;
+      }
+
+      public void setStaleness(Duration staleness) {
+        this.staleness = staleness;
+      }
+    }
+  }
+
+  /**
+   * Coalesces the concurrent identical queries into one request, see PromQueryCoalescer.
+   */
+  public static class Coalescing {
+    private boolean enabled = true;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+  }
+
+  /**
+   * The pooled HTTP connections to the Prometheus server, of both the RestTemplate and the WebClient.
+   */
+  public static class Http {
+    /**
+     * The transport of the RestTemplate.
+     */
+    private Client client = Client.HTTP_COMPONENTS;
+    /**
+     * The maximum number of connections, ignored by the RestTemplate of the JDK client.
+     */
+    private int maxConnections = 50;
+    private Duration connectTimeout = Duration.ofSeconds(5);
+    /**
+     * The maximum time to wait for a response, a query running longer is abandoned.
+     */
+    private Duration readTimeout = Duration.ofSeconds(60);
+    /**
+     * The maximum time to wait for a connection from the pool when all of them are in use, ignored by the
+     * RestTemplate of the JDK client.
+     */
+    private Duration pendingAcquireTimeout = Duration.ofSeconds(10);
+    /**
+     * The idle connections are closed after the duration, ignored by the RestTemplate of the JDK client.
+     */
+    private Duration maxIdleTime = Duration.ofSeconds(30);
+    /**
+     * The connections are closed after the duration, e.g. to rebalance across the replicas behind a load balancer,
+     * ignored by the RestTemplate of the JDK client.
+     */
+    private Duration maxLifeTime = Duration.ofMinutes(5);
+
+    public Client getClient() {
+      return client;
+    }
+
+    public void setClient(Client client) {
+      this.client = client;
+    }
+
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+    }
+
+    public Duration getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+      this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getReadTimeout() {
+      return readTimeout;
+    }
+
+    public void setReadTimeout(Duration readTimeout) {
+      this.readTimeout = readTimeout;
+    }
+
+    public Duration getPendingAcquireTimeout() {
+      return pendingAcquireTimeout;
+    }
+
+    public void setPendingAcquireTimeout(Duration pendingAcquireTimeout) {
+      this.pendingAcquireTimeout = pendingAcquireTimeout;
+    }
+
+    public Duration getMaxIdleTime() {
+      return maxIdleTime;
+    }
+
+    public void setMaxIdleTime(Duration maxIdleTime) {
+      this.maxIdleTime = maxIdleTime;
+    }
+
+    public Duration getMaxLifeTime() {
+      return maxLifeTime;
+    }
+
+    public void setMaxLifeTime(Duration maxLifeTime) {
+      this.maxLifeTime = maxLifeTime;
+    }
+
+    public static enum Client {
+      /**
+       * Apache HttpClient 5 with the pool of "max-connections".
+       */
+      HTTP_COMPONENTS,
+      /**
+       * The JDK HttpClient, which doesn't pin the carrier of a virtual thread while waiting for a response. Its pool
+       * is configured by the "jdk.httpclient.connectionPoolSize" and "jdk.httpclient.keepalive.timeout" system
+       * properties instead, "max-connections", "pending-acquire-timeout", "max-idle-time" and "max-life-time" only
+       * apply to the WebClient.
+       */
+      JDK;
+    }
+  }
+
+  /**
+   * The threads of PromQueryService#queryAllBlocking.
+   */
+  public static class Blocking {
+    /**
+     * Runs each query on a virtual thread of its own, on Java 21 and later.
+     */
+    private boolean virtualThreads = true;
+    /**
+     * The maximum number of platform threads, when the virtual threads are disabled or unsupported.
+     */
+    private int maxThreads = 16;
+
+    public boolean isVirtualThreads() {
+      return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxThreads() {
+      return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+      this.maxThreads = maxThreads;
+    }
+  }
+
+  /**
+   * The batches of PromQueryService#queryAll and #queryAllBlocking.
+   */
+  public static class Batch {
+    /**
+     * The maximum number of queries of a batch in flight to the Prometheus server at a time.
+     */
+    private int maxConcurrency = 16;
+
+    public int getMaxConcurrency() {
+      return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+    }
+  }
+
+  /**
+   * The time shards of PromQueryService#getRangeResults, and the series partitions of it and #getInstantResults. The
+   * other queries of the service, e.g. #query, #queryBlocking and #getTimeSeries, return the response as it is and are
+   * never sharded, a long range query sent through them is sent whole.
+   */
+  public static class Sharding {
+    private final Series series = new Series();
+    /**
+     * Whether PromQueryService#getRangeResults shards a range longer than a shard, the other queries are sent whole.
+     */
+    private boolean enabled = false;
+    /**
+     * The duration of a shard, rounded down to a multiple of the step of each query.
+     */
+    private Duration shardSize = Duration.ofDays(1);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getShardSize() {
+      return shardSize;
+    }
+
+    public void setShardSize(Duration shardSize) {
+      this.shardSize = shardSize;
+    }
+
+    public Series getSeries() {
+      return series;
+    }
+
+    public static class Series {
+      private boolean enabled = false;
+      /**
+       * The label whose values partition the series, e.g. "instance" or "pod".
+       */
+      private String label = "instance";
+      private int partitions = 8;
+
+      public boolean isEnabled() {
+        return enabled;
+      }
+
+      public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+      }
+
+      public String getLabel() {
+        return label;
+      }
+
+      public void setLabel(String label) {
+        this.label = label;
+      }
+
+      public int getPartitions() {
+        return partitions;
+      }
+
+      public void setPartitions(int partitions) {
+        this.partitions = partitions;
+      }
+    }
+  }
 }
@@ -17,8 +17,12 @@ import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
@@ -32,7 +36,9 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.codec.json.Jackson2JsonDecoder;
 import org.springframework.http.codec.json.Jackson2JsonEncoder;
 import org.springframework.http.converter.HttpMessageConverter;
@@ -50,13 +56,28 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import reactor.netty.resources.ConnectionProvider;
 import works.lifeops.observe.prom4j.Prom4jProperties;
+import works.lifeops.observe.prom4j.builder.PromBlockingExecutor;
 import works.lifeops.observe.prom4j.builder.PromMetadata;
 import works.lifeops.observe.prom4j.builder.PromMetadataDeserializer;
+import works.lifeops.observe.prom4j.builder.PromResponseDataBufferDecoder;
+import works.lifeops.observe.prom4j.builder.PromResponseDecoder;
 import works.lifeops.observe.prom4j.builder.PromResponseDeserializer;
+import works.lifeops.observe.prom4j.builder.PromResponseHttpMessageConverter;
 import works.lifeops.observe.prom4j.builder.PromResponse;
+import works.lifeops.observe.prom4j.builder.PromQuery;
+import works.lifeops.observe.prom4j.builder.PromQueryCache;
+import works.lifeops.observe.prom4j.builder.PromQueryCoalescer;
 import works.lifeops.observe.prom4j.builder.PromQueryService;
+import works.lifeops.observe.prom4j.builder.PromRangeExtentCache;
+import works.lifeops.observe.prom4j.builder.PromRangeSharder;
+import works.lifeops.observe.prom4j.builder.PromSeriesSharder;
 import works.lifeops.observe.prom4j.builder.PromQueryUriBuilderFactory;
 import works.lifeops.observe.prom4j.builder.dto.PromResultMapper;
 
@@ -98,14 +119,69 @@ public class Prom4jAutoConfiguration implements InitializingBean, WebMvcConfigur
     return HttpMessageConverterInstanceHolder.INSTANCE;
   }
   
+  @Bean("prom4jResponseDecoder")
+  PromResponseDecoder prom4jResponseDecoder() {
+    long parallelThreshold = prom4jProperties.getResponse().getParallelThreshold().toBytes();
+    return new PromResponseDecoder(ObjectMapperInstanceHolder.INSTANCE,
+                                   (int) Math.min(Math.max(parallelThreshold, 1), Integer.MAX_VALUE),
+                                   ForkJoinPool.commonPool());
+  }
+
+  @Bean(name = "prom4jConnectionManager", destroyMethod = "close")
+  @ConditionalOnProperty(prefix = "prom4j.http", name = "client", havingValue = "http-components",
+      matchIfMissing = true)
+  PoolingHttpClientConnectionManager prom4jConnectionManager() {
+    return Prom4jHttpClients.connectionManager(prom4jProperties.getHttp());
+  }
+
+  /**
+   * The Apache HttpClient of the "prom4j.http.client=http-components" {@code RestTemplate}, created only for it, and
+   * closed with its connection evicting thread.
+   */
+  @Bean(name = "prom4jHttpClient", destroyMethod = "close")
+  @ConditionalOnProperty(prefix = "prom4j.http", name = "client", havingValue = "http-components",
+      matchIfMissing = true)
+  @Lazy
+  CloseableHttpClient prom4jHttpClient(
+      @Qualifier("prom4jConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
+    return Prom4jHttpClients.httpClient(connectionManager, prom4jProperties.getHttp());
+  }
+
+  @Bean(name = "prom4jBlockingExecutor", destroyMethod = "close")
+  PromBlockingExecutor prom4jBlockingExecutor() {
+    Prom4jProperties.Blocking blocking = prom4jProperties.getBlocking();
+    return PromBlockingExecutor.create(blocking.isVirtualThreads(), blocking.getMaxThreads());
+  }
+
   @Bean("prom4jRestTemplate")
-  RestTemplate prom4jServerRestTemplate() {
+  RestTemplate prom4jServerRestTemplate(
+      @Qualifier("prom4jHttpClient") ObjectProvider<CloseableHttpClient> httpClient,
+      @Qualifier("prom4jBlockingExecutor") PromBlockingExecutor blockingExecutor,
+      @Qualifier("prom4jResponseDecoder") PromResponseDecoder responseDecoder) {
+    List<HttpMessageConverter<?>> messageConverters = Lists.newArrayList();
+    if (isNativeDecoder()) {
+      messageConverters.add(new PromResponseHttpMessageConverter(responseDecoder));
+    }
+    messageConverters.add(prom4jMessageConverter());
+
     return new RestTemplateBuilder()
         .rootUri(PROMETHEUS_SERVER_BASE_URI)
-        .messageConverters(prom4jMessageConverter())
+        .requestFactory(() -> requestFactory(httpClient, blockingExecutor))
+        .messageConverters(messageConverters)
         .build();
   }
 
+  private ClientHttpRequestFactory requestFactory(ObjectProvider<CloseableHttpClient> httpClient,
+                                                  PromBlockingExecutor blockingExecutor) {
+    Prom4jProperties.Http http = prom4jProperties.getHttp();
+    if (http.getClient() == Prom4jProperties.Http.Client.JDK) {
+      // The platform threads are left to the client's own executor, they may all be blocked on the responses
+      return Prom4jHttpClients.jdkRequestFactory(http,
+                                                 blockingExecutor.isVirtual() ? blockingExecutor.getExecutor() : null);
+    }
+    return Prom4jHttpClients.requestFactory(httpClient.getObject(), http);
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     PROMETHEUS_SERVER_BASE_URI = prom4jProperties.getPrometheus().getServer().getBaseUri();
@@ -117,20 +193,84 @@ public class Prom4jAutoConfiguration implements InitializingBean, WebMvcConfigur
     converters.add(HttpMessageConverterInstanceHolder.INSTANCE);
   }
 
+  @Bean(name = "prom4jConnectionProvider", destroyMethod = "dispose")
+  ConnectionProvider prom4jConnectionProvider() {
+    return Prom4jHttpClients.connectionProvider(prom4jProperties.getHttp());
+  }
+
   @Bean("prom4jWebClient")
-  WebClient prom4jWebClient() {
+  WebClient prom4jWebClient(@Qualifier("prom4jConnectionProvider") ConnectionProvider connectionProvider,
+                            @Qualifier("prom4jResponseDecoder") PromResponseDecoder responseDecoder) {
     // TODO: Add OAuth configuration once the Prometheus server is secured
     return WebClient.builder()
         .uriBuilderFactory(UriBuilderFactoryInstanceHolder.INSTANCE)
+        .clientConnector(Prom4jHttpClients.clientConnector(connectionProvider, prom4jProperties.getHttp()))
         .codecs(configurer -> {
           configurer.defaultCodecs().jackson2JsonEncoder(
               new Jackson2JsonEncoder(prom4jObjectMapper(), MediaType.APPLICATION_JSON));
           configurer.defaultCodecs().jackson2JsonDecoder(
               new Jackson2JsonDecoder(prom4jObjectMapper(), MediaType.APPLICATION_JSON));
+          if (isNativeDecoder()) {
+            configurer.customCodecs().registerWithDefaultConfig(
+                new PromResponseDataBufferDecoder(responseDecoder));
+          }
         })
         .build();
   }
 
+  @Bean("prom4jQueryCache")
+  PromQueryCache prom4jQueryCache() {
+    Prom4jProperties.Cache cache = prom4jProperties.getCache();
+    if (!cache.isEnabled()) {
+      return PromQueryCache.DISABLED;
+    }
+    PromQueryCache.Builder builder = PromQueryCache.builder()
+        .maximumSize(cache.getMaxEntries())
+        .ttl(PromQuery.QueryType.INSTANT, cache.getTtl().getInstant())
+        .ttl(PromQuery.QueryType.RANGE, cache.getTtl().getRange())
+        .alignToStep(cache.isAlignToStep());
+    if (cache.getMaxSize() != null) {
+      builder.maximumWeight(cache.getMaxSize().toBytes());
+    }
+    return builder.build();
+  }
+
+  @Bean("prom4jRangeExtentCache")
+  PromRangeExtentCache prom4jRangeExtentCache() {
+    Prom4jProperties.Cache.Extent extent = prom4jProperties.getCache().getExtent();
+    if (!extent.isEnabled()) {
+      return PromRangeExtentCache.DISABLED;
+    }
+    return PromRangeExtentCache.builder()
+        .maximumSize(extent.getMaxEntries())
+        .expireAfterAccess(extent.getExpireAfterAccess())
+        .staleness(extent.getStaleness())
+        .build();
+  }
+
+  @Bean("prom4jQueryCoalescer")
+  PromQueryCoalescer prom4jQueryCoalescer() {
+    return prom4jProperties.getCoalescing().isEnabled() ? PromQueryCoalescer.create() : PromQueryCoalescer.DISABLED;
+  }
+
+  @Bean("prom4jRangeSharder")
+  PromRangeSharder prom4jRangeSharder() {
+    Prom4jProperties.Sharding sharding = prom4jProperties.getSharding();
+    return sharding.isEnabled() ? PromRangeSharder.of(sharding.getShardSize()) : PromRangeSharder.DISABLED;
+  }
+
+  @Bean("prom4jSeriesSharder")
+  PromSeriesSharder prom4jSeriesSharder() {
+    Prom4jProperties.Sharding.Series series = prom4jProperties.getSharding().getSeries();
+    return series.isEnabled() ?
+        PromSeriesSharder.of(series.getLabel(), series.getPartitions()) :
+        PromSeriesSharder.DISABLED;
+  }
+
+  private boolean isNativeDecoder() {
+    return prom4jProperties.getResponse().getDecoder() == Prom4jProperties.Response.Decoder.NATIVE;
+  }
+
   @Configuration(proxyBeanMethods = false)
   @ConditionalOnClass(PromQueryService.class)
   public static class PromQueryServiceConfiguration {
@@ -138,12 +278,58 @@ public class Prom4jAutoConfiguration implements InitializingBean, WebMvcConfigur
     @ConditionalOnMissingBean
     PromQueryService promQueryService(@Qualifier("prom4jWebClient") WebClient prom4jWebClient,
                                       @Qualifier("prom4jRestTemplate") RestTemplate prom4jRestTemplate,
-                                      @Qualifier("promResultMapper") PromResultMapper resultMapper) {
+                                      @Qualifier("promResultMapper") PromResultMapper resultMapper,
+                                      @Qualifier("prom4jQueryCache") PromQueryCache queryCache,
+                                      @Qualifier("prom4jRangeExtentCache") PromRangeExtentCache rangeExtentCache,
+                                      @Qualifier("prom4jQueryCoalescer") PromQueryCoalescer queryCoalescer,
+                                      @Qualifier("prom4jRangeSharder") PromRangeSharder rangeSharder,
+                                      @Qualifier("prom4jSeriesSharder") PromSeriesSharder seriesSharder,
+                                      @Qualifier("prom4jBlockingExecutor") PromBlockingExecutor blockingExecutor,
+                                      Prom4jProperties prom4jProperties) {
       return new PromQueryService(prom4jWebClient,
                                   prom4jRestTemplate,
                                   UriBuilderFactoryInstanceHolder.INSTANCE,
                                   ObjectMapperInstanceHolder.INSTANCE,
-                                  resultMapper);
+                                  resultMapper,
+                                  queryCache,
+                                  rangeExtentCache,
+                                  queryCoalescer,
+                                  rangeSharder,
+                                  seriesSharder,
+                                  blockingExecutor,
+                                  prom4jProperties.getBatch().getMaxConcurrency());
+    }
+  }
+
+  /**
+   * Binds the hits, misses, evictions and size of the results cache to Micrometer as the "prom4j.query" cache. The
+   * binder is bound to the meter registries by Spring Boot Actuator whenever they are created.
+   */
+  @Configuration(proxyBeanMethods = false)
+  @ConditionalOnClass(MeterBinder.class)
+  @ConditionalOnProperty(prefix = "prom4j.cache", name = "enabled")
+  public static class PromQueryCacheMetricsConfiguration {
+    @Bean
+    MeterBinder prom4jQueryCacheMetrics(@Qualifier("prom4jQueryCache") PromQueryCache queryCache) {
+      return meterRegistry -> queryCache.getCache()
+          .ifPresent(cache -> CaffeineCacheMetrics.monitor(meterRegistry, cache, "prom4j.query"));
+    }
+  }
+
+  /**
+   * Binds the occupancy of the RestTemplate connection pool to Micrometer as the "httpcomponents.httpclient.pool.*"
+   * meters tagged "prom4j". The WebClient connection pool records its own "reactor.netty.connection.provider.*" meters
+   * to the global registry.
+   */
+  @Configuration(proxyBeanMethods = false)
+  @ConditionalOnClass(MeterBinder.class)
+  @ConditionalOnProperty(prefix = "prom4j.http", name = "client", havingValue = "http-components",
+      matchIfMissing = true)
+  public static class Prom4jConnectionPoolMetricsConfiguration {
+    @Bean
+    MeterBinder prom4jConnectionPoolMetrics(
+        @Qualifier("prom4jConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
+      return new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "prom4j");
     }
   }
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.autoconfigure;
+
+import java.util.concurrent.Executor;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.util.ClassUtils;
+
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import works.lifeops.observe.prom4j.Prom4jProperties;
+import works.lifeops.observe.prom4j.builder.PromHttpComponentsRequestFactory;
+
+/**
+ * Creates the pooled HTTP clients to the Prometheus server: Apache HttpClient 5, or the JDK HttpClient, for the
+ * {@code RestTemplate} and Reactor Netty for the {@code WebClient}, all configured by the "prom4j.http" properties.
+ *
+ * @author Li Wan
+ */
+final class Prom4jHttpClients {
+  /**
+   * The name of the Reactor Netty connection pool, and of its metrics.
+   */
+  static final String POOL_NAME = "prom4j";
+
+  private Prom4jHttpClients() {}
+
+  // Blocking
+
+  static PoolingHttpClientConnectionManager connectionManager(Prom4jProperties.Http http) {
+    return PoolingHttpClientConnectionManagerBuilder.create()
+        // There is only one route, to the Prometheus server
+        .setMaxConnTotal(http.getMaxConnections())
+        .setMaxConnPerRoute(http.getMaxConnections())
+        .setDefaultConnectionConfig(ConnectionConfig.custom()
+            .setConnectTimeout(Timeout.ofMilliseconds(http.getConnectTimeout().toMillis()))
+            .setSocketTimeout(Timeout.ofMilliseconds(http.getReadTimeout().toMillis()))
+            .setTimeToLive(TimeValue.ofMilliseconds(http.getMaxLifeTime().toMillis()))
+            .build())
+        .build();
+  }
+
+  /**
+   * Creates the Apache HttpClient over the shared {@code connectionManager}. Its expired and idle connections are
+   * evicted by a thread of its own, which is stopped by closing the client.
+   */
+  static CloseableHttpClient httpClient(PoolingHttpClientConnectionManager connectionManager,
+                                        Prom4jProperties.Http http) {
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        // The connection manager is closed by Spring as a bean of its own
+        .setConnectionManagerShared(true)
+        .evictExpiredConnections()
+        .evictIdleConnections(TimeValue.ofMilliseconds(http.getMaxIdleTime().toMillis()))
+        .build();
+  }
+
+  static ClientHttpRequestFactory requestFactory(CloseableHttpClient httpClient, Prom4jProperties.Http http) {
+    HttpComponentsClientHttpRequestFactory requestFactory = new PromHttpComponentsRequestFactory(httpClient);
+    requestFactory.setConnectionRequestTimeout((int) http.getPendingAcquireTimeout().toMillis());
+    return requestFactory;
+  }
+
+  /**
+   * Creates a request factory of the JDK HttpClient, whose blocking sends park a virtual thread rather than pin its
+   * carrier. The {@code executor} runs the asynchronous parts of the client, e.g. the virtual threads of the
+   * {@link works.lifeops.observe.prom4j.builder.PromBlockingExecutor}, or the default executor of the client if null.
+   */
+  static ClientHttpRequestFactory jdkRequestFactory(Prom4jProperties.Http http, Executor executor) {
+    java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+        .connectTimeout(http.getConnectTimeout());
+    if (executor != null) {
+      builder.executor(executor);
+    }
+    java.net.http.HttpClient httpClient = builder.build();
+    JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+    requestFactory.setReadTimeout(http.getReadTimeout());
+    return requestFactory;
+  }
+
+  // Reactive
+
+  static ConnectionProvider connectionProvider(Prom4jProperties.Http http) {
+    return ConnectionProvider.builder(POOL_NAME)
+        .maxConnections(http.getMaxConnections())
+        .maxIdleTime(http.getMaxIdleTime())
+        .maxLifeTime(http.getMaxLifeTime())
+        .pendingAcquireTimeout(http.getPendingAcquireTimeout())
+        .evictInBackground(http.getMaxIdleTime())
+        // Reactor Netty refuses to record metrics without Micrometer
+        .metrics(ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry",
+                                      Prom4jHttpClients.class.getClassLoader()))
+        .build();
+  }
+
+  static ClientHttpConnector clientConnector(ConnectionProvider connectionProvider, Prom4jProperties.Http http) {
+    HttpClient httpClient = HttpClient.create(connectionProvider)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) http.getConnectTimeout().toMillis())
+        .responseTimeout(http.getReadTimeout());
+    return new ReactorClientHttpConnector(httpClient);
+  }
+}
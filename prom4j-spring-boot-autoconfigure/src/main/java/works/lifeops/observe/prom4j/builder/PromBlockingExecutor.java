@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the blocking queries of {@link PromQueryService#queryAllBlocking(java.util.Collection)} concurrently, each on
+ * a thread of its own. On Java 21 and later the threads are virtual: a blocked query only holds its few kilobytes of
+ * stack rather than a platform thread, so a request that fans out to many queries costs no more threads than one that
+ * doesn't. Before Java 21 the queries run on a bounded pool of platform threads.
+ *
+ * The queries of a {@link #invokeAll(List)} are scoped to it: once one fails the others are cancelled and the call
+ * returns only after all of them have finished. Cancelling interrupts a query, and runs the actions it registered with
+ * {@link #onCancel(Runnable)}, e.g. the {@link PromHttpComponentsRequestFactory} aborts its requests, whose blocked
+ * socket reads an interrupt does not end.
+ *
+ * @author Li Wan
+ */
+@Beta
+@Slf4j
+public class PromBlockingExecutor implements AutoCloseable {
+  /**
+   * Creates an executor of virtual threads if the runtime supports them, of at most {@code maxThreads} platform
+   * threads otherwise.
+   */
+  public static PromBlockingExecutor create(boolean virtualThreads, int maxThreads) {
+    if (virtualThreads) {
+      ExecutorService executor = newVirtualThreadPerTaskExecutor();
+      if (executor != null) {
+        return new PromBlockingExecutor(executor, true);
+      }
+      log.info("Virtual threads need Java 21 or later, running the blocking queries on platform threads.");
+    }
+    return platform(maxThreads);
+  }
+
+  public static PromBlockingExecutor platform(int maxThreads) {
+    Preconditions.checkArgument(maxThreads > 0, "The maximum number of threads must be positive.");
+    ExecutorService executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactoryBuilder()
+        .setNameFormat("prom4j-blocking-%d")
+        .setDaemon(true)
+        .build());
+    return new PromBlockingExecutor(executor, false);
+  }
+
+  /**
+   * Calls {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively, the sources are compiled for Java 17.
+   */
+  static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException roe) {
+      return null;
+    }
+  }
+
+  // The task of invokeAll running on the thread, for onCancel
+  private static final ThreadLocal<Task<?>> CURRENT_TASK = new ThreadLocal<>();
+
+  /**
+   * Registers an action to be run if the task of {@link #invokeAll(List)} that runs on the current thread is
+   * cancelled, e.g. aborting its HTTP request. The action may be run more than once, or even after the request has
+   * completed, so it must be idempotent. Does nothing on a thread not running such a task.
+   */
+  public static void onCancel(Runnable action) {
+    Task<?> task = CURRENT_TASK.get();
+    if (task != null) {
+      task.onCancel(action);
+    }
+  }
+
+  /**
+   * Whether the task of {@link #invokeAll(List)} that runs on the current thread has been cancelled, false on a thread
+   * not running such a task.
+   */
+  static boolean isCancelled() {
+    Task<?> task = CURRENT_TASK.get();
+    return task != null && task.cancelled;
+  }
+
+  private final ExecutorService executor;
+  private final boolean virtual;
+
+  private PromBlockingExecutor(ExecutorService executor, boolean virtual) {
+    this.executor = executor;
+    this.virtual = virtual;
+  }
+
+  /**
+   * Whether the queries run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Gets the underlying executor, e.g. for the JDK {@code HttpClient} to run on.
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Runs the tasks concurrently and returns their results in the order of the tasks. The first exception is rethrown
+   * once the other tasks have been cancelled and have finished. If the calling thread is interrupted the tasks are
+   * cancelled likewise and a {@link CancellationException} is thrown with the interrupt status kept.
+   */
+  public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+    return invokeAll(tasks, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Runs the tasks as {@link #invokeAll(List)} does, at most {@code maxConcurrency} of them at a time. The others wait
+   * on their threads, which costs nothing but their stacks on virtual threads.
+   */
+  public <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0, "The maximum concurrency must be positive.");
+    Semaphore permits = new Semaphore(maxConcurrency);
+    CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+    List<Task<T>> scopedTasks = Lists.newArrayListWithCapacity(tasks.size());
+    List<Future<T>> futures = Lists.newArrayListWithCapacity(tasks.size());
+    try {
+      for (Callable<T> task : tasks) {
+        scopedTasks.add(new Task<>(task, permits));
+      }
+      for (Task<T> scopedTask : scopedTasks) {
+        futures.add(completionService.submit(scopedTask));
+      }
+      // In the order of completion so that a failure cancels the others as soon as it happens
+      for (int i = 0; i < futures.size(); i++) {
+        completionService.take().get();
+      }
+      List<T> results = Lists.newArrayListWithCapacity(futures.size());
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (ExecutionException ee) {
+      cancel(scopedTasks, futures);
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CompletionException(cause);
+    } catch (InterruptedException ie) {
+      cancel(scopedTasks, futures);
+      Thread.currentThread().interrupt();
+      CancellationException ce = new CancellationException("Interrupted while waiting for the queries.");
+      ce.initCause(ie);
+      throw ce;
+    } catch (RuntimeException | Error e) {
+      // E.g. rejected once closed
+      cancel(scopedTasks, futures);
+      throw e;
+    }
+  }
+
+  /**
+   * Cancels the tasks and waits for the running ones to finish.
+   */
+  private static void cancel(List<? extends Task<?>> tasks, List<? extends Future<?>> futures) {
+    for (Task<?> task : tasks) {
+      task.cancel();
+    }
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+    for (Task<?> task : tasks) {
+      Uninterruptibles.awaitUninterruptibly(task.finished);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A task of {@link #invokeAll(List, int)}, which knows when it has finished, or is never to run.
+   */
+  private static final class Task<T> implements Callable<T> {
+    private final Callable<T> callable;
+    private final Semaphore permits;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<Runnable> cancelActions = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+
+    private Task(Callable<T> callable, Semaphore permits) {
+      this.callable = callable;
+      this.permits = permits;
+    }
+
+    @Override
+    public T call() throws Exception {
+      if (!claimed.compareAndSet(false, true)) {
+        // Cancelled before it started
+        return null;
+      }
+      CURRENT_TASK.set(this);
+      try {
+        permits.acquire();
+        try {
+          return callable.call();
+        } finally {
+          permits.release();
+        }
+      } finally {
+        CURRENT_TASK.remove();
+        finished.countDown();
+      }
+    }
+
+    private void onCancel(Runnable action) {
+      cancelActions.add(action);
+      if (cancelled) {
+        // Cancelled while registering
+        run(action);
+      }
+    }
+
+    private void cancel() {
+      cancelled = true;
+      if (claimed.compareAndSet(false, true)) {
+        finished.countDown();
+        return;
+      }
+      for (Runnable action : cancelActions) {
+        run(action);
+      }
+    }
+
+    private static void run(Runnable action) {
+      try {
+        action.run();
+      } catch (RuntimeException re) {
+        log.warn("Failed to run a cancel action of a blocking query.", re);
+      }
+    }
+  }
+}
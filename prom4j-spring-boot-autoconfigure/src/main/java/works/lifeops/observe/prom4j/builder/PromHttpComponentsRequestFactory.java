@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.hc.client5.http.classic.HttpClient;
+import org.apache.hc.core5.concurrent.Cancellable;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A {@link HttpComponentsClientHttpRequestFactory} whose responses can be aborted with
+ * {@link #abort(ClientHttpResponse)}. Closing a response, or its body, reads the rest of the body to reuse the
+ * connection, so a response streamed by {@link PromQueryService#querySeries} or {@link PromQueryService#streamSeries}
+ * would be read whole even when terminated early. Aborting closes the connection instead.
+ *
+ * A request created on a thread of {@link PromBlockingExecutor#invokeAll(java.util.List)} is also aborted when its
+ * task is cancelled, since an interrupt does not end a blocked socket read.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromHttpComponentsRequestFactory extends HttpComponentsClientHttpRequestFactory {
+  // Hands the request created by createHttpUriRequest over to createRequest, which calls it on the same thread
+  private static final ThreadLocal<Cancellable> CREATED_REQUEST = new ThreadLocal<>();
+
+  public PromHttpComponentsRequestFactory(HttpClient httpClient) {
+    super(httpClient);
+  }
+
+  /**
+   * Aborts the exchange of a response created by this factory, closing its connection rather than reading the rest of
+   * its body, and returns whether it did. The response, and its body, are still to be closed as usual, which no
+   * longer throws. A response of another factory is left as is, e.g. of the JDK HttpClient, which does not read the
+   * rest of the body on closing.
+   */
+  public static boolean abort(ClientHttpResponse response) {
+    if (response instanceof AbortableResponse) {
+      ((AbortableResponse) response).abort();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+    try {
+      ClientHttpRequest request = super.createRequest(uri, httpMethod);
+      Cancellable cancellable = CREATED_REQUEST.get();
+      if (cancellable == null) {
+        return request;
+      }
+      PromBlockingExecutor.onCancel(cancellable::cancel);
+      return new AbortableRequest(request, cancellable);
+    } finally {
+      CREATED_REQUEST.remove();
+    }
+  }
+
+  @Override
+  protected ClassicHttpRequest createHttpUriRequest(HttpMethod httpMethod, URI uri) {
+    ClassicHttpRequest request = super.createHttpUriRequest(httpMethod, uri);
+    if (request instanceof Cancellable) {
+      CREATED_REQUEST.set((Cancellable) request);
+    }
+    return request;
+  }
+
+  private static final class AbortableRequest implements ClientHttpRequest {
+    private final ClientHttpRequest request;
+    private final Cancellable cancellable;
+
+    private AbortableRequest(ClientHttpRequest request, Cancellable cancellable) {
+      this.request = request;
+      this.cancellable = cancellable;
+    }
+
+    @Override
+    public ClientHttpResponse execute() throws IOException {
+      return new AbortableResponse(request.execute(), cancellable);
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+      return request.getBody();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return request.getHeaders();
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+      return request.getMethod();
+    }
+
+    @Override
+    public URI getURI() {
+      return request.getURI();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return request.getAttributes();
+    }
+  }
+
+  private static final class AbortableResponse implements ClientHttpResponse {
+    private final ClientHttpResponse response;
+    private final Cancellable cancellable;
+    private volatile boolean aborted;
+    private InputStream body;
+
+    private AbortableResponse(ClientHttpResponse response, Cancellable cancellable) {
+      this.response = response;
+      this.cancellable = cancellable;
+    }
+
+    private void abort() {
+      aborted = true;
+      cancellable.cancel();
+    }
+
+    @Override
+    public HttpStatusCode getStatusCode() throws IOException {
+      return response.getStatusCode();
+    }
+
+    @Override
+    public String getStatusText() throws IOException {
+      return response.getStatusText();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return response.getHeaders();
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      if (body == null) {
+        body = new FilterInputStream(response.getBody()) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } catch (IOException ioe) {
+              // The rest of the body of an aborted response cannot be read, nor is it meant to be
+              if (!aborted) {
+                throw ioe;
+              }
+            }
+          }
+        };
+      }
+      return body;
+    }
+
+    @Override
+    public void close() {
+      response.close();
+    }
+  }
+}
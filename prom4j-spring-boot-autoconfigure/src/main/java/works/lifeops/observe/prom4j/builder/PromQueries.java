@@ -21,6 +21,7 @@ import java.util.function.Function;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriBuilder;
+import org.springframework.web.util.UriBuilderFactory;
 import org.springframework.web.util.UriUtils;
 
 import com.google.common.base.Preconditions;
@@ -84,34 +85,8 @@ public final class PromQueries {
    */
   public static MultiValueMap<String, String> toMultiValueMap(PromQuery promQuery) {
     MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<String, String>();
-    if (promQuery.is(PromQuery.QueryType.INSTANT)) {
-      queryParams.add(promQuery.type.parameter(), promQuery.getQuery());
-      promQuery.asInstant().time()
-          .ifPresent(time -> queryParams.add("time", time));
-    }
-    if (promQuery.is(PromQuery.QueryType.RANGE)) {
-      queryParams.add(promQuery.type.parameter(), promQuery.getQuery());
-      // The instanceof is added solely for AggregatedQuery, remove it after we come to an ideal version of Aggregated
-      // queries
-      if (promQuery instanceof PromQuery.RangeQuery) {
-        promQuery.asRange().start()
-            .ifPresent(start -> queryParams.add("start", start));
-        promQuery.asRange().end()
-            .ifPresent(end -> queryParams.add("end", end));
-        promQuery.asRange().step()
-            .ifPresent(step -> queryParams.add("step", step.toString()));
-      }
-      if (promQuery instanceof PromQuery.AggregatedQuery) {
-        PromQuery.AggregatedQuery aggregatedQuery = (PromQuery.AggregatedQuery) promQuery;
-        aggregatedQuery.start().ifPresent(start -> queryParams.add("start", start));
-        aggregatedQuery.end().ifPresent(end -> queryParams.add("end", end));
-        aggregatedQuery.step().ifPresent(step -> queryParams.add("step", step.toString()));
-      }
-    }
-    if (promQuery.is(PromQuery.QueryType.SERIES) || promQuery.is(PromQuery.QueryType.LABELS) ||
-        promQuery.is(PromQuery.QueryType.LABELS_VALUES)) {
-      queryParams.addAll(promQuery.type.parameter(), promQuery.asMetadata().matches());
-    }
+    // The parameters are rendered by the PromQuery once and memoized
+    promQuery.getParameters().forEach(queryParams::add);
     // TODO: Support the "timeout" parameter for both Instant and Range queries
 
     return queryParams;
@@ -137,6 +112,14 @@ public final class PromQueries {
         .build();
   }
 
+  /**
+   * Creates the URI of the {@link PromQuery} with a {@link UriBuilder} of the given {@link UriBuilderFactory}. The URI
+   * is memoized by the PromQuery for the factory, a query executed repeatedly is only rendered and encoded once.
+   */
+  public static URI createUri(UriBuilderFactory uriBuilderFactory, PromQuery promQuery) {
+    return promQuery.getUri(uriBuilderFactory, query -> createUri(uriBuilderFactory.builder(), query));
+  }
+
   public static Function<UriBuilder, URI> createUriFunc(PromQuery promQuery) {
     return uriBuilder -> createUri(uriBuilder, promQuery);
   }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.springframework.http.ResponseEntity;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+
+import reactor.core.publisher.Mono;
+import works.lifeops.observe.prom4j.builder.dto.PromResult;
+
+/**
+ * The results cache of the {@link PromQueryService}, keyed by the {@link PromQuery#getFingerprint() fingerprint} of
+ * the queries so that semantically identical queries share an entry. Backed by Caffeine, its W-TinyLFU eviction keeps
+ * the frequently queried results (e.g. the panels of a dashboard) over the ones that are queried once.
+ *
+ * Each query type has its own time-to-live, a type without one is not cached. The range queries are aligned to their
+ * step so that the ones issued within the same step share an entry, as a dashboard refreshing its panels does.
+ *
+ * The cached results are shared between the callers and must not be modified.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromQueryCache {
+  /**
+   * A cache that caches nothing and does not align the queries.
+   */
+  public static final PromQueryCache DISABLED = new PromQueryCache(null, new EnumMap<>(PromQuery.QueryType.class), false);
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private long maximumSize = 10_000;
+    private long maximumWeight = -1;
+    private final Map<PromQuery.QueryType, Duration> ttl = new EnumMap<>(PromQuery.QueryType.class);
+    private boolean alignToStep = true;
+    private Ticker ticker = Ticker.systemTicker();
+
+    private Builder() {}
+
+    /**
+     * The maximum number of cached results.
+     */
+    public Builder maximumSize(long maximumSize) {
+      Preconditions.checkArgument(maximumSize >= 0, "The maximum size can't be negative.");
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * The maximum estimated size in bytes of the cached results, it takes the place of the {@link #maximumSize(long)}.
+     */
+    public Builder maximumWeight(long maximumBytes) {
+      Preconditions.checkArgument(maximumBytes >= 0, "The maximum weight can't be negative.");
+      this.maximumWeight = maximumBytes;
+      return this;
+    }
+
+    /**
+     * The time-to-live of the results of a query type, {@code null} or zero not to cache them.
+     */
+    public Builder ttl(PromQuery.QueryType type, Duration ttl) {
+      if (ttl == null || ttl.isZero() || ttl.isNegative()) {
+        this.ttl.remove(type);
+      } else {
+        this.ttl.put(type, ttl);
+      }
+      return this;
+    }
+
+    public Builder alignToStep(boolean alignToStep) {
+      this.alignToStep = alignToStep;
+      return this;
+    }
+
+    Builder ticker(Ticker ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
+    public PromQueryCache build() {
+      Caffeine<Key, Object> caffeine = Caffeine.newBuilder()
+          .expireAfter(new TtlExpiry(ttl))
+          .ticker(ticker)
+          .recordStats();
+      if (maximumWeight >= 0) {
+        caffeine.maximumWeight(maximumWeight).weigher((key, value) -> estimateSize(value));
+      } else {
+        caffeine.maximumSize(maximumSize);
+      }
+      return new PromQueryCache(caffeine.build(), ttl, alignToStep);
+    }
+  }
+
+  /**
+   * The representations of a result, e.g. a {@code PromResponse} and the {@code List<PromResult.SampleResult>} of the
+   * same query, are cached apart.
+   */
+  @lombok.EqualsAndHashCode
+  private static final class Key {
+    private final PromQuery.QueryType type;
+    private final HashCode fingerprint;
+    private final String view;
+
+    private Key(PromQuery promQuery, String view) {
+      this.type = promQuery.type;
+      this.fingerprint = promQuery.getFingerprint();
+      this.view = view;
+    }
+  }
+
+  private static final class TtlExpiry implements Expiry<Key, Object> {
+    private final Map<PromQuery.QueryType, Long> ttlNanos = new EnumMap<>(PromQuery.QueryType.class);
+
+    private TtlExpiry(Map<PromQuery.QueryType, Duration> ttl) {
+      ttl.forEach((type, duration) -> ttlNanos.put(type, duration.toNanos()));
+    }
+
+    @Override
+    public long expireAfterCreate(Key key, Object value, long currentTime) {
+      return ttlNanos.getOrDefault(key.type, 0L);
+    }
+
+    @Override
+    public long expireAfterUpdate(Key key, Object value, long currentTime, long currentDuration) {
+      return ttlNanos.getOrDefault(key.type, 0L);
+    }
+
+    @Override
+    public long expireAfterRead(Key key, Object value, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  private final Cache<Key, Object> cache;
+  private final Map<PromQuery.QueryType, Duration> ttl;
+  private final boolean alignToStep;
+
+  private PromQueryCache(Cache<Key, Object> cache, Map<PromQuery.QueryType, Duration> ttl, boolean alignToStep) {
+    this.cache = cache;
+    this.ttl = new EnumMap<>(ttl);
+    this.alignToStep = alignToStep;
+  }
+
+  /**
+   * Gets the underlying Caffeine cache, e.g. to bind it to Micrometer, or empty if the cache is disabled.
+   */
+  public Optional<Cache<?, ?>> getCache() {
+    return Optional.ofNullable(cache);
+  }
+
+  /**
+   * Gets the hits, misses and evictions of the cache.
+   */
+  public CacheStats stats() {
+    return cache == null ? CacheStats.empty() : cache.stats();
+  }
+
+  public void invalidateAll() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  private boolean isCached(PromQuery promQuery) {
+    return cache != null && ttl.containsKey(promQuery.type);
+  }
+
+  /**
+   * Gets the cached result of the query, or loads and caches it.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T get(PromQuery promQuery, String view, Supplier<T> loader) {
+    if (!isCached(promQuery)) {
+      return loader.get();
+    }
+    Key key = new Key(promQuery, view);
+    T result = (T) cache.getIfPresent(key);
+    if (result == null) {
+      result = loader.get();
+      put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the cached result of the query, or subscribes to the loader and caches the result it emits.
+   */
+  @SuppressWarnings("unchecked")
+  <T> Mono<T> getMono(PromQuery promQuery, String view, Supplier<Mono<T>> loader) {
+    if (!isCached(promQuery)) {
+      return Mono.defer(loader);
+    }
+    Key key = new Key(promQuery, view);
+    return Mono.defer(() -> {
+      T result = (T) cache.getIfPresent(key);
+      return result != null ? Mono.just(result) : loader.get().doOnNext(loaded -> put(key, loaded));
+    });
+  }
+
+  private void put(Key key, Object result) {
+    // The error responses throw before getting here
+    if (result != null) {
+      cache.put(key, result);
+    }
+  }
+
+  /**
+   * Aligns the start and the end of a range query down to a multiple of its step, the other queries are returned as
+   * they are. The aligned query is evaluated at the same timestamps as any other query aligned the same way, which is
+   * what makes it cacheable.
+   */
+  PromQuery align(PromQuery promQuery) {
+    if (!alignToStep || !isCached(promQuery) || !(promQuery instanceof PromQuery.RangeQuery)) {
+      return promQuery;
+    }
+    PromQuery.RangeQuery rangeQuery = (PromQuery.RangeQuery) promQuery;
+    if (rangeQuery.start().isEmpty() || rangeQuery.end().isEmpty() || rangeQuery.step().isEmpty() ||
+        rangeQuery.step().get() <= 0) {
+      return promQuery;
+    }
+    Optional<String> start = alignToStep(rangeQuery.start().get(), rangeQuery.step().get());
+    Optional<String> end = alignToStep(rangeQuery.end().get(), rangeQuery.step().get());
+    if (start.isEmpty() || end.isEmpty()) {
+      return promQuery;
+    }
+    return rangeQuery.withRange(start.get(), end.get());
+  }
+
+  private static Optional<String> alignToStep(String time, int step) {
+    try {
+      BigDecimal seconds = new BigDecimal(PromQuery.canonicalTime(time));
+      BigDecimal stepSeconds = BigDecimal.valueOf(step);
+      return Optional.of(seconds.divide(stepSeconds, 0, RoundingMode.FLOOR).multiply(stepSeconds).toPlainString());
+    } catch (NumberFormatException nfe) {
+      return Optional.empty();
+    }
+  }
+
+  // Weighing
+
+  private static final int SERIES_SIZE = 64;
+  private static final int LABEL_SIZE = 96;
+  private static final int SAMPLE_SIZE = 48;
+
+  /**
+   * Estimates the retained size in bytes of a result: the series with their labels and samples, the rest is
+   * negligible next to them.
+   */
+  static int estimateSize(Object result) {
+    long size = estimate(result);
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  private static long estimate(Object result) {
+    if (result instanceof ResponseEntity) {
+      return SERIES_SIZE + estimate(((ResponseEntity<?>) result).getBody());
+    } else if (result instanceof PromResponse) {
+      PromResponse.Data<?> data = ((PromResponse<?>) result).getData();
+      return SERIES_SIZE + (data == null ? 0 : estimate(data.getResult()));
+    } else if (result instanceof Collection) {
+      long size = SERIES_SIZE;
+      for (Object element : (Collection<?>) result) {
+        size += estimate(element);
+      }
+      return size;
+    } else if (result instanceof PromResponse.VectorResult) {
+      return series(((PromResponse.VectorResult) result).getMetric(), 1);
+    } else if (result instanceof PromResponse.MatrixResult) {
+      PromResponse.MatrixResult matrixResult = (PromResponse.MatrixResult) result;
+      return series(matrixResult.getMetric(), size(matrixResult.getValues()));
+    } else if (result instanceof PromResponse.VectrixResult) {
+      PromResponse.VectrixResult vectrixResult = (PromResponse.VectrixResult) result;
+      return series(vectrixResult.getMetric(), Math.max(size(vectrixResult.getValues()), 1));
+    } else if (result instanceof PromResponse.ColumnarResult) {
+      PromResponse.ColumnarResult columnarResult = (PromResponse.ColumnarResult) result;
+      // The samples are primitive arrays
+      return series(columnarResult.getMetric(), 0) + 16L * columnarResult.size();
+    } else if (result instanceof PromResult.TimeSeriesResult) {
+      PromResult.TimeSeriesResult timeSeriesResult = (PromResult.TimeSeriesResult) result;
+      return series(timeSeriesResult.getLabels(), size(timeSeriesResult.getSamples()));
+    } else if (result instanceof PromResult) {
+      return series(((PromResult) result).getLabels(), 1);
+    }
+    return SERIES_SIZE;
+  }
+
+  private static long series(Map<String, String> labels, int samples) {
+    return SERIES_SIZE + (labels == null ? 0 : (long) LABEL_SIZE * labels.size()) + (long) SAMPLE_SIZE * samples;
+  }
+
+  private static int size(Collection<?> collection) {
+    return collection == null ? 0 : collection.size();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Coalesces the concurrent executions of semantically identical queries, those with the same
+ * {@link PromQuery#getFingerprint() fingerprint}, into one: the first caller sends the request and the ones that come
+ * while it is in flight wait for and share its result, or its error. Nothing is kept once the request completes, for
+ * that see the {@link PromQueryCache}.
+ *
+ * The shared results must not be modified.
+ *
+ * A query is coalesced across the tasks of different {@link PromBlockingExecutor#invokeAll(java.util.List)} calls,
+ * and with the callers outside of them, yet the cancellation of a task only ends its own query: a caller waiting for
+ * the execution of a cancelled task executes the query again rather than sharing its abort, and a cancelled task stops
+ * waiting for the execution of another caller.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromQueryCoalescer {
+  /**
+   * A coalescer that executes every query.
+   */
+  public static final PromQueryCoalescer DISABLED = new PromQueryCoalescer(false);
+
+  public static PromQueryCoalescer create() {
+    return new PromQueryCoalescer(true);
+  }
+
+  /**
+   * The result of an execution ended by the cancellation of its caller's task, the waiting callers execute it again.
+   */
+  private static final Object CANCELLED = new Object();
+
+  /**
+   * The representations of a result, e.g. a {@code PromResponse} and a {@code ResponseEntity} of one, are coalesced
+   * apart.
+   */
+  @lombok.EqualsAndHashCode
+  private static final class Key {
+    private final HashCode fingerprint;
+    private final String view;
+
+    private Key(PromQuery promQuery, String view) {
+      this.fingerprint = promQuery.getFingerprint();
+      this.view = view;
+    }
+  }
+
+  private final boolean enabled;
+  private final ConcurrentMap<Key, CompletableFuture<Object>> blocking = Maps.newConcurrentMap();
+  private final ConcurrentMap<Key, Mono<Object>> reactive = Maps.newConcurrentMap();
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private PromQueryCoalescer(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Gets the number of queries that have been executed.
+   */
+  public long getExecutedCount() {
+    return executed.get();
+  }
+
+  /**
+   * Gets the number of queries that have shared the execution of another.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Gets the number of queries in flight.
+   */
+  public int getInFlightCount() {
+    return blocking.size() + reactive.size();
+  }
+
+  /**
+   * Executes the query with the {@code loader}, or waits for the identical one in flight and returns its result. The
+   * exceptions are rethrown to all the callers, but for those of an execution whose caller's task has been cancelled,
+   * the query is then executed again. A caller whose own task is cancelled while waiting gets a
+   * {@link CancellationException}.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T execute(PromQuery promQuery, String view, Supplier<T> loader) {
+    if (!enabled) {
+      executed.incrementAndGet();
+      return loader.get();
+    }
+    Key key = new Key(promQuery, view);
+    boolean waited = false;
+    for (;;) {
+      CompletableFuture<Object> execution = new CompletableFuture<>();
+      CompletableFuture<Object> inFlight = blocking.putIfAbsent(key, execution);
+      if (inFlight != null) {
+        if (!waited) {
+          waited = true;
+          coalesced.incrementAndGet();
+        }
+        Object result = await(inFlight);
+        if (result != CANCELLED) {
+          return (T) result;
+        }
+        continue;
+      }
+      executed.incrementAndGet();
+      T result;
+      try {
+        result = loader.get();
+      } catch (RuntimeException | Error e) {
+        // Removed before completing, so that the callers executing it again don't find it
+        blocking.remove(key, execution);
+        if (PromBlockingExecutor.isCancelled()) {
+          // Likely aborted by the cancellation, which isn't the result of the query for the others
+          execution.complete(CANCELLED);
+        } else {
+          execution.completeExceptionally(e);
+        }
+        throw e;
+      }
+      blocking.remove(key, execution);
+      execution.complete(result);
+      return result;
+    }
+  }
+
+  private static Object await(CompletableFuture<Object> inFlight) {
+    CompletableFuture<Object> cancelled = new CompletableFuture<>();
+    PromBlockingExecutor.onCancel(() -> cancelled.completeExceptionally(
+        new CancellationException("Cancelled while waiting for the identical query in flight.")));
+    try {
+      // Not interruptible, as if the caller was executing the request itself, but ends once its task is cancelled
+      return Uninterruptibles.getUninterruptibly(CompletableFuture.anyOf(inFlight, cancelled));
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CompletionException(cause);
+    }
+  }
+
+  /**
+   * Executes the query on subscription with the {@code loader}, or subscribes to the identical one in flight. The
+   * request is cancelled once all of its subscribers have cancelled.
+   */
+  @SuppressWarnings("unchecked")
+  <T> Mono<T> executeMono(PromQuery promQuery, String view, Supplier<Mono<T>> loader) {
+    if (!enabled) {
+      return Mono.defer(() -> {
+        executed.incrementAndGet();
+        return loader.get();
+      });
+    }
+    Key key = new Key(promQuery, view);
+    return Mono.defer(() -> {
+      Mono<Object>[] execution = new Mono[1];
+      Mono<Object> inFlight = reactive.computeIfAbsent(key, k -> execution[0] = Mono.defer(() -> {
+            executed.incrementAndGet();
+            return (Mono<Object>) loader.get();
+          })
+          .doFinally(signal -> reactive.remove(k, execution[0]))
+          .share());
+      if (inFlight != execution[0]) {
+        coalesced.incrementAndGet();
+      }
+      return (Mono<T>) inFlight;
+    });
+  }
+}
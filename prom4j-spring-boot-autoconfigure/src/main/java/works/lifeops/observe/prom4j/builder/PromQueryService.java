@@ -14,50 +14,187 @@
 package works.lifeops.observe.prom4j.builder;
 
 import static works.lifeops.observe.prom4j.builder.PromQueries.TEST_QUERY;
-import static works.lifeops.observe.prom4j.builder.PromQueries.createUriFunc;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
-import org.springframework.stereotype.Service;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriBuilderFactory;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Streams;
 
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+import works.lifeops.observe.prom4j.builder.dto.PromMetric;
+import works.lifeops.observe.prom4j.builder.dto.PromMetricDecoder;
 import works.lifeops.observe.prom4j.builder.dto.PromResult;
+import works.lifeops.observe.prom4j.builder.dto.PromResultDeserializer;
 import works.lifeops.observe.prom4j.builder.dto.PromResultMapper;
 
+/**
+ * Queries the Prometheus HTTP API. It is not a component, the bean is created by {@code Prom4jAutoConfiguration} so
+ * that the component scan of an application does not replace it with one without the cache, coalescer and sharders.
+ */
 @Beta
 @SuppressWarnings("unused")
 @Slf4j
-@Service
 public class PromQueryService {
+  private static final int DEFAULT_BLOCKING_THREADS = 16;
+  private static final int DEFAULT_MAX_CONCURRENCY = 16;
+  private static final TypeReference<List<PromResult.SampleResult>> SAMPLE_RESULTS = new TypeReference<>() {};
+  private static final TypeReference<List<PromResult.TimeSeriesResult>> TIME_SERIES_RESULTS = new TypeReference<>() {};
+
+  /**
+   * The order of the responses of {@link PromQueryService#queryAll(Collection, Ordering)}.
+   */
+  public static enum Ordering {
+    /**
+     * In the order of the queries, a response waits for those of the queries before it.
+     */
+    INPUT,
+    /**
+     * In the order the responses are received, e.g. to render each panel of a dashboard as soon as it is ready.
+     */
+    COMPLETION;
+  }
+
   private final WebClient client;
   private final RestTemplate restTemplate;
   private final UriBuilderFactory uriBuilderFactory;
   private final ObjectMapper objectMapper;
+  // Reads the List<PromResult.SampleResult> and List<PromResult.TimeSeriesResult> with the PromResultDeserializer
+  private final ObjectMapper resultsMapper;
   private final PromResultMapper resultMapper;
+  private final PromQueryCache cache;
+  private final PromRangeExtentCache extentCache;
+  private final PromQueryCoalescer coalescer;
+  private final PromRangeSharder sharder;
+  private final PromSeriesSharder seriesSharder;
+  private final PromBlockingExecutor blockingExecutor;
+  private final int maxConcurrency;
 
+  /**
+   * Creates a service without the caches, the coalescing and the sharding, whose blocking queries run on an executor
+   * shared by all such services, created on their first use.
+   */
   public PromQueryService(@Qualifier("prom4jWebClient") final WebClient client,
                           @Qualifier("prom4jRestTemplate") final RestTemplate restTemplate,
                           @Qualifier("prom4jUriBuilderFactory") final UriBuilderFactory uriBuilderFactory,
                           @Qualifier("prom4jObjectMapper") final ObjectMapper objectMapper,
                           @Qualifier("promResultMapper") final PromResultMapper resultMapper) {
+    this(client, restTemplate, uriBuilderFactory, objectMapper, resultMapper, PromQueryCache.DISABLED,
+         PromRangeExtentCache.DISABLED, PromQueryCoalescer.DISABLED, PromRangeSharder.DISABLED,
+         PromSeriesSharder.DISABLED, null, DEFAULT_MAX_CONCURRENCY);
+  }
+
+  public PromQueryService(final WebClient client,
+                          final RestTemplate restTemplate,
+                          final UriBuilderFactory uriBuilderFactory,
+                          final ObjectMapper objectMapper,
+                          final PromResultMapper resultMapper,
+                          final PromQueryCache cache,
+                          final PromRangeExtentCache extentCache,
+                          final PromQueryCoalescer coalescer,
+                          final PromRangeSharder sharder,
+                          final PromSeriesSharder seriesSharder,
+                          final PromBlockingExecutor blockingExecutor,
+                          final int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0, "The maximum concurrency must be positive.");
     this.client = client;
     this.restTemplate = restTemplate;
     this.uriBuilderFactory = uriBuilderFactory;
     this.objectMapper = objectMapper;
+    this.resultsMapper = PromResultDeserializer.resultsMapper(objectMapper);
     this.resultMapper = resultMapper;
+    this.cache = cache;
+    this.extentCache = extentCache;
+    this.coalescer = coalescer;
+    this.sharder = sharder;
+    this.seriesSharder = seriesSharder;
+    this.blockingExecutor = blockingExecutor;
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Gets the results cache, {@link PromQueryCache#DISABLED} unless enabled by the "prom4j.cache.enabled" property.
+   */
+  public PromQueryCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Gets the range query extent cache, {@link PromRangeExtentCache#DISABLED} unless enabled by the
+   * "prom4j.cache.extent.enabled" property.
+   */
+  public PromRangeExtentCache getExtentCache() {
+    return extentCache;
+  }
+
+  /**
+   * Gets the coalescer of the identical queries in flight, {@link PromQueryCoalescer#DISABLED} if disabled by the
+   * "prom4j.coalescing.enabled" property.
+   */
+  public PromQueryCoalescer getCoalescer() {
+    return coalescer;
+  }
+
+  /**
+   * Gets the sharder of the long range queries, {@link PromRangeSharder#DISABLED} unless enabled by the
+   * "prom4j.sharding.enabled" property.
+   */
+  public PromRangeSharder getSharder() {
+    return sharder;
+  }
+
+  /**
+   * Gets the sharder of the queries selecting many series, {@link PromSeriesSharder#DISABLED} unless enabled by the
+   * "prom4j.sharding.series.enabled" property.
+   */
+  public PromSeriesSharder getSeriesSharder() {
+    return seriesSharder;
+  }
+
+  /**
+   * Gets the executor of {@link #queryAllBlocking(Collection)}, of virtual threads on Java 21 and later unless
+   * disabled by the "prom4j.blocking.virtual-threads" property.
+   */
+  public PromBlockingExecutor getBlockingExecutor() {
+    return blockingExecutor != null ? blockingExecutor : DefaultBlockingExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * Gets the maximum number of queries of a batch in flight to the Prometheus server at a time, set by the
+   * "prom4j.batch.max-concurrency" property.
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
   }
 
   public String getPrometheusServerBaseUri() {
@@ -66,34 +203,161 @@ public class PromQueryService {
   }
 
   /**
-   * Query asynchronously using the {@link WebClient} (Spring WebFlux).
+   * Query asynchronously using the {@link WebClient} (Spring WebFlux). The response is cached by the
+   * {@link PromQueryCache}, if enabled, and shared with the identical queries in flight. The query is sent whole, use
+   * {@link #getRangeResults(PromQuery.RangeQuery)} to shard a long range query.
    */
   public <R extends PromResponse.Result> Mono<PromResponse<R>> query(PromQuery promQuery) {
-    return client.get().uri(createUriFunc(promQuery)).retrieve().bodyToMono(new ParameterizedTypeReference<>() {});
+    PromQuery query = cache.align(promQuery);
+    return cache.getMono(query, "response", () -> coalescer.executeMono(query, "response", () -> client.get()
+        .uri(PromQueries.createUri(uriBuilderFactory, query))
+        .retrieve()
+        .bodyToMono(new ParameterizedTypeReference<PromResponse<R>>() {})));
   }
 
   /**
-   * Query with blocking using the {@link RestTemplate} (Spring WebMVC).
+   * Query asynchronously using the {@link WebClient} (Spring WebFlux), emitting each series of a Vector or Matrix
+   * result as soon as it has been received rather than after the whole response body has been buffered. The body is
+   * decoded with Jackson's non-blocking parser, only the series being received is held in memory. A response of
+   * {@code "status":"error"} fails the flux with a {@link PromQueryException}.
+   */
+  public Flux<PromResponse.VectrixResult> queryStreaming(PromQuery promQuery) {
+    return stream(promQuery, () -> PromStreamParser.results(objectMapper));
+  }
+
+  /**
+   * Query with blocking using the {@link RestTemplate} (Spring WebMVC). The response is cached by the
+   * {@link PromQueryCache}, if enabled, and shared with the identical queries in flight. The query is sent whole, use
+   * {@link #getRangeResults(PromQuery.RangeQuery)} to shard a long range query.
    */
   public <R extends PromResponse.Result> ResponseEntity<PromResponse<R>> queryBlocking(PromQuery promQuery) {
-      URI uri = PromQueries.createUri(uriBuilderFactory.builder(), promQuery);
-      return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<>() {});
+    PromQuery query = cache.align(promQuery);
+    return cache.get(query, "responseEntity", () -> coalescer.execute(query, "responseEntity", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, query);
+      return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<PromResponse<R>>() {});
+    }));
+  }
+
+  /**
+   * Query asynchronously as {@link #queryAll(Collection, Ordering)} does, the responses are emitted in the order of
+   * the queries.
+   */
+  public <R extends PromResponse.Result> Flux<Tuple2<PromQuery, PromResponse<R>>> queryAll(
+      Collection<? extends PromQuery> promQueries) {
+    return queryAll(promQueries, Ordering.INPUT);
+  }
+
+  /**
+   * Query asynchronously a batch, e.g. the panels of a dashboard, at most {@link #getMaxConcurrency()} queries in
+   * flight at a time, so that the batch takes about as long as its slowest query rather than the sum of them. Each
+   * query goes through {@link #query(PromQuery)}, sharing the connections, the cache and the coalescing. The first
+   * failure cancels the queries in flight and terminates the flux.
+   */
+  public <R extends PromResponse.Result> Flux<Tuple2<PromQuery, PromResponse<R>>> queryAll(
+      Collection<? extends PromQuery> promQueries, Ordering ordering) {
+    Function<PromQuery, Mono<Tuple2<PromQuery, PromResponse<R>>>> query =
+        promQuery -> this.<R>query(promQuery).map(response -> Tuples.of(promQuery, response));
+    Flux<PromQuery> queries = Flux.fromIterable(promQueries);
+    return ordering == Ordering.INPUT
+        ? queries.flatMapSequential(query, maxConcurrency)
+        : queries.flatMap(query, maxConcurrency);
+  }
+
+  /**
+   * Query with blocking each on a thread of its own, at most {@link #getMaxConcurrency()} at a time, the responses are
+   * returned in the order of the queries. Each query goes through {@link #queryBlocking(PromQuery)}, so the cache and
+   * the coalescing apply. Once a query fails the others are cancelled, and its exception is thrown after all of them
+   * have stopped.
+   */
+  public <R extends PromResponse.Result> List<ResponseEntity<PromResponse<R>>> queryAllBlocking(
+      Collection<? extends PromQuery> promQueries) {
+    List<Callable<ResponseEntity<PromResponse<R>>>> tasks = Lists.newArrayListWithCapacity(promQueries.size());
+    for (PromQuery promQuery : promQueries) {
+      tasks.add(() -> queryBlocking(promQuery));
+    }
+    return getBlockingExecutor().invokeAll(tasks, maxConcurrency);
   }
 
+  /**
+   * Query the metadata with blocking, the response is shared with the identical queries in flight.
+   */
   public <M extends PromMetadata<?>> ResponseEntity<M> queryMetadata(PromQuery promQuery) {
-    URI uri = PromQueries.createUri(uriBuilderFactory.builder(), promQuery);
-    // Stupid ParameterizedTypeReference can't use inferred types: https://stackoverflow.com/a/41182994
-    return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<M>() {});
+    return coalescer.execute(promQuery, "metadata", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+      // Stupid ParameterizedTypeReference can't use inferred types: https://stackoverflow.com/a/41182994
+      return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<M>() {});
+    });
   }
 
   public ResponseEntity<PromMetadata.Series> querySeriesMetadata(PromQuery promQuery) {
-    URI uri = PromQueries.createUri(uriBuilderFactory.builder(), promQuery);
-    return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<PromMetadata.Series>() {});
+    return coalescer.execute(promQuery, "series", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+      return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<PromMetadata.Series>() {});
+    });
+  }
+
+  /**
+   * Query the series metadata with blocking using the {@link RestTemplate} (Spring WebMVC), handing each label set to
+   * the {@code callback} as soon as it has been parsed. Returning {@code false} from the callback stops the iteration
+   * and aborts the response, see {@link PromHttpComponentsRequestFactory}, the rest of the series are never read. A
+   * response of {@code "status":"error"} throws a {@link PromQueryException}.
+   */
+  public void querySeries(PromQuery promQuery, Predicate<? super Labels> callback) {
+    URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+    restTemplate.execute(uri, HttpMethod.GET, null, response -> {
+      PromSeriesIterator iterator = PromSeriesIterator.of(objectMapper.getFactory(), response.getBody());
+      try {
+        while (iterator.hasNext() && callback.test(iterator.next())) {
+          // The callback does the work
+        }
+      } finally {
+        close(iterator, response);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Query the series metadata with blocking, returning the label sets as a {@link Stream} that parses the response
+   * while it is being consumed. The stream holds the HTTP response open and must be closed, e.g. with
+   * try-with-resources, short-circuiting operations like {@link Stream#limit(long)} terminate early, closing the
+   * stream before the last label set aborts the response. A response of {@code "status":"error"} throws a
+   * {@link PromQueryException} at the end of the stream.
+   */
+  public Stream<Labels> streamSeries(PromQuery promQuery) {
+    URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+    ClientHttpResponse response = null;
+    try {
+      response = restTemplate.getRequestFactory().createRequest(uri, HttpMethod.GET).execute();
+      if (restTemplate.getErrorHandler().hasError(response)) {
+        restTemplate.getErrorHandler().handleError(uri, HttpMethod.GET, response);
+      }
+      PromSeriesIterator iterator = PromSeriesIterator.of(objectMapper.getFactory(), response.getBody());
+      ClientHttpResponse streamedResponse = response;
+      return Streams.stream(iterator).onClose(() -> close(iterator, streamedResponse));
+    } catch (IOException ioe) {
+      close(response);
+      throw new ResourceAccessException("I/O error on GET request for \"" + uri + "\": " + ioe.getMessage(), ioe);
+    } catch (RuntimeException re) {
+      close(response);
+      throw re;
+    }
+  }
+
+  /**
+   * Query the series metadata asynchronously using the {@link WebClient} (Spring WebFlux), emitting each label set as
+   * soon as it has been received. Cancelling the subscription, e.g. with {@link Flux#take(long)}, terminates early. A
+   * response of {@code "status":"error"} fails the flux with a {@link PromQueryException}.
+   */
+  public Flux<Labels> querySeriesStreaming(PromQuery promQuery) {
+    return stream(promQuery, () -> PromStreamParser.series(objectMapper));
   }
 
   public ResponseEntity<PromMetadata.Labels> queryLabelsMetadata(PromQuery promQuery) {
-    URI uri = PromQueries.createUri(uriBuilderFactory.builder(), promQuery);
-    return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<PromMetadata.Labels>() {});
+    return coalescer.execute(promQuery, "labels", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+      return restTemplate.exchange(uri, HttpMethod.GET, null, new ParameterizedTypeReference<PromMetadata.Labels>() {});
+    });
   }
 
   public void test(Optional<PromQuery> query) {
@@ -107,21 +371,181 @@ public class PromQueryService {
     log.info("Test query blocking \"{}\" got response = {}", query.orElse(TEST_QUERY), response.getBody().toString());
   }
 
+  /**
+   * Queries the samples, decoded straight from the response by the {@link PromResultDeserializer} rather than mapped
+   * from a {@link PromResponse}, a response of {@code "status":"error"} throws a {@link PromQueryException}.
+   * The results are cached by the {@link PromQueryCache}, if enabled.
+   */
   public List<PromResult.SampleResult> getSamples(PromQuery.InstantQuery instantQuery) {
-    PromResponse<PromResponse.VectorResult> response = this
-        .<PromResponse.VectorResult>queryBlocking(instantQuery)
-        .getBody();
-
-    return resultMapper.vectorResponseToSampleResult(response);
+    return cache.get(instantQuery, "samples", () -> coalescer.execute(instantQuery, "samples", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, instantQuery);
+      return restTemplate.execute(uri, HttpMethod.GET, null,
+          response -> resultsMapper.readValue(response.getBody(), SAMPLE_RESULTS));
+    }));
   }
 
+  /**
+   * Queries the time-series, decoded straight from the response by the {@link PromResultDeserializer} rather than
+   * mapped from a {@link PromResponse}, a response of {@code "status":"error"} throws a {@link PromQueryException}.
+   * The results are cached by the {@link PromQueryCache}, if enabled. The query is sent whole, use
+   * {@link #getRangeResults(PromQuery.RangeQuery)} to shard a long range query.
+   */
   public List<PromResult.TimeSeriesResult> getTimeSeries(PromQuery promQuery) {
-    PromResponse<PromResponse.MatrixResult> response = this
-        .<PromResponse.MatrixResult>queryBlocking(promQuery)
-        .getBody();
+    PromQuery query = cache.align(promQuery);
+    return cache.get(query, "timeSeries", () -> coalescer.execute(query, "timeSeries", () -> {
+      URI uri = PromQueries.createUri(uriBuilderFactory, query);
+      return restTemplate.execute(uri, HttpMethod.GET, null,
+          response -> resultsMapper.readValue(response.getBody(), TIME_SERIES_RESULTS));
+    }));
+  }
 
-    return resultMapper.matrixResponseToTimeSeriesResult(response);
+  /**
+   * Queries the series of a range query with blocking. With the {@link PromRangeExtentCache} enabled only the steps
+   * of the range that are not cached are queried, e.g. the newest ones of a dashboard refreshing its window, and
+   * spliced with the cached samples. With the {@link PromRangeSharder} enabled a range longer than a shard is queried
+   * in shards, and with the {@link PromSeriesSharder} enabled a query that is partitionable is queried in partitions
+   * of its series. The shards and the partitions are queried at most {@link #getMaxConcurrency()} at a time, cached
+   * by the {@link PromQueryCache}, if enabled, and stitched back into the series of the whole range.
+   */
+  public List<PromResponse.VectrixResult> getRangeResults(PromQuery.RangeQuery rangeQuery) {
+    return extentCache.get(rangeQuery, query -> {
+      List<PromQuery.RangeQuery> shards = sharder.shards(query);
+      Optional<PromExpr> expr = seriesSharder.partitionable(query);
+      if (shards.size() == 1 && expr.isEmpty()) {
+        return fetchResults(query);
+      }
+      List<String> values = expr.map(this::getLabelValues).orElse(null);
+      List<List<PromQuery.RangeQuery>> partitionedShards = Lists.newArrayListWithCapacity(shards.size());
+      for (PromQuery.RangeQuery shard : shards) {
+        partitionedShards.add(expr.isPresent() ? seriesSharder.partitions(shard, expr.get(), values) : List.of(shard));
+      }
+      // All the shards and their partitions at once, they are not nested on the executor
+      List<List<PromResponse.VectrixResult>> results =
+          fetchAllResults(partitionedShards.stream().flatMap(List::stream).collect(Collectors.toList()));
+      List<List<PromResponse.VectrixResult>> shardResults = Lists.newArrayListWithCapacity(shards.size());
+      int from = 0;
+      for (List<PromQuery.RangeQuery> partitions : partitionedShards) {
+        shardResults.add(PromSeriesSharder.merge(results.subList(from, from + partitions.size())));
+        from += partitions.size();
+      }
+      return PromRangeSharder.stitch(shardResults);
+    });
+  }
+
+  /**
+   * Queries the series of an instant query with blocking. With the {@link PromSeriesSharder} enabled a query that is
+   * partitionable is queried in partitions of its series, at most {@link #getMaxConcurrency()} at a time, which are
+   * cached by the {@link PromQueryCache}, if enabled, and merged.
+   */
+  public List<PromResponse.VectrixResult> getInstantResults(PromQuery.InstantQuery instantQuery) {
+    Optional<PromExpr> expr = seriesSharder.partitionable(instantQuery);
+    if (expr.isEmpty()) {
+      return cachedResults(instantQuery);
+    }
+    return PromSeriesSharder.merge(fetchAllResults(
+        seriesSharder.partitions(instantQuery, expr.get(), getLabelValues(expr.get()))));
+  }
+
+  private List<String> getLabelValues(PromExpr expr) {
+    PromMetadata.Labels labels = queryLabelsMetadata(seriesSharder.labelValuesQuery(expr)).getBody();
+    return labels == null || labels.getData() == null ? List.of() : labels.getData();
+  }
+
+  private List<List<PromResponse.VectrixResult>> fetchAllResults(List<? extends PromQuery> promQueries) {
+    List<Callable<List<PromResponse.VectrixResult>>> tasks = Lists.newArrayListWithCapacity(promQueries.size());
+    for (PromQuery promQuery : promQueries) {
+      tasks.add(() -> cachedResults(promQuery));
+    }
+    return getBlockingExecutor().invokeAll(tasks, maxConcurrency);
+  }
+
+  private List<PromResponse.VectrixResult> cachedResults(PromQuery promQuery) {
+    return cache.get(promQuery, "results",
+        () -> coalescer.execute(promQuery, "results", () -> fetchResults(promQuery)));
+  }
+
+  private List<PromResponse.VectrixResult> fetchResults(PromQuery promQuery) {
+    URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+    PromResponse<PromResponse.VectrixResult> response = restTemplate.exchange(uri, HttpMethod.GET, null,
+        new ParameterizedTypeReference<PromResponse<PromResponse.VectrixResult>>() {}).getBody();
+    return response == null || response.getData() == null ? List.of() : response.getData().getResult();
+  }
+
+  /**
+   * Queries the samples as the typed results of a {@link PromMetric} annotated interface, decoded by its generated
+   * {@link PromMetricDecoder}, e.g. {@code getMetrics(query, PromMetricDecoder.of(GoThreads.class))}.
+   */
+  public <T> List<T> getMetrics(PromQuery promQuery, PromMetricDecoder<T> decoder) {
+    URI uri = PromQueries.createUri(uriBuilderFactory, promQuery);
+    return restTemplate.execute(uri, HttpMethod.GET, null,
+        response -> decoder.decode(objectMapper.getFactory(), response.getBody()));
   }
 
   // public abstract <R> List<PromResult<R>> getResult(PromQuery<R> promQuery);
+
+  private <T> Flux<T> stream(PromQuery promQuery, Callable<PromStreamParser<T>> parserSupplier) {
+    return Flux.using(
+        parserSupplier,
+        parser -> client.get().uri(PromQueries.createUri(uriBuilderFactory, promQuery)).retrieve()
+            .bodyToFlux(DataBuffer.class)
+            .concatMapIterable(dataBuffer -> feed(parser, dataBuffer))
+            .concatWith(Flux.defer(() -> Flux.fromIterable(endOfInput(parser)))),
+        PromQueryService::close);
+  }
+
+  private static <T> List<T> feed(PromStreamParser<T> parser, DataBuffer dataBuffer) {
+    try {
+      byte[] bytes = new byte[dataBuffer.readableByteCount()];
+      dataBuffer.read(bytes);
+      return parser.feed(bytes);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    } finally {
+      DataBufferUtils.release(dataBuffer);
+    }
+  }
+
+  private static <T> List<T> endOfInput(PromStreamParser<T> parser) {
+    try {
+      return parser.endOfInput();
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  /**
+   * Closes a series iterator and its response, aborting the response if the iteration was terminated early rather
+   * than reading the rest of it.
+   */
+  private static void close(PromSeriesIterator iterator, ClientHttpResponse response) {
+    try {
+      if (iterator.hasNext()) {
+        PromHttpComponentsRequestFactory.abort(response);
+      }
+    } catch (RuntimeException re) {
+      // E.g. an UncheckedIOException, or the PromQueryException already thrown by the iteration
+      PromHttpComponentsRequestFactory.abort(response);
+    } finally {
+      close(iterator);
+      close(response);
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ioe) {
+      log.warn("Failed to close {}.", closeable, ioe);
+    }
+  }
+
+  private static class DefaultBlockingExecutorHolder {
+    private DefaultBlockingExecutorHolder() {}
+
+    // Lives as long as the JVM, its platform threads are daemons
+    private static final PromBlockingExecutor INSTANCE = PromBlockingExecutor.create(true, DEFAULT_BLOCKING_THREADS);
+  }
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches the samples of range queries per series so that a range query whose window has moved since it was last
+ * issued, e.g. by an auto-refreshing dashboard, only fetches the steps that are not cached yet: usually the newest few
+ * at the end and none at the start. The fetched samples are spliced with the cached ones.
+ *
+ * The cached extents are keyed by the {@link PromQuery#getCanonicalQuery() canonical query} and the step. The range
+ * is aligned to the step so that the samples of successive queries fall on the same timestamps. The samples within
+ * the staleness window before now are never cached, they may still change as late scrapes are ingested.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromRangeExtentCache {
+  /**
+   * A cache that caches nothing, the range queries are fetched as they are.
+   */
+  public static final PromRangeExtentCache DISABLED = new PromRangeExtentCache(null, Duration.ZERO, Clock.systemUTC());
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    private long maximumSize = 1_000;
+    private Duration expireAfterAccess = Duration.ofMinutes(10);
+    private Duration staleness = Duration.ofMinutes(1);
+    private Clock clock = Clock.systemUTC();
+
+    private Builder() {}
+
+    /**
+     * The maximum number of cached extents, one per query and step.
+     */
+    public Builder maximumSize(long maximumSize) {
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * Discards the extents that have not been queried for the duration.
+     */
+    public Builder expireAfterAccess(Duration expireAfterAccess) {
+      this.expireAfterAccess = Preconditions.checkNotNull(expireAfterAccess, "expireAfterAccess");
+      return this;
+    }
+
+    /**
+     * The samples within the duration before now are fetched again on each query rather than cached.
+     */
+    public Builder staleness(Duration staleness) {
+      Preconditions.checkArgument(!staleness.isNegative(), "The staleness can't be negative.");
+      this.staleness = staleness;
+      return this;
+    }
+
+    Builder clock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public PromRangeExtentCache build() {
+      Cache<HashCode, Extent> cache = Caffeine.newBuilder()
+          .maximumSize(maximumSize)
+          .expireAfterAccess(expireAfterAccess)
+          .recordStats()
+          .build();
+      return new PromRangeExtentCache(cache, staleness, clock);
+    }
+  }
+
+  /**
+   * The cached samples of a query, covering the steps from {@code start} to {@code end} in epoch milliseconds.
+   */
+  private static final class Extent {
+    private final long start;
+    private final long end;
+    private final List<PromResponse.VectrixResult> results;
+
+    private Extent(long start, long end, List<PromResponse.VectrixResult> results) {
+      this.start = start;
+      this.end = end;
+      this.results = results;
+    }
+  }
+
+  private final Cache<HashCode, Extent> cache;
+  private final Duration staleness;
+  private final Clock clock;
+
+  private PromRangeExtentCache(Cache<HashCode, Extent> cache, Duration staleness, Clock clock) {
+    this.cache = cache;
+    this.staleness = staleness;
+    this.clock = clock;
+  }
+
+  public CacheStats stats() {
+    return cache == null ? CacheStats.empty() : cache.stats();
+  }
+
+  public void invalidateAll() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Gets the results of the range query, fetching only the parts of its range that are not cached with the
+   * {@code fetcher}. A query without a start, an end or a step, or whose result
+   * {@link PromQuery.RangeQuery#isAnchoredToRange() depends on its range}, is fetched as it is.
+   */
+  List<PromResponse.VectrixResult> get(PromQuery.RangeQuery rangeQuery,
+                                       Function<PromQuery.RangeQuery, List<PromResponse.VectrixResult>> fetcher) {
+    if (cache == null || rangeQuery.start().isEmpty() || rangeQuery.end().isEmpty() || rangeQuery.step().isEmpty() ||
+        rangeQuery.step().get() <= 0 || rangeQuery.isAnchoredToRange()) {
+      return fetcher.apply(rangeQuery);
+    }
+    long step = rangeQuery.step().get() * 1000L;
+    long start;
+    long end;
+    try {
+      start = alignToStep(toEpochMilli(rangeQuery.start().get()), step);
+      end = alignToStep(toEpochMilli(rangeQuery.end().get()), step);
+    } catch (NumberFormatException nfe) {
+      return fetcher.apply(rangeQuery);
+    }
+    if (end < start) {
+      return fetcher.apply(rangeQuery);
+    }
+
+    HashCode key = key(rangeQuery);
+    Extent extent = cache.getIfPresent(key);
+    List<PromResponse.VectrixResult> results;
+    if (extent == null || extent.end + step < start || extent.start - step > end) {
+      // Nothing cached that the range overlaps or adjoins
+      extent = null;
+      results = fetch(rangeQuery, start, end, fetcher);
+    } else {
+      results = slice(extent.results, start, end);
+      if (start < extent.start) {
+        results = splice(results, fetch(rangeQuery, start, Math.min(extent.start - step, end), fetcher), start, end);
+      }
+      if (end > extent.end) {
+        results = splice(results, fetch(rangeQuery, Math.max(extent.end + step, start), end, fetcher), start, end);
+      }
+    }
+
+    long stableEnd = alignToStep(clock.millis() - staleness.toMillis(), step);
+    long cachedEnd = Math.min(end, stableEnd);
+    if (cachedEnd >= start && (extent == null || start < extent.start || cachedEnd > extent.end)) {
+      List<PromResponse.VectrixResult> cached = cachedEnd == end ? results : slice(results, start, cachedEnd);
+      if (extent == null) {
+        cache.put(key, new Extent(start, cachedEnd, cached));
+      } else {
+        // The range grows the extent rather than taking its place
+        long extentStart = Math.min(extent.start, start);
+        long extentEnd = Math.max(extent.end, cachedEnd);
+        cache.put(key, new Extent(extentStart, extentEnd, splice(extent.results, cached, extentStart, extentEnd)));
+      }
+    }
+    return copy(results);
+  }
+
+  private static List<PromResponse.VectrixResult> fetch(PromQuery.RangeQuery rangeQuery, long start, long end,
+      Function<PromQuery.RangeQuery, List<PromResponse.VectrixResult>> fetcher) {
+    List<PromResponse.VectrixResult> results = fetcher.apply(rangeQuery.withRange(toTime(start), toTime(end)));
+    return results == null ? ImmutableList.of() : results;
+  }
+
+  private static HashCode key(PromQuery.RangeQuery rangeQuery) {
+    return Hashing.murmur3_128().newHasher()
+        .putString(rangeQuery.getCanonicalQuery(), StandardCharsets.UTF_8)
+        .putInt(rangeQuery.step().get())
+        .hash();
+  }
+
+  static long toEpochMilli(String time) {
+    return new BigDecimal(PromQuery.canonicalTime(time)).movePointRight(3).longValue();
+  }
+
+  static String toTime(long epochMilli) {
+    return BigDecimal.valueOf(epochMilli, 3).stripTrailingZeros().toPlainString();
+  }
+
+  private static long alignToStep(long epochMilli, long step) {
+    return Math.floorDiv(epochMilli, step) * step;
+  }
+
+  // Splicing
+
+  /**
+   * Splices two results of the same query over the steps from {@code start} to {@code end} in epoch milliseconds:
+   * the samples of the same series are merged by their timestamps, the ones of {@code fetched} taking the place of
+   * the ones of {@code cached} at the same timestamps. The series without samples in the range are dropped.
+   */
+  static List<PromResponse.VectrixResult> splice(List<PromResponse.VectrixResult> cached,
+                                                 List<PromResponse.VectrixResult> fetched, long start, long end) {
+    Map<Map<String, String>, List<PromResponse.ResultValue<PromResponse.VectrixResult>>> series = Maps.newLinkedHashMap();
+    for (PromResponse.VectrixResult result : cached) {
+      series.put(result.getMetric(), sliceValues(result.getValues(), start, end));
+    }
+    for (PromResponse.VectrixResult result : fetched) {
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = sliceValues(result.getValues(), start, end);
+      series.merge(result.getMetric(), values, PromRangeExtentCache::merge);
+    }
+    List<PromResponse.VectrixResult> results = Lists.newArrayListWithCapacity(series.size());
+    series.forEach((metric, values) -> {
+      if (!values.isEmpty()) {
+        results.add(new PromResponse.VectrixResult(metric, values));
+      }
+    });
+    return results;
+  }
+
+  private static List<PromResponse.VectrixResult> slice(List<PromResponse.VectrixResult> results, long start,
+                                                        long end) {
+    return splice(results, Collections.emptyList(), start, end);
+  }
+
+  private static List<PromResponse.ResultValue<PromResponse.VectrixResult>> sliceValues(
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> values, long start, long end) {
+    if (values == null) {
+      return Collections.emptyList();
+    }
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> slice = Lists.newArrayListWithCapacity(values.size());
+    for (PromResponse.ResultValue<PromResponse.VectrixResult> value : values) {
+      long timestamp = PromValues.toEpochMilli(value.getEpochDateTime());
+      if (timestamp >= start && timestamp <= end) {
+        slice.add(value);
+      }
+    }
+    return slice;
+  }
+
+  /**
+   * Merges the samples sorted by their timestamps, the {@code fetched} taking the place of the {@code cached} ones.
+   */
+  private static List<PromResponse.ResultValue<PromResponse.VectrixResult>> merge(
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> cached,
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> fetched) {
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> merged =
+        Lists.newArrayListWithCapacity(cached.size() + fetched.size());
+    int i = 0;
+    int j = 0;
+    while (i < cached.size() || j < fetched.size()) {
+      if (j == fetched.size()) {
+        merged.add(cached.get(i++));
+      } else if (i == cached.size()) {
+        merged.add(fetched.get(j++));
+      } else {
+        long cachedTimestamp = PromValues.toEpochMilli(cached.get(i).getEpochDateTime());
+        long fetchedTimestamp = PromValues.toEpochMilli(fetched.get(j).getEpochDateTime());
+        if (cachedTimestamp < fetchedTimestamp) {
+          merged.add(cached.get(i++));
+        } else {
+          if (cachedTimestamp == fetchedTimestamp) {
+            i++;
+          }
+          merged.add(fetched.get(j++));
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Copies the results handed out, a value belongs to one result and the cached ones must not be modified.
+   */
+  private static List<PromResponse.VectrixResult> copy(List<PromResponse.VectrixResult> results) {
+    List<PromResponse.VectrixResult> copies = Lists.newArrayListWithCapacity(results.size());
+    for (PromResponse.VectrixResult result : results) {
+      List<PromResponse.ResultValue<PromResponse.VectrixResult>> values =
+          Lists.newArrayListWithCapacity(result.getValues().size());
+      for (PromResponse.ResultValue<PromResponse.VectrixResult> value : result.getValues()) {
+        values.add(PromResponse.ResultValue.copy(value));
+      }
+      Map<String, String> metric = result.getMetric() == null ? null : Maps.newLinkedHashMap(result.getMetric());
+      copies.add(new PromResponse.VectrixResult(metric, values));
+    }
+    return copies;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Splits the range of a long range query into shards of a fixed duration, e.g. a 30-day query into 30 one-day ones, so
+ * that they can be evaluated in parallel and none of them hits the "query.max-samples" limit of the Prometheus server.
+ * The results of the shards are stitched back into the series of the whole range.
+ *
+ * The shard duration is rounded down to a multiple of the step, and the shard boundaries fall on multiples of it from
+ * the epoch shifted onto the steps of the query. The shards in the middle of the range are the same queries each time
+ * the range is queried, so they can be cached. The shards don't overlap: each ends one step before the next starts.
+ *
+ * Only {@code PromQueryService.getRangeResults} shards a range query; the methods returning the raw response send it
+ * whole.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromRangeSharder {
+  /**
+   * A sharder that doesn't shard, the range queries are executed as they are.
+   */
+  public static final PromRangeSharder DISABLED = new PromRangeSharder(0);
+
+  public static PromRangeSharder of(Duration shardSize) {
+    Preconditions.checkArgument(shardSize.toMillis() > 0, "The shard size must be positive.");
+    return new PromRangeSharder(shardSize.toMillis());
+  }
+
+  private final long shardSize;
+
+  private PromRangeSharder(long shardSize) {
+    this.shardSize = shardSize;
+  }
+
+  public boolean isEnabled() {
+    return shardSize > 0;
+  }
+
+  public Duration getShardSize() {
+    return Duration.ofMillis(shardSize);
+  }
+
+  /**
+   * Splits the range query into shards in the order of their ranges. A query that is shorter than a shard, without a
+   * start, an end or a step, or whose result {@link PromQuery.RangeQuery#isAnchoredToRange() depends on its range}, is
+   * its only shard.
+   */
+  List<PromQuery.RangeQuery> shards(PromQuery.RangeQuery rangeQuery) {
+    if (!isEnabled() || rangeQuery.start().isEmpty() || rangeQuery.end().isEmpty() || rangeQuery.step().isEmpty() ||
+        rangeQuery.step().get() <= 0 || rangeQuery.isAnchoredToRange()) {
+      return ImmutableList.of(rangeQuery);
+    }
+    long step = rangeQuery.step().get() * 1000L;
+    long start;
+    long end;
+    try {
+      start = PromRangeExtentCache.toEpochMilli(rangeQuery.start().get());
+      end = PromRangeExtentCache.toEpochMilli(rangeQuery.end().get());
+    } catch (NumberFormatException nfe) {
+      return ImmutableList.of(rangeQuery);
+    }
+    long size = Math.max(shardSize / step, 1) * step;
+    if (end - start < size) {
+      return ImmutableList.of(rangeQuery);
+    }
+
+    // The boundaries are on the steps of the query, which are offset from the multiples of the step
+    long offset = Math.floorMod(start, step);
+    long boundary = Math.floorDiv(start - offset, size) * size + offset + size;
+    List<PromQuery.RangeQuery> shards = Lists.newArrayList();
+    for (long shardStart = start; shardStart <= end; shardStart = boundary, boundary += size) {
+      long shardEnd = Math.min(boundary - step, end);
+      shards.add(rangeQuery.withRange(PromRangeExtentCache.toTime(shardStart), PromRangeExtentCache.toTime(shardEnd)));
+    }
+    return shards;
+  }
+
+  /**
+   * Stitches the results of the shards, in the order of their ranges, into one result per series. The samples of a
+   * series are concatenated in the order of their timestamps, a sample at or before the last one of the series, e.g.
+   * on the boundary of overlapping shards, is dropped. The samples are copied, those of the shards are left intact.
+   */
+  static List<PromResponse.VectrixResult> stitch(List<? extends List<PromResponse.VectrixResult>> shardResults) {
+    Map<Map<String, String>, List<PromResponse.ResultValue<PromResponse.VectrixResult>>> series =
+        Maps.newLinkedHashMap();
+    for (List<PromResponse.VectrixResult> results : shardResults) {
+      if (results == null) {
+        continue;
+      }
+      for (PromResponse.VectrixResult result : results) {
+        List<PromResponse.ResultValue<PromResponse.VectrixResult>> values =
+            series.computeIfAbsent(result.getMetric(), metric -> Lists.newArrayList());
+        if (result.getValues() == null) {
+          continue;
+        }
+        for (PromResponse.ResultValue<PromResponse.VectrixResult> value : result.getValues()) {
+          if (values.isEmpty() || PromValues.toEpochMilli(value.getEpochDateTime()) >
+              PromValues.toEpochMilli(values.get(values.size() - 1).getEpochDateTime())) {
+            values.add(PromResponse.ResultValue.copy(value));
+          }
+        }
+      }
+    }
+    List<PromResponse.VectrixResult> stitched = Lists.newArrayListWithCapacity(series.size());
+    series.forEach((metric, values) -> stitched.add(new PromResponse.VectrixResult(metric, values)));
+    return stitched;
+  }
+}
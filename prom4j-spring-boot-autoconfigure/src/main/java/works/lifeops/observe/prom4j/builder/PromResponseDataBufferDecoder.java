@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractDataBufferDecoder;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.lang.Nullable;
+import org.springframework.util.MimeType;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A WebFlux {@link Decoder} that decodes {@link PromResponse}s with the {@link PromResponseDecoder}. Register it as a
+ * custom codec so it comes before the Jackson decoder, which still handles everything else. The response is
+ * aggregated up to the max in-memory size of the codecs before it is decoded.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromResponseDataBufferDecoder extends AbstractDataBufferDecoder<PromResponse<?>> {
+  private final PromResponseDecoder decoder;
+
+  public PromResponseDataBufferDecoder(PromResponseDecoder decoder) {
+    super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+    this.decoder = decoder;
+  }
+
+  @Override
+  public boolean canDecode(ResolvableType elementType, @Nullable MimeType mimeType) {
+    return PromResponse.class.isAssignableFrom(elementType.toClass()) && super.canDecode(elementType, mimeType);
+  }
+
+  @Override
+  public PromResponse<?> decode(DataBuffer dataBuffer, ResolvableType targetType, @Nullable MimeType mimeType,
+                                @Nullable Map<String, Object> hints) throws DecodingException {
+    boolean columnar = PromResponseHttpMessageConverter.isColumnar(targetType);
+    try (DataBuffer.ByteBufferIterator iterator = dataBuffer.readableByteBuffers()) {
+      ByteBuffer byteBuffer = iterator.hasNext() ? iterator.next() : ByteBuffer.allocate(0);
+      if (!iterator.hasNext()) {
+        return columnar ? decoder.decodeColumnar(byteBuffer) : decoder.decode(byteBuffer);
+      }
+      // A composite buffer, decode a contiguous copy
+      byte[] bytes = new byte[dataBuffer.readableByteCount()];
+      dataBuffer.read(bytes);
+      return columnar ? decoder.decodeColumnar(bytes) : decoder.decode(bytes);
+    } catch (IOException ioe) {
+      throw new DecodingException("Could not decode PromResponse: " + ioe.getMessage(), ioe);
+    } finally {
+      DataBufferUtils.release(dataBuffer);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StreamUtils;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * A read-only {@link HttpMessageConverter} for the {@code RestTemplate} that reads {@link PromResponse}s with the
+ * {@link PromResponseDecoder}. Add it before the Jackson converter, which still handles everything else, e.g. the
+ * {@link PromMetadata}.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromResponseHttpMessageConverter extends AbstractGenericHttpMessageConverter<PromResponse<?>> {
+  private final PromResponseDecoder decoder;
+
+  public PromResponseHttpMessageConverter(PromResponseDecoder decoder) {
+    super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+    this.decoder = decoder;
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return PromResponse.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  public boolean canRead(Type type, @Nullable Class<?> contextClass, @Nullable MediaType mediaType) {
+    // The super only checks the media type of a ParameterizedType
+    return supports(ResolvableType.forType(type).toClass()) && canRead(mediaType);
+  }
+
+  @Override
+  public boolean canWrite(@Nullable Type type, Class<?> clazz, @Nullable MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  protected boolean canWrite(@Nullable MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  public PromResponse<?> read(Type type, @Nullable Class<?> contextClass, HttpInputMessage inputMessage)
+      throws IOException, HttpMessageNotReadableException {
+    return read(inputMessage, isColumnar(ResolvableType.forType(type)));
+  }
+
+  @Override
+  protected PromResponse<?> readInternal(Class<? extends PromResponse<?>> clazz, HttpInputMessage inputMessage)
+      throws IOException, HttpMessageNotReadableException {
+    return read(inputMessage, false);
+  }
+
+  @Override
+  protected void writeInternal(PromResponse<?> promResponse, @Nullable Type type, HttpOutputMessage outputMessage)
+      throws IOException, HttpMessageNotWritableException {
+    throw new HttpMessageNotWritableException("Writing PromResponse is not supported.");
+  }
+
+  /**
+   * Whether the {@link PromResponse} is parameterized with {@link PromResponse.ColumnarResult}.
+   */
+  static boolean isColumnar(ResolvableType type) {
+    return type.getGeneric(0).toClass() == PromResponse.ColumnarResult.class;
+  }
+
+  private PromResponse<?> read(HttpInputMessage inputMessage, boolean columnar) throws IOException {
+    byte[] bytes = StreamUtils.copyToByteArray(inputMessage.getBody());
+    try {
+      return columnar ? decoder.decodeColumnar(bytes) : decoder.decode(bytes);
+    } catch (IOException ioe) {
+      throw new HttpMessageNotReadableException("Could not read PromResponse: " + ioe.getMessage(), ioe, inputMessage);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.stream.Collectors;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Partitions a query that selects too many series, e.g. tens of thousands, by the values of a label such as
+ * "instance", so that the partitions can be evaluated in parallel and none of them times out or hits the limits of the
+ * Prometheus server. It is the counterpart of the {@link PromRangeSharder} for queries that are wide rather than long.
+ *
+ * The values of the label, fetched from {@code /label/<name>/values} for the selectors of the query, are hashed into
+ * buckets, and each partition restricts every selector to the values of a bucket with a regex matcher, e.g.
+ * {@code instance=~"host-1:9100|host-7:9100"}. The series without the label fall into the bucket of the empty value.
+ * Only the queries whose result {@link PromExpr#isPartitionableBy(String) is partitionable by the label} are
+ * partitioned, the series of the partitions are disjoint and merged by concatenation.
+ *
+ * @author Li Wan
+ */
+@Beta
+public class PromSeriesSharder {
+  /**
+   * A sharder that doesn't partition, the queries are executed as they are.
+   */
+  public static final PromSeriesSharder DISABLED = new PromSeriesSharder(null, 0);
+
+  public static PromSeriesSharder of(String label, int partitions) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(label), "The label can't be empty.");
+    Preconditions.checkArgument(partitions > 1, "The number of partitions must be greater than 1.");
+    return new PromSeriesSharder(label, partitions);
+  }
+
+  private final String label;
+  private final int partitions;
+
+  private PromSeriesSharder(String label, int partitions) {
+    this.label = label;
+    this.partitions = partitions;
+  }
+
+  public boolean isEnabled() {
+    return label != null;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public int getPartitions() {
+    return partitions;
+  }
+
+  /**
+   * Gets the expression of the query if the query can be partitioned: an instant or a range query whose expression
+   * selects series and is partitionable by the label.
+   */
+  Optional<PromExpr> partitionable(PromQuery promQuery) {
+    if (!isEnabled() || !(promQuery instanceof PromQuery.Bindable)) {
+      return Optional.empty();
+    }
+    PromExpr expr;
+    try {
+      expr = PromExpr.parse(promQuery.getQuery());
+    } catch (RuntimeException re) {
+      return Optional.empty();
+    }
+    if (expr.selectors().isEmpty() || !expr.isPartitionableBy(label)) {
+      return Optional.empty();
+    }
+    return Optional.of(expr);
+  }
+
+  /**
+   * Creates the query of the values of the label of the series selected by the expression.
+   */
+  PromQuery labelValuesQuery(PromExpr expr) {
+    Set<String> matches = Sets.newLinkedHashSet();
+    for (PromExpr.Selector selector : expr.selectors()) {
+      matches.add(selector.modify(null, null).render());
+    }
+    return PromQuery.builder()
+        .labelValues()
+        .labelName(label)
+        .matches(matches.toArray(new String[0]))
+        .build();
+  }
+
+  /**
+   * Partitions the query of the expression by the values of the label. The buckets of the values are stable, so the
+   * partitions are the same queries for the same values, and cacheable.
+   */
+  @SuppressWarnings("unchecked")
+  <Q extends PromQuery> List<Q> partitions(Q promQuery, PromExpr expr, Collection<String> values) {
+    List<SortedSet<String>> buckets = Lists.newArrayListWithCapacity(partitions);
+    for (int i = 0; i < partitions; i++) {
+      buckets.add(Sets.newTreeSet());
+    }
+    // The series without the label match the empty value
+    buckets.get(bucket("")).add("");
+    for (String value : values) {
+      buckets.get(bucket(value)).add(value);
+    }
+
+    List<Q> queries = Lists.newArrayListWithCapacity(partitions);
+    for (SortedSet<String> bucket : buckets) {
+      if (!bucket.isEmpty()) {
+        String regex = bucket.stream().map(PromSeriesSharder::escapeRegex).collect(Collectors.joining("|"));
+        PromExpr partition = expr.restrict(new PromExpr.Matcher(label, PromExpr.MatchOperator.RE, regex));
+        queries.add(((PromQuery.Bindable<Q>) promQuery).bind(partition.render(), Optional.empty(), Optional.empty(),
+                                                             Optional.empty(), Optional.empty()));
+      }
+    }
+    return queries;
+  }
+
+  private int bucket(String value) {
+    return Math.floorMod(Hashing.murmur3_32_fixed().hashString(value, StandardCharsets.UTF_8).asInt(), partitions);
+  }
+
+  /**
+   * Escapes the RE2 metacharacters of a label value.
+   */
+  static String escapeRegex(String value) {
+    StringBuilder sb = new StringBuilder(value.length() + 8);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if ("\\.+*?()|[]{}^$".indexOf(c) >= 0) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Merges the results of the partitions, whose series are disjoint.
+   */
+  static List<PromResponse.VectrixResult> merge(List<? extends List<PromResponse.VectrixResult>> partitionResults) {
+    List<PromResponse.VectrixResult> merged = Lists.newArrayList();
+    for (List<PromResponse.VectrixResult> results : partitionResults) {
+      if (results != null) {
+        merged.addAll(results);
+      }
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.autoconfigure;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.WebApplicationContextRunner;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+
+import works.lifeops.observe.prom4j.builder.PromBlockingExecutor;
+import works.lifeops.observe.prom4j.builder.PromQueryCache;
+import works.lifeops.observe.prom4j.builder.PromQueryCoalescer;
+import works.lifeops.observe.prom4j.builder.PromQueryService;
+
+public class Prom4jAutoConfigurationTest {
+  private final WebApplicationContextRunner contextRunner = new WebApplicationContextRunner()
+      .withConfiguration(AutoConfigurations.of(Prom4jAutoConfiguration.class))
+      .withPropertyValues("prom4j.enabled=true",
+                          "prom4j.prometheus.server.base-uri=http://localhost:9090",
+                          "prom4j.cache.enabled=true");
+
+  @Test
+  @DisplayName("The component scan of the application does not replace the auto-configured query service")
+  public void scanned() {
+    contextRunner.withUserConfiguration(ScannedConfiguration.class).run(context -> {
+      Assertions.assertNull(context.getStartupFailure(), "Startup");
+      Assertions.assertEquals(1, context.getBeansOfType(PromQueryService.class).size(), "Query services");
+
+      PromQueryService promQueryService = context.getBean(PromQueryService.class);
+      Assertions.assertSame(context.getBean("prom4jQueryCache", PromQueryCache.class), promQueryService.getCache());
+      Assertions.assertNotSame(PromQueryCache.DISABLED, promQueryService.getCache());
+      Assertions.assertSame(context.getBean("prom4jQueryCoalescer", PromQueryCoalescer.class),
+          promQueryService.getCoalescer());
+      Assertions.assertSame(context.getBean("prom4jBlockingExecutor", PromBlockingExecutor.class),
+          promQueryService.getBlockingExecutor());
+    });
+  }
+
+  @Test
+  @DisplayName("The Apache HttpClient connection pool is created only for the \"http-components\" client")
+  public void connectionManager() {
+    contextRunner.run(context -> {
+      Assertions.assertNull(context.getStartupFailure(), "Startup");
+      Assertions.assertTrue(context.containsBean("prom4jConnectionManager"), "Default client");
+    });
+    contextRunner.withPropertyValues("prom4j.http.client=jdk").run(context -> {
+      Assertions.assertNull(context.getStartupFailure(), "Startup");
+      Assertions.assertFalse(context.containsBean("prom4jConnectionManager"), "JDK client");
+      Assertions.assertFalse(context.containsBean("prom4jHttpClient"), "JDK client");
+      Assertions.assertNotNull(context.getBean("prom4jRestTemplate"), "JDK client");
+    });
+  }
+
+  /**
+   * Scans the package of the query service as the demo application does.
+   */
+  @Configuration(proxyBeanMethods = false)
+  @ComponentScan(basePackageClasses = PromQueryService.class)
+  static class ScannedConfiguration {
+  }
+}
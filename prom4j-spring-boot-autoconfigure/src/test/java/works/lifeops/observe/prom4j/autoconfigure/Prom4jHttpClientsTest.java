@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.autoconfigure;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import reactor.netty.resources.ConnectionProvider;
+import works.lifeops.observe.prom4j.Prom4jProperties;
+import works.lifeops.observe.prom4j.builder.PromHttpComponentsRequestFactory;
+
+public class Prom4jHttpClientsTest {
+  @Test
+  @DisplayName("The connection pools are configured by the properties")
+  public void pools() throws IOException {
+    Prom4jProperties.Http http = new Prom4jProperties().getHttp();
+    http.setMaxConnections(20);
+    http.setReadTimeout(Duration.ofSeconds(30));
+
+    try (PoolingHttpClientConnectionManager connectionManager = Prom4jHttpClients.connectionManager(http);
+         CloseableHttpClient httpClient = Prom4jHttpClients.httpClient(connectionManager, http)) {
+      Assertions.assertEquals(20, connectionManager.getMaxTotal(), "Max connections");
+      Assertions.assertEquals(20, connectionManager.getDefaultMaxPerRoute(), "One route gets all the connections");
+      Assertions.assertInstanceOf(PromHttpComponentsRequestFactory.class,
+          Prom4jHttpClients.requestFactory(httpClient, http));
+    }
+
+    ConnectionProvider connectionProvider = Prom4jHttpClients.connectionProvider(http);
+    try {
+      Assertions.assertEquals(20, connectionProvider.maxConnections(), "Max connections");
+      Assertions.assertEquals(Prom4jHttpClients.POOL_NAME, connectionProvider.name());
+      Assertions.assertNotNull(Prom4jHttpClients.clientConnector(connectionProvider, http));
+    } finally {
+      connectionProvider.dispose();
+    }
+  }
+}
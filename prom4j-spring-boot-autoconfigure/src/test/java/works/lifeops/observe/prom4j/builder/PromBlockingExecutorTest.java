@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class PromBlockingExecutorTest {
+  private final PromBlockingExecutor executor = PromBlockingExecutor.create(true, 4);
+
+  @AfterEach
+  public void tearDown() {
+    executor.close();
+  }
+
+  @Test
+  @DisplayName("Virtual threads are used on Java 21 and later")
+  public void virtual() {
+    Assertions.assertEquals(Runtime.version().feature() >= 21, executor.isVirtual());
+    try (PromBlockingExecutor platform = PromBlockingExecutor.create(false, 4)) {
+      Assertions.assertFalse(platform.isVirtual());
+    }
+  }
+
+  @Test
+  @DisplayName("The results are returned in the order of the tasks")
+  public void invokeAll() {
+    CountDownLatch first = new CountDownLatch(1);
+    List<Callable<String>> tasks = List.of(
+        () -> {
+          // Completes after the second
+          Assertions.assertTrue(first.await(5, TimeUnit.SECONDS));
+          return "a";
+        },
+        () -> {
+          first.countDown();
+          return "b";
+        });
+
+    Assertions.assertEquals(List.of("a", "b"), executor.invokeAll(tasks));
+  }
+
+  @Test
+  @DisplayName("A failure cancels the other tasks, waits for them to finish and is rethrown")
+  public void failure() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean finished = new AtomicBoolean();
+    List<Callable<String>> tasks = List.of(
+        () -> {
+          started.countDown();
+          try {
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+          } catch (InterruptedException ie) {
+            // Takes a while to wind down
+            Thread.sleep(100);
+          }
+          finished.set(true);
+          return "a";
+        },
+        () -> {
+          Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+          throw new IllegalStateException("query failed");
+        });
+
+    IllegalStateException ise = Assertions.assertThrows(IllegalStateException.class, () -> executor.invokeAll(tasks));
+    Assertions.assertEquals("query failed", ise.getMessage());
+    Assertions.assertTrue(finished.get(), "The cancelled task has finished");
+  }
+
+  @Test
+  @DisplayName("The cancel actions end the tasks an interrupt does not")
+  public void onCancel() {
+    CountDownLatch started = new CountDownLatch(1);
+    List<Callable<String>> tasks = List.of(
+        () -> {
+          // Like a blocked socket read, which the request aborted by the cancel action ends
+          CountDownLatch aborted = new CountDownLatch(1);
+          PromBlockingExecutor.onCancel(aborted::countDown);
+          started.countDown();
+          Assertions.assertTrue(Uninterruptibles.awaitUninterruptibly(aborted, 5, TimeUnit.SECONDS));
+          return "a";
+        },
+        () -> {
+          Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+          throw new IllegalStateException("query failed");
+        });
+
+    long start = System.nanoTime();
+    Assertions.assertThrows(IllegalStateException.class, () -> executor.invokeAll(tasks));
+    Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "The blocked task was aborted");
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class PromHttpComponentsRequestFactoryTest {
+  private static final byte[] CHUNK = "{\"status\":\"success\",\"data\":[".getBytes(StandardCharsets.UTF_8);
+
+  // Holds the rest of the response back until the test is over
+  private final CountDownLatch released = new CountDownLatch(1);
+  private HttpServer server;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v1/series", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(CHUNK);
+        body.flush();
+        released.await(10, TimeUnit.SECONDS);
+        body.write("]}".getBytes(StandardCharsets.UTF_8));
+      } catch (InterruptedException | IOException e) {
+        // The client is gone
+      }
+    });
+    server.start();
+  }
+
+  @AfterEach
+  public void stopServer() {
+    released.countDown();
+    server.stop(0);
+  }
+
+  @Test
+  @DisplayName("An aborted response is closed without reading the rest of it")
+  public void abort() throws IOException {
+    URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/api/v1/series");
+    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+      PromHttpComponentsRequestFactory requestFactory = new PromHttpComponentsRequestFactory(httpClient);
+      long start = System.nanoTime();
+      ClientHttpResponse response = requestFactory.createRequest(uri, HttpMethod.GET).execute();
+      InputStream body = response.getBody();
+      Assertions.assertEquals(CHUNK.length, body.readNBytes(CHUNK.length).length);
+
+      Assertions.assertTrue(PromHttpComponentsRequestFactory.abort(response));
+      body.close();
+      response.close();
+      Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5),
+          "Closing waited for the rest of the response");
+    }
+  }
+}
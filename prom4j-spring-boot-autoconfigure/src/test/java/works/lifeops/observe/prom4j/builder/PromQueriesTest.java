@@ -62,5 +62,21 @@ public class PromQueriesTest {
     URI uri = PromQueries.createUriFunc(query).apply(uriBuilder);
     Assertions.assertEquals("/api/v1/query?query=go_threads&time=2023-04-22T20%3A45%3A40%2B08%3A00", uri.toString(), "URI is properly created");
   }
-}
 
+  @Test
+  public void testMemoizedUriCreation() {
+    PromQuery query = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .start("2023-04-22T20:45:40+08:00")
+        .step(15)
+        .build();
+
+    URI uri = PromQueries.createUri(URI_BUILDER_FACTORY, query);
+    Assertions.assertEquals("/api/v1/query_range?query=go_threads&start=2023-04-22T20%3A45%3A40%2B08%3A00&step=15", uri.toString(), "URI is properly created");
+    Assertions.assertSame(uri, PromQueries.createUri(URI_BUILDER_FACTORY, query), "URI is memoized for the factory");
+
+    URI otherUri = PromQueries.createUri(new PromQueryUriBuilderFactory("/prometheus/api/v1"), query);
+    Assertions.assertEquals("/prometheus/api/v1/query_range?query=go_threads&start=2023-04-22T20%3A45%3A40%2B08%3A00&step=15", otherUri.toString(), "URI is created for another factory");
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Mono;
+
+public class PromQueryCacheTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private PromQueryCache cache() {
+    return PromQueryCache.builder()
+        .ttl(PromQuery.QueryType.INSTANT, Duration.ofSeconds(15))
+        .ttl(PromQuery.QueryType.RANGE, Duration.ofMinutes(1))
+        .ticker(nanos::get)
+        .build();
+  }
+
+  private String load() {
+    return "result " + loads.incrementAndGet();
+  }
+
+  @Test
+  @DisplayName("Semantically identical queries share an entry until it expires")
+  public void hitAndExpire() {
+    PromQueryCache cache = cache();
+    PromQuery query = PromQuery.builder().instant().metric("go_threads").label("job").is("prometheus").build();
+    PromQuery same = PromQuery.builder().instant().expr(PromExpr.parse("go_threads{ job = \"prometheus\" }")).build();
+
+    Assertions.assertEquals("result 1", cache.get(query, "response", this::load));
+    Assertions.assertEquals("result 1", cache.get(same, "response", this::load), "Cached result");
+    Assertions.assertEquals("result 2", cache.get(query, "samples", this::load), "Views are cached apart");
+    Assertions.assertEquals(1, cache.stats().hitCount(), "Hit is recorded");
+    Assertions.assertEquals(2, cache.stats().missCount(), "Misses are recorded");
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(16));
+    Assertions.assertEquals("result 3", cache.get(query, "response", this::load), "Expired after the TTL");
+  }
+
+  @Test
+  public void typeWithoutTtl() {
+    PromQueryCache cache = PromQueryCache.builder()
+        .ttl(PromQuery.QueryType.RANGE, Duration.ofMinutes(1))
+        .build();
+    PromQuery query = PromQuery.builder().instant().metric("go_threads").build();
+
+    cache.get(query, "response", this::load);
+    cache.get(query, "response", this::load);
+    Assertions.assertEquals(2, loads.get(), "Not cached");
+
+    PromQueryCache.DISABLED.get(query, "response", this::load);
+    Assertions.assertEquals(3, loads.get(), "Not cached");
+  }
+
+  @Test
+  public void mono() {
+    PromQueryCache cache = cache();
+    PromQuery query = PromQuery.builder().instant().metric("go_threads").build();
+
+    Mono<String> mono = cache.getMono(query, "response", () -> Mono.fromSupplier(this::load));
+    Assertions.assertEquals("result 1", mono.block());
+    Assertions.assertEquals("result 1", mono.block(), "Cached result");
+    Assertions.assertEquals(1, loads.get());
+  }
+
+  @Test
+  @DisplayName("Range queries are aligned to their step")
+  public void alignToStep() {
+    PromQueryCache cache = cache();
+    PromQuery query = PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .start("2023-04-22T20:45:40+08:00")
+        .end("1682167607.5")
+        .step(15)
+        .build();
+
+    PromQuery aligned = cache.align(query);
+    Assertions.assertEquals(List.of("1682167530"), aligned.getParameters().get("start"), "Start is aligned");
+    Assertions.assertEquals(List.of("1682167605"), aligned.getParameters().get("end"), "End is aligned");
+    Assertions.assertEquals(List.of("15"), aligned.getParameters().get("step"), "Step is kept");
+    Assertions.assertEquals(query.getQuery(), aligned.getQuery(), "Query is kept");
+
+    PromQuery noStep = PromQuery.builder().range().metric("go_threads").start("1682167540").end("1682167607").build();
+    Assertions.assertSame(noStep, cache.align(noStep), "Not aligned without a step");
+    Assertions.assertSame(query, PromQueryCache.DISABLED.align(query), "Not aligned without the cache");
+  }
+
+  @Test
+  public void maximumWeight() {
+    PromQueryCache cache = PromQueryCache.builder()
+        .maximumWeight(0)
+        .ttl(PromQuery.QueryType.INSTANT, Duration.ofSeconds(15))
+        .build();
+    PromQuery query = PromQuery.builder().instant().metric("go_threads").build();
+
+    cache.get(query, "response", this::load);
+    cache.getCache().orElseThrow().cleanUp();
+    cache.get(query, "response", this::load);
+    Assertions.assertEquals(2, loads.get(), "Evicted over the maximum weight");
+    Assertions.assertTrue(PromQueryCache.estimateSize(List.of("a", "b")) > 0);
+  }
+}
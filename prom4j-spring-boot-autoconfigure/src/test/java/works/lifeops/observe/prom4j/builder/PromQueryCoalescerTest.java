@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+public class PromQueryCoalescerTest {
+  private static final PromQuery QUERY = PromQuery.builder().instant().metric("go_threads").label("job").is("api").build();
+  private static final PromQuery SAME_QUERY =
+      PromQuery.builder().instant().expr(PromExpr.parse("go_threads{job=~\"api\"}")).build();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  @DisplayName("Identical blocking queries in flight share one execution")
+  public void blocking() throws Exception {
+    PromQueryCoalescer coalescer = PromQueryCoalescer.create();
+    CountDownLatch loading = new CountDownLatch(1);
+    CompletableFuture<Object> response = new CompletableFuture<>();
+
+    Future<Object> first = executor.submit(() -> coalescer.execute(QUERY, "response", () -> {
+      loads.incrementAndGet();
+      loading.countDown();
+      return response.join();
+    }));
+    Assertions.assertTrue(loading.await(5, TimeUnit.SECONDS));
+    Future<Object> second = executor.submit(() -> coalescer.execute(SAME_QUERY, "response", () -> {
+      loads.incrementAndGet();
+      return new Object();
+    }));
+    // The second caller is waiting on the first execution
+    while (coalescer.getCoalescedCount() == 0) {
+      Thread.onSpinWait();
+    }
+    Object result = new Object();
+    response.complete(result);
+
+    Assertions.assertSame(result, first.get(5, TimeUnit.SECONDS));
+    Assertions.assertSame(result, second.get(5, TimeUnit.SECONDS), "Result is shared");
+    Assertions.assertEquals(1, loads.get(), "Executed once");
+    Assertions.assertEquals(0, coalescer.getInFlightCount(), "Nothing kept once completed");
+
+    coalescer.execute(QUERY, "response", loads::incrementAndGet);
+    Assertions.assertEquals(2, loads.get(), "Executed again once completed");
+  }
+
+  @Test
+  public void blockingError() throws Exception {
+    PromQueryCoalescer coalescer = PromQueryCoalescer.create();
+    CountDownLatch loading = new CountDownLatch(1);
+    CompletableFuture<Object> response = new CompletableFuture<>();
+
+    Future<Object> first = executor.submit(() -> coalescer.execute(QUERY, "response", () -> {
+      loading.countDown();
+      return response.join();
+    }));
+    Assertions.assertTrue(loading.await(5, TimeUnit.SECONDS));
+    Future<Object> second = executor.submit(() -> coalescer.execute(QUERY, "response", Object::new));
+    while (coalescer.getCoalescedCount() == 0) {
+      Thread.onSpinWait();
+    }
+    response.completeExceptionally(new IllegalStateException("Prometheus is down"));
+
+    Assertions.assertThrows(Exception.class, () -> first.get(5, TimeUnit.SECONDS));
+    Exception e = Assertions.assertThrows(Exception.class, () -> second.get(5, TimeUnit.SECONDS));
+    Assertions.assertTrue(e.getCause().getMessage().contains("Prometheus is down"), "Error is shared");
+  }
+
+  @Test
+  @DisplayName("The callers waiting for a query of a cancelled task execute it again rather than sharing its abort")
+  public void cancelledLeader() throws Exception {
+    PromQueryCoalescer coalescer = PromQueryCoalescer.create();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch waiting = new CountDownLatch(1);
+
+    try (PromBlockingExecutor blockingExecutor = PromBlockingExecutor.create(true, 2)) {
+      Future<Object> batch = executor.submit(() -> blockingExecutor.invokeAll(List.<Callable<Object>>of(
+          () -> coalescer.execute(QUERY, "response", () -> {
+            // The request, aborted once the task is cancelled
+            CountDownLatch aborted = new CountDownLatch(1);
+            PromBlockingExecutor.onCancel(aborted::countDown);
+            loading.countDown();
+            Uninterruptibles.awaitUninterruptibly(aborted);
+            throw new IllegalStateException("Aborted by the batch");
+          }),
+          () -> {
+            waiting.await();
+            throw new IllegalStateException("Failed");
+          })));
+      Assertions.assertTrue(loading.await(5, TimeUnit.SECONDS));
+      Future<Object> other = executor.submit(() -> coalescer.execute(SAME_QUERY, "response", () -> "other"));
+      while (coalescer.getCoalescedCount() == 0) {
+        Thread.onSpinWait();
+      }
+      waiting.countDown();
+
+      Exception e = Assertions.assertThrows(ExecutionException.class, () -> batch.get(5, TimeUnit.SECONDS));
+      Assertions.assertEquals("Failed", e.getCause().getMessage());
+      Assertions.assertEquals("other", other.get(5, TimeUnit.SECONDS), "Executed again");
+      Assertions.assertEquals(2, coalescer.getExecutedCount());
+    }
+  }
+
+  @Test
+  @DisplayName("A cancelled task stops waiting for the query of another caller")
+  public void cancelledFollower() throws Exception {
+    PromQueryCoalescer coalescer = PromQueryCoalescer.create();
+    CountDownLatch loading = new CountDownLatch(1);
+    CompletableFuture<Object> response = new CompletableFuture<>();
+
+    Future<Object> other = executor.submit(() -> coalescer.execute(QUERY, "response", () -> {
+      loading.countDown();
+      return response.join();
+    }));
+    Assertions.assertTrue(loading.await(5, TimeUnit.SECONDS));
+    try (PromBlockingExecutor blockingExecutor = PromBlockingExecutor.create(true, 2)) {
+      RuntimeException e = Assertions.assertThrows(RuntimeException.class, () -> Assertions.assertTimeoutPreemptively(
+          Duration.ofSeconds(5), () -> blockingExecutor.invokeAll(List.<Callable<Object>>of(
+              () -> coalescer.execute(SAME_QUERY, "response", Object::new),
+              () -> {
+                while (coalescer.getCoalescedCount() == 0) {
+                  Thread.onSpinWait();
+                }
+                throw new IllegalStateException("Failed");
+              }))));
+      Assertions.assertEquals("Failed", e.getMessage());
+    }
+    Object result = new Object();
+    response.complete(result);
+    Assertions.assertSame(result, other.get(5, TimeUnit.SECONDS), "The other caller is not affected");
+  }
+
+  @Test
+  @DisplayName("Identical reactive queries in flight share one subscription")
+  public void mono() {
+    PromQueryCoalescer coalescer = PromQueryCoalescer.create();
+    Sinks.One<String> response = Sinks.one();
+    Mono<String> first = coalescer.executeMono(QUERY, "response", () -> {
+      loads.incrementAndGet();
+      return response.asMono();
+    });
+    Mono<String> second = coalescer.executeMono(SAME_QUERY, "response", () -> {
+      loads.incrementAndGet();
+      return Mono.just("other");
+    });
+
+    CompletableFuture<String> firstResult = first.toFuture();
+    CompletableFuture<String> secondResult = second.toFuture();
+    response.tryEmitValue("result");
+
+    Assertions.assertEquals("result", firstResult.join());
+    Assertions.assertEquals("result", secondResult.join(), "Result is shared");
+    Assertions.assertEquals(1, loads.get(), "Executed once");
+    Assertions.assertEquals(1, coalescer.getCoalescedCount());
+    Assertions.assertEquals(0, coalescer.getInFlightCount(), "Nothing kept once completed");
+  }
+
+  @Test
+  public void disabled() {
+    PromQueryCoalescer.DISABLED.execute(QUERY, "response", loads::incrementAndGet);
+    PromQueryCoalescer.DISABLED.executeMono(QUERY, "response", () -> Mono.fromSupplier(loads::incrementAndGet)).block();
+
+    Assertions.assertEquals(2, loads.get());
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriBuilderFactory;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import works.lifeops.observe.prom4j.builder.dto.PromResultMapper;
+
+public class PromQueryServiceTest {
+  private static final String RESPONSE =
+      "{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":"
+          + "[{\"metric\":{\"__name__\":\"%s\"},\"value\":[1700000000,\"1\"]}]}}";
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final PromBlockingExecutor blockingExecutor = PromBlockingExecutor.create(true, 4);
+  private ExchangeStrategies strategies;
+
+  @AfterEach
+  public void tearDown() {
+    blockingExecutor.close();
+  }
+
+  /**
+   * Responds to each query after the milliseconds of its metric name, e.g. "m200".
+   */
+  private PromQueryService service(int maxConcurrency) {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer());
+    ObjectMapper objectMapper = JsonMapper.builder().addModule(module).build();
+    UriBuilderFactory uriBuilderFactory = new PromQueryUriBuilderFactory("http://prometheus:9090/api/v1");
+    strategies = ExchangeStrategies.builder()
+        .codecs(configurer -> configurer.defaultCodecs().jackson2JsonDecoder(
+            new Jackson2JsonDecoder(objectMapper, MediaType.APPLICATION_JSON)))
+        .build();
+    WebClient client = WebClient.builder()
+        .uriBuilderFactory(uriBuilderFactory)
+        .exchangeStrategies(strategies)
+        .exchangeFunction(this::respond)
+        .build();
+    return new PromQueryService(client, null, uriBuilderFactory, objectMapper, PromResultMapper.INSTANCE,
+                                PromQueryCache.DISABLED, PromRangeExtentCache.DISABLED, PromQueryCoalescer.DISABLED,
+                                PromRangeSharder.DISABLED, PromSeriesSharder.DISABLED, blockingExecutor,
+                                maxConcurrency);
+  }
+
+  private Mono<ClientResponse> respond(ClientRequest request) {
+    String metric = UriComponentsBuilder.fromUri(request.url()).build().getQueryParams().getFirst("query");
+    return Mono.fromRunnable(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+        .then(Mono.delay(Duration.ofMillis(Long.parseLong(metric.substring(1)))))
+        .then(Mono.fromSupplier(() -> {
+          inFlight.decrementAndGet();
+          return ClientResponse.create(HttpStatus.OK, strategies)
+              .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+              .body(String.format(RESPONSE, metric))
+              .build();
+        }));
+  }
+
+  private static List<PromQuery> queries(String... metrics) {
+    return List.of(metrics).stream()
+        .map(metric -> PromQuery.builder().instant().metric(metric).build())
+        .collect(Collectors.toList());
+  }
+
+  private static List<String> metrics(List<Tuple2<PromQuery, PromResponse<PromResponse.VectrixResult>>> responses) {
+    return responses.stream()
+        .map(response -> response.getT2().getData().getResult().get(0).getMetric().get("__name__"))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  @DisplayName("A batch is emitted in the order of the queries or of their completion")
+  public void queryAll() {
+    PromQueryService service = service(4);
+    List<PromQuery> queries = queries("m300", "m0", "m150");
+
+    List<Tuple2<PromQuery, PromResponse<PromResponse.VectrixResult>>> input = service
+        .<PromResponse.VectrixResult>queryAll(queries).collectList().block(Duration.ofSeconds(5));
+    Assertions.assertEquals(List.of("m300", "m0", "m150"), metrics(input));
+    Assertions.assertEquals(queries, input.stream().map(Tuple2::getT1).collect(Collectors.toList()));
+
+    List<Tuple2<PromQuery, PromResponse<PromResponse.VectrixResult>>> completion = service
+        .<PromResponse.VectrixResult>queryAll(queries, PromQueryService.Ordering.COMPLETION)
+        .collectList().block(Duration.ofSeconds(5));
+    Assertions.assertEquals(List.of("m0", "m150", "m300"), metrics(completion));
+  }
+
+  @Test
+  @DisplayName("At most the maximum concurrency of a batch is in flight")
+  public void maxConcurrency() {
+    PromQueryService service = service(2);
+
+    List<Tuple2<PromQuery, PromResponse<PromResponse.VectrixResult>>> responses = service
+        .<PromResponse.VectrixResult>queryAll(queries("m50", "m50", "m50", "m50", "m50"))
+        .collectList().block(Duration.ofSeconds(5));
+    Assertions.assertEquals(5, responses.size());
+    Assertions.assertEquals(2, maxInFlight.get());
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+
+public class PromRangeExtentCacheTest {
+  private static final long NOW = 1_682_200_000L;
+  private static final Map<String, String> SERIES = Map.of("__name__", "go_threads", "job", "prometheus");
+
+  private final List<PromQuery.RangeQuery> fetched = Lists.newArrayList();
+
+  /**
+   * Serves one sample per step of the range whose value is its timestamp.
+   */
+  private List<PromResponse.VectrixResult> fetch(PromQuery.RangeQuery query) {
+    fetched.add(query);
+    long start = Long.parseLong(query.start().get());
+    long end = Long.parseLong(query.end().get());
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = Lists.newArrayList();
+    for (long t = start; t <= end; t += query.step().get()) {
+      values.add(PromResponse.ResultValue.of(t, Long.toString(t)));
+    }
+    return Lists.newArrayList(new PromResponse.VectrixResult(SERIES, values));
+  }
+
+  private static PromQuery.RangeQuery query(long start, long end) {
+    return PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .label("job").is("prometheus")
+        .start(Long.toString(start))
+        .end(Long.toString(end))
+        .step(60)
+        .build();
+  }
+
+  private static List<Long> timestamps(List<PromResponse.VectrixResult> results) {
+    return results.get(0).getValues().stream()
+        .map(value -> (long) value.getEpochDateTime())
+        .collect(Collectors.toList());
+  }
+
+  private PromRangeExtentCache cache() {
+    return PromRangeExtentCache.builder()
+        .staleness(Duration.ofMinutes(2))
+        .clock(Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC))
+        .build();
+  }
+
+  @Test
+  @DisplayName("A window moved forward only fetches the new and the stale steps")
+  public void movedWindow() {
+    PromRangeExtentCache cache = cache();
+    long end = NOW - NOW % 60;
+
+    List<PromResponse.VectrixResult> first = cache.get(query(end - 3600, end), this::fetch);
+    Assertions.assertEquals(61, first.get(0).getValues().size());
+
+    List<PromResponse.VectrixResult> second = cache.get(query(end - 3600 + 120, end + 120), this::fetch);
+    Assertions.assertEquals(2, fetched.size());
+    // The steps within the last 2 minutes before now were stale, the tail from the step after is fetched
+    Assertions.assertEquals(String.valueOf(end - 60), fetched.get(1).start().get(), "Tail start");
+    Assertions.assertEquals(String.valueOf(end + 120), fetched.get(1).end().get(), "Tail end");
+    Assertions.assertEquals(fetch(query(end - 3600 + 120, end + 120)).get(0).getValues().stream()
+        .map(value -> (long) value.getEpochDateTime()).collect(Collectors.toList()), timestamps(second),
+        "Spliced samples are the same as fetching the whole range");
+    Assertions.assertEquals(SERIES, second.get(0).getMetric());
+  }
+
+  @Test
+  @DisplayName("The range is aligned to the step")
+  public void alignToStep() {
+    PromRangeExtentCache cache = cache();
+    long end = NOW - NOW % 60 - 600;
+
+    cache.get(query(end - 3600 + 15, end + 15), this::fetch);
+    Assertions.assertEquals(String.valueOf(end - 3600), fetched.get(0).start().get());
+    cache.get(query(end - 3600 + 30, end + 30), this::fetch);
+    Assertions.assertEquals(1, fetched.size(), "Served from the cache");
+  }
+
+  @Test
+  public void disjoint() {
+    PromRangeExtentCache cache = cache();
+    long end = NOW - NOW % 60 - 86400;
+
+    cache.get(query(end - 3600, end), this::fetch);
+    List<PromResponse.VectrixResult> results = cache.get(query(end + 3600, end + 7200), this::fetch);
+    Assertions.assertEquals(2, fetched.size());
+    Assertions.assertEquals(String.valueOf(end + 3600), fetched.get(1).start().get(), "Whole range is fetched");
+    Assertions.assertEquals(61, results.get(0).getValues().size());
+  }
+
+  @Test
+  @DisplayName("A range within the cached extent keeps the extent")
+  public void narrowerRange() {
+    PromRangeExtentCache cache = cache();
+    long end = NOW - NOW % 60 - 600;
+
+    cache.get(query(end - 3600, end), this::fetch);
+    cache.get(query(end - 1800, end - 600), this::fetch);
+    List<PromResponse.VectrixResult> results = cache.get(query(end - 3600, end), this::fetch);
+    Assertions.assertEquals(1, fetched.size(), "Served from the cache");
+    Assertions.assertEquals(61, results.get(0).getValues().size());
+  }
+
+  @Test
+  @DisplayName("A query at the start or the end of its range is fetched as it is")
+  public void anchoredToRange() {
+    PromRangeExtentCache cache = cache();
+    long end = NOW - NOW % 60 - 600;
+    PromQuery.RangeQuery query = PromQuery.builder()
+        .range()
+        .expr(PromExpr.selector("go_threads").at("end()"))
+        .start(Long.toString(end - 3600))
+        .end(Long.toString(end))
+        .step(60)
+        .build();
+
+    cache.get(query, this::fetch);
+    cache.get(query, this::fetch);
+    Assertions.assertSame(query, fetched.get(1), "Fetched as it is");
+    Assertions.assertEquals(2, fetched.size());
+  }
+
+  @Test
+  public void disabled() {
+    long end = NOW - NOW % 60;
+    PromQuery.RangeQuery query = query(end - 3600, end);
+
+    PromRangeExtentCache.DISABLED.get(query, this::fetch);
+    PromRangeExtentCache.DISABLED.get(query, this::fetch);
+    Assertions.assertSame(query, fetched.get(0), "Fetched as it is");
+    Assertions.assertEquals(2, fetched.size());
+  }
+
+  @Test
+  @DisplayName("Splicing merges the samples by their timestamps")
+  public void splice() {
+    PromResponse.VectrixResult cached = new PromResponse.VectrixResult(SERIES, Lists.newArrayList(
+        PromResponse.ResultValue.of(60, "1"), PromResponse.ResultValue.of(120, "2")));
+    PromResponse.VectrixResult fetched = new PromResponse.VectrixResult(SERIES, Lists.newArrayList(
+        PromResponse.ResultValue.of(120, "3"), PromResponse.ResultValue.of(180, "4")));
+    PromResponse.VectrixResult other = new PromResponse.VectrixResult(Map.of("job", "other"), Lists.newArrayList(
+        PromResponse.ResultValue.of(0, "5")));
+
+    List<PromResponse.VectrixResult> results =
+        PromRangeExtentCache.splice(List.of(cached, other), List.of(fetched), 60_000, 180_000);
+    Assertions.assertEquals(1, results.size(), "Series without samples in the range are dropped");
+    Assertions.assertEquals(List.of("1", "3", "4"),
+        results.get(0).getValues().stream().map(PromResponse.ResultValue::getValue).collect(Collectors.toList()),
+        "Fetched samples take the place of the cached ones");
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+
+public class PromRangeSharderTest {
+  private static final long DAY = 86_400L;
+  private static final Map<String, String> SERIES = Map.of("__name__", "go_threads", "job", "prometheus");
+  private static final Map<String, String> OTHER_SERIES = Map.of("__name__", "go_threads", "job", "node");
+
+  /**
+   * Serves one sample per step of the range whose value is its timestamp, for {@code series}.
+   */
+  private static List<PromResponse.VectrixResult> fetch(PromQuery.RangeQuery query, Map<String, String> series) {
+    long start = Long.parseLong(query.start().get());
+    long end = Long.parseLong(query.end().get());
+    List<PromResponse.ResultValue<PromResponse.VectrixResult>> values = Lists.newArrayList();
+    for (long t = start; t <= end; t += query.step().get()) {
+      values.add(PromResponse.ResultValue.of(t, Long.toString(t)));
+    }
+    return Lists.newArrayList(new PromResponse.VectrixResult(series, values));
+  }
+
+  private static PromQuery.RangeQuery query(long start, long end, int step) {
+    return PromQuery.builder()
+        .range()
+        .metric("go_threads")
+        .start(Long.toString(start))
+        .end(Long.toString(end))
+        .step(step)
+        .build();
+  }
+
+  private static List<String> ranges(List<PromQuery.RangeQuery> shards) {
+    return shards.stream()
+        .map(shard -> shard.start().get() + "-" + shard.end().get())
+        .collect(Collectors.toList());
+  }
+
+  private static List<Long> timestamps(PromResponse.VectrixResult result) {
+    return result.getValues().stream()
+        .map(value -> (long) value.getEpochDateTime())
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  @DisplayName("The shards are step-aligned, don't overlap and cover the range")
+  public void shards() {
+    PromRangeSharder sharder = PromRangeSharder.of(Duration.ofDays(1));
+    // Starts 30 seconds past a step of 60 seconds, half a day into the first shard
+    long start = 19_000 * DAY + DAY / 2 + 30;
+    long end = start + 2 * DAY;
+
+    List<PromQuery.RangeQuery> shards = sharder.shards(query(start, end, 60));
+    Assertions.assertEquals(List.of(
+        start + "-" + (19_001 * DAY + 30 - 60),
+        (19_001 * DAY + 30) + "-" + (19_002 * DAY + 30 - 60),
+        (19_002 * DAY + 30) + "-" + end), ranges(shards));
+    Assertions.assertTrue(shards.stream().allMatch(shard -> shard.step().get() == 60), "Step");
+    Assertions.assertEquals(query(start, end, 60).getCanonicalQuery(), shards.get(1).getCanonicalQuery(), "Query");
+
+    // The middle shard of a range moved by a step is the same query
+    Assertions.assertEquals(shards.get(1).getFingerprint(),
+                            sharder.shards(query(start + 60, end + 60, 60)).get(1).getFingerprint());
+  }
+
+  @Test
+  @DisplayName("The shard size is rounded down to a multiple of the step")
+  public void shardSize() {
+    PromRangeSharder sharder = PromRangeSharder.of(Duration.ofSeconds(250));
+
+    Assertions.assertEquals(List.of("0-180", "240-420", "480-600"), ranges(sharder.shards(query(0, 600, 60))));
+    // A step longer than the shard size makes a shard per step
+    Assertions.assertEquals(List.of("0-0", "300-300", "600-600"), ranges(sharder.shards(query(0, 600, 300))));
+  }
+
+  @Test
+  @DisplayName("A range shorter than a shard, a query anchored to its range, or a disabled sharder, isn't sharded")
+  public void unsharded() {
+    PromQuery.RangeQuery query = query(0, DAY - 60, 60);
+
+    Assertions.assertEquals(List.of(query), PromRangeSharder.of(Duration.ofDays(1)).shards(query));
+    PromQuery.RangeQuery longQuery = query(0, 30 * DAY, 60);
+    Assertions.assertEquals(List.of(longQuery), PromRangeSharder.DISABLED.shards(longQuery));
+    PromQuery.RangeQuery anchoredQuery = PromQuery.builder()
+        .range()
+        .expr(PromExpr.parse("go_threads - go_threads @ start()"))
+        .start("0")
+        .end(Long.toString(30 * DAY))
+        .step(60)
+        .build();
+    Assertions.assertEquals(List.of(anchoredQuery), PromRangeSharder.of(Duration.ofDays(1)).shards(anchoredQuery));
+  }
+
+  @Test
+  @DisplayName("The stitched series are the same as those of the whole range")
+  public void stitch() {
+    PromRangeSharder sharder = PromRangeSharder.of(Duration.ofHours(1));
+    PromQuery.RangeQuery query = query(1_682_200_000L, 1_682_200_000L + 4 * 3600, 60);
+
+    List<List<PromResponse.VectrixResult>> shardResults = sharder.shards(query).stream()
+        .map(shard -> fetch(shard, SERIES))
+        .collect(Collectors.toList());
+    // A series only in the last shard, and a sample repeated on the boundary
+    shardResults.get(shardResults.size() - 1).addAll(fetch(query(1_682_214_400L, 1_682_214_400L, 60), OTHER_SERIES));
+    PromResponse.VectrixResult last = shardResults.get(1).get(0);
+    shardResults.get(2).get(0).getValues().add(0, PromResponse.ResultValue.copy(
+        last.getValues().get(last.getValues().size() - 1)));
+
+    List<PromResponse.VectrixResult> stitched = PromRangeSharder.stitch(shardResults);
+    Assertions.assertEquals(2, stitched.size());
+    Assertions.assertEquals(SERIES, stitched.get(0).getMetric());
+    Assertions.assertEquals(timestamps(fetch(query, SERIES).get(0)), timestamps(stitched.get(0)));
+    Assertions.assertEquals(OTHER_SERIES, stitched.get(1).getMetric());
+    Assertions.assertEquals(List.of(1_682_214_400L), timestamps(stitched.get(1)));
+    Assertions.assertSame(shardResults.get(0).get(0), shardResults.get(0).get(0).getValues().get(0).getResult(),
+                          "Shard results intact");
+  }
+}
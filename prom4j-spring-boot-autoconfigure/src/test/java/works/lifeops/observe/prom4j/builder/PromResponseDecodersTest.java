@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Tests the {@link PromResponseHttpMessageConverter} and the {@link PromResponseDataBufferDecoder}.
+ */
+public class PromResponseDecodersTest {
+  private static final String RESPONSE = "{\"status\":\"success\",\"data\":{\"resultType\":\"matrix\",\"result\":["
+      + "{\"metric\":{\"__name__\":\"go_threads\"},\"values\":[[1681824540,\"10\"],[1681824550,\"11\"]]}]}}";
+
+  private static PromResponseDecoder decoder() {
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(PromResponse.class, new PromResponseDeserializer());
+    ObjectMapper objectMapper = JsonMapper.builder().addModule(module).build();
+    return new PromResponseDecoder(objectMapper);
+  }
+
+  @Test
+  @DisplayName("The message converter reads PromResponses only")
+  public void httpMessageConverter() throws IOException {
+    PromResponseHttpMessageConverter converter = new PromResponseHttpMessageConverter(decoder());
+    ParameterizedTypeReference<PromResponse<PromResponse.ColumnarResult>> columnarType =
+        new ParameterizedTypeReference<PromResponse<PromResponse.ColumnarResult>>() {};
+
+    Assertions.assertTrue(converter.canRead(columnarType.getType(), null, MediaType.APPLICATION_JSON));
+    Assertions.assertFalse(converter.canRead(PromMetadata.Series.class, null, MediaType.APPLICATION_JSON));
+    Assertions.assertFalse(converter.canRead(new ParameterizedTypeReference<List<String>>() {}.getType(), null,
+        MediaType.APPLICATION_JSON));
+    Assertions.assertFalse(converter.canWrite(PromResponse.class, MediaType.APPLICATION_JSON));
+
+    MockClientHttpResponse httpResponse = new MockClientHttpResponse(RESPONSE.getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+    PromResponse<?> response = converter.read(columnarType.getType(), null, httpResponse);
+    PromResponse.ColumnarResult result = (PromResponse.ColumnarResult) response.getData().getResult().get(0);
+    Assertions.assertEquals(11d, result.getValue(1));
+  }
+
+  @Test
+  @DisplayName("The WebFlux decoder decodes PromResponses only")
+  public void dataBufferDecoder() {
+    PromResponseDataBufferDecoder dataBufferDecoder = new PromResponseDataBufferDecoder(decoder());
+    ResolvableType vectrixType = ResolvableType.forClassWithGenerics(PromResponse.class, PromResponse.VectrixResult.class);
+
+    Assertions.assertTrue(dataBufferDecoder.canDecode(vectrixType, MimeTypeUtils.APPLICATION_JSON));
+    Assertions.assertFalse(dataBufferDecoder.canDecode(ResolvableType.forClass(PromMetadata.Labels.class),
+        MimeTypeUtils.APPLICATION_JSON));
+
+    PromResponse<?> response = dataBufferDecoder.decode(
+        DefaultDataBufferFactory.sharedInstance.wrap(RESPONSE.getBytes(StandardCharsets.UTF_8)),
+        vectrixType, MimeTypeUtils.APPLICATION_JSON, Collections.emptyMap());
+    PromResponse.VectrixResult result = (PromResponse.VectrixResult) response.getData().getResult().get(0);
+    Assertions.assertEquals("11", result.getValues().get(1).getValue());
+    Assertions.assertEquals("go_threads", result.getMetric().get("__name__"));
+  }
+}
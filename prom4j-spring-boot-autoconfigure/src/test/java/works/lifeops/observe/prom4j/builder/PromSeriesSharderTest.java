@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2023 Li Wan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package works.lifeops.observe.prom4j.builder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+
+public class PromSeriesSharderTest {
+  private static final List<String> INSTANCES = List.of("host-1:9100", "host-2:9100", "host-3:9100", "host-4:9100",
+      "host-5:9100", "host-6:9100", "host-7:9100", "host-8:9100", "10.0.0.1:9100", "[::1]:9100");
+
+  private final PromSeriesSharder sharder = PromSeriesSharder.of("instance", 4);
+
+  private static PromQuery.RangeQuery query(String promql) {
+    return PromQuery.builder()
+        .range()
+        .expr(PromExpr.parse(promql))
+        .start("1682200000")
+        .end("1682203600")
+        .step(60)
+        .build();
+  }
+
+  /**
+   * Gets the regex of the "instance" matcher of the first selector of the partition.
+   */
+  private static String regex(PromQuery partition) {
+    return PromExpr.parse(partition.getQuery()).selectors().get(0).getMatchers().stream()
+        .filter(matcher -> matcher.getLabel().equals("instance"))
+        .findFirst().get().getValue();
+  }
+
+  @Test
+  @DisplayName("Each value of the label, and its absence, is matched by exactly one partition")
+  public void partitions() {
+    PromQuery.RangeQuery query = query("rate(node_cpu_seconds_total{mode=\"idle\"}[5m])");
+    PromExpr expr = sharder.partitionable(query).get();
+
+    List<PromQuery.RangeQuery> partitions = sharder.partitions(query, expr, INSTANCES);
+    Assertions.assertTrue(partitions.size() > 1 && partitions.size() <= 4, "Partitions");
+    List<Pattern> patterns = partitions.stream()
+        .map(partition -> Pattern.compile(regex(partition)))
+        .collect(Collectors.toList());
+    for (String value : Lists.asList("", "10a0b0c1:9100", INSTANCES.toArray(new String[0]))) {
+      long matches = patterns.stream().filter(pattern -> pattern.matcher(value).matches()).count();
+      Assertions.assertEquals(value.equals("10a0b0c1:9100") ? 0 : 1, matches, value);
+    }
+    for (PromQuery.RangeQuery partition : partitions) {
+      Assertions.assertEquals(query.start(), partition.start(), "Start");
+      Assertions.assertEquals(query.step(), partition.step(), "Step");
+      Assertions.assertTrue(partition.getQuery().startsWith("rate(node_cpu_seconds_total{mode=\"idle\",instance=~\""),
+                            partition.getQuery());
+    }
+
+    // The same values make the same partitions
+    Assertions.assertEquals(
+        partitions.stream().map(PromQuery::getFingerprint).collect(Collectors.toList()),
+        sharder.partitions(query, expr, Lists.reverse(INSTANCES)).stream()
+            .map(PromQuery::getFingerprint).collect(Collectors.toList()));
+  }
+
+  @Test
+  @DisplayName("Only the queries partitionable by the label are partitioned")
+  public void partitionable() {
+    Assertions.assertTrue(sharder.partitionable(query("sum by (instance) (go_threads)")).isPresent());
+    Assertions.assertEquals(Optional.empty(), sharder.partitionable(query("sum(go_threads)")));
+    Assertions.assertEquals(Optional.empty(), sharder.partitionable(query("vector(1)")));
+    Assertions.assertEquals(Optional.empty(), PromSeriesSharder.DISABLED.partitionable(query("go_threads")));
+    Assertions.assertEquals(Optional.empty(), sharder.partitionable(
+        PromQuery.builder().labelValues().labelName("instance").match("go_threads").build()));
+  }
+
+  @Test
+  @DisplayName("The label values are queried for the selectors without their modifiers")
+  public void labelValuesQuery() {
+    PromExpr expr = PromExpr.parse("go_threads offset 5m / on (instance) go_info{job=\"api\"} + go_threads");
+
+    Assertions.assertEquals(List.of("go_threads", "go_info{job=\"api\"}"),
+        sharder.labelValuesQuery(expr).getParameters().get("match[]"));
+  }
+
+  @Test
+  public void escapeRegex() {
+    Assertions.assertEquals("10\\.0\\.0\\.1:9100", PromSeriesSharder.escapeRegex("10.0.0.1:9100"));
+    Assertions.assertEquals("\\[::1\\]:9100", PromSeriesSharder.escapeRegex("[::1]:9100"));
+  }
+
+  @Test
+  public void merge() {
+    PromResponse.VectrixResult a = new PromResponse.VectrixResult(Map.of("instance", "a"), List.of());
+    PromResponse.VectrixResult b = new PromResponse.VectrixResult(Map.of("instance", "b"), List.of());
+
+    Assertions.assertEquals(List.of(a, b), PromSeriesSharder.merge(List.of(List.of(a), List.of(), List.of(b))));
+  }
+}